@@ -155,6 +155,53 @@ public abstract class AbstractCleanseEngineImplTest extends TestCase{
 
 	}
 	
+	/**
+	 * Reading the source table ahead of the munging would move the cursor the
+	 * result step writes through, so with prefetching turned on every row
+	 * still has to get its own cleansed value.
+	 */
+	public void testCallWithPrefetchUpdatesEachRow() throws Exception {
+		execSQL(con, "DELETE FROM " + getFullTableName());
+		int rowCount = 50;
+		for (int i = 0; i < rowCount; i++) {
+			execSQL(con, "INSERT INTO " + getFullTableName() + " (ID, COL_STRING) VALUES(" +
+					i + ", " + SQL.quote("row" + i) + ")");
+		}
+		project.getMungeSettings().setPrefetchRowCount(10);
+
+		UpperCaseMungeStep ucms = new UpperCaseMungeStep();
+
+		MungeProcess mungep = new MungeProcess();
+		mungep.addChild(step);
+		mungep.addChild(ucms);
+		mungep.setName("test");
+		project.addChild(mungep);
+		
+		MungeStep mrs = step.getOutputStep();
+		mungep.addChild(mrs);
+		
+		step.refresh(logger);
+		mrs.open(logger);
+		mrs.mungeRollback();
+		mrs.mungeClose();
+		mrs.connectInput(1, ucms.getMungeStepOutputs().get(0));
+		ucms.connectInput(0, step.getMungeStepOutputs().get(1));
+		
+		engine.call();
+
+		Connection con = project.createSourceTableConnection();
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT ID, COL_STRING FROM " + getFullTableName());
+		int count = 0;
+		while (rs.next()) {
+			assertEquals("ROW" + rs.getInt(1), rs.getString(2));
+			count++;
+		}
+		rs.close();
+		stmt.close();
+		assertEquals(rowCount, count);
+	}
+	
 	protected boolean execSQL(Connection conn, String sql) {
 		Statement stmt = null;
 		try {
@@ -250,7 +250,7 @@ public abstract class AbstractMergeProcessorTest extends TestCase {
      * database. See {@link MergeProcessorOracleTest#populateTables()} for 
      * example. This should be called before each test case. 
      */
-    private void populateTables() throws Exception {
+    protected void populateTables() throws Exception {
     	String sql;
 
     	clearTables();
@@ -311,7 +311,7 @@ public abstract class AbstractMergeProcessorTest extends TestCase {
 	    cmr_number.setActionType(MergeActionType.USE_MASTER_VALUE);
 	}
     
-    private void populateChildTable() throws Exception {
+    protected void populateChildTable() throws Exception {
     	String sql;
 		String testString = "ABCDEF";
 				
@@ -374,7 +374,7 @@ public abstract class AbstractMergeProcessorTest extends TestCase {
 		cctmr.setChildMergeAction(ChildMergeActionType.DELETE_ALL_DUP_CHILD);
 	}
     
-    private void populateGrandChildTable() throws Exception {
+    protected void populateGrandChildTable() throws Exception {
     	String sql;
 		String testString = "ABCDEF";
 		
@@ -1017,7 +1017,7 @@ public abstract class AbstractMergeProcessorTest extends TestCase {
 	
 	protected abstract JDBCDataSource getDS();
 	
-	private void runProcessor() throws Exception {
+	protected void runProcessor() throws Exception {
 		con.setAutoCommit(false);
 		try {
 			mpor = new MergeProcessor(project, con, logger);
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.munge.InputDescriptor;
+import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcessor;
+import ca.sqlpower.matchmaker.munge.MungeResultStep;
+import ca.sqlpower.matchmaker.munge.SQLInputStep;
+import ca.sqlpower.matchmaker.munge.TestingMungeStep;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.sqlobject.SQLDatabase;
+import ca.sqlpower.sqlobject.SQLIndex;
+import ca.sqlpower.sqlobject.SQLTable;
+import ca.sqlpower.sqlobject.SQLIndex.AscendDescend;
+import ca.sqlpower.sqlobject.SQLIndex.Column;
+
+/**
+ * Munges and matches several processes at once over a source table in an
+ * in-memory HSQLDB database, and checks that doing so gives the same pool as
+ * running them one at a time and that a failure or a cancel in one of them
+ * stops them all.
+ */
+public class ConcurrentMungeAndMatchProcessorHSQLDBTest extends TestCase {
+
+	private final Logger logger = Logger.getLogger("testLogger");
+	
+	/**
+	 * The number of rows in the source table.
+	 */
+	private static final int ROW_COUNT = 30;
+	
+	/**
+	 * How long the steps wait for each other before the test fails.
+	 */
+	private static final long TIMEOUT_SECONDS = 30;
+	
+	private SQLDatabase db;
+	private Connection con;
+	private Project project;
+	private MatchPool pool;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		JDBCDataSource dataSource = DBTestUtil.getHSQLDBInMemoryDS();
+		db = new SQLDatabase(dataSource);
+		con = db.getConnection();
+		
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("DROP TABLE pl.concurrent_source IF EXISTS");
+		stmt.executeUpdate("CREATE TABLE pl.concurrent_source ("
+				+ "\n ID INTEGER NOT NULL PRIMARY KEY,"
+				+ "\n NAME VARCHAR(20),"
+				+ "\n CITY VARCHAR(20))");
+		for (int i = 0; i < ROW_COUNT; i++) {
+			stmt.executeUpdate("INSERT INTO pl.concurrent_source VALUES (" +
+					(i + 1) + ", 'name" + (i % 4) + "', 'city" + (i % 3) + "')");
+		}
+		stmt.close();
+		
+		SQLTable sourceTable = db.getTableByName(null, "pl", "concurrent_source");
+		SQLIndex sourceTableIndex = new SQLIndex("CONCURRENT_SOURCE_KEY", true, null, null, null);
+		sourceTableIndex.addChild(new Column(sourceTable.getColumnByName("ID"), AscendDescend.UNSPECIFIED));
+		sourceTable.addIndex(sourceTableIndex);
+		
+		TestingMatchMakerSession session = new TestingMatchMakerSession() {
+			@Override
+			public Connection getConnection() {
+				try {
+					return db.getConnection();
+				} catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+		session.setDatabase(db);
+		
+		project = new Project();
+		project.setSession(session);
+		project.setSourceTable(sourceTable);
+		project.setSourceTableIndex(sourceTableIndex);
+		project.getMungeSettings().setProcessThreadCount(3);
+		pool = project.getMatchPool();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("DROP TABLE pl.concurrent_source");
+		stmt.close();
+		con.close();
+	}
+	
+	/**
+	 * Running the processes at once has to give the same clusters and
+	 * potential matches as munging and matching them one after another.
+	 */
+	public void testSameMatchPoolAsSequentialRun() throws Exception {
+		List<MungeProcess> processes = Arrays.asList(
+				createProcess("names", "NAME"),
+				createProcess("cities", "CITY"),
+				createProcess("names_and_cities", "NAME", "CITY"));
+		for (MungeProcess process : processes) {
+			new MungeProcessor(process, logger).call();
+			MatchProcessor.forProcess(pool, process, logger).call();
+		}
+		List<String> sequential = describePool();
+		assertFalse(pool.getPotentialMatchRecords().isEmpty());
+		
+		pool.clearRecords();
+		pool.clearCache();
+		assertTrue(pool.getPotentialMatchRecords().isEmpty());
+		
+		ConcurrentMungeAndMatchProcessor concurrent = createProcessor(processes);
+		assertTrue(concurrent.call());
+		assertFalse(concurrent.isCancelled());
+		assertEquals(sequential, describePool());
+	}
+	
+	/**
+	 * A process that fails has to cancel the processes still running, and
+	 * its exception has to be the one thrown. The other process waits on a
+	 * row until it is cancelled, so it is still munging when the failure
+	 * happens.
+	 */
+	public void testFailureCancelsOtherProcesses() throws Exception {
+		MungeProcess failing = createProcess("failing", "NAME");
+		RowCountingStep failingStep = addRowCountingStep(failing);
+		MungeProcess waiting = createProcess("waiting", "CITY");
+		RowCountingStep waitingStep = addRowCountingStep(waiting);
+		ConcurrentMungeAndMatchProcessor concurrent = createProcessor(Arrays.asList(failing, waiting));
+		
+		CountDownLatch waitingStarted = new CountDownLatch(1);
+		waitingStep.setWaitingCall(2, waitingStarted, concurrent);
+		failingStep.setFailingCall(5, waitingStarted);
+		
+		try {
+			concurrent.call();
+			fail("The failing process did not stop the others");
+		} catch (IllegalStateException e) {
+			assertEquals("Failing on row 5", e.getMessage());
+		}
+		assertTrue(concurrent.isCancelled());
+		assertEquals(5, failingStep.getCalls());
+		assertEquals("The other process munged past the cancel", 2, waitingStep.getCalls());
+		assertNull(failing.getInputSteps().get(0).getResultSet());
+		assertNull(waiting.getInputSteps().get(0).getResultSet());
+		assertTrue("Matches were merged after the failure", pool.getPotentialMatchRecords().isEmpty());
+	}
+	
+	/**
+	 * Cancelling the processor while the processes run has to be passed on
+	 * to the munge processor of every worker, not just stop new ones from
+	 * starting.
+	 */
+	public void testCancelIsPassedOnToWorkers() throws Exception {
+		MungeProcess waiting = createProcess("waiting", "NAME");
+		RowCountingStep waitingStep = addRowCountingStep(waiting);
+		MungeProcess cancelling = createProcess("cancelling", "CITY");
+		RowCountingStep cancellingStep = addRowCountingStep(cancelling);
+		ConcurrentMungeAndMatchProcessor concurrent = createProcessor(Arrays.asList(waiting, cancelling));
+		
+		CountDownLatch waitingStarted = new CountDownLatch(1);
+		waitingStep.setWaitingCall(2, waitingStarted, concurrent);
+		cancellingStep.setCancellingCall(3, waitingStarted, concurrent);
+		
+		try {
+			concurrent.call();
+			fail("Cancelling did not stop the processes");
+		} catch (CancellationException e) {
+			// expected
+		}
+		assertEquals("The waiting process munged past the cancel", 2, waitingStep.getCalls());
+		assertEquals("The cancelling process munged past the cancel", 3, cancellingStep.getCalls());
+		assertNull(waiting.getInputSteps().get(0).getResultSet());
+		assertNull(cancelling.getInputSteps().get(0).getResultSet());
+		assertTrue("Matches were merged after the cancel", pool.getPotentialMatchRecords().isEmpty());
+	}
+	
+	private ConcurrentMungeAndMatchProcessor createProcessor(List<MungeProcess> processes) {
+		return new ConcurrentMungeAndMatchProcessor(pool, processes, true, -1,
+				project.getMungeSettings().getProcessThreadCount(), logger);
+	}
+	
+	/**
+	 * Adds a munge process to the project that passes the given columns of
+	 * the source table to its result step.
+	 */
+	private MungeProcess createProcess(String name, String ... columnNames) throws Exception {
+		SQLInputStep inputStep = new SQLInputStep();
+		MungeProcess process = new MungeProcess();
+		process.setName(name);
+		process.addChild(inputStep);
+		project.addChild(process);
+		
+		MungeResultStep resultStep = inputStep.getOutputStep();
+		process.addChild(resultStep);
+		inputStep.refresh(logger);
+		
+		for (int i = 0; i < columnNames.length; i++) {
+			if (i > 0) {
+				resultStep.addInput(new InputDescriptor("result" + (i + 1), Object.class));
+			}
+			resultStep.connectInput(i, inputStep.getOutputByName(columnNames[i]));
+		}
+		return process;
+	}
+	
+	/**
+	 * Adds a step to the given process that counts the rows of the source
+	 * table it is called for. Its output is not used.
+	 */
+	private RowCountingStep addRowCountingStep(MungeProcess process) throws Exception {
+		RowCountingStep step = new RowCountingStep();
+		process.addChild(step);
+		step.connectInput(0, process.getInputSteps().get(0).getOutputByName("NAME"));
+		return step;
+	}
+	
+	/**
+	 * Describes the clusters and potential matches in the pool as text,
+	 * sorted so pools from different runs can be compared.
+	 */
+	private List<String> describePool() {
+		List<String> description = new ArrayList<String>();
+		for (MatchCluster cluster : pool.getMatchClusters()) {
+			List<String> keys = new ArrayList<String>();
+			for (SourceTableRecord record : cluster.getSourceTableRecords()) {
+				keys.add(record.getKeyValues().toString());
+			}
+			Collections.sort(keys);
+			description.add("cluster " + keys);
+		}
+		for (PotentialMatchRecord pmr : pool.getPotentialMatchRecords()) {
+			List<String> keys = new ArrayList<String>();
+			keys.add(pmr.getOrigLHS().getKeyValues().toString());
+			keys.add(pmr.getOrigRHS().getKeyValues().toString());
+			Collections.sort(keys);
+			description.add(pmr.getMungeProcess().getName() + " " + keys + " " + pmr.getMatchStatus());
+		}
+		Collections.sort(description);
+		return description;
+	}
+	
+	/**
+	 * A step that counts the rows it is called for. On one of them it can
+	 * fail or cancel a processor once a latch is counted down, or count a
+	 * latch down and wait until a processor is cancelled.
+	 */
+	private static class RowCountingStep extends TestingMungeStep {
+		
+		private volatile int calls;
+		private int actionCall = -1;
+		private boolean failing;
+		private CountDownLatch latch;
+		private AbstractProcessor processor;
+		private boolean waiting;
+		
+		RowCountingStep() {
+			super("Row counter", 1, 1, Integer.MAX_VALUE);
+		}
+		
+		@Override
+		public Boolean doCall() throws Exception {
+			calls++;
+			if (calls == actionCall) {
+				if (waiting) {
+					latch.countDown();
+					waitForCancel();
+				} else {
+					if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+						throw new IllegalStateException("The other process never reached its row");
+					}
+					if (failing) {
+						throw new IllegalStateException("Failing on row " + calls);
+					}
+					processor.setCancelled(true);
+				}
+			}
+			return super.doCall();
+		}
+		
+		/**
+		 * Waits until the processor is cancelled. Cancelling holds the
+		 * processor's lock while the cancel is passed on to its workers, so
+		 * taking the lock afterwards waits for that to be done too.
+		 */
+		private void waitForCancel() throws InterruptedException {
+			long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+			while (!processor.isCancelled()) {
+				if (System.currentTimeMillis() > end) {
+					throw new IllegalStateException("The processor was never cancelled");
+				}
+				Thread.sleep(10);
+			}
+			synchronized (processor) {
+				// the workers have been cancelled
+			}
+		}
+		
+		/**
+		 * Fails on the given row once the latch is counted down.
+		 */
+		void setFailingCall(int failingCall, CountDownLatch latch) {
+			this.actionCall = failingCall;
+			this.latch = latch;
+			this.failing = true;
+		}
+		
+		/**
+		 * Cancels the processor on the given row once the latch is counted
+		 * down.
+		 */
+		void setCancellingCall(int cancellingCall, CountDownLatch latch, AbstractProcessor processor) {
+			this.actionCall = cancellingCall;
+			this.latch = latch;
+			this.processor = processor;
+		}
+		
+		/**
+		 * Counts the latch down on the given row and waits there until the
+		 * processor is cancelled.
+		 */
+		void setWaitingCall(int waitingCall, CountDownLatch latch, AbstractProcessor processor) {
+			this.actionCall = waitingCall;
+			this.latch = latch;
+			this.processor = processor;
+			this.waiting = true;
+		}
+		
+		int getCalls() {
+			return calls;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ca.sqlpower.matchmaker;
+
+import ca.sqlpower.sql.JDBCDataSource;
+
+/**
+ * Runs the cleanse engine tests on an in-memory HSQLDB database. HSQLDB has
+ * no updatable result sets, so the cleansed rows are written back with an
+ * update statement keyed on the row the input step is reading.
+ */
+public class HSQLDBCleanseEngineImplTest extends AbstractCleanseEngineImplTest {
+	protected String getFullTableName() {
+		return "pl.cleanse_test";
+	}
+	
+	protected JDBCDataSource getDS() {
+		return DBTestUtil.getHSQLDBInMemoryDS();
+	}
+
+	protected void createTables() throws Exception {
+		//Drop the old tables
+		String sql = "DROP TABLE " + getFullTableName() + " IF EXISTS";
+		execSQL(con,sql);
+		
+		// Creates the source table
+		sql = "CREATE TABLE " + getFullTableName() + " (" +
+			"\n ID INTEGER NOT NULL PRIMARY KEY," +
+			"\n COL_STRING VARCHAR(20) NULL," +
+			"\n COL_DATE TIMESTAMP NULL," +
+			"\n COL_NUMBER INTEGER NULL)";
+		execSQL(con,sql);
+		
+		sourceTable = db.getTableByName(null, "pl", "cleanse_test");
+		project.setSourceTable(sourceTable);
+        project.setSourceTableIndex(sourceTable.getPrimaryKeyIndex());
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		execSQL(con, "DROP TABLE " + getFullTableName());
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.matchmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
+import ca.sqlpower.matchmaker.munge.MungeProcess;
+
+public class MatchClusterBuilderTest extends TestCase {
+
+	private Project project;
+	private MungeProcess mungeProcess;
+	private List<SourceTableRecord> records;
+	private List<PotentialMatchRecord> matches;
+	
+	@Override
+	protected void setUp() throws Exception {
+		project = new Project();
+		project.setSession(new TestingMatchMakerSession());
+		mungeProcess = new MungeProcess();
+		mungeProcess.setName("mungeprocess");
+		project.addChild(mungeProcess);
+		
+		records = new ArrayList<SourceTableRecord>();
+		for (int i = 0; i < 8; i++) {
+			records.add(new SourceTableRecord(project, Integer.valueOf(i)));
+		}
+		matches = new ArrayList<PotentialMatchRecord>();
+	}
+	
+	private PotentialMatchRecord match(int lhs, int rhs) {
+		PotentialMatchRecord pmr = new PotentialMatchRecord(mungeProcess, MatchType.UNMATCH,
+				records.get(lhs), records.get(rhs), false);
+		matches.add(pmr);
+		return pmr;
+	}
+	
+	/**
+	 * Two chains that only meet at their last match have to end up in the
+	 * same cluster, and records without matches get their own cluster.
+	 */
+	public void testBuildClusters() throws Exception {
+		match(0, 1);
+		match(2, 3);
+		match(3, 4);
+		match(1, 4);
+		match(5, 6);
+		
+		List<MatchCluster> clusters = MatchClusterBuilder.buildClusters(records, matches);
+		assertEquals(3, clusters.size());
+		
+		MatchCluster first = clusters.get(0);
+		assertEquals(5, first.getSourceTableRecords().size());
+		assertEquals(4, first.getPotentialMatchRecords().size());
+		for (int i = 0; i <= 4; i++) {
+			assertTrue(first.getSourceTableRecords().contains(records.get(i)));
+		}
+		
+		assertEquals(2, clusters.get(1).getSourceTableRecords().size());
+		assertEquals(1, clusters.get(1).getPotentialMatchRecords().size());
+		
+		assertEquals(1, clusters.get(2).getSourceTableRecords().size());
+		assertSame(records.get(7), clusters.get(2).getSourceTableRecords().get(0));
+		assertTrue(clusters.get(2).getPotentialMatchRecords().isEmpty());
+	}
+	
+	public void testMatchAddsMissingRecords() throws Exception {
+		MatchClusterBuilder builder = new MatchClusterBuilder();
+		builder.addPotentialMatchRecord(match(2, 5));
+		List<MatchCluster> clusters = builder.buildClusters();
+		assertEquals(1, clusters.size());
+		assertEquals(2, clusters.get(0).getSourceTableRecords().size());
+	}
+	
+	/**
+	 * A long chain of matches added from both ends at once has to come out
+	 * as a single cluster.
+	 */
+	public void testLongChain() throws Exception {
+		for (int i = 8; i < 1000; i++) {
+			records.add(new SourceTableRecord(project, Integer.valueOf(i)));
+		}
+		for (int i = 0; i < 500; i++) {
+			match(i, i + 1);
+			if (i < 499) {
+				match(999 - i, 998 - i);
+			}
+		}
+		List<MatchCluster> clusters = MatchClusterBuilder.buildClusters(records, matches);
+		assertEquals(1, clusters.size());
+		assertEquals(1000, clusters.get(0).getSourceTableRecords().size());
+		assertEquals(999, clusters.get(0).getPotentialMatchRecords().size());
+	}
+}
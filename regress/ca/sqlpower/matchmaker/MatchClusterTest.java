@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.matchmaker;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import ca.sqlpower.matchmaker.PotentialMatchRecord.MasterSide;
+import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
+import ca.sqlpower.matchmaker.munge.MungeProcess;
+
+public class MatchClusterTest extends TestCase {
+
+	private Project project;
+	private MungeProcess mungeProcess;
+	private MatchCluster cluster;
+	private SourceTableRecord str1;
+	private SourceTableRecord str2;
+	private SourceTableRecord str3;
+	
+	@Override
+	protected void setUp() throws Exception {
+		project = new Project();
+		project.setSession(new TestingMatchMakerSession());
+		mungeProcess = new MungeProcess();
+		mungeProcess.setName("mungeprocess");
+		project.addChild(mungeProcess);
+		
+		cluster = new MatchCluster();
+		str1 = new SourceTableRecord(project, "1");
+		str2 = new SourceTableRecord(project, "2");
+		str3 = new SourceTableRecord(project, "3");
+		cluster.addSourceTableRecord(str1);
+		cluster.addSourceTableRecord(str2);
+		cluster.addSourceTableRecord(str3);
+	}
+	
+	private PotentialMatchRecord match(SourceTableRecord lhs, SourceTableRecord rhs) {
+		PotentialMatchRecord pmr = new PotentialMatchRecord(mungeProcess, MatchType.UNMATCH, lhs, rhs, false);
+		cluster.addPotentialMatchRecord(pmr);
+		return pmr;
+	}
+	
+	public void testGetSourceTableRecordByKey() throws Exception {
+		assertSame(str2, cluster.getSourceTableRecord(Collections.singletonList("2")));
+		assertNull(cluster.getSourceTableRecord(Collections.singletonList("4")));
+		
+		cluster.removeSourceTableRecord(str2);
+		assertNull(cluster.getSourceTableRecord(Collections.singletonList("2")));
+		assertFalse(cluster.doesSourceRecordExist(Collections.<Object>singletonList("2")));
+	}
+	
+	/**
+	 * The adjacency of the records has to follow the potential match records
+	 * as they are added and removed, and the edge between two records has to
+	 * be found whichever way round the records are given.
+	 */
+	public void testOriginalEdges() throws Exception {
+		PotentialMatchRecord pmr12 = match(str1, str2);
+		PotentialMatchRecord pmr23 = match(str2, str3);
+		
+		assertEquals(1, cluster.getOriginalMatchEdges(str1).size());
+		assertEquals(2, cluster.getOriginalMatchEdges(str2).size());
+		assertSame(pmr12, cluster.getMatchRecordByOriginalAdjacentSourceTableRecord(str2, str1));
+		assertSame(pmr23, cluster.getMatchRecordByOriginalAdjacentSourceTableRecord(str2, str3));
+		assertNull(cluster.getMatchRecordByOriginalAdjacentSourceTableRecord(str1, str3));
+		
+		cluster.removePotentialMatchRecord(pmr12);
+		assertNull(cluster.getOriginalMatchEdges(str1));
+		assertEquals(1, cluster.getOriginalMatchEdges(str2).size());
+		assertNull(cluster.getMatchRecordByOriginalAdjacentSourceTableRecord(str1, str2));
+	}
+	
+	public void testValidatedEdge() throws Exception {
+		PotentialMatchRecord pmr = match(str1, str2);
+		assertNull(cluster.getMatchRecordByValidatedSourceTableRecord(str1, str2));
+		
+		pmr.setMaster(MasterSide.RHS);
+		assertSame(pmr, cluster.getMatchRecordByValidatedSourceTableRecord(str1, str2));
+		assertSame(pmr, cluster.getMatchRecordByValidatedSourceTableRecord(str2, str1));
+	}
+	
+	/**
+	 * Adding a match between records that already have one keeps the first
+	 * match unless the new one is from a higher priority munge process.
+	 */
+	public void testDuplicateMatchNotAdded() throws Exception {
+		PotentialMatchRecord pmr = match(str1, str2);
+		match(str2, str1);
+		assertEquals(1, cluster.getPotentialMatchRecords().size());
+		assertSame(pmr, cluster.getMatchRecordByOriginalAdjacentSourceTableRecord(str1, str2));
+		assertEquals(1, cluster.getOriginalMatchEdges(str1).size());
+	}
+}
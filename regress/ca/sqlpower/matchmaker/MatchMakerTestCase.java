@@ -37,10 +37,12 @@ import org.apache.commons.beanutils.PropertyUtils;
 
 import ca.sqlpower.matchmaker.ColumnMergeRules.MergeActionType;
 import ca.sqlpower.matchmaker.MungeSettings.AutoValidateSetting;
+import ca.sqlpower.matchmaker.MungeSettings.MatchMode;
 import ca.sqlpower.matchmaker.MungeSettings.PoolFilterSetting;
 import ca.sqlpower.matchmaker.Project.ProjectMode;
 import ca.sqlpower.matchmaker.TableMergeRules.ChildMergeActionType;
 import ca.sqlpower.matchmaker.munge.DeDupeResultStep;
+import ca.sqlpower.matchmaker.munge.MungeProcess.EdgeStrategy;
 import ca.sqlpower.matchmaker.munge.MungeResultStep;
 import ca.sqlpower.matchmaker.munge.MungeStep;
 import ca.sqlpower.matchmaker.util.MatchMakerNewValueMaker;
@@ -373,6 +375,18 @@ public abstract class MatchMakerTestCase<C extends MatchMakerObject> extends Per
         	} else {
         		return AutoValidateSetting.SERP_CORRECTABLE;
         	}
+        } else if (property.getPropertyType() == MatchMode.class) {
+        	if (oldVal != MatchMode.SORT_AND_SCAN) {
+        		return MatchMode.SORT_AND_SCAN;
+        	} else {
+        		return MatchMode.HASH_GROUPING;
+        	}
+        } else if (property.getPropertyType() == EdgeStrategy.class) {
+        	if (oldVal != EdgeStrategy.STAR) {
+        		return EdgeStrategy.STAR;
+        	} else {
+        		return EdgeStrategy.CHAIN;
+        	}
 		} else if (property.getPropertyType() == TableIndex.class) {
 			CachableTable cachableTable = new CachableTable("newValue");
 			TableIndex tableIndex = new TableIndex(cachableTable, "newValueIndex");
@@ -531,6 +545,18 @@ public abstract class MatchMakerTestCase<C extends MatchMakerObject> extends Per
         	} else {
         		newVal = AutoValidateSetting.SERP_CORRECTABLE;
         	}
+        } else if (property.getPropertyType() == MatchMode.class) {
+        	if (oldVal != MatchMode.SORT_AND_SCAN) {
+        		newVal = MatchMode.SORT_AND_SCAN;
+        	} else {
+        		newVal = MatchMode.HASH_GROUPING;
+        	}
+        } else if (property.getPropertyType() == EdgeStrategy.class) {
+        	if (oldVal != EdgeStrategy.STAR) {
+        		newVal = EdgeStrategy.STAR;
+        	} else {
+        		newVal = EdgeStrategy.CHAIN;
+        	}
         } else if (property.getPropertyType() == Point.class) {
         	if (oldVal == null) {
         		newVal = new Point(0, 0);
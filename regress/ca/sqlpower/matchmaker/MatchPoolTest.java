@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -32,6 +33,7 @@ import java.util.List;
 import junit.framework.TestCase;
 import ca.sqlpower.architect.ddl.DDLUtils;
 import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
+import ca.sqlpower.matchmaker.PotentialMatchRecord.StoreState;
 import ca.sqlpower.matchmaker.dao.MatchMakerDAO;
 import ca.sqlpower.matchmaker.dao.StubMatchMakerDAO;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
@@ -138,6 +140,22 @@ public class MatchPoolTest extends TestCase {
 			String originalLhsKey, String originalRhsKey, int matchPercent,
 			String mungeProcessName, PotentialMatchRecord.MatchType type)
 			throws SQLException {
+		insertResultTableRecord(con, originalLhsKey, originalRhsKey, matchPercent, 
+				mungeProcessName, type, null, null);
+	}
+
+	/**
+	 * Inserts a match record described by the parameters, stored with the
+	 * given cluster id and ordinal.
+	 */
+	@edu.umd.cs.findbugs.annotations.SuppressWarnings(
+			value = { "SQL_NONCONSTANT_STRING_PASSED_TO_EXECUTE" }, 
+			justification = "This is simply a unit test, so we are not so concerned with performance or security concerns here.")
+	private static void insertResultTableRecord(Connection con,
+			String originalLhsKey, String originalRhsKey, int matchPercent,
+			String mungeProcessName, PotentialMatchRecord.MatchType type,
+			Integer clusterId, Integer clusterOrdinal)
+			throws SQLException {
 		Statement stmt = con.createStatement();
 		stmt.executeUpdate("INSERT into pl.match_results VALUES ("
 				+ SQL.quote(originalLhsKey) + "," + SQL.quote(originalRhsKey)
@@ -145,7 +163,8 @@ public class MatchPoolTest extends TestCase {
 				+ SQL.quote(originalRhsKey) + "," + "null," + "null," + "null,"
 				+ "null," + matchPercent + "," + SQL.quote(mungeProcessName)
 				+ "," + "{ts '2006-11-30 17:01:06.0'}," + "'" + type.getCode()
-				+ "'," + "{ts '2006-11-30 17:01:06.0'}," + "null," + "null)");
+				+ "'," + "{ts '2006-11-30 17:01:06.0'}," + "null," + "null,"
+				+ clusterId + "," + clusterOrdinal + ")");
 		stmt.close();
 
 	}
@@ -670,6 +689,145 @@ public class MatchPoolTest extends TestCase {
 		assertTrue(pmrB2ToB3.getDuplicate() == b3);
 	}
 
+	/**
+	 * Sets the master of a node that is only adjacent to the new master's
+	 * tree through the new master. The node is matched to the master directly
+	 * and the tree is left as it was, with its edges marked as auto-matches
+	 * just as when the shortest paths are searched for.
+	 * <p>
+	 * See graph 'b' in the image for
+	 * {@link MMTestUtils#createTestingPool(MatchMakerSession, Project, MungeProcess)}
+	 * for details on the graph.
+	 */
+	public void testAutoMatchToAdjacentMasterKeepsTree() throws Exception {
+		SourceTableRecord b1 = pool.getSourceTableRecord(Collections.singletonList("b1"));
+		SourceTableRecord b2 = pool.getSourceTableRecord(Collections.singletonList("b2"));
+		SourceTableRecord b3 = pool.getSourceTableRecord(Collections.singletonList("b3"));
+		
+		pool.defineMaster(b2, b3, true);
+		
+		PotentialMatchRecord pmrB1ToB2 = pool.getPotentialMatchFromOriginals(b1, b2);
+		PotentialMatchRecord pmrB2ToB3 = pool.getPotentialMatchFromOriginals(b2, b3);
+		assertNull(pool.getPotentialMatchFromOriginals(b1, b3));
+		assertSame(b1, pmrB1ToB2.getMasterRecord());
+		assertEquals(MatchType.AUTOMATCH, pmrB1ToB2.getMatchStatus());
+		assertSame(b2, pmrB2ToB3.getMasterRecord());
+		assertEquals(MatchType.AUTOMATCH, pmrB2ToB3.getMatchStatus());
+	}
+	
+	/**
+	 * Sets the master of a node that is adjacent to two nodes of the new
+	 * master's tree. The shortest path from the ultimate master to the node
+	 * does not go through the new master, so the node is made a duplicate of
+	 * the ultimate master instead.
+	 * <p>
+	 * See graph 's' in the image for
+	 * {@link MMTestUtils#createTestingPool(MatchMakerSession, Project, MungeProcess)}
+	 * for details on the graph.
+	 */
+	public void testSetMasterAdjacentToTwoNodesOfTree() throws Exception {
+		SourceTableRecord s1 = pool.getSourceTableRecord(Collections.singletonList("s1"));
+		SourceTableRecord s3 = pool.getSourceTableRecord(Collections.singletonList("s3"));
+		SourceTableRecord s4 = pool.getSourceTableRecord(Collections.singletonList("s4"));
+		
+		pool.defineMaster(s3, s1);
+		
+		assertSame(s4, pool.getPotentialMatchFromOriginals(s1, s4).getMasterRecord());
+		assertSame(s4, pool.getPotentialMatchFromOriginals(s3, s4).getMasterRecord());
+		assertNull(pool.getPotentialMatchFromOriginals(s1, s3).getMasterRecord());
+	}
+	
+	/**
+	 * Auto-matches a long chain of nodes, where every match after the first
+	 * joins a node to a tree it is only adjacent to through its new master.
+	 * The chain has to end up as one tree of auto-matches.
+	 */
+	public void testAutoMatchLongChain() throws Exception {
+		final int length = 300;
+		MatchCluster chain = new MatchCluster();
+		List<SourceTableRecord> records = new ArrayList<SourceTableRecord>();
+		for (int i = 0; i < length; i++) {
+			SourceTableRecord record = new SourceTableRecord(project, "chain" + i);
+			chain.addSourceTableRecord(record);
+			records.add(record);
+		}
+		List<PotentialMatchRecord> edges = new ArrayList<PotentialMatchRecord>();
+		for (int i = 1; i < length; i++) {
+			PotentialMatchRecord pmr = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH,
+					records.get(i - 1), records.get(i), false);
+			chain.addPotentialMatchRecord(pmr);
+			edges.add(pmr);
+		}
+		pool.addMatchCluster(chain);
+		
+		pool.doAutoMatch(mungeProcessOne);
+		
+		int[] masterCounts = new int[length];
+		for (PotentialMatchRecord pmr : edges) {
+			assertEquals(MatchType.AUTOMATCH, pmr.getMatchStatus());
+			masterCounts[records.indexOf(pmr.getDuplicate())]++;
+		}
+		int ultimateMasters = 0;
+		for (int i = 0; i < length; i++) {
+			assertTrue("chain" + i + " has more than one master", masterCounts[i] <= 1);
+			if (masterCounts[i] == 0) {
+				ultimateMasters++;
+			}
+		}
+		assertEquals(1, ultimateMasters);
+		assertEquals("Synthetic edges were made", length - 1, chain.getPotentialMatchRecords().size());
+	}
+
+	/**
+	 * Auto-matches a ladder of nodes, where each node is also adjacent to the
+	 * node two further along. Most of the edges join nodes that are already
+	 * in the same tree, which are left unmatched rather than turning the tree
+	 * around. The ladder has to end up as one tree of auto-matches.
+	 */
+	public void testAutoMatchLadder() throws Exception {
+		final int length = 300;
+		MatchCluster ladder = new MatchCluster();
+		List<SourceTableRecord> records = new ArrayList<SourceTableRecord>();
+		for (int i = 0; i < length; i++) {
+			SourceTableRecord record = new SourceTableRecord(project, "ladder" + i);
+			ladder.addSourceTableRecord(record);
+			records.add(record);
+		}
+		List<PotentialMatchRecord> edges = new ArrayList<PotentialMatchRecord>();
+		for (int i = 1; i < length; i++) {
+			for (int j = Math.max(0, i - 2); j < i; j++) {
+				PotentialMatchRecord pmr = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH,
+						records.get(j), records.get(i), false);
+				ladder.addPotentialMatchRecord(pmr);
+				edges.add(pmr);
+			}
+		}
+		pool.addMatchCluster(ladder);
+		
+		pool.doAutoMatch(mungeProcessOne);
+		
+		int[] masterCounts = new int[length];
+		int autoMatches = 0;
+		for (PotentialMatchRecord pmr : edges) {
+			if (pmr.getMatchStatus() == MatchType.AUTOMATCH) {
+				autoMatches++;
+				masterCounts[records.indexOf(pmr.getDuplicate())]++;
+			} else {
+				assertEquals(MatchType.UNMATCH, pmr.getMatchStatus());
+			}
+		}
+		assertEquals(length - 1, autoMatches);
+		int ultimateMasters = 0;
+		for (int i = 0; i < length; i++) {
+			assertTrue("ladder" + i + " has more than one master", masterCounts[i] <= 1);
+			if (masterCounts[i] == 0) {
+				ultimateMasters++;
+			}
+		}
+		assertEquals(1, ultimateMasters);
+		assertEquals("Synthetic edges were made", edges.size(), ladder.getPotentialMatchRecords().size());
+	}
+
 	/**
 	 * Sets the master of a node where the master is a master of another node
 	 * and the duplicate node is a duplicate of a different node.
@@ -3871,6 +4029,234 @@ public class MatchPoolTest extends TestCase {
 		rs.next();
 		assertEquals("MATCH", rs.getString(1));
 	}
+	
+	/**
+	 * New potential match records written through the staging table should
+	 * end up in the result table, and the staging table should be dropped.
+	 */
+	public void testStoreNewRecordBulkWrite() throws Exception {
+		project.getMungeSettings().setUseBulkWrite(true);
+		project.getMungeSettings().setBulkWriteBatchSize(1);
+		pool.begin("Testing match pool");
+		SourceTableRecord a1 = pool.getSourceTableRecord(Collections.singletonList("a1"));
+		SourceTableRecord a3 = pool.getSourceTableRecord(Collections.singletonList("a3"));
+		PotentialMatchRecord a1a3 = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, 
+				a1, a3, false);
+		a1a3.setMatchStatus(MatchType.MATCH);
+		pool.addPotentialMatchRecord(a1a3);
+
+		pool.commit();
+
+		Statement stmt = con.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT MATCH_STATUS FROM "
+					+ DDLUtils.toQualifiedName(resultTable)
+					+ " WHERE DUP_CANDIDATE_10='a1' AND DUP_CANDIDATE_20='a3'");
+			assertTrue(rs.next());
+			assertEquals("MATCH", rs.getString(1));
+			assertFalse(rs.next());
+		} finally {
+			stmt.close();
+		}
+		assertEquals(Collections.emptyList(), getStagingTableNames());
+	}
+	
+	/**
+	 * Two writers to the same result table, as in two stores running at once,
+	 * should each get a staging table of their own without any indexes, and
+	 * each table should be gone once dropped.
+	 */
+	public void testBulkWritersUseSeparateStagingTables() throws Exception {
+		ResultTableBulkWriter first = new ResultTableBulkWriter(project, 1);
+		ResultTableBulkWriter second = new ResultTableBulkWriter(project, 1);
+		try {
+			first.prepareStagingTable(con, 1);
+			second.prepareStagingTable(con, 1);
+			assertFalse(first.getStagingTableName().equalsIgnoreCase(second.getStagingTableName()));
+			assertEquals(2, getStagingTableNames().size());
+			for (String name : getStagingTableNames()) {
+				ResultSet rs = con.getMetaData().getIndexInfo(null, "PL", name, false, false);
+				try {
+					assertFalse("The staging table " + name + " has an index", rs.next());
+				} finally {
+					rs.close();
+				}
+			}
+		} finally {
+			first.dropStagingTable(con);
+			second.dropStagingTable(con);
+		}
+		assertNull(first.getStagingTableName());
+		assertEquals(Collections.emptyList(), getStagingTableNames());
+	}
+	
+	/**
+	 * Returns the names of the staging tables made for the result table that
+	 * are in the database.
+	 */
+	private List<String> getStagingTableNames() throws SQLException {
+		String prefix = ("match_results" + ResultTableBulkWriter.STAGING_TABLE_INFIX).toUpperCase();
+		List<String> names = new ArrayList<String>();
+		ResultSet rs = con.getMetaData().getTables(null, "PL", null, null);
+		try {
+			while (rs.next()) {
+				String name = rs.getString("TABLE_NAME");
+				if (name.toUpperCase().startsWith(prefix)) {
+					names.add(name);
+				}
+			}
+		} finally {
+			rs.close();
+		}
+		return names;
+	}
+	
+	/**
+	 * A removed, a changed and a new potential match record stored together
+	 * should each be deleted, updated and inserted when the statements are
+	 * executed one at a time.
+	 */
+	public void testStoreFlushesDeletesUpdatesAndInserts() throws Exception {
+		project.getMungeSettings().setUseBatchExecution(false);
+		checkStoreFlushesDeletesUpdatesAndInserts();
+	}
+	
+	/**
+	 * A removed, a changed and a new potential match record stored together
+	 * should each be deleted, updated and inserted when the statements are
+	 * executed in batches.
+	 */
+	public void testStoreFlushesDeletesUpdatesAndInsertsInBatches() throws Exception {
+		project.getMungeSettings().setUseBatchExecution(true);
+		checkStoreFlushesDeletesUpdatesAndInserts();
+	}
+	
+	private void checkStoreFlushesDeletesUpdatesAndInserts() throws Exception {
+		pool.begin("Testing match pool");
+		pool.find(null);
+		
+		SourceTableRecord a1 = pool.getSourceTableRecord(Collections.singletonList("a1"));
+		SourceTableRecord a2 = pool.getSourceTableRecord(Collections.singletonList("a2"));
+		SourceTableRecord a3 = pool.getSourceTableRecord(Collections.singletonList("a3"));
+		SourceTableRecord b1 = pool.getSourceTableRecord(Collections.singletonList("b1"));
+		SourceTableRecord b2 = pool.getSourceTableRecord(Collections.singletonList("b2"));
+		pool.removePotentialMatchRecord(pool.getPotentialMatchFromOriginals(a1, a2));
+		pool.getPotentialMatchFromOriginals(b1, b2).setMatchStatus(MatchType.NOMATCH);
+		PotentialMatchRecord a1a3 = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, 
+				a1, a3, false);
+		a1a3.setMatchStatus(MatchType.MATCH);
+		pool.addPotentialMatchRecord(a1a3);
+		
+		pool.commit();
+		
+		assertNull(getStoredMatchStatus("a1", "a2"));
+		assertEquals("NO_MATCH", getStoredMatchStatus("b1", "b2"));
+		assertEquals("MATCH", getStoredMatchStatus("a1", "a3"));
+	}
+	
+	/**
+	 * The connection changes are stored on is kept open between stores and
+	 * closed when the pool's records are cleared.
+	 */
+	public void testStoreKeepsConnectionUntilCleared() throws Exception {
+		DatabaseMatchPoolListener listener = pool.getMatchPoolListener();
+		SourceTableRecord a1 = pool.getSourceTableRecord(Collections.singletonList("a1"));
+		SourceTableRecord a2 = pool.getSourceTableRecord(Collections.singletonList("a2"));
+		SourceTableRecord b1 = pool.getSourceTableRecord(Collections.singletonList("b1"));
+		SourceTableRecord b2 = pool.getSourceTableRecord(Collections.singletonList("b2"));
+		
+		pool.begin("Testing match pool");
+		pool.getPotentialMatchFromOriginals(a1, a2).setMatchStatus(MatchType.NOMATCH);
+		pool.commit();
+		Connection storeCon = listener.getConnection();
+		assertNotNull(storeCon);
+		assertFalse(storeCon.isClosed());
+		
+		pool.begin("Testing match pool");
+		pool.getPotentialMatchFromOriginals(b1, b2).setMatchStatus(MatchType.NOMATCH);
+		pool.commit();
+		assertSame(storeCon, listener.getConnection());
+		assertEquals("NO_MATCH", getStoredMatchStatus("b1", "b2"));
+		
+		pool.clearRecords();
+		assertNull(listener.getConnection());
+		assertTrue(storeCon.isClosed());
+	}
+	
+	/**
+	 * If the connection the changes were stored on is closed by someone else
+	 * the next store should open a new one.
+	 */
+	public void testStoreReopensClosedConnection() throws Exception {
+		DatabaseMatchPoolListener listener = pool.getMatchPoolListener();
+		SourceTableRecord a1 = pool.getSourceTableRecord(Collections.singletonList("a1"));
+		SourceTableRecord a2 = pool.getSourceTableRecord(Collections.singletonList("a2"));
+		SourceTableRecord b1 = pool.getSourceTableRecord(Collections.singletonList("b1"));
+		SourceTableRecord b2 = pool.getSourceTableRecord(Collections.singletonList("b2"));
+		
+		pool.begin("Testing match pool");
+		pool.getPotentialMatchFromOriginals(a1, a2).setMatchStatus(MatchType.NOMATCH);
+		pool.commit();
+		Connection storeCon = listener.getConnection();
+		storeCon.close();
+		
+		pool.begin("Testing match pool");
+		pool.getPotentialMatchFromOriginals(b1, b2).setMatchStatus(MatchType.NOMATCH);
+		pool.commit();
+		assertNotSame(storeCon, listener.getConnection());
+		assertFalse(listener.getConnection().isClosed());
+		assertEquals("NO_MATCH", getStoredMatchStatus("b1", "b2"));
+	}
+	
+	/**
+	 * A store that fails should release its connection and keep the changes,
+	 * so they are written by the next store that succeeds.
+	 */
+	public void testFailedStoreReleasesConnection() throws Exception {
+		DatabaseMatchPoolListener listener = pool.getMatchPoolListener();
+		MMTestUtils.dropResultTable(con);
+		
+		pool.begin("Testing match pool");
+		SourceTableRecord a1 = pool.getSourceTableRecord(Collections.singletonList("a1"));
+		SourceTableRecord a3 = pool.getSourceTableRecord(Collections.singletonList("a3"));
+		PotentialMatchRecord a1a3 = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, 
+				a1, a3, false);
+		a1a3.setMatchStatus(MatchType.MATCH);
+		pool.addPotentialMatchRecord(a1a3);
+		try {
+			pool.store();
+			fail("Storing to a result table that doesn't exist should fail");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertNull(listener.getConnection());
+		
+		MMTestUtils.createResultTable(con);
+		pool.commit();
+		assertEquals("MATCH", getStoredMatchStatus("a1", "a3"));
+	}
+	
+	/**
+	 * Returns the match status stored in the result table for the potential
+	 * match between the two source table records, or null if there is none.
+	 */
+	@edu.umd.cs.findbugs.annotations.SuppressWarnings(
+			value = { "SQL_NONCONSTANT_STRING_PASSED_TO_EXECUTE" }, 
+			justification = "This is simply a unit test, so we are not so concerned with performance or security concerns here.")
+	private String getStoredMatchStatus(String lhsKey, String rhsKey) throws SQLException {
+		Statement stmt = con.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT MATCH_STATUS FROM "
+					+ DDLUtils.toQualifiedName(resultTable)
+					+ " WHERE DUP_CANDIDATE_10='" + lhsKey + "' AND DUP_CANDIDATE_20='" + rhsKey + "'");
+			if (!rs.next()) {
+				return null;
+			}
+			return rs.getString(1);
+		} finally {
+			stmt.close();
+		}
+	}
     
 	//======================== Auto-Match Tests ==========================
     
@@ -4159,7 +4545,8 @@ public class MatchPoolTest extends TestCase {
 	/**
 	 * This test makes sure that auto-match is 'aware' of edges that need to
 	 * change and are in other rule sets so that the end result is a legal
-	 * state.
+	 * state. Only the edge that has to turn around to join the two trees
+	 * becomes an auto-match; the user's match on the other side is kept.
 	 * <p>
 	 * See graph 'z' in the image for
 	 * {@link MMTestUtils#createTestingPool(MatchMakerSession, Project, MungeProcess)}
@@ -4194,9 +4581,13 @@ public class MatchPoolTest extends TestCase {
 		assertNull(pmrZ1ToZ4);
 		assertNull(pmrZ2ToZ4);
 		
-		assertTrue(pmrZ1ToZ2.getMatchStatus() == MatchType.AUTOMATCH);
 		assertTrue(pmrZ2ToZ3.getMatchStatus() == MatchType.AUTOMATCH);
-		assertTrue(pmrZ3ToZ4.getMatchStatus() == MatchType.AUTOMATCH);
+		assertNotNull(pmrZ1ToZ2.getMasterRecord());
+		assertNotNull(pmrZ3ToZ4.getMasterRecord());
+		assertTrue(pmrZ1ToZ2.getMatchStatus() == MatchType.AUTOMATCH ^
+				pmrZ3ToZ4.getMatchStatus() == MatchType.AUTOMATCH);
+		assertTrue(pmrZ1ToZ2.getMatchStatus() == MatchType.MATCH ^
+				pmrZ3ToZ4.getMatchStatus() == MatchType.MATCH);
 		
 		assertFalse(pmrZ1ToZ2.getMasterRecord() == z1
 				&& pmrZ2ToZ3.getMasterRecord() == z3);
@@ -4231,4 +4622,132 @@ public class MatchPoolTest extends TestCase {
 		assertEquals(0, pool.getPotentialMatchRecords().size());
 		assertEquals(0, pool.getAllSourceTableRecords().size());
 	}
+	
+	public void testClearWithTruncate() throws Exception {
+		insertSourceTableRecord(con, "1");
+		insertSourceTableRecord(con, "2");
+		insertResultTableRecord(con, "1", "2", 15, "Munge_Process_One", PotentialMatchRecord.MatchType.UNMATCH);
+		
+		pool.clear(null, true);
+		pool.clearCache();
+		pool.find(null);
+		
+		assertEquals(0, pool.getPotentialMatchRecords().size());
+		assertEquals(0, pool.getAllSourceTableRecords().size());
+	}
+	
+	/**
+	 * Merging in a cluster that touches two clusters already in the pool
+	 * should join all three into one cluster that holds the records that
+	 * were in the pool first.
+	 */
+	public void testMergeInClustersJoinsClusters() throws Exception {
+		this.pool = project.getMatchPool();
+		pool.clear();
+		
+		SourceTableRecord str1 = new SourceTableRecord(project, "1");
+		SourceTableRecord str2 = new SourceTableRecord(project, "2");
+		SourceTableRecord str3 = new SourceTableRecord(project, "3");
+		SourceTableRecord str4 = new SourceTableRecord(project, "4");
+		List<PotentialMatchRecord> pmrs = new ArrayList<PotentialMatchRecord>();
+		pmrs.add(new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, str1, str2, false));
+		pmrs.add(new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, str3, str4, false));
+		pool.mergeInClusters(MatchClusterBuilder.buildClusters(
+				Arrays.asList(str1, str2, str3, str4), pmrs));
+		assertEquals(2, pool.getMatchClusters().size());
+		
+		SourceTableRecord newStr2 = new SourceTableRecord(project, "2");
+		SourceTableRecord newStr3 = new SourceTableRecord(project, "3");
+		PotentialMatchRecord pmr = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, newStr2, newStr3, false);
+		pool.mergeInClusters(MatchClusterBuilder.buildClusters(
+				Arrays.asList(newStr2, newStr3), Collections.singletonList(pmr)));
+		
+		assertEquals(1, pool.getMatchClusters().size());
+		MatchCluster mc = pool.getMatchClusters().get(0);
+		assertEquals(4, mc.getSourceTableRecords().size());
+		assertEquals(3, mc.getPotentialMatchRecords().size());
+		for (SourceTableRecord str : Arrays.asList(str1, str2, str3, str4)) {
+			assertSame(mc, pool.getMatchCluster(str));
+			assertSame(str, pool.getSourceTableRecord(str.getKeyValues()));
+		}
+		assertSame(str2, pmr.getOrigLHS());
+		assertSame(str3, pmr.getOrigRHS());
+	}
+	
+	/**
+	 * When the result table rows have cluster ordinals, find should only read
+	 * the clusters of the current page and take the cluster count from the
+	 * ordinals.
+	 */
+	public void testFindReadsPageByClusterOrdinal() throws Exception {
+		pool.clear();
+		pool.clearCache();
+		for (int i = 1; i <= 6; i++) {
+			insertSourceTableRecord(con, String.valueOf(i));
+		}
+		insertResultTableRecord(con, "1", "2", 15, "Munge_Process_One", MatchType.UNMATCH, 10, 0);
+		insertResultTableRecord(con, "3", "4", 15, "Munge_Process_One", MatchType.UNMATCH, 11, 1);
+		insertResultTableRecord(con, "4", "5", 15, "Munge_Process_One", MatchType.UNMATCH, 11, 1);
+		insertResultTableRecord(con, "5", "6", 15, "Munge_Process_Two", MatchType.UNMATCH, 11, 1);
+		
+		pool.setLimit(1);
+		pool.setCurrentMatchNumber(1);
+		pool.find(null);
+		
+		assertEquals(2, pool.getClusterCount());
+		assertEquals(1, pool.getMatchClusters().size());
+		MatchCluster mc = pool.getMatchClusters().get(0);
+		assertEquals(4, mc.getSourceTableRecords().size());
+		assertEquals(Integer.valueOf(11), mc.getClusterId());
+		assertEquals(Integer.valueOf(1), mc.getClusterOrdinal());
+		assertNull(pool.getSourceTableRecord(Collections.singletonList("1")));
+	}
+	
+	/**
+	 * Clusters keep the lowest id stored with their records, new clusters get
+	 * ids after the highest one, and the ordinals follow the ids.
+	 */
+	public void testAssignClusterOrdinals() throws Exception {
+		pool.clear();
+		
+		SourceTableRecord str1 = new SourceTableRecord(project, "1");
+		SourceTableRecord str2 = new SourceTableRecord(project, "2");
+		SourceTableRecord str3 = new SourceTableRecord(project, "3");
+		SourceTableRecord str4 = new SourceTableRecord(project, "4");
+		SourceTableRecord str5 = new SourceTableRecord(project, "5");
+		SourceTableRecord str6 = new SourceTableRecord(project, "6");
+		PotentialMatchRecord newMatch = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, str1, str2, false);
+		PotentialMatchRecord stored = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, str3, str4, false);
+		stored.setClusterPosition(7, 3);
+		stored.setStoreState(StoreState.CLEAN);
+		PotentialMatchRecord joined = new PotentialMatchRecord(mungeProcessOne, MatchType.UNMATCH, str4, str5, false);
+		joined.setClusterPosition(9, 4);
+		joined.setStoreState(StoreState.CLEAN);
+		PotentialMatchRecord dropped = new PotentialMatchRecord(mungeProcessOne, MatchType.DELETE, str6, new SourceTableRecord(project, "7"), false);
+		pool.mergeInClusters(MatchClusterBuilder.buildClusters(
+				Arrays.asList(str1, str2, str3, str4, str5, str6), 
+				Arrays.asList(newMatch, stored, joined, dropped)));
+		
+		pool.begin("Numbering clusters");
+		pool.assignClusterOrdinals();
+		
+		assertEquals(2, pool.getClusterCount());
+		assertEquals(Integer.valueOf(7), stored.getClusterId());
+		assertEquals(Integer.valueOf(0), stored.getClusterOrdinal());
+		assertEquals(Integer.valueOf(7), joined.getClusterId());
+		assertEquals(StoreState.DIRTY, joined.getStoreState());
+		assertEquals(Integer.valueOf(10), newMatch.getClusterId());
+		assertEquals(Integer.valueOf(1), newMatch.getClusterOrdinal());
+		assertNull(dropped.getClusterId());
+		
+		pool.commit();
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT CLUSTER_ID, CLUSTER_ORDINAL FROM "
+				+ DDLUtils.toQualifiedName(resultTable)
+				+ " WHERE DUP_CANDIDATE_10='1' AND DUP_CANDIDATE_20='2'");
+		assertTrue(rs.next());
+		assertEquals(10, rs.getInt(1));
+		assertEquals(1, rs.getInt(2));
+		stmt.close();
+	}
 }
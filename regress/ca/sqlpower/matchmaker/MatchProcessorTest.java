@@ -30,8 +30,12 @@ import junit.framework.TestCase;
 
 import org.apache.log4j.Logger;
 
+import ca.sqlpower.matchmaker.MungeSettings.MatchMode;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcess.EdgeStrategy;
 import ca.sqlpower.matchmaker.munge.MungeResult;
+import ca.sqlpower.matchmaker.munge.MungeResultArena;
+import ca.sqlpower.matchmaker.munge.SpilledMungeResults;
 import ca.sqlpower.matchmaker.util.MMTestUtils;
 import ca.sqlpower.sql.JDBCDataSource;
 import ca.sqlpower.sqlobject.SQLDatabase;
@@ -44,6 +48,9 @@ public class MatchProcessorTest extends TestCase {
 	private MatchProcessor matcher;
 	private SQLTable resultTable;
 	private MatchPool pool;
+	private Project project;
+	private List<MungeResult> results;
+	private MungeProcess process;
 	
 	private SourceTableRecord dup1;
 	private SourceTableRecord dup2;
@@ -61,7 +68,7 @@ public class MatchProcessorTest extends TestCase {
 		MMTestUtils.createResultTable(con);
 		TestingMatchMakerSession session = new TestingMatchMakerSession();
 		session.setConnection(con);
-		Project project = new Project();
+		project = new Project();
 		project.setSession(session);
 		resultTable = db.getTableByName(null, "pl", "match_results");
 		project.setResultTable(resultTable);
@@ -89,7 +96,7 @@ public class MatchProcessorTest extends TestCase {
 		testDates.add(new Date(Long.MAX_VALUE));
 		testDates.add(null);
 
-		List<MungeResult> results = new ArrayList<MungeResult>();
+		results = new ArrayList<MungeResult>();
 
 		int key = 0;
 		
@@ -103,7 +110,7 @@ public class MatchProcessorTest extends TestCase {
 						result.setMungedData(outputs);
 						SourceTableRecord source = new SourceTableRecord(project, Integer.valueOf(key));
 						key++;
-						result.setSourceTableRecord(source);
+						result.setKeyValues(source.getKeyValues().toArray());
 						results.add(result);
 					}
 				}
@@ -116,7 +123,7 @@ public class MatchProcessorTest extends TestCase {
 		result.setMungedData(outputs);
 		dup1 = new SourceTableRecord(project, Integer.valueOf(key));
 		key++;
-		result.setSourceTableRecord(dup1);
+		result.setKeyValues(dup1.getKeyValues().toArray());
 		results.add(result);
 		
 		result = new MungeResult();
@@ -128,7 +135,7 @@ public class MatchProcessorTest extends TestCase {
 		result.setMungedData(outputs);
 		dup2 = new SourceTableRecord(project, Integer.valueOf(key));
 		key++;
-		result.setSourceTableRecord(dup2);
+		result.setKeyValues(dup2.getKeyValues().toArray());
 		results.add(result);
 		
 		result = new MungeResult();
@@ -140,7 +147,7 @@ public class MatchProcessorTest extends TestCase {
 		result.setMungedData(outputs);
 		dup3 = new SourceTableRecord(project, Integer.valueOf(key));
 		key++;
-		result.setSourceTableRecord(dup3);
+		result.setKeyValues(dup3.getKeyValues().toArray());
 		results.add(result);
 		
 		result = new MungeResult();
@@ -152,7 +159,7 @@ public class MatchProcessorTest extends TestCase {
 		result.setMungedData(outputs);
 		nullDup = new SourceTableRecord(project, Integer.valueOf(key));
 		key++;
-		result.setSourceTableRecord(dup3);
+		result.setKeyValues(dup3.getKeyValues().toArray());
 		results.add(result);
 		
 		
@@ -163,7 +170,7 @@ public class MatchProcessorTest extends TestCase {
 		
 		Collections.shuffle(results);
 
-		MungeProcess process = new MungeProcess();
+		process = new MungeProcess();
 		process.setParent(project);
 		pool = project.getMatchPool();
 		matcher = new MatchProcessor(pool, process, results, logger);
@@ -176,6 +183,138 @@ public class MatchProcessorTest extends TestCase {
 	
 	public void testCall() throws Exception {
 		matcher.call();
+		checkMatches();
+	}
+	
+	public void testCallSortAndScan() throws Exception {
+		project.getMungeSettings().setMatchMode(MatchMode.SORT_AND_SCAN);
+		matcher.call();
+		checkMatches();
+	}
+	
+	/**
+	 * Writes the test data out in several runs, as the result step would when
+	 * it runs out of heap, and makes sure merging the runs finds the same
+	 * matches.
+	 */
+	public void testCallSpilled() throws Exception {
+		SpilledMungeResults spilled = new SpilledMungeResults();
+		MungeResult[] data = results.toArray(new MungeResult[results.size()]);
+		int runSize = 50;
+		for (int i = 0; i < data.length; i += runSize) {
+			MungeResult[] run = new MungeResult[Math.min(runSize, data.length - i)];
+			System.arraycopy(data, i, run, 0, run.length);
+			spilled.addRun(run, run.length);
+		}
+		assertEquals(4, spilled.getRunCount());
+		
+		matcher = new MatchProcessor(pool, process, spilled, logger);
+		matcher.call();
+		checkMatches();
+		assertEquals(0, spilled.getRunCount());
+	}
+	
+	/**
+	 * Stores the test data in an off-heap arena, as the result step would if
+	 * the project keeps its results off the heap, and makes sure sorting the
+	 * arena finds the same matches.
+	 */
+	public void testCallOffHeap() throws Exception {
+		MungeResultArena arena = new MungeResultArena();
+		for (MungeResult result : results) {
+			if (!result.hasNullData()) {
+				arena.add(result.getSortKey(), result.getKeyValues());
+			}
+		}
+		
+		matcher = new MatchProcessor(pool, process, arena, logger);
+		matcher.call();
+		checkMatches();
+		assertEquals(0, arena.size());
+	}
+	
+	/**
+	 * Finding the clusters must leave the pool alone, so several processes
+	 * can be matched at once and merged into the pool afterwards.
+	 */
+	public void testFindMatchClustersLeavesPoolAlone() throws Exception {
+		List<MatchCluster> clusters = matcher.findMatchClusters();
+		assertEquals(0, pool.getPotentialMatchRecords().size());
+		pool.mergeInClusters(clusters);
+		checkMatches();
+	}
+	
+	/**
+	 * Adds five more copies of dup1's munged data, making a group of seven
+	 * equal records, and returns the cluster holding them once matched.
+	 */
+	private MatchCluster findLargeGroupCluster() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			MungeResult result = new MungeResult();
+			Object[] outputs = {"A", BigDecimal.valueOf(0), Boolean.TRUE, new Date(0)};
+			result.setMungedData(outputs);
+			result.setKeyValues(new Object[] {Integer.valueOf(1000 + i)});
+			results.add(result);
+		}
+		MatchCluster largeCluster = null;
+		for (MatchCluster cluster : matcher.findMatchClusters()) {
+			if (cluster.getSourceTableRecords().contains(dup1)) {
+				largeCluster = cluster;
+			} else {
+				assertEquals(1, cluster.getPotentialMatchRecords().size());
+			}
+		}
+		return largeCluster;
+	}
+	
+	public void testLargeGroupFull() throws Exception {
+		process.setEdgeGroupThreshold(3);
+		MatchCluster cluster = findLargeGroupCluster();
+		assertEquals(7, cluster.getSourceTableRecords().size());
+		assertEquals(21, cluster.getPotentialMatchRecords().size());
+	}
+	
+	public void testSmallGroupIgnoresEdgeStrategy() throws Exception {
+		process.setEdgeStrategy(EdgeStrategy.STAR);
+		MatchCluster cluster = findLargeGroupCluster();
+		assertEquals(21, cluster.getPotentialMatchRecords().size());
+		for (PotentialMatchRecord pmr : cluster.getPotentialMatchRecords()) {
+			assertEquals(EdgeStrategy.FULL, pmr.getEdgeStrategy());
+		}
+	}
+	
+	public void testLargeGroupStar() throws Exception {
+		process.setEdgeStrategy(EdgeStrategy.STAR);
+		process.setEdgeGroupThreshold(3);
+		MatchCluster cluster = findLargeGroupCluster();
+		assertEquals(7, cluster.getSourceTableRecords().size());
+		assertEquals(6, cluster.getPotentialMatchRecords().size());
+		SourceTableRecord representative = cluster.getPotentialMatchRecords().get(0).getOrigLHS();
+		for (PotentialMatchRecord pmr : cluster.getPotentialMatchRecords()) {
+			assertSame(representative, pmr.getOrigLHS());
+			assertEquals(EdgeStrategy.STAR, pmr.getEdgeStrategy());
+		}
+	}
+	
+	public void testLargeGroupChain() throws Exception {
+		process.setEdgeStrategy(EdgeStrategy.CHAIN);
+		process.setEdgeGroupThreshold(3);
+		project.getMungeSettings().setMatchMode(MatchMode.SORT_AND_SCAN);
+		MatchCluster cluster = findLargeGroupCluster();
+		assertEquals(7, cluster.getSourceTableRecords().size());
+		assertEquals(6, cluster.getPotentialMatchRecords().size());
+		for (PotentialMatchRecord pmr : cluster.getPotentialMatchRecords()) {
+			assertEquals(EdgeStrategy.CHAIN, pmr.getEdgeStrategy());
+		}
+	}
+	
+	public void testLargeGroupSkipped() throws Exception {
+		process.setEdgeStrategy(EdgeStrategy.SKIP);
+		process.setEdgeGroupThreshold(3);
+		assertNull(findLargeGroupCluster());
+	}
+	
+	private void checkMatches() {
 		List<PotentialMatchRecord> pmrs = pool.getPotentialMatchRecords();
 		assertEquals(3, pmrs.size());
 		
@@ -183,8 +322,9 @@ public class MatchProcessorTest extends TestCase {
 			SourceTableRecord lhs = pmr.getOrigLHS();
 			SourceTableRecord rhs = pmr.getOrigRHS();
 			
-			if (lhs != dup1 && lhs != dup2 && lhs != dup3 &&
-					rhs != dup1 && rhs != dup2 && rhs != dup3) {
+			// records read back from spilled runs are equal but not identical
+			if (!lhs.equals(dup1) && !lhs.equals(dup2) && !lhs.equals(dup3) &&
+					!rhs.equals(dup1) && !rhs.equals(dup2) && !rhs.equals(dup3)) {
 				logger.debug("An unexpected duplicate was found:");
 				logger.debug("LHS: " + lhs);
 				logger.debug("RHS: " + rhs);
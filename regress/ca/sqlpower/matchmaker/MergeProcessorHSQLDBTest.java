@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.ColumnMergeRules.MergeActionType;
+import ca.sqlpower.matchmaker.TableMergeRules.ChildMergeActionType;
+import ca.sqlpower.sql.JDBCDataSource;
+
+/**
+ * Tests the merge processor on an in-memory HSQLDB database, so these tests
+ * run everywhere. Besides the tests every platform runs, it checks the
+ * statements the merge processor binds and batches itself.
+ */
+public class MergeProcessorHSQLDBTest extends AbstractMergeProcessorTest {
+
+	private final Logger logger = Logger.getLogger("testLogger");
+	
+	protected String getFullTableName() {
+		return "PL.MERGE_TEST";
+	}
+	
+	protected JDBCDataSource getDS() {
+		return DBTestUtil.getHSQLDBInMemoryDS();
+	}
+
+	protected void createTables() throws Exception {
+
+		//Drop the old tables
+		execSQL(con, "DROP TABLE " + getFullTableName() + "_GCHILD IF EXISTS");
+		execSQL(con, "DROP TABLE " + getFullTableName() + "_CHILD IF EXISTS");
+		execSQL(con, "DROP TABLE " + getFullTableName() + " IF EXISTS");
+		
+		// Creates the source table
+		String sql = "CREATE TABLE " + getFullTableName() + " ("+
+					"\n ID INTEGER NOT NULL PRIMARY KEY," +
+					"\n COL_STRING VARCHAR(20)," +
+					"\n COL_DATE DATE," +
+					"\n COL_NUMBER INTEGER)";
+		execSQL(con,sql);
+        
+        // Creates the child table
+		sql = "CREATE TABLE " + getFullTableName() + "_CHILD ("+
+					"\n PARENT_ID INTEGER NOT NULL," +
+					"\n ID INTEGER NOT NULL," +
+					"\n COL_STRING VARCHAR(20)," +
+					"\n COL_DATE DATE," +
+					"\n COL_NUMBER INTEGER," +
+					"\n CONSTRAINT CHILD_PK PRIMARY KEY (PARENT_ID, ID)," +
+					"\n CONSTRAINT CHILD_FK FOREIGN KEY (PARENT_ID) REFERENCES " + getFullTableName() + "(ID))";
+		execSQL(con,sql);
+		
+		// Creates the grand child table
+		sql = "CREATE TABLE " + getFullTableName() + "_GCHILD ("+
+					"\n GPARENT_ID INTEGER NOT NULL," +
+					"\n PARENT_ID INTEGER NOT NULL," +
+					"\n ID INTEGER NOT NULL," +
+					"\n COL_STRING VARCHAR(20)," +
+					"\n COL_DATE DATE," +
+					"\n COL_NUMBER INTEGER," +
+					"\n CONSTRAINT GCHILD_PK PRIMARY KEY (GPARENT_ID, PARENT_ID, ID)," +
+					"\n CONSTRAINT GCHILD_FK FOREIGN KEY (GPARENT_ID, PARENT_ID) REFERENCES " + getFullTableName() + "_CHILD(PARENT_ID, ID))";
+		execSQL(con,sql);
+		
+		sourceTable = db.getTableByName(null, "PL", "MERGE_TEST");
+		childTable = db.getTableByName(null, "PL", "MERGE_TEST_CHILD");
+		grandChildTable = db.getTableByName(null, "PL", "MERGE_TEST_GCHILD");
+		project.setSourceTable(sourceTable);
+        project.setSourceTableIndex(sourceTable.getPrimaryKeyIndex());
+		project.setResultTableName("MERGE_TEST_RESULT");
+		project.setResultTableSchema(ds.getPlSchema());
+		project.setResultTableSPDatasource(ds.getName());
+	}
+	
+	/**
+	 * Nulls have to be bound with their column's type, and a condition on a
+	 * null value has to use IS NULL to find the row.
+	 */
+	public void testBoundSQLBindsNullsAndDates() throws Exception {
+		execSQL(con, "DROP TABLE PL.BIND_TEST IF EXISTS");
+		execSQL(con, "CREATE TABLE PL.BIND_TEST (ID INTEGER NOT NULL, NUM INTEGER, STR VARCHAR(20), TS TIMESTAMP)");
+		Date date = new Date(1000L*60*60*24*3);
+		
+		MergeProcessor.BoundSQL insert = new MergeProcessor.BoundSQL();
+		insert.append("INSERT INTO PL.BIND_TEST VALUES (");
+		insert.appendValue(Integer.valueOf(1), Types.INTEGER);
+		insert.append(", ");
+		insert.appendValue(null, Types.INTEGER);
+		insert.append(", ");
+		insert.appendValue(null, Types.VARCHAR);
+		insert.append(", ");
+		insert.appendValue(date, Types.TIMESTAMP);
+		insert.append(")");
+		assertEquals("INSERT INTO PL.BIND_TEST VALUES (?, ?, ?, ?)", insert.getSQL());
+		PreparedStatement ps = con.prepareStatement(insert.getSQL());
+		insert.bind(ps);
+		assertEquals(1, ps.executeUpdate());
+		ps.close();
+		
+		MergeProcessor.BoundSQL query = new MergeProcessor.BoundSQL();
+		query.append("SELECT TS FROM PL.BIND_TEST WHERE ");
+		query.appendCondition("ID", Integer.valueOf(1));
+		query.append(" AND ");
+		query.appendCondition("NUM", null);
+		query.append(" AND ");
+		query.appendCondition("STR", null);
+		assertEquals("SELECT TS FROM PL.BIND_TEST WHERE ID=? AND NUM IS NULL AND STR IS NULL", query.getSQL());
+		ps = con.prepareStatement(query.getSQL());
+		query.bind(ps);
+		ResultSet rs = ps.executeQuery();
+		assertTrue("The row with null values was not found", rs.next());
+		assertEquals(new Timestamp(date.getTime()), rs.getTimestamp(1));
+		assertFalse(rs.next());
+		rs.close();
+		ps.close();
+		
+		execSQL(con, "DROP TABLE PL.BIND_TEST");
+	}
+	
+	public void testSumKeepsTheColumnType() throws Exception {
+		assertEquals(Integer.valueOf(5), MergeProcessor.sumOfObjects(Integer.valueOf(2), Integer.valueOf(3)));
+		assertEquals(Long.valueOf(5), MergeProcessor.sumOfObjects(Long.valueOf(2), Integer.valueOf(3)));
+		assertEquals(Double.valueOf(5.5), MergeProcessor.sumOfObjects(Double.valueOf(2.25), Double.valueOf(3.25)));
+		assertEquals(new BigDecimal("5.10"), MergeProcessor.sumOfObjects(new BigDecimal("2.05"), new BigDecimal("3.05")));
+		assertEquals(Integer.valueOf(5), MergeProcessor.sumOfObjects(Integer.valueOf(2), "3"));
+	}
+	
+	public void testSumOfNullIsNull() throws Exception {
+		assertNull(MergeProcessor.sumOfObjects(Integer.valueOf(2), null));
+		assertNull(MergeProcessor.sumOfObjects(null, Integer.valueOf(2)));
+	}
+	
+	public void testSumRejectsValuesThatAreNotNumbers() throws Exception {
+		try {
+			MergeProcessor.sumOfObjects(Integer.valueOf(2), "two");
+			fail("A value that is not a number was added up");
+		} catch (IllegalStateException e) {
+			// Correct exception thrown.
+		}
+		try {
+			MergeProcessor.sumOfObjects(Integer.valueOf(Integer.MAX_VALUE), Integer.valueOf(1));
+			fail("A sum that does not fit in the column's type was allowed");
+		} catch (IllegalStateException e) {
+			// Correct exception thrown.
+		}
+	}
+
+	/**
+	 * Merging on conflict reads the child tables while the changes to them
+	 * are still being batched, so it only gives the same result as running
+	 * every statement on its own if the batch is sent before each query.
+	 */
+	public void testBatchIsSentBeforeQueries() throws Exception {
+		List<String> oneAtATime = mergeOnConflict(1);
+		List<String> batched = mergeOnConflict(1000);
+		assertEquals(oneAtATime, batched);
+	}
+	
+	public void testCommitInterval() throws Exception {
+		populateTables();
+		project.getMergeSettings().setCommitInterval(2);
+		
+		int commits = runCountingCommits();
+		assertTrue("Too few records merged to test the commit interval", mpor.getProgress() >= 4);
+		assertEquals(mpor.getProgress() / 2, commits);
+	}
+	
+	public void testNoCommitsByDefault() throws Exception {
+		populateTables();
+		
+		assertEquals(0, runCountingCommits());
+	}
+	
+	public void testNoCommitsInDebugMode() throws Exception {
+		populateTables();
+		project.getMergeSettings().setCommitInterval(1);
+		project.getMergeSettings().setDebug(true);
+		
+		assertEquals(0, runCountingCommits());
+	}
+
+	/**
+	 * Merges the test tables with conflicting children, sending the given
+	 * number of statements at a time, and returns the rows left in them.
+	 */
+	private List<String> mergeOnConflict(int batchSize) throws Exception {
+		populateTables();
+		populateChildTable();
+		populateGrandChildTable();
+		
+		project.getMergeSettings().setBatchSize(batchSize);
+		cmr_string.setActionType(MergeActionType.CONCAT);
+		cmr_number.setActionType(MergeActionType.SUM);
+		ctmr.setChildMergeAction(ChildMergeActionType.MERGE_ON_CONFLICT);
+		ccmr_string.setActionType(MergeActionType.CONCAT);
+		ccmr_number.setActionType(MergeActionType.SUM);
+		cctmr.setChildMergeAction(ChildMergeActionType.MERGE_ON_CONFLICT);
+		cccmr_string.setActionType(MergeActionType.CONCAT);
+		cccmr_number.setActionType(MergeActionType.SUM);
+		
+		runProcessor();
+		
+		List<String> rows = new ArrayList<String>();
+		rows.addAll(selectRows("SELECT * FROM " + getFullTableName() + " ORDER BY ID"));
+		rows.addAll(selectRows("SELECT * FROM " + getFullTableName() + "_CHILD ORDER BY PARENT_ID, ID"));
+		rows.addAll(selectRows("SELECT * FROM " + getFullTableName() + "_GCHILD ORDER BY GPARENT_ID, PARENT_ID, ID"));
+		return rows;
+	}
+	
+	private List<String> selectRows(String sql) throws SQLException {
+		List<String> rows = new ArrayList<String>();
+		Statement stmt = sCon.createStatement();
+		ResultSet rs = stmt.executeQuery(sql);
+		while (rs.next()) {
+			StringBuilder row = new StringBuilder();
+			for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+				row.append(rs.getObject(i)).append(" ");
+			}
+			rows.add(row.toString());
+		}
+		rs.close();
+		stmt.close();
+		return rows;
+	}
+
+	/**
+	 * Runs the merge processor on a connection that counts its commits, and
+	 * returns how many times the merge processor committed.
+	 */
+	private int runCountingCommits() throws Exception {
+		final int[] commits = new int[1];
+		Connection countingCon = (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(), new Class[] { Connection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("commit")) {
+							commits[0]++;
+						}
+						try {
+							return method.invoke(con, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+		con.setAutoCommit(false);
+		try {
+			mpor = new MergeProcessor(project, countingCon, logger);
+			mpor.call();
+			con.commit();
+		} catch (Exception e) {
+			con.rollback();
+			throw e;
+		}
+		return commits[0];
+	}
+}
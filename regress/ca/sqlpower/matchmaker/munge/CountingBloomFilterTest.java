@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+public class CountingBloomFilterTest extends TestCase {
+
+	private static byte[] key(int i) {
+		return MungeResultKeyEncoder.encode(new Object[] { "key " + i });
+	}
+
+	public void testRepeatedKeysAreAlwaysFound() throws Exception {
+		CountingBloomFilter filter = new CountingBloomFilter(4096);
+		for (int i = 0; i < 1000; i++) {
+			filter.add(key(i));
+			if (i % 3 == 0) {
+				filter.add(key(i));
+			}
+		}
+		for (int i = 0; i < 1000; i += 3) {
+			assertTrue("key " + i + " was added twice", filter.mayBeRepeated(key(i)));
+		}
+	}
+
+	public void testSingleKeysAreMostlyLeftOut() throws Exception {
+		CountingBloomFilter filter = new CountingBloomFilter(1 << 16);
+		for (int i = 0; i < 1000; i++) {
+			filter.add(key(i));
+		}
+		int repeated = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (filter.mayBeRepeated(key(i))) repeated++;
+		}
+		assertTrue(repeated + " unique keys looked repeated", repeated < 10);
+	}
+
+	public void testKeyNeverAdded() throws Exception {
+		CountingBloomFilter filter = new CountingBloomFilter(64);
+		assertFalse(filter.mayBeRepeated(key(1)));
+		filter.add(key(1));
+		assertFalse(filter.mayBeRepeated(key(1)));
+		filter.add(key(1));
+		filter.add(key(1));
+		assertTrue(filter.mayBeRepeated(key(1)));
+	}
+
+	public void testCellCountRoundsUp() throws Exception {
+		assertEquals(32, new CountingBloomFilter(1).getCellCount());
+		assertEquals(64, new CountingBloomFilter(33).getCellCount());
+		assertEquals(4L * 1024 * 1024, CountingBloomFilter.ofMegabytes(1).getCellCount());
+	}
+
+	/**
+	 * Every key is added once by each of two threads, so all of them have to
+	 * be found as repeated however the threads interleave.
+	 */
+	public void testAddFromSeveralThreads() throws Exception {
+		final CountingBloomFilter filter = new CountingBloomFilter(1 << 12);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int t = 0; t < 2; t++) {
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						for (int i = 0; i < 5000; i++) {
+							filter.add(key(i));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(filter.mayBeRepeated(key(i)));
+		}
+	}
+}
@@ -25,7 +25,6 @@ import org.apache.log4j.Logger;
 
 import ca.sqlpower.matchmaker.MatchMakerTestCase;
 import ca.sqlpower.matchmaker.Project;
-import ca.sqlpower.matchmaker.SourceTableRecord;
 import ca.sqlpower.matchmaker.TestingMatchMakerSession;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.sqlobject.SQLColumn;
@@ -99,11 +98,10 @@ public class DeDupeResultStepTest extends MatchMakerTestCase<DeDupeResultStep> {
 		assertEquals(1, results.size());
 		
 		MungeResult result = results.get(0);
-		SourceTableRecord source = result.getSourceTableRecord();
-		List<Object> keyValues = source.getKeyValues();
+		Object[] keyValues = result.getKeyValues();
 		
-		for (int i=0; i<keyValues.size(); i++) {
-			Object key = keyValues.get(i);
+		for (int i=0; i<keyValues.length; i++) {
+			Object key = keyValues[i];
 			assertEquals(String.class, key.getClass());
 			String keyString = (String) key;
 			assertEquals("output_" + i, keyString);
@@ -115,6 +113,36 @@ public class DeDupeResultStepTest extends MatchMakerTestCase<DeDupeResultStep> {
 		assertEquals("cow", output);
 	}
 
+	/**
+	 * A row counted once in the first run of a two pass munge is left out of
+	 * the results of the second, and a row counted twice is kept.
+	 */
+	public void testKeyFilter() throws Exception {
+		CountingBloomFilter filter = new CountingBloomFilter(1024);
+		step.setKeyFilter(filter, true);
+		step.open(logger);
+		step.call();
+		assertEquals(0, step.getResults().size());
+		
+		step.setKeyFilter(filter, false);
+		step.open(logger);
+		step.call();
+		assertEquals(0, step.getResults().size());
+		
+		step.setKeyFilter(filter, true);
+		step.open(logger);
+		step.call();
+		step.setKeyFilter(filter, false);
+		step.open(logger);
+		step.call();
+		assertEquals(1, step.getResults().size());
+		
+		step.setKeyFilter(null, false);
+		step.open(logger);
+		step.call();
+		assertEquals(1, step.getResults().size());
+	}
+
 	@Override
 	protected DeDupeResultStep getTarget() {
 		return step;
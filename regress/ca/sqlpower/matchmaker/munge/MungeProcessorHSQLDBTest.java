@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.AbstractProcessor;
+import ca.sqlpower.matchmaker.DBTestUtil;
+import ca.sqlpower.matchmaker.Project;
+import ca.sqlpower.matchmaker.TestingMatchMakerSession;
+import ca.sqlpower.sql.JDBCDataSource;
+import ca.sqlpower.sqlobject.SQLDatabase;
+import ca.sqlpower.sqlobject.SQLIndex;
+import ca.sqlpower.sqlobject.SQLTable;
+import ca.sqlpower.sqlobject.SQLIndex.AscendDescend;
+import ca.sqlpower.sqlobject.SQLIndex.Column;
+
+/**
+ * Runs whole munge processes over a source table in an in-memory HSQLDB
+ * database. The keys of the source table are spread unevenly and some of
+ * them are null, so splitting the table into key ranges gives partitions of
+ * very different sizes, and some rows are in no range at all.
+ */
+public class MungeProcessorHSQLDBTest extends TestCase {
+
+	private final Logger logger = Logger.getLogger("testLogger");
+	
+	/**
+	 * The number of rows in the source table. Every row has a different
+	 * ROW_NO from 0 up.
+	 */
+	private static final int ROW_COUNT = 40;
+	
+	private SQLDatabase db;
+	private Connection con;
+	private Project project;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		JDBCDataSource dataSource = DBTestUtil.getHSQLDBInMemoryDS();
+		db = new SQLDatabase(dataSource);
+		con = db.getConnection();
+		
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("DROP TABLE pl.munge_source IF EXISTS");
+		stmt.executeUpdate("CREATE TABLE pl.munge_source ("
+				+ "\n ID INTEGER,"
+				+ "\n ROW_NO INTEGER NOT NULL,"
+				+ "\n NAME VARCHAR(20),"
+				+ "\n CITY VARCHAR(20))");
+		for (int i = 0; i < ROW_COUNT; i++) {
+			String id;
+			if (i < 30) {
+				id = String.valueOf(i + 1);
+			} else if (i < 34) {
+				id = String.valueOf((long) Math.pow(10, i - 28));
+			} else {
+				id = "NULL";
+			}
+			String name;
+			if (i % 11 == 0) {
+				name = "NULL";
+			} else if (i % 13 == 0) {
+				name = "''";
+			} else {
+				name = "'  name" + (i % 6) + " '";
+			}
+			stmt.executeUpdate("INSERT INTO pl.munge_source VALUES (" +
+					id + ", " + i + ", " + name + ", 'city" + (i % 4) + "')");
+		}
+		stmt.close();
+		
+		SQLTable sourceTable = db.getTableByName(null, "pl", "munge_source");
+		SQLIndex sourceTableIndex = new SQLIndex("MUNGE_SOURCE_KEY", true, null, null, null);
+		sourceTableIndex.addChild(new Column(sourceTable.getColumnByName("ID"), AscendDescend.UNSPECIFIED));
+		sourceTable.addIndex(sourceTableIndex);
+		
+		TestingMatchMakerSession session = new TestingMatchMakerSession() {
+			@Override
+			public Connection getConnection() {
+				try {
+					return db.getConnection();
+				} catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+		session.setDatabase(db);
+		
+		project = new Project();
+		project.setSession(session);
+		project.setSourceTable(sourceTable);
+		project.setSourceTableIndex(sourceTableIndex);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("DROP TABLE pl.munge_source");
+		stmt.close();
+		con.close();
+	}
+	
+	/**
+	 * Closing the input step after the counting pass of a two pass munge
+	 * sets it back to one partition, and the second pass has to be split
+	 * into partitions again.
+	 */
+	public void testTwoPassMungeIsPartitionedBothTimes() throws Exception {
+		project.getMungeSettings().setTwoPassMunge(true);
+		project.getMungeSettings().setMungeThreadCount(3);
+		PartitionCountingInputStep inputStep = new PartitionCountingInputStep();
+		MungeProcess process = createProcess("two_pass", inputStep, "NAME", "CITY");
+		
+		munge(process);
+		assertEquals("Every partition but the first should run a query on both passes",
+				2 * (3 - 1), inputStep.getPartitionQueries());
+	}
+	
+	public void testTwoPassMungeGivesSameResultsPartitioned() throws Exception {
+		project.getMungeSettings().setTwoPassMunge(true);
+		MungeProcess process = createProcess("two_pass", new SQLInputStep(), "NAME", "CITY");
+		List<String> oneThread = munge(process);
+		assertFalse(oneThread.isEmpty());
+		
+		project.getMungeSettings().setMungeThreadCount(3);
+		assertEquals(oneThread, munge(process));
+	}
+	
+	public void testSharedScanGivesSameResultsAsRunningAlone() throws Exception {
+		List<MungeProcess> processes = createProcessesToShare();
+		List<List<String>> alone = new ArrayList<List<String>>();
+		for (MungeProcess process : processes) {
+			alone.add(munge(process));
+		}
+		assertTrue(SharedScanMungeProcessor.canShareScan(processes));
+		
+		new SharedScanMungeProcessor(processes, logger).call();
+		for (int i = 0; i < processes.size(); i++) {
+			assertEquals(processes.get(i).getName(), alone.get(i), getResults(processes.get(i)));
+		}
+		
+		project.getMungeSettings().setMungeThreadCount(3);
+		new SharedScanMungeProcessor(processes, logger).call();
+		for (int i = 0; i < processes.size(); i++) {
+			assertEquals(processes.get(i).getName() + " in partitions",
+					alone.get(i), getResults(processes.get(i)));
+		}
+	}
+	
+	/**
+	 * A failure in one of the processes sharing a scan has to stop the scan
+	 * for all of them, roll them all back and close them.
+	 */
+	public void testSharedScanStopsOnException() throws Exception {
+		MungeProcess failing = createProcess("failing", new SQLInputStep(), "NAME");
+		RowCountingStep failingStep = addRowCountingStep(failing);
+		failingStep.setFailingCall(5);
+		MungeProcess counting = createProcess("counting", new SQLInputStep(), "CITY");
+		RowCountingStep countingStep = addRowCountingStep(counting);
+		
+		try {
+			new SharedScanMungeProcessor(Arrays.asList(failing, counting), logger).call();
+			fail("The failure in one process did not stop the shared scan");
+		} catch (IllegalStateException e) {
+			assertEquals("Failing on row 5", e.getMessage());
+		}
+		assertEquals(5, failingStep.getCalls());
+		assertEquals("The other process read past the failure", 4, countingStep.getCalls());
+		assertNull(failing.getInputSteps().get(0).getResultSet());
+		assertNull(counting.getInputSteps().get(0).getResultSet());
+	}
+	
+	public void testSharedScanStopsOnCancel() throws Exception {
+		MungeProcess cancelling = createProcess("cancelling", new SQLInputStep(), "NAME");
+		RowCountingStep cancellingStep = addRowCountingStep(cancelling);
+		MungeProcess counting = createProcess("counting", new SQLInputStep(), "CITY");
+		RowCountingStep countingStep = addRowCountingStep(counting);
+		SharedScanMungeProcessor processor =
+			new SharedScanMungeProcessor(Arrays.asList(cancelling, counting), logger);
+		cancellingStep.setCancellingCall(5, processor);
+		
+		try {
+			processor.call();
+			fail("Cancelling did not stop the shared scan");
+		} catch (CancellationException e) {
+			// expected
+		}
+		assertEquals(5, cancellingStep.getCalls());
+		assertEquals("The scan went on after it was cancelled", 5, countingStep.getCalls());
+		assertNull(cancelling.getInputSteps().get(0).getResultSet());
+		assertNull(counting.getInputSteps().get(0).getResultSet());
+	}
+	
+	/**
+	 * Splitting the source table into key ranges has to munge every row
+	 * exactly once, however unevenly the keys are spread and whether or not
+	 * they are null.
+	 */
+	public void testPartitionedRunMungesEveryRowOnce() throws Exception {
+		MungeProcess process = createProcess("row_numbers", new SQLInputStep(), "ROW_NO");
+		List<String> oneThread = munge(process);
+		assertRowsMungedOnce(process);
+		
+		for (int threads = 2; threads <= 6; threads++) {
+			project.getMungeSettings().setMungeThreadCount(threads);
+			assertEquals(threads + " threads", oneThread, munge(process));
+			assertRowsMungedOnce(process);
+		}
+	}
+	
+	/**
+	 * Checks that the last run of the given process, whose only munged data
+	 * is the ROW_NO column, has one result for every row of the source table.
+	 */
+	private void assertRowsMungedOnce(MungeProcess process) {
+		int[] timesMunged = new int[ROW_COUNT];
+		for (MungeResult result : ((DeDupeResultStep) process.getResultStep()).getResults()) {
+			timesMunged[((Number) result.getMungedData()[0]).intValue()]++;
+		}
+		for (int i = 0; i < ROW_COUNT; i++) {
+			assertEquals("Times row " + i + " was munged", 1, timesMunged[i]);
+		}
+	}
+	
+	/**
+	 * The compiled plan calls the steps with the row's slots instead of
+	 * through their outputs. Running the same process step by step through
+	 * {@link MungeStep#call()} has to give the same results.
+	 */
+	public void testCompiledPlanGivesSameResultsAsCallingSteps() throws Exception {
+		MungeProcess process = createProcessOfEverySlotKind();
+		List<String> stepByStep = mungeStepByStep(process);
+		assertEquals(ROW_COUNT, stepByStep.size());
+		assertEquals(stepByStep, munge(process));
+		
+		project.getMungeSettings().setMungeThreadCount(3);
+		assertEquals(stepByStep, munge(process));
+	}
+	
+	/**
+	 * Creates a process with steps that read and write the row's slots
+	 * themselves, among them the phonetic, regular expression and substring
+	 * steps, chains of steps that are fused, one of them with a substring and
+	 * a retain characters step, and a step that is still called through its
+	 * outputs.
+	 */
+	private MungeProcess createProcessOfEverySlotKind() throws Exception {
+		SQLInputStep inputStep = new SQLInputStep();
+		MungeProcess process = createProcess("every_slot_kind", inputStep, "ROW_NO");
+		MungeResultStep resultStep = process.getResultStep();
+		
+		UpperCaseMungeStep upper = new UpperCaseMungeStep();
+		upper.init();
+		process.addChild(upper);
+		upper.connectInput(0, inputStep.getOutputByName("NAME"));
+		TrimSpacesMungeStep trim = new TrimSpacesMungeStep();
+		trim.init();
+		process.addChild(trim);
+		trim.connectInput(0, upper.getMungeStepOutputs().get(0));
+		
+		TrimSpacesMungeStep trimName = new TrimSpacesMungeStep();
+		trimName.init();
+		process.addChild(trimName);
+		trimName.connectInput(0, inputStep.getOutputByName("NAME"));
+		EmptyStringToNullMungeStep emptyToNull = new EmptyStringToNullMungeStep();
+		emptyToNull.init();
+		process.addChild(emptyToNull);
+		emptyToNull.connectInput(0, trimName.getMungeStepOutputs().get(0));
+		
+		ConcatMungeStep concat = new ConcatMungeStep();
+		concat.init();
+		concat.setDelimiter("/");
+		process.addChild(concat);
+		concat.connectInput(0, emptyToNull.getMungeStepOutputs().get(0));
+		concat.connectInput(1, inputStep.getOutputByName("CITY"));
+		
+		MetaphoneMungeStep metaphone = new MetaphoneMungeStep();
+		metaphone.init();
+		process.addChild(metaphone);
+		metaphone.connectInput(0, inputStep.getOutputByName("CITY"));
+		
+		SoundexMungeStep soundex = new SoundexMungeStep();
+		soundex.init();
+		process.addChild(soundex);
+		soundex.connectInput(0, inputStep.getOutputByName("CITY"));
+		
+		StringSubstitutionMungeStep substitution = new StringSubstitutionMungeStep();
+		substitution.init();
+		substitution.setFrom("city");
+		substitution.setTo("town");
+		process.addChild(substitution);
+		substitution.connectInput(0, inputStep.getOutputByName("CITY"));
+		
+		SortWordsMungeStep sortWords = new SortWordsMungeStep();
+		sortWords.init();
+		process.addChild(sortWords);
+		sortWords.connectInput(0, inputStep.getOutputByName("NAME"));
+		
+		SubstringMungeStep substring = new SubstringMungeStep();
+		substring.init();
+		substring.setBegIndex(2);
+		substring.setEndIndex(6);
+		process.addChild(substring);
+		substring.connectInput(0, inputStep.getOutputByName("NAME"));
+		
+		LowerCaseMungeStep lower = new LowerCaseMungeStep();
+		lower.init();
+		process.addChild(lower);
+		lower.connectInput(0, inputStep.getOutputByName("NAME"));
+		SubstringMungeStep lowerSubstring = new SubstringMungeStep();
+		lowerSubstring.init();
+		lowerSubstring.setBegIndex(0);
+		lowerSubstring.setEndIndex(8);
+		process.addChild(lowerSubstring);
+		lowerSubstring.connectInput(0, lower.getMungeStepOutputs().get(0));
+		RetainCharactersMungeStep retain = new RetainCharactersMungeStep();
+		retain.init();
+		retain.setUseRegex(false);
+		retain.setRetainChars("aeiou0123456789");
+		process.addChild(retain);
+		retain.connectInput(0, lowerSubstring.getMungeStepOutputs().get(0));
+		
+		WordCountMungeStep wordCount = new WordCountMungeStep();
+		wordCount.init();
+		process.addChild(wordCount);
+		wordCount.connectInput(0, inputStep.getOutputByName("NAME"));
+		
+		MungeStepOutput[] results = new MungeStepOutput[] {
+				trim.getMungeStepOutputs().get(0),
+				emptyToNull.getMungeStepOutputs().get(0),
+				concat.getMungeStepOutputs().get(0),
+				metaphone.getMungeStepOutputs().get(0),
+				soundex.getMungeStepOutputs().get(0),
+				substitution.getMungeStepOutputs().get(0),
+				sortWords.getMungeStepOutputs().get(0),
+				substring.getMungeStepOutputs().get(0),
+				retain.getMungeStepOutputs().get(0),
+				wordCount.getMungeStepOutputs().get(0)};
+		for (int i = 0; i < results.length; i++) {
+			resultStep.addInput(new InputDescriptor("result" + (i + 2), Object.class));
+			resultStep.connectInput(i + 1, results[i]);
+		}
+		return process;
+	}
+	
+	/**
+	 * Runs the given munge process by calling each step through
+	 * {@link MungeStep#call()} for every row, the way processes were run
+	 * before they were compiled into a {@link MungePlan}, and returns its
+	 * results.
+	 */
+	private List<String> mungeStepByStep(MungeProcess process) throws Exception {
+		MungeProcessor processor = new MungeProcessor(process, logger);
+		processor.determineProcessOrder();
+		List<MungeStep> processOrder = processor.getProcessOrder();
+		for (MungeStep step : processOrder) {
+			step.open(logger);
+		}
+		try {
+			boolean moreRows = true;
+			while (moreRows) {
+				for (MungeStep step : processOrder) {
+					if (!step.call()) {
+						moreRows = false;
+						break;
+					}
+				}
+			}
+			for (MungeStep step : processOrder) {
+				step.mungeCommit();
+			}
+		} finally {
+			for (MungeStep step : processOrder) {
+				step.mungeClose();
+			}
+		}
+		return getResults(process);
+	}
+	
+	/**
+	 * Creates three processes that read different columns and munge them
+	 * differently, so they can share a scan of the source table.
+	 */
+	private List<MungeProcess> createProcessesToShare() throws Exception {
+		MungeProcess names = createProcess("names", new SQLInputStep(), "NAME", "CITY");
+		MungeProcess cities = createProcess("cities", new SQLInputStep(), "CITY");
+		
+		SQLInputStep inputStep = new SQLInputStep();
+		MungeProcess upperNames = createProcess("upper_names", inputStep, "ROW_NO");
+		UpperCaseMungeStep upper = new UpperCaseMungeStep();
+		upper.init();
+		upperNames.addChild(upper);
+		upper.connectInput(0, inputStep.getOutputByName("NAME"));
+		MungeResultStep resultStep = upperNames.getResultStep();
+		resultStep.addInput(new InputDescriptor("result2", Object.class));
+		resultStep.connectInput(1, upper.getMungeStepOutputs().get(0));
+		
+		return Arrays.asList(names, cities, upperNames);
+	}
+	
+	/**
+	 * Adds a step to the given process that counts the rows of the source
+	 * table it is called for. Its output is not used.
+	 */
+	private RowCountingStep addRowCountingStep(MungeProcess process) throws Exception {
+		RowCountingStep step = new RowCountingStep();
+		process.addChild(step);
+		step.connectInput(0, process.getInputSteps().get(0).getOutputByName("NAME"));
+		return step;
+	}
+
+	/**
+	 * Adds a munge process to the project that reads the source table with
+	 * the given input step and passes the given columns to its result step.
+	 */
+	private MungeProcess createProcess(String name, SQLInputStep inputStep,
+			String ... columnNames) throws Exception {
+		MungeProcess process = new MungeProcess();
+		process.setName(name);
+		process.addChild(inputStep);
+		project.addChild(process);
+		
+		MungeResultStep resultStep = inputStep.getOutputStep();
+		process.addChild(resultStep);
+		inputStep.refresh(logger);
+		
+		for (int i = 0; i < columnNames.length; i++) {
+			if (i > 0) {
+				resultStep.addInput(new InputDescriptor("result" + (i + 1), Object.class));
+			}
+			resultStep.connectInput(i, inputStep.getOutputByName(columnNames[i]));
+		}
+		return process;
+	}
+	
+	/**
+	 * Runs the given munge process on its own and returns its results.
+	 */
+	private List<String> munge(MungeProcess process) throws Exception {
+		new MungeProcessor(process, logger).call();
+		return getResults(process);
+	}
+	
+	/**
+	 * Returns the results of the last run of the given munge process as
+	 * text, sorted so results from different runs can be compared.
+	 */
+	private List<String> getResults(MungeProcess process) {
+		List<String> results = new ArrayList<String>();
+		for (MungeResult result : ((DeDupeResultStep) process.getResultStep()).getResults()) {
+			results.add(result.toString());
+		}
+		Collections.sort(results);
+		return results;
+	}
+	
+	/**
+	 * An input step that counts the partitions after the first that run a
+	 * query of their own.
+	 */
+	private static class PartitionCountingInputStep extends SQLInputStep {
+		
+		private int partitionQueries;
+		
+		@Override
+		ResultSet openResultSet(int partition) throws Exception {
+			ResultSet partitionRs = super.openResultSet(partition);
+			if (partition > 0 && partitionRs != null) {
+				synchronized (this) {
+					partitionQueries++;
+				}
+			}
+			return partitionRs;
+		}
+		
+		synchronized int getPartitionQueries() {
+			return partitionQueries;
+		}
+	}
+	
+	/**
+	 * A step that counts the rows it is called for, and can fail or cancel
+	 * the run on one of them.
+	 */
+	private static class RowCountingStep extends TestingMungeStep {
+		
+		private int calls;
+		private int failingCall = -1;
+		private int cancellingCall = -1;
+		private AbstractProcessor processor;
+		
+		RowCountingStep() {
+			super("Row counter", 1, 1, Integer.MAX_VALUE);
+		}
+		
+		@Override
+		public Boolean doCall() throws Exception {
+			calls++;
+			if (calls == failingCall) {
+				throw new IllegalStateException("Failing on row " + calls);
+			}
+			if (calls == cancellingCall) {
+				processor.setCancelled(true);
+			}
+			return super.doCall();
+		}
+		
+		void setFailingCall(int failingCall) {
+			this.failingCall = failingCall;
+		}
+		
+		void setCancellingCall(int cancellingCall, AbstractProcessor processor) {
+			this.cancellingCall = cancellingCall;
+			this.processor = processor;
+		}
+		
+		int getCalls() {
+			return calls;
+		}
+	}
+}
@@ -19,6 +19,7 @@
 
 package ca.sqlpower.matchmaker.munge;
 
+import java.util.Arrays;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -259,4 +260,116 @@ public class MungeProcessorTest extends TestCase {
         assertFalse(g.isOpen());
         assertFalse(r.isOpen());
     }
+    
+    /**
+     * Every output should get its own slot in the compiled plan, and the
+     * slots should be given out in processing order.
+     */
+    public void testCompiledPlanSlots() throws Exception {
+        mp.determineProcessOrder();
+        MungePlan plan = MungePlan.compile(mp.getProcessOrder());
+        assertEquals(8, plan.getSlotCount());
+        assertEquals(8 + 8, plan.openPartition(0, 1).length);
+        assertEquals(8 + mp.getProcessOrder().indexOf(f), plan.getStateSlot(f));
+        assertEquals(-1, plan.getStateSlot(new TestingMungeStep("other", 0, 0)));
+        
+        int aSlot = plan.getSlot(a.getMungeStepOutputs().get(0));
+        int c0Slot = plan.getSlot(c.getMungeStepOutputs().get(0));
+        int c1Slot = plan.getSlot(c.getMungeStepOutputs().get(1));
+        assertTrue(aSlot < plan.getSlot(b.getMungeStepOutputs().get(0)));
+        assertTrue(aSlot < c0Slot);
+        assertEquals(c0Slot + 1, c1Slot);
+        assertTrue(c1Slot < plan.getSlot(g.getMungeStepOutputs().get(0)));
+        
+        assertEquals(-1, plan.getSlot(new MungeStepOutput<String>("other", String.class)));
+    }
+    
+    /**
+     * A chain of simple string steps should be run as one fused step that
+     * gives the same output as the steps would one at a time. The chain has
+     * to end at an output that goes anywhere other than the next step.
+     */
+    public void testFusedStringChain() throws Exception {
+        TestingMungeStep source = new TestingMungeStep("source", 0, 1);
+        UpperCaseMungeStep upper = new UpperCaseMungeStep();
+        upper.init();
+        upper.connectInput(0, source.getMungeStepOutputs().get(0));
+        TrimSpacesMungeStep trim = new TrimSpacesMungeStep();
+        trim.init();
+        trim.connectInput(0, upper.getMungeStepOutputs().get(0));
+        SubstringMungeStep substring = new SubstringMungeStep();
+        substring.init();
+        substring.setBegIndex(1);
+        substring.setEndIndex(5);
+        substring.connectInput(0, trim.getMungeStepOutputs().get(0));
+        TestingResultMungeStep result = new TestingResultMungeStep("result", 2);
+        result.connectInput(0, substring.getMungeStepOutputs().get(0));
+        result.connectInput(1, trim.getMungeStepOutputs().get(0));
+        
+        MungePlan plan = MungePlan.compile(Arrays.<MungeStep>asList(source, upper, trim, substring, result));
+        Object[] row = plan.openPartition(0, 1);
+        source.getMungeStepOutputs().get(0).setData("  main street ");
+        assertTrue(plan.call(row, logger));
+        assertNull(row[plan.getSlot(upper.getMungeStepOutputs().get(0))]);
+        assertEquals("MAIN STREET", row[plan.getSlot(trim.getMungeStepOutputs().get(0))]);
+        assertEquals("AIN ", row[plan.getSlot(substring.getMungeStepOutputs().get(0))]);
+        
+        source.getMungeStepOutputs().get(0).setData(null);
+        assertTrue(plan.call(row, logger));
+        assertNull(row[plan.getSlot(trim.getMungeStepOutputs().get(0))]);
+        assertNull(row[plan.getSlot(substring.getMungeStepOutputs().get(0))]);
+    }
+    
+    /**
+     * The string, phonetic and regular expression steps should run without
+     * the plan's lock, and so should a fused chain made only of them. Each
+     * partition should get its own matcher for the steps that use one.
+     */
+    public void testStringStepsArePartitionSafe() throws Exception {
+        TestingMungeStep source = new TestingMungeStep("source", 0, 1);
+        LowerCaseMungeStep lower = new LowerCaseMungeStep();
+        lower.init();
+        lower.connectInput(0, source.getMungeStepOutputs().get(0));
+        SubstringMungeStep substring = new SubstringMungeStep();
+        substring.init();
+        substring.setBegIndex(0);
+        substring.setEndIndex(6);
+        substring.connectInput(0, lower.getMungeStepOutputs().get(0));
+        RetainCharactersMungeStep retain = new RetainCharactersMungeStep();
+        retain.init();
+        retain.setUseRegex(false);
+        retain.setRetainChars("aeiou");
+        retain.connectInput(0, substring.getMungeStepOutputs().get(0));
+        SoundexMungeStep soundex = new SoundexMungeStep();
+        soundex.init();
+        soundex.connectInput(0, source.getMungeStepOutputs().get(0));
+        StringSubstitutionMungeStep substitution = new StringSubstitutionMungeStep();
+        substitution.init();
+        substitution.setFrom("street");
+        substitution.setTo("st");
+        substitution.connectInput(0, source.getMungeStepOutputs().get(0));
+        TestingResultMungeStep result = new TestingResultMungeStep("result", 3);
+        result.connectInput(0, retain.getMungeStepOutputs().get(0));
+        result.connectInput(1, soundex.getMungeStepOutputs().get(0));
+        result.connectInput(2, substitution.getMungeStepOutputs().get(0));
+        
+        MungePlan plan = MungePlan.compile(Arrays.<MungeStep>asList(
+                source, lower, substring, retain, soundex, substitution, result));
+        assertTrue(plan.isPartitionSafe(retain));
+        assertTrue(plan.isPartitionSafe(soundex));
+        assertTrue(plan.isPartitionSafe(substitution));
+        assertFalse(plan.isPartitionSafe(source));
+        
+        Object[] first = plan.openPartition(0, 2);
+        Object[] second = plan.openPartition(1, 2);
+        int retainState = plan.getStateSlot(retain);
+        assertNotNull(first[retainState]);
+        assertNotSame(first[retainState], second[retainState]);
+        assertNotSame(first[plan.getStateSlot(substitution)], second[plan.getStateSlot(substitution)]);
+        
+        source.getMungeStepOutputs().get(0).setData("Main street");
+        assertTrue(plan.call(first, logger));
+        assertEquals("ai", first[plan.getSlot(retain.getMungeStepOutputs().get(0))]);
+        assertEquals("Main st", first[plan.getSlot(substitution.getMungeStepOutputs().get(0))]);
+    }
 }
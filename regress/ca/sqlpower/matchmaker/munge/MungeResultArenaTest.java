@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class MungeResultArenaTest extends TestCase {
+
+	/**
+	 * Small chunks so the results spread over many of them.
+	 */
+	private static final int CHUNK_SIZE = 128;
+
+	public void testKeyValuesRoundTrip() throws Exception {
+		Timestamp ts = new Timestamp(123456789L);
+		ts.setNanos(987654321);
+		Object[] keyValues = {null, "plain", "caf\u00e9", "\u4e2d\u6587", new BigDecimal("-12.340"),
+				BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.TEN), Integer.valueOf(-7),
+				Long.valueOf(1L << 40), Short.valueOf((short) 3), Double.valueOf(0.5), Float.valueOf(1.5f),
+				Boolean.TRUE, new Date(1000), new java.sql.Date(2000), new Time(3000), ts};
+		MungeResultArena arena = new MungeResultArena(1024);
+		arena.add(MungeResultKeyEncoder.encode(new Object[] {"key"}), keyValues);
+		assertEquals(1, arena.size());
+		List<Object> read = arena.getKeyValues(0);
+		assertEquals(Arrays.asList(keyValues), read);
+		for (int i = 0; i < keyValues.length; i++) {
+			if (keyValues[i] != null) {
+				assertEquals(keyValues[i].getClass(), read.get(i).getClass());
+			}
+		}
+		assertTrue(Arrays.equals(MungeResultKeyEncoder.encode(new Object[] {"key"}), arena.getSortKey(0)));
+	}
+
+	/**
+	 * Sorts random keys with many duplicates and checks they come out in the
+	 * same order as the keys sorted on the heap, with each key still next to
+	 * its own key values.
+	 */
+	public void testSort() throws Exception {
+		Random random = new Random(42);
+		MungeResultArena arena = new MungeResultArena(CHUNK_SIZE);
+		final List<byte[]> keys = new ArrayList<byte[]>();
+		for (int i = 0; i < 5000; i++) {
+			String value = Integer.toString(random.nextInt(700), 36);
+			byte[] key = MungeResultKeyEncoder.encode(new Object[] {value, BigDecimal.valueOf(random.nextInt(3))});
+			keys.add(key);
+			arena.add(key, new Object[] {Integer.valueOf(i)});
+		}
+		arena.sort();
+
+		List<byte[]> sorted = new ArrayList<byte[]>(keys);
+		Collections.sort(sorted, new Comparator<byte[]>() {
+			public int compare(byte[] key1, byte[] key2) {
+				return MungeResultKeyEncoder.compare(key1, key2);
+			}
+		});
+		assertEquals(keys.size(), arena.size());
+		for (int i = 0; i < arena.size(); i++) {
+			assertTrue(Arrays.equals(sorted.get(i), arena.getSortKey(i)));
+			int original = (Integer) arena.getKeyValues(i).get(0);
+			assertTrue(Arrays.equals(keys.get(original), arena.getSortKey(i)));
+			if (i > 0) {
+				assertTrue(arena.compareKeys(i - 1, i) <= 0);
+			}
+		}
+	}
+
+	public void testAddAll() throws Exception {
+		MungeResultArena first = new MungeResultArena(CHUNK_SIZE);
+		MungeResultArena second = new MungeResultArena(CHUNK_SIZE);
+		for (int i = 0; i < 100; i++) {
+			MungeResultArena arena = i % 2 == 0 ? first : second;
+			arena.add(MungeResultKeyEncoder.encode(new Object[] {"row " + i}), new Object[] {"k" + i});
+		}
+		first.addAll(second);
+		second.free();
+		assertEquals(100, first.size());
+		assertEquals(0, second.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals("k" + (i * 2), first.getKeyValues(i).get(0));
+			assertEquals("k" + (i * 2 + 1), first.getKeyValues(50 + i).get(0));
+		}
+	}
+
+	public void testResultLargerThanChunk() throws Exception {
+		MungeResultArena arena = new MungeResultArena(CHUNK_SIZE);
+		char[] chars = new char[CHUNK_SIZE];
+		Arrays.fill(chars, 'x');
+		try {
+			arena.add(new byte[0], new Object[] {new String(chars)});
+			fail("A result larger than a chunk was added");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class MungeResultKeyEncoderTest extends TestCase {
+
+	/**
+	 * Checks that the encoded keys of every pair of single column rows compare
+	 * the same way as the values do.
+	 */
+	@SuppressWarnings("unchecked")
+	private void checkOrder(Comparable[] values) {
+		for (Comparable v1 : values) {
+			for (Comparable v2 : values) {
+				int expected = Integer.signum(v1.compareTo(v2));
+				byte[] key1 = MungeResultKeyEncoder.encode(new Object[] {v1});
+				byte[] key2 = MungeResultKeyEncoder.encode(new Object[] {v2});
+				assertEquals("Wrong order for " + v1 + " and " + v2,
+						expected, Integer.signum(MungeResultKeyEncoder.compare(key1, key2)));
+				assertEquals(expected == 0, Arrays.equals(key1, key2));
+			}
+		}
+	}
+	
+	public void testStringOrder() throws Exception {
+		checkOrder(new String[] {"", "A", "AB", "B", "a", "\u0000", "A\u0000", "~",
+				"\u007f", "\u0080", "\u407e", "\u407f", "\uffff", "Z\uffff"});
+	}
+	
+	public void testDecimalOrder() throws Exception {
+		String[] numbers = {"0", "0.00", "1", "1.0", "10", "100", "-1", "-10", "-1.5",
+				"-1.50", "0.001", "-0.001", "0.12", "0.123", "-0.12", "-0.123", "1E+10", "1E-10"};
+		BigDecimal[] values = new BigDecimal[numbers.length];
+		for (int i = 0; i < numbers.length; i++) {
+			values[i] = new BigDecimal(numbers[i]);
+		}
+		checkOrder(values);
+	}
+	
+	public void testBooleanOrder() throws Exception {
+		checkOrder(new Boolean[] {Boolean.TRUE, Boolean.FALSE});
+	}
+	
+	public void testDateOrder() throws Exception {
+		checkOrder(new Date[] {new Date(Long.MIN_VALUE), new Date(-1), new Date(0),
+				new Date(1), new Date(Long.MAX_VALUE)});
+	}
+	
+	public void testTimestampNanosOrder() throws Exception {
+		Timestamp t1 = new Timestamp(1000);
+		t1.setNanos(5);
+		Timestamp t2 = new Timestamp(1000);
+		t2.setNanos(6);
+		checkOrder(new Timestamp[] {t1, t2, new Timestamp(999), new Timestamp(1001)});
+	}
+	
+	/**
+	 * Nulls sort first, and an earlier column takes precedence over the later
+	 * ones even when the earlier values have different lengths.
+	 */
+	public void testColumnPrecedence() throws Exception {
+		byte[] nullKey = MungeResultKeyEncoder.encode(new Object[] {null, "Z"});
+		byte[] shortKey = MungeResultKeyEncoder.encode(new Object[] {"", "Z"});
+		byte[] longKey = MungeResultKeyEncoder.encode(new Object[] {"A", "A"});
+		assertTrue(MungeResultKeyEncoder.compare(nullKey, shortKey) < 0);
+		assertTrue(MungeResultKeyEncoder.compare(shortKey, longKey) < 0);
+	}
+	
+	public void testUnexpectedType() throws Exception {
+		try {
+			MungeResultKeyEncoder.encode(new Object[] {new Object()});
+			fail("Should have thrown an exception");
+		} catch (IllegalStateException ex) {
+			// this is the correct outcome
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class MungeResultSorterTest extends TestCase {
+
+	private MungeResult[] results;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(42);
+		results = new MungeResult[5000];
+		for (int i = 0; i < results.length; i++) {
+			MungeResult result = new MungeResult();
+			String s = random.nextInt(10) == 0 ? null : "s" + random.nextInt(100);
+			result.setMungedData(new Object[] {s, BigDecimal.valueOf(random.nextInt(10))});
+			results[i] = result;
+		}
+	}
+	
+	private void checkSorted(MungeResult[] sorted) {
+		MungeResult[] expected = results.clone();
+		Arrays.sort(expected);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("Wrong order at " + i, 0, expected[i].compareTo(sorted[i]));
+		}
+	}
+	
+	public void testSingleThreadSort() throws Exception {
+		MungeResult[] sorted = results.clone();
+		MungeResultSorter.sort(sorted, 1, 1);
+		checkSorted(sorted);
+	}
+	
+	/**
+	 * Uses a low threshold so the slices are sorted and merged on several
+	 * threads even with a small amount of data.
+	 */
+	public void testParallelSort() throws Exception {
+		MungeResult[] sorted = results.clone();
+		MungeResultSorter.sort(sorted, 4, 100);
+		checkSorted(sorted);
+		assertEquals(results.length, new HashSet<MungeResult>(Arrays.asList(sorted)).size());
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.Random;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.codec.language.Metaphone;
+import org.apache.commons.codec.language.RefinedSoundex;
+import org.apache.commons.codec.language.Soundex;
+
+/**
+ * Compares the time the phonetic encoders of the munge steps take against
+ * the commons-codec encoders they replace, the way the steps used them with
+ * a new encoder for every value. The values are made up names, a quarter of
+ * them repeated, as in a typical source table. Run it with no arguments, or
+ * with the number of values to encode.
+ */
+public class PhoneticEncoderBenchmark {
+
+	private static final String[] SYLLABLES = {
+		"an", "ber", "chen", "dow", "el", "fitz", "gh", "ham", "ith", "jo",
+		"kn", "lee", "mac", "nor", "ough", "ph", "quin", "rob", "sch", "tch",
+		"ux", "vin", "wr", "xa", "yo", "zim"
+	};
+
+	private interface Encoder {
+		String encode(String value);
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String[] values = makeValues(count);
+
+		for (int round = 0; round < 3; round++) {
+			System.out.println("Round " + (round + 1));
+			time("Soundex (codec)", values, new Encoder() {
+				public String encode(String value) {
+					return new Soundex().soundex(value);
+				}
+			});
+			time("Soundex", values, encoder(new SoundexEncoder()));
+			time("Refined Soundex (codec)", values, new Encoder() {
+				public String encode(String value) {
+					return new RefinedSoundex().soundex(value);
+				}
+			});
+			time("Refined Soundex", values, encoder(new RefinedSoundexEncoder()));
+			time("Metaphone (codec)", values, new Encoder() {
+				public String encode(String value) {
+					return new Metaphone().metaphone(value);
+				}
+			});
+			time("Metaphone", values, encoder(new MetaphoneEncoder()));
+			time("Double Metaphone (codec)", values, new Encoder() {
+				public String encode(String value) {
+					return new DoubleMetaphone().doubleMetaphone(value, false);
+				}
+			});
+			time("Double Metaphone", values, encoder(new DoubleMetaphoneEncoder(false)));
+		}
+	}
+
+	private static Encoder encoder(final PhoneticEncoder encoder) {
+		return new Encoder() {
+			public String encode(String value) {
+				return encoder.encode(value);
+			}
+		};
+	}
+
+	private static String[] makeValues(int count) {
+		Random random = new Random(1);
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++) {
+			if (i > 0 && random.nextInt(4) == 0) {
+				values[i] = values[random.nextInt(i)];
+				continue;
+			}
+			StringBuilder name = new StringBuilder();
+			int syllables = 2 + random.nextInt(3);
+			for (int j = 0; j < syllables; j++) {
+				name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+			values[i] = name.toString();
+		}
+		return values;
+	}
+
+	private static void time(String name, String[] values, Encoder encoder) {
+		long start = System.nanoTime();
+		int hash = 0;
+		for (String value : values) {
+			hash += encoder.encode(value).hashCode();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println("  " + name + ": " + (elapsed / values.length) + " ns per value (" + hash + ")");
+	}
+}
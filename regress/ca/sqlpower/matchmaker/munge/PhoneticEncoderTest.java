@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.codec.language.Metaphone;
+import org.apache.commons.codec.language.RefinedSoundex;
+import org.apache.commons.codec.language.Soundex;
+
+/**
+ * Checks that the phonetic encoders give the same codes as the commons-codec
+ * encoders, for real names and for random strings heavy in the letters the
+ * rules treat specially.
+ */
+public class PhoneticEncoderTest extends TestCase {
+
+	private static final String[] NAMES = {
+		"", "a", "x", "Robert", "Rupert", "Rubin", "Ashcraft", "Ashcroft", "Tymczak",
+		"Pfister", "Honeyman", "Knight", "Gnome", "Aeneas", "Wright", "White",
+		"Xavier", "Schmidt", "Thompson", "Dodgy", "Laughing", "Campbell",
+		"McDonald", "O'Brien", "St. John", "van der Berg", "Cherie", "Chris",
+		"Science", "Tichner", "Mitchell", "Sioux", "Zamboni", "  Jean-Luc  ",
+		"1234", "R2D2", "Caf\u00e9", "Stra\u00dfe"
+	};
+
+	/**
+	 * Gives the code of a value, or the name of the exception thrown for it,
+	 * as the commons-codec encoders throw exceptions for letters outside of
+	 * A to Z.
+	 */
+	private abstract static class Code {
+		String get(String value) {
+			try {
+				return encode(value);
+			} catch (RuntimeException e) {
+				return e.getClass().getName();
+			}
+		}
+		abstract String encode(String value);
+	}
+
+	private void checkCodes(String value) {
+		Code[] codecs = {
+			new Code() { String encode(String v) { return new Soundex().soundex(v); } },
+			new Code() { String encode(String v) { return new RefinedSoundex().soundex(v); } },
+			new Code() { String encode(String v) { return new Metaphone().metaphone(v); } },
+			new Code() { String encode(String v) { return new DoubleMetaphone().doubleMetaphone(v, true); } }
+		};
+		final PhoneticEncoder[] encoders = {
+			new SoundexEncoder(), new RefinedSoundexEncoder(), new MetaphoneEncoder(),
+			new DoubleMetaphoneEncoder(true)
+		};
+		for (int i = 0; i < codecs.length; i++) {
+			final PhoneticEncoder encoder = encoders[i];
+			Code code = new Code() { String encode(String v) { return encoder.encode(v); } };
+			assertEquals(value, codecs[i].get(value), code.get(value));
+		}
+	}
+
+	public void testNames() throws Exception {
+		for (String name : NAMES) {
+			checkCodes(name);
+			checkCodes(name.toUpperCase());
+			checkCodes(name.toLowerCase());
+		}
+	}
+
+	public void testRandomStrings() throws Exception {
+		Random random = new Random(20081017);
+		String letters = "ABCDEGHIKMNPSTWXYZaceghiknostwy -'";
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder value = new StringBuilder();
+			int length = random.nextInt(10);
+			for (int j = 0; j < length; j++) {
+				value.append(letters.charAt(random.nextInt(letters.length())));
+			}
+			checkCodes(value.toString());
+		}
+	}
+
+	/**
+	 * A repeated value must get the same code back from the cache, and values
+	 * that share a cache entry must not get each other's codes.
+	 */
+	public void testCache() throws Exception {
+		MetaphoneEncoder encoder = new MetaphoneEncoder();
+		Metaphone metaphone = new Metaphone();
+		for (int i = 0; i < 5000; i++) {
+			String value = "NAME" + (i % 1500);
+			assertEquals(metaphone.metaphone(value), encoder.encode(value));
+		}
+	}
+}
@@ -81,6 +81,31 @@ public class RetainCharactersMungeStepTest extends MatchMakerTestCase<RetainChar
 		assertEquals("abcabc", result);
 	}
 	
+	/**
+	 * The pattern is compiled once when the step is opened, so every row has
+	 * to get the same treatment, and a change to the characters to retain
+	 * has to be picked up on the next row.
+	 */
+	public void testCallOnSeveralRows() throws Exception {
+		step.setUseRegex(false);
+		testInput = new MungeStepOutput<String>("test", String.class);
+		step.setRetainChars("a-c");
+		step.connectInput(0, testInput);
+		
+		step.open(logger);
+		MungeStepOutput output = step.getMungeStepOutputs().get(0);
+		testInput.setData("a-b-c");
+		step.call();
+		assertEquals("a-c", output.getData());
+		testInput.setData("c-b-a");
+		step.call();
+		assertEquals("c-a", output.getData());
+		
+		step.setRetainChars("b");
+		step.call();
+		assertEquals("b", output.getData());
+	}
+	
 	public void testCallonCaseInsensitive() throws Exception {
 		step.setUseRegex(false);
 		testInput = new MungeStepOutput<String>("test", String.class);
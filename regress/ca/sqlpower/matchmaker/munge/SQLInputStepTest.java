@@ -31,7 +31,10 @@ import ca.sqlpower.matchmaker.Project.ProjectMode;
 import ca.sqlpower.matchmaker.TestingMatchMakerSession;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.sqlobject.SQLColumn;
+import ca.sqlpower.sqlobject.SQLIndex;
 import ca.sqlpower.sqlobject.SQLTable;
+import ca.sqlpower.sqlobject.SQLIndex.AscendDescend;
+import ca.sqlpower.sqlobject.SQLIndex.Column;
 import ca.sqlpower.testutil.MockJDBCConnection;
 import ca.sqlpower.testutil.MockJDBCResultSet;
 import ca.sqlpower.util.FakeSQLDatabase;
@@ -173,6 +176,99 @@ public class SQLInputStepTest extends MatchMakerTestCase<SQLInputStep> {
         step.mungeClose();
     }
 
+    /**
+     * A process whose results are matched only reads the columns connected
+     * to its result step and the columns of the unique key.
+     */
+    public void testSelectsOnlyUsedColumns() throws Exception {
+        setUpUniqueKeyOnCol1();
+        resultStep.connectInput(0, step.getOutputByName("col3"));
+        
+        step.open(logger);
+        String sql = step.buildQuery(null);
+        assertTrue("Key column not selected: " + sql, sql.contains("\"col1\""));
+        assertFalse("Unused column selected: " + sql, sql.contains("\"col2\""));
+        assertTrue("Used column not selected: " + sql, sql.contains("\"col3\""));
+        step.mungeRollback();
+        step.mungeClose();
+    }
+    
+    /**
+     * The outputs of the columns that are read have to get the values from
+     * the right place in the narrower query, and the others stay null.
+     */
+    public void testOutputsTrackResultsWithUnusedColumns() throws Exception {
+        setUpUniqueKeyOnCol1();
+        resultStep.connectInput(0, step.getOutputByName("col3"));
+        MockJDBCResultSet rs = new MockJDBCResultSet(2);
+        rs.addRow(new Object[] {"row1,1", new Date(1234)});
+        rs.addRow(new Object[] {"row2,1", null});
+        db.getConnection().registerResultSet("SELECT.*FROM table1.*", rs);
+        
+        step.open(logger);
+        assertTrue(step.call());
+        assertEquals("row1,1",       step.getMungeStepOutputs().get(0).getData());
+        assertEquals(null,           step.getMungeStepOutputs().get(1).getData());
+        assertEquals(new Date(1234), step.getMungeStepOutputs().get(2).getData());
+        
+        assertTrue(step.call());
+        assertEquals("row2,1",       step.getMungeStepOutputs().get(0).getData());
+        assertEquals(null,           step.getMungeStepOutputs().get(1).getData());
+        assertEquals(null,           step.getMungeStepOutputs().get(2).getData());
+        
+        assertFalse(step.call());
+        step.mungeCommit();
+        step.mungeClose();
+    }
+    
+    /**
+     * Without a unique key the rows could not be told apart, so every
+     * column is read.
+     */
+    public void testSelectsEveryColumnWithoutUniqueKey() throws Exception {
+        resultStep.connectInput(0, step.getOutputByName("col3"));
+        
+        step.open(logger);
+        String sql = step.buildQuery(null);
+        assertTrue(sql.contains("\"col1\""));
+        assertTrue(sql.contains("\"col2\""));
+        assertTrue(sql.contains("\"col3\""));
+        step.mungeRollback();
+        step.mungeClose();
+    }
+    
+    private void setUpUniqueKeyOnCol1() throws Exception {
+        SQLTable table = project.getSourceTable();
+        SQLIndex index = new SQLIndex("table1_key", true, null, null, null);
+        index.addChild(new Column(table.getColumnByName("col1"), AscendDescend.UNSPECIFIED));
+        table.addIndex(index);
+        project.setSourceTableIndex(index);
+    }
+
+    /**
+     * The prefetcher has to hand over every row in order even though its
+     * ring is much smaller than the result set.
+     */
+    public void testPrefetcherReadsEveryRow() throws Exception {
+        step.open(logger);
+        MockJDBCResultSet rs = new MockJDBCResultSet(3);
+        for (int i = 0; i < 50; i++) {
+            rs.addRow(new Object[] {"row" + i, new Integer(i), new Date(i)});
+        }
+        RowPrefetcher prefetcher = new RowPrefetcher(step, rs, 4, 10);
+        prefetcher.start();
+        for (int i = 0; i < 50; i++) {
+            Object[] values = prefetcher.next();
+            assertEquals("row" + i, values[0]);
+            assertEquals(new BigDecimal(i), values[1]);
+            assertEquals(new Date(i), values[2]);
+        }
+        assertNull(prefetcher.next());
+        prefetcher.close();
+        step.mungeRollback();
+        step.mungeClose();
+    }
+
 	@Override
 	protected SQLInputStep getTarget() {
 		return step;
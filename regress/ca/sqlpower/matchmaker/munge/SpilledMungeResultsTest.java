@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SpilledMungeResultsTest extends TestCase {
+
+	private SpilledMungeResults spilled;
+
+	@Override
+	protected void setUp() throws Exception {
+		spilled = new SpilledMungeResults();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		spilled.delete();
+	}
+
+	private static MungeResult result(String data, int key) {
+		MungeResult result = new MungeResult();
+		Object[] mungedData = new Object[] { data };
+		result.setMungedData(mungedData);
+		result.setSortKey(MungeResultKeyEncoder.encode(mungedData));
+		result.setKeyValues(new Object[] { Integer.valueOf(key) });
+		return result;
+	}
+
+	/**
+	 * Writes the given number of runs of random munged data.
+	 *
+	 * @return The number of results written.
+	 */
+	private int addRuns(int runCount, int runSize) throws Exception {
+		Random random = new Random(runCount);
+		int key = 0;
+		for (int i = 0; i < runCount; i++) {
+			MungeResult[] run = new MungeResult[runSize];
+			for (int j = 0; j < runSize; j++) {
+				run[j] = result("data " + random.nextInt(runCount * runSize / 4), key++);
+			}
+			spilled.addRun(run, run.length);
+		}
+		return key;
+	}
+
+	/**
+	 * Reads every result of the merger back, checking they come out in sort
+	 * key order.
+	 *
+	 * @return The key value of every result, by key value.
+	 */
+	private boolean[] readAll(SpilledMungeResults.RunMerger merger, int count) throws Exception {
+		boolean[] seen = new boolean[count];
+		byte[] last = null;
+		try {
+			while (merger.next()) {
+				byte[] key = merger.getSortKey();
+				if (last != null) {
+					assertTrue(MungeResultKeyEncoder.compare(last, key) <= 0);
+				}
+				last = key;
+				int keyValue = (Integer) merger.getKeyValues().get(0);
+				assertFalse("Result " + keyValue + " was read twice", seen[keyValue]);
+				seen[keyValue] = true;
+			}
+		} finally {
+			merger.close();
+		}
+		return seen;
+	}
+
+	public void testMergeInOnePass() throws Exception {
+		int count = addRuns(5, 20);
+		boolean[] seen = readAll(spilled.openMerger(), count);
+		for (int i = 0; i < count; i++) {
+			assertTrue("Result " + i + " was not read", seen[i]);
+		}
+		assertEquals(5, spilled.getRunCount());
+	}
+
+	/**
+	 * More runs than can be read at once are merged in passes before the
+	 * last merge, and every result still comes out once in sort key order.
+	 */
+	public void testMergeInPasses() throws Exception {
+		int count = addRuns(20, 15);
+		SpilledMungeResults.RunMerger merger = spilled.openMerger(3);
+		assertTrue(spilled.getRunCount() <= 3);
+		assertEquals(count, spilled.getRowCount());
+		boolean[] seen = readAll(merger, count);
+		for (int i = 0; i < count; i++) {
+			assertTrue("Result " + i + " was not read", seen[i]);
+		}
+	}
+
+	/**
+	 * A run left over at the end of a pass is carried over to the next pass
+	 * as it is.
+	 */
+	public void testMergeWithLeftOverRun() throws Exception {
+		int count = addRuns(7, 10);
+		boolean[] seen = readAll(spilled.openMerger(2), count);
+		assertEquals(2, spilled.getRunCount());
+		for (int i = 0; i < count; i++) {
+			assertTrue("Result " + i + " was not read", seen[i]);
+		}
+	}
+
+	public void testNullDataIsDropped() throws Exception {
+		List<MungeResult> run = new ArrayList<MungeResult>();
+		run.add(result("a", 0));
+		MungeResult nullResult = new MungeResult();
+		nullResult.setMungedData(new Object[] { null });
+		nullResult.setSortKey(MungeResultKeyEncoder.encode(nullResult.getMungedData()));
+		nullResult.setKeyValues(new Object[] { Integer.valueOf(1) });
+		run.add(nullResult);
+		spilled.addRun(run.toArray(new MungeResult[run.size()]), run.size());
+		assertEquals(1, spilled.getRowCount());
+		boolean[] seen = readAll(spilled.openMerger(), 2);
+		assertTrue(seen[0]);
+		assertFalse(seen[1]);
+	}
+}
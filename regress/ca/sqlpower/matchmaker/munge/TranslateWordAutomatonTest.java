@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TranslateWordAutomatonTest extends TestCase {
+
+	private int[] find(TranslateWordAutomaton automaton, String s, int minWord) {
+		boolean[] found = new boolean[automaton.getWordCount()];
+		int[] hits = new int[automaton.getWordCount()];
+		int count = automaton.findWords(s, minWord, found, hits);
+		return Arrays.copyOf(hits, count);
+	}
+
+	/**
+	 * Words that overlap or are inside other words must all be found, in word
+	 * order rather than the order they appear in.
+	 */
+	public void testFindsOverlappingWords() throws Exception {
+		TranslateWordAutomaton automaton = new TranslateWordAutomaton(
+				new String[] {"street", "st", "tree", "ave", "reet"}, true);
+		assertTrue(Arrays.equals(new int[] {0, 1, 2, 4}, find(automaton, "main street", 0)));
+		assertTrue(Arrays.equals(new int[] {2, 4}, find(automaton, "main street", 2)));
+		assertTrue(Arrays.equals(new int[0], find(automaton, "MAIN STREET", 0)));
+	}
+
+	public void testCaseInsensitiveFoldsAsciiOnly() throws Exception {
+		TranslateWordAutomaton automaton = new TranslateWordAutomaton(
+				new String[] {"Rue", "\u00e9t\u00e9"}, false);
+		assertTrue(Arrays.equals(new int[] {0}, find(automaton, "RUE \u00c9T\u00c9", 0)));
+		assertTrue(Arrays.equals(new int[] {0, 1}, find(automaton, "rUe \u00e9t\u00e9", 0)));
+	}
+
+	/**
+	 * Empty words and words with a '.', which is not escaped, can not be
+	 * looked for as plain text so they are always reported.
+	 */
+	public void testWildcardWordsAlwaysFound() throws Exception {
+		TranslateWordAutomaton automaton = new TranslateWordAutomaton(
+				new String[] {"a.c", "x", ""}, true);
+		assertTrue(Arrays.equals(new int[] {0, 2}, find(automaton, "zzz", 0)));
+	}
+}
@@ -24,6 +24,7 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import ca.sqlpower.matchmaker.MatchMakerTranslateGroup;
+import ca.sqlpower.matchmaker.MatchMakerTranslateWord;
 import ca.sqlpower.matchmaker.Project;
 import ca.sqlpower.matchmaker.TestingMatchMakerSession;
 
@@ -182,6 +183,33 @@ public class TranslateWordMungeStepTest extends AbstractMungeStepTest<TranslateW
 		assertEquals("12341234", result);
 	}
 	
+	/**
+	 * A replacement that makes a later word appear must have that word
+	 * replaced too, the same as when every word is replaced in turn.
+	 */
+	public void testCallonReplacementCreatingLaterWord() throws Exception {
+		MatchMakerTranslateGroup group = new MatchMakerTranslateGroup();
+		MatchMakerTranslateWord first = new MatchMakerTranslateWord();
+		first.setFrom("a");
+		first.setTo("x");
+		group.addChild(first);
+		MatchMakerTranslateWord second = new MatchMakerTranslateWord();
+		second.setFrom("xb");
+		second.setTo("y");
+		group.addChild(second);
+		testInput = new MungeStepOutput<String>("test", String.class);
+		testInput.setData("abab");
+		step.connectInput(0, testInput);
+		step.setTranslateGroup(group);
+		
+		step.open(logger);
+		step.call();
+		List<MungeStepOutput> results = step.getMungeStepOutputs(); 
+		MungeStepOutput output = results.get(0);
+		String result = (String)output.getData();
+		assertEquals("yy", result);
+	}
+	
 	public void testCallonNull() throws Exception {
 		testInput = new MungeStepOutput<String>("test", String.class);
 		testInput.setData(null);
@@ -669,7 +669,9 @@ public class MMTestUtils {
 				+ "\n MATCH_STATUS varchar(60),"
 				+ "\n MATCH_STATUS_DATE timestamp,"
 				+ "\n MATCH_STATUS_USER varchar(60),"
-				+ "\n DUP1_MASTER_IND  varchar(1)" + "\n)");
+				+ "\n DUP1_MASTER_IND  varchar(1),"
+				+ "\n CLUSTER_ID integer,"
+				+ "\n CLUSTER_ORDINAL integer" + "\n)");
 		stmt.close();
 	}
 
@@ -43,6 +43,7 @@ import ca.sqlpower.matchmaker.TestingAbstractMatchMakerObject;
 import ca.sqlpower.matchmaker.TestingMatchMakerSession;
 import ca.sqlpower.matchmaker.TranslateGroupParent;
 import ca.sqlpower.matchmaker.MungeSettings.AutoValidateSetting;
+import ca.sqlpower.matchmaker.MungeSettings.MatchMode;
 import ca.sqlpower.matchmaker.MungeSettings.PoolFilterSetting;
 import ca.sqlpower.matchmaker.Project.ProjectMode;
 import ca.sqlpower.matchmaker.address.AddressDatabase;
@@ -50,6 +51,7 @@ import ca.sqlpower.matchmaker.munge.CleanseResultStep;
 import ca.sqlpower.matchmaker.munge.DeDupeResultStep;
 import ca.sqlpower.matchmaker.munge.InputDescriptor;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcess.EdgeStrategy;
 import ca.sqlpower.matchmaker.munge.MungeResultStep;
 import ca.sqlpower.matchmaker.munge.MungeStep;
 import ca.sqlpower.matchmaker.munge.MungeStepInput;
@@ -228,6 +230,18 @@ public class MatchMakerNewValueMaker extends GenericNewValueMaker {
         	} else {
         		return PoolFilterSetting.VALID_OR_INVALID;
         	} 
+        } else if (valueType == MatchMode.class) {
+        	if (oldVal != MatchMode.SORT_AND_SCAN) {
+        		return MatchMode.SORT_AND_SCAN;
+        	} else {
+        		return MatchMode.HASH_GROUPING;
+        	}
+        } else if (valueType == EdgeStrategy.class) {
+        	if (oldVal != EdgeStrategy.STAR) {
+        		return EdgeStrategy.STAR;
+        	} else {
+        		return EdgeStrategy.CHAIN;
+        	}
         } else if (valueType == MatchPool.class) {
             	return new MatchPool();
         } else if (valueType == AddressDatabase.class) {
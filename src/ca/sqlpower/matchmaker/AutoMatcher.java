@@ -20,16 +20,18 @@
 package ca.sqlpower.matchmaker;
 
 import java.sql.SQLException;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import ca.sqlpower.graph.BreadthFirstSearch;
-import ca.sqlpower.graph.GraphModel;
 import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
-import ca.sqlpower.matchmaker.graph.NonDirectedUserValidatedMatchPoolGraphModel;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
 import ca.sqlpower.sqlobject.SQLObjectException;
 import ca.sqlpower.util.MonitorableImpl;
@@ -74,12 +76,20 @@ public class AutoMatcher extends MonitorableImpl {
     /**
      * Actually performs the auto matching process. This method must only be
      * called from {@link #doAutoMatch(MungeProcess, Aborter)}, which will have
-     * acquired the project's engine lock.
+     * acquired the project's engine lock, or by the pool itself.
+     * <p>
+     * The records reachable from each other by user-validated matches and the
+     * no-match edges between those groups of records are tracked in a
+     * {@link MatchGroups} as the matches are made, rather than searching the
+     * pool's graph again after every match. As long as the groups are trees,
+     * a match between two groups only sets the edge between them and a match
+     * inside a group is already made, so this takes close to linear time in
+     * the size of the pool.
      * 
      * @param mungeProcess
      *            The munge process of this project to auto-match
      */
-	private void actuallyDoAutoMatch(MungeProcess mungeProcess) throws SQLException, SQLObjectException {
+	void actuallyDoAutoMatch(MungeProcess mungeProcess) throws SQLException, SQLObjectException {
 	    Set<SourceTableRecord> visited = new HashSet<SourceTableRecord>();
 	    try {
 	        setStarted(true);
@@ -90,7 +100,7 @@ public class AutoMatcher extends MonitorableImpl {
 	            "invalid munge process");
 	        }
 
-	        Collection<SourceTableRecord> records = pool.getAllSourceTableRecords();
+	        List<SourceTableRecord> records = pool.getAllSourceTableRecords();
 
 	        logger.debug("Auto-Matching with " + records.size() + " records.");
 
@@ -119,21 +129,22 @@ public class AutoMatcher extends MonitorableImpl {
 	        }
 
 	        logger.debug("The size of visited is " + visited.size());
+	        if (selected == null) {
+	        	return;
+	        }
 
-	        Set<SourceTableRecord> neighbours = findAutoMatchNeighbours(mungeProcess, selected, visited);
-	        makeAutoMatches(mungeProcess, selected, neighbours, visited);
-	        //If we haven't visited all the nodes, we are not done!
+	        MatchGroups groups = new MatchGroups(records);
+	        makeAutoMatches(mungeProcess, selected, groups, visited);
+	        //If we haven't visited all the nodes, we are not done! Records are
+	        //never removed from visited so the search for the next one that has
+	        //not been visited can carry on from where the last one was found.
+	        int next = 0;
 	        while (visited.size() != records.size()) {
 	            checkCancelled();
-	            SourceTableRecord temp = null;
-	            for (SourceTableRecord record : records) {
-	                if (!visited.contains(record)) {
-	                    temp = record;
-	                    break;
-	                }
+	            while (visited.contains(records.get(next))) {
+	            	next++;
 	            }
-	            neighbours = findAutoMatchNeighbours(mungeProcess, temp, visited);
-	            makeAutoMatches(mungeProcess, temp, neighbours, visited);
+	            makeAutoMatches(mungeProcess, records.get(next), groups, visited);
 	        }
 	    } finally {
 	        setFinished(true);
@@ -145,38 +156,67 @@ public class AutoMatcher extends MonitorableImpl {
 	/**
 	 * Creates the matches necessary in an auto-match while maintaining the
 	 * 'visited' set and propagating the algorithm to neighbours of selected
-	 * nodes.
+	 * nodes. Each selected node is made the master of its neighbours that do
+	 * not have a no-match with it, then the neighbours that have not been
+	 * visited are selected in turn, depth first. An explicit stack is used in
+	 * place of recursion as long chains of matches are common.
 	 */
 	private void makeAutoMatches(MungeProcess mungeProcess,
 			SourceTableRecord selected,
-			Set<SourceTableRecord> neighbours,
+			MatchGroups groups,
 			Set<SourceTableRecord> visited) throws SQLException, SQLObjectException {
-		logger.debug("makeAutoMatches called, selected's key values = " + selected.getKeyValues());
-		visited.add(selected);
-		GraphModel<SourceTableRecord, PotentialMatchRecord> nonDirectedGraph =
-			new NonDirectedUserValidatedMatchPoolGraphModel(pool, new HashSet<PotentialMatchRecord>());
-		BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord> bfs =
-			new BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord>();
-		Set<SourceTableRecord> reachable = new HashSet<SourceTableRecord>(bfs.performSearch(nonDirectedGraph, selected));
-		Set<SourceTableRecord> noMatchNodes = pool.findNoMatchNodes(reachable);
-		for (SourceTableRecord record : neighbours) {
-			if (!noMatchNodes.contains(record)) {
-				pool.defineMaster(selected, record, true);
-				nonDirectedGraph = new NonDirectedUserValidatedMatchPoolGraphModel(pool, new HashSet<PotentialMatchRecord>());
-				bfs = new BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord>();
-				reachable = new HashSet<SourceTableRecord>(bfs.performSearch(nonDirectedGraph, selected));
-				noMatchNodes = pool.findNoMatchNodes(reachable);
+		LinkedList<Iterator<SourceTableRecord>> stack = new LinkedList<Iterator<SourceTableRecord>>();
+		stack.addFirst(matchNeighbours(mungeProcess, selected, groups, visited));
+		while (!stack.isEmpty()) {
+			Iterator<SourceTableRecord> neighbours = stack.getFirst();
+			if (!neighbours.hasNext()) {
+				stack.removeFirst();
+				continue;
+			}
+			SourceTableRecord record = neighbours.next();
+			if (!visited.contains(record)) {
+				stack.addFirst(matchNeighbours(mungeProcess, record, groups, visited));
 			}
 			setProgress(visited.size());
 			checkCancelled();
 		}
+	}
+
+	/**
+	 * Marks the selected record as visited and makes it the master of each of
+	 * its auto-match neighbours that are not in a group with a no-match to its
+	 * own group. Neighbours already in the selected record's group are left
+	 * as they are, and neighbours in another group are joined to it by
+	 * {@link MatchPool#joinMatchTrees(SourceTableRecord, SourceTableRecord, boolean)}.
+	 * The pool's full search is only needed when one of the groups is not a
+	 * tree, and the joined group is a tree afterwards.
+	 * 
+	 * @return An iterator over the neighbours to move on to.
+	 */
+	private Iterator<SourceTableRecord> matchNeighbours(MungeProcess mungeProcess,
+			SourceTableRecord selected,
+			MatchGroups groups,
+			Set<SourceTableRecord> visited) throws SQLObjectException {
+		logger.debug("makeAutoMatches called, selected's key values = " + selected.getKeyValues());
+		Set<SourceTableRecord> neighbours = findAutoMatchNeighbours(mungeProcess, selected, visited);
+		visited.add(selected);
 		for (SourceTableRecord record : neighbours) {
-			if (!visited.contains(record)) {
-				makeAutoMatches(mungeProcess, record, findAutoMatchNeighbours(mungeProcess, record, visited), visited);
+			if (!groups.isNoMatch(selected, record)) {
+				if (!groups.isTree(selected) || !groups.isTree(record)) {
+					pool.defineMaster(selected, record, true);
+					groups.join(selected, record);
+					if (selected != record) {
+						groups.setTree(selected);
+					}
+				} else if (!groups.isJoined(selected, record)) {
+					pool.joinMatchTrees(selected, record, true);
+					groups.join(selected, record);
+				}
 			}
-            setProgress(visited.size());
-            checkCancelled();
+			setProgress(visited.size());
+			checkCancelled();
 		}
+		return neighbours.iterator();
 	}
 
 	/**
@@ -209,4 +249,217 @@ public class AutoMatcher extends MonitorableImpl {
 		return null;
 	}
 
+	/**
+	 * Keeps track of the groups of records that are reachable from each other
+	 * by user-validated matches using a disjoint-set (union-find) structure,
+	 * along with the set of other groups each group has a no-match edge to.
+	 * Two records can be matched as long as neither of their groups has a
+	 * no-match to the other, which is the same rule as
+	 * {@link MatchPool#findNoMatchNodes(Set)}.
+	 * <p>
+	 * When two groups are joined the smaller no-match set is moved into the
+	 * larger one, so keeping the no-match sets up to date costs O(n log n)
+	 * over the whole auto-match.
+	 * <p>
+	 * It also tracks which groups are not a single tree of decided edges, as
+	 * only the groups that are trees can be joined without the pool's full
+	 * search.
+	 */
+	private class MatchGroups {
+
+		private final Map<SourceTableRecord, Integer> indices = new HashMap<SourceTableRecord, Integer>();
+
+		private int[] parent;
+
+		private byte[] rank;
+
+		/**
+		 * The roots of the groups that have a no-match edge to each group, by
+		 * the root of the group. A group with a no-match edge inside itself
+		 * has its own root in its set. Groups without no-match edges have no
+		 * entry.
+		 */
+		private final Map<Integer, Set<Integer>> noMatches = new HashMap<Integer, Set<Integer>>();
+
+		/**
+		 * The roots of the groups whose decided edges do not form a tree,
+		 * because a record has two masters or the edges make a cycle.
+		 */
+		private final Set<Integer> notTrees = new HashSet<Integer>();
+
+		MatchGroups(List<SourceTableRecord> records) {
+			parent = new int[Math.max(records.size(), 1)];
+			rank = new byte[parent.length];
+			for (SourceTableRecord record : records) {
+				index(record);
+			}
+			for (PotentialMatchRecord pmr : pool.getDecidedRecordsCache()) {
+				if (pmr.getMasterRecord() != null) {
+					union(index(pmr.getMasterRecord()), index(pmr.getDuplicate()));
+				}
+			}
+			findNotTrees();
+			for (SourceTableRecord record : records) {
+				for (PotentialMatchRecord pmr : record.getOriginalMatchEdges()) {
+					if (pmr.getMatchStatus() == MatchType.NOMATCH) {
+						int root1 = find(index(pmr.getOrigLHS()));
+						int root2 = find(index(pmr.getOrigRHS()));
+						noMatchesOf(root1).add(root2);
+						noMatchesOf(root2).add(root1);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Returns true if the groups of the two records have a no-match
+		 * between them.
+		 */
+		boolean isNoMatch(SourceTableRecord record1, SourceTableRecord record2) {
+			Set<Integer> roots = noMatches.get(find(index(record1)));
+			return roots != null && roots.contains(find(index(record2)));
+		}
+
+		/**
+		 * Joins the groups of the two records after they have been matched.
+		 */
+		void join(SourceTableRecord record1, SourceTableRecord record2) {
+			union(index(record1), index(record2));
+		}
+
+		/**
+		 * Returns true if the two records are in the same group.
+		 */
+		boolean isJoined(SourceTableRecord record1, SourceTableRecord record2) {
+			return find(index(record1)) == find(index(record2));
+		}
+
+		/**
+		 * Returns true if the decided edges of the record's group form a tree.
+		 */
+		boolean isTree(SourceTableRecord record) {
+			return !notTrees.contains(find(index(record)));
+		}
+
+		/**
+		 * Notes that the record's group is a tree, after the pool's full
+		 * search has made it one.
+		 */
+		void setTree(SourceTableRecord record) {
+			notTrees.remove(find(index(record)));
+		}
+
+		/**
+		 * Finds the groups that are not trees. A group is a tree if it has
+		 * one decided edge fewer than it has records, none of them joining a
+		 * record to itself, and no record has two masters.
+		 */
+		private void findNotTrees() {
+			int[] recordCounts = new int[indices.size()];
+			int[] edgeCounts = new int[indices.size()];
+			for (int i = 0; i < indices.size(); i++) {
+				recordCounts[find(i)]++;
+			}
+			Set<SourceTableRecord> duplicates = new HashSet<SourceTableRecord>();
+			for (PotentialMatchRecord pmr : pool.getDecidedRecordsCache()) {
+				if (pmr.getMasterRecord() != null) {
+					int root = find(index(pmr.getMasterRecord()));
+					edgeCounts[root]++;
+					if (pmr.getMasterRecord() == pmr.getDuplicate() || !duplicates.add(pmr.getDuplicate())) {
+						notTrees.add(root);
+					}
+				}
+			}
+			for (int i = 0; i < indices.size(); i++) {
+				if (parent[i] == i && edgeCounts[i] != recordCounts[i] - 1) {
+					notTrees.add(i);
+				}
+			}
+		}
+
+		private int index(SourceTableRecord record) {
+			Integer index = indices.get(record);
+			if (index == null) {
+				index = indices.size();
+				if (index == parent.length) {
+					parent = Arrays.copyOf(parent, index * 2);
+					rank = Arrays.copyOf(rank, index * 2);
+				}
+				parent[index] = index;
+				indices.put(record, index);
+			}
+			return index;
+		}
+
+		private Set<Integer> noMatchesOf(int root) {
+			Set<Integer> roots = noMatches.get(root);
+			if (roots == null) {
+				roots = new HashSet<Integer>();
+				noMatches.put(root, roots);
+			}
+			return roots;
+		}
+
+		private int find(int index) {
+			int root = index;
+			while (parent[root] != root) {
+				root = parent[root];
+			}
+			while (parent[index] != root) {
+				int next = parent[index];
+				parent[index] = root;
+				index = next;
+			}
+			return root;
+		}
+
+		/**
+		 * Joins the groups of the two indices. The root with the larger
+		 * no-match set is kept so the smaller set is the one that is moved.
+		 */
+		private void union(int index1, int index2) {
+			int root1 = find(index1);
+			int root2 = find(index2);
+			if (root1 == root2) return;
+			int size1 = noMatches.containsKey(root1) ? noMatches.get(root1).size() : 0;
+			int size2 = noMatches.containsKey(root2) ? noMatches.get(root2).size() : 0;
+			if (size1 < size2 || (size1 == size2 && rank[root1] < rank[root2])) {
+				int temp = root1;
+				root1 = root2;
+				root2 = temp;
+			}
+			parent[root2] = root1;
+			if (rank[root2] >= rank[root1]) {
+				rank[root1] = (byte) (rank[root2] + 1);
+			}
+			if (notTrees.remove(root2)) {
+				notTrees.add(root1);
+			}
+			moveNoMatches(root2, root1);
+		}
+
+		/**
+		 * Moves the no-match set of a group that has been joined into another
+		 * to the new root, pointing the groups on the other side of each
+		 * no-match at the new root as well.
+		 */
+		private void moveNoMatches(int oldRoot, int newRoot) {
+			Set<Integer> moved = noMatches.remove(oldRoot);
+			if (moved == null) return;
+			Set<Integer> kept = noMatchesOf(newRoot);
+			if (kept.remove(oldRoot)) {
+				kept.add(newRoot);
+			}
+			for (Integer root : moved) {
+				if (root == oldRoot || root == newRoot) {
+					kept.add(newRoot);
+				} else {
+					Set<Integer> other = noMatches.get(root);
+					other.remove(oldRoot);
+					other.add(newRoot);
+					kept.add(root);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcessor;
+
+/**
+ * Munges and matches several munge processes at once, each on a thread of its
+ * own. The processes do not depend on each other until their matches are
+ * merged into the match pool, so every worker finds the match clusters of its
+ * process with {@link MatchProcessor#findMatchClusters()} and leaves the pool
+ * alone. Once every process is done the cluster lists are merged into the
+ * pool on the calling thread in the order the processes were given, which
+ * gives the same pool as merging them one process at a time.
+ * <p>
+ * Each munge process reads the source table over connections of its own,
+ * opened by its input step.
+ */
+public class ConcurrentMungeAndMatchProcessor extends AbstractProcessor {
+
+	private final MatchPool pool;
+
+	private final List<MungeProcess> mungeProcesses;
+
+	/**
+	 * False if the processes have already been munged, in which case only
+	 * their matching is run concurrently.
+	 */
+	private final boolean munge;
+
+	/**
+	 * The number of rows to munge, or -1 for every row.
+	 */
+	private final int rowCount;
+
+	/**
+	 * The most processes to run at once.
+	 */
+	private final int threadCount;
+
+	private final Logger engineLogger;
+
+	/**
+	 * The munge and match processors the workers have started, for the
+	 * progress and cancellation of this processor.
+	 */
+	private final List<Processor> workers = new ArrayList<Processor>();
+
+	/**
+	 * The progress of the workers that have finished.
+	 */
+	private int finishedProgress;
+
+	public ConcurrentMungeAndMatchProcessor(MatchPool pool, List<MungeProcess> mungeProcesses,
+			boolean munge, int rowCount, int threadCount, Logger logger) {
+		this.pool = pool;
+		this.mungeProcesses = mungeProcesses;
+		this.munge = munge;
+		this.rowCount = rowCount;
+		this.threadCount = Math.max(1, Math.min(threadCount, mungeProcesses.size()));
+		this.engineLogger = logger;
+	}
+
+	public Boolean call() throws Exception {
+		monitorableHelper.setStarted(true);
+		monitorableHelper.setFinished(false);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<List<MatchCluster>>> futures = new ArrayList<Future<List<MatchCluster>>>();
+			for (final MungeProcess process : mungeProcesses) {
+				futures.add(executor.submit(new Callable<List<MatchCluster>>() {
+					public List<MatchCluster> call() throws Exception {
+						return mungeAndMatch(process);
+					}
+				}));
+			}
+
+			List<List<MatchCluster>> clusterLists = new ArrayList<List<MatchCluster>>();
+			Exception failure = null;
+			for (Future<List<MatchCluster>> future : futures) {
+				try {
+					clusterLists.add(future.get());
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						if (e.getCause() instanceof Exception) {
+							failure = (Exception) e.getCause();
+						} else {
+							failure = new Exception(e.getCause());
+						}
+						// stop the other processes at their next row
+						setCancelled(true);
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			checkCancelled();
+
+			for (int i = 0; i < mungeProcesses.size(); i++) {
+				engineLogger.debug("Merging matches of transformation " + mungeProcesses.get(i).getName() + " into MatchPool");
+				pool.mergeInClusters(clusterLists.get(i));
+			}
+		} finally {
+			executor.shutdown();
+			monitorableHelper.setFinished(true);
+		}
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Munges and matches one process on a worker thread.
+	 */
+	private List<MatchCluster> mungeAndMatch(MungeProcess process) throws Exception {
+		if (munge) {
+			MungeProcessor munger = new MungeProcessor(process, engineLogger);
+			start(munger);
+			engineLogger.info("Running transformation " + process.getName());
+			munger.call(rowCount);
+			finish(munger);
+		}
+
+		MatchProcessor matcher = MatchProcessor.forProcess(pool, process, engineLogger);
+		start(matcher);
+		engineLogger.info("Matching transformation " + process.getName());
+		List<MatchCluster> clusters = matcher.findMatchClusters();
+		finish(matcher);
+		return clusters;
+	}
+
+	private synchronized void start(Processor worker) {
+		checkCancelled();
+		workers.add(worker);
+	}
+
+	private synchronized void finish(Processor worker) {
+		workers.remove(worker);
+		finishedProgress += worker.getProgress();
+		checkCancelled();
+	}
+
+	@Override
+	public synchronized int getProgress() {
+		int progress = finishedProgress;
+		for (Processor worker : workers) {
+			progress += worker.getProgress();
+		}
+		return progress;
+	}
+
+	@Override
+	public synchronized void setCancelled(boolean cancelled) {
+		super.setCancelled(cancelled);
+		for (Processor worker : workers) {
+			worker.setCancelled(cancelled);
+		}
+	}
+}
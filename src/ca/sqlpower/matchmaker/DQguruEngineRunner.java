@@ -61,6 +61,8 @@ public class DQguruEngineRunner {
 		String projectName = null;
 		String logfilePath = null;
 		boolean debugMode = false;
+		Integer mungeThreadCount = null;
+		Integer processThreadCount = null;
 		
 		for (int i = 0; i < args.length; i++) {
 			String arg = args[i];
@@ -78,6 +80,14 @@ public class DQguruEngineRunner {
 				i++;
 			} else if (arg.equals("--debug") || arg.equals("-d")) {
 				debugMode = true;
+			} else if (arg.equals("--threads") || arg.equals("-t")) {
+				arg = args[i + 1];
+				mungeThreadCount = Integer.valueOf(arg);
+				i++;
+			} else if (arg.equals("--process-threads") || arg.equals("-P")) {
+				arg = args[i + 1];
+				processThreadCount = Integer.valueOf(arg);
+				i++;
 			} else {
 				if (!arg.equals("--help") && !arg.equals("-h")) {
 					System.out.println("Cannot recognize argument '" + arg + "'");
@@ -138,6 +148,14 @@ public class DQguruEngineRunner {
 		
 
 		project.getMungeSettings().setDebug(debugMode);
+		
+		if (mungeThreadCount != null) {
+			project.getMungeSettings().setMungeThreadCount(mungeThreadCount);
+		}
+		
+		if (processThreadCount != null) {
+			project.getMungeSettings().setProcessThreadCount(processThreadCount);
+		}
 
 		System.out.println("SOURCE: " + project.getSourceTableSPDatasource() + "," +
 				project.getSourceTableSchema() + "," +
@@ -158,6 +176,8 @@ public class DQguruEngineRunner {
 		System.out.println("\nOptional arguments include:");
 		System.out.println("\t--log | -l <log path>\t\t\tPath of the engine log");
 		System.out.println("\t--debug | -d\t\t\t\tEnable debug");
+		System.out.println("\t--threads | -t <count>\t\t\tNumber of threads to munge with");
+		System.out.println("\t--process-threads | -P <count>\t\tNumber of transformations to run at once");
 	}
 
 	private static DataSourceCollection<JDBCDataSource> readPlDotIni(String plDotIniPath) throws IOException {
@@ -23,11 +23,13 @@ import java.beans.PropertyChangeEvent;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -36,7 +38,7 @@ import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
 import ca.sqlpower.matchmaker.PotentialMatchRecord.StoreState;
 import ca.sqlpower.object.SPChildEvent;
 import ca.sqlpower.object.SPListener;
-import ca.sqlpower.sql.SQL;
+import ca.sqlpower.sqlobject.SQLObjectException;
 import ca.sqlpower.sqlobject.SQLTable;
 import ca.sqlpower.util.TransactionEvent;
 
@@ -46,18 +48,72 @@ public class DatabaseMatchPoolListener implements SPListener {
 	
 	private MatchPool pool;
 	private SQLTable resultTable;
+	
+	/**
+	 * The connection changes are stored on. It is opened by the first store
+	 * and held, along with the statements prepared on it, so that later stores
+	 * don't connect and prepare again. It is released by {@link #clear()},
+	 * which the pool calls from {@link MatchPool#clearRecords()} once an engine
+	 * or the validation screen is done with the records, and by a store that
+	 * fails. If it is closed by someone else the next store opens a new one.
+	 */
 	private Connection con;
 	private String lastSQL;
-	private PreparedStatement ps;
-    private StringBuilder sql;
     private int numKeyValues;
     
+    /**
+     * True if the result table has the cluster id and ordinal columns.
+     */
+    private boolean clusterColumns;
+    
+    /**
+     * True if the result table has the edge strategy column.
+     */
+    private boolean edgeStrategyColumn;
+    
+    /**
+     * The statements used to store changes are kept prepared on the connection
+     * between calls to {@link #store()}. They are prepared again if the result
+     * table changes or something goes wrong.
+     */
+    private PreparedStatement deletePs;
+    private PreparedStatement updatePs;
+    private PreparedStatement insertPs;
+    
+    /**
+     * The potential match records in the pool that have been added or changed
+     * since the last time they were stored. Whether each one has to be inserted,
+     * updated or deleted is decided by its state when it is stored.
+     */
+    private final Set<PotentialMatchRecord> changedRecords = 
+    	Collections.newSetFromMap(new IdentityHashMap<PotentialMatchRecord, Boolean>());
+    
+    /**
+     * The potential match records that have been removed from the pool since
+     * the last store. Their rows will be dropped from the result table.
+     */
+    private final Set<PotentialMatchRecord> removedRecords = 
+    	Collections.newSetFromMap(new IdentityHashMap<PotentialMatchRecord, Boolean>());
+    
+    /**
+     * The potential match records this listener has been added to, so it is
+     * only added once to records that move between clusters.
+     */
+    private final Set<PotentialMatchRecord> listenedRecords = 
+    	Collections.newSetFromMap(new IdentityHashMap<PotentialMatchRecord, Boolean>());
+    
     /**
      * This flag tells us whether or not we are in the middle of a large operation like resetting the pool
      * and if so, we will not want to call the store() function until it is over.
      */
     private boolean storeNow = true;
     
+    /**
+     * Set while the changes are being stored, as marking the records clean
+     * fires property changes of its own.
+     */
+    private boolean storing = false;
+    
 	/**
 	 * This listens to any changes made by the user on the match pool and the match records
 	 * and will store these changes to the result table in the target database. This
@@ -71,10 +127,14 @@ public class DatabaseMatchPoolListener implements SPListener {
 	@Override
 	public void childAdded(SPChildEvent e) {
 		if (e.getSource().equals(pool)) {
-			e.getChild().addSPListener(this);
-		} else if (e.getSource().getClass().equals(SourceTableRecord.class)) {
+			MatchCluster mc = (MatchCluster) e.getChild();
+			mc.addSPListener(this);
+			for (PotentialMatchRecord pmr : mc.getPotentialMatchRecords()) {
+				recordAdded(pmr);
+			}
+		} else if (e.getSource() instanceof MatchCluster) {
 			if(e.getChildType().equals(PotentialMatchRecord.class)) {
-				e.getChild().addSPListener(this);
+				recordAdded((PotentialMatchRecord) e.getChild());
 			}
 		}
 	}
@@ -82,18 +142,50 @@ public class DatabaseMatchPoolListener implements SPListener {
 	@Override
 	public void childRemoved(SPChildEvent e) {
 		if (e.getSource().equals(pool)) {
-			e.getChild().removeSPListener(this);
-		} else if (e.getSource().getClass().equals(SourceTableRecord.class)) {
+			MatchCluster mc = (MatchCluster) e.getChild();
+			mc.removeSPListener(this);
+			for (PotentialMatchRecord pmr : mc.getPotentialMatchRecords()) {
+				// records of a cluster that was merged into another are still in the pool
+				MatchCluster current = pool.getMatchCluster(pmr.getOrigLHS());
+				if (current == null || current.getMatchRecordByOriginalAdjacentSourceTableRecord(
+						pmr.getOrigLHS(), pmr.getOrigRHS()) != pmr) {
+					recordRemoved(pmr);
+				}
+			}
+		} else if (e.getSource() instanceof MatchCluster) {
 			if(e.getChildType().equals(PotentialMatchRecord.class)) {
-				e.getChild().removeSPListener(this);
+				recordRemoved((PotentialMatchRecord) e.getChild());
 			}
 		}
 	}
+	
+	private void recordAdded(PotentialMatchRecord pmr) {
+		if (listenedRecords.add(pmr)) {
+			pmr.addSPListener(this);
+		}
+		removedRecords.remove(pmr);
+		if (pmr.getStoreState() != StoreState.CLEAN || isDeleted(pmr)) {
+			changedRecords.add(pmr);
+		}
+	}
+	
+	private void recordRemoved(PotentialMatchRecord pmr) {
+		if (listenedRecords.remove(pmr)) {
+			pmr.removeSPListener(this);
+		}
+		changedRecords.remove(pmr);
+		if (pmr.getStoreState() != StoreState.NEW) {
+			removedRecords.add(pmr);
+		}
+	}
 
 	@Override
 	public void propertyChanged(PropertyChangeEvent evt) {
-		if(storeNow && evt.getSource().getClass().equals(PotentialMatchRecord.class)) {
-			store();
+		if (evt.getSource() instanceof PotentialMatchRecord && !storing) {
+			changedRecords.add((PotentialMatchRecord) evt.getSource());
+			if (storeNow) {
+				store();
+			}
 		}
 	}
 
@@ -108,266 +200,173 @@ public class DatabaseMatchPoolListener implements SPListener {
 		storeNow = true;
 	}
 	
+	/**
+	 * Forgets all of the changes that have not been stored yet and releases
+	 * the connection. This is for when the pool's records have been cleared
+	 * without firing events.
+	 */
+	public void clear() {
+		for (PotentialMatchRecord pmr : listenedRecords) {
+			pmr.removeSPListener(this);
+		}
+		listenedRecords.clear();
+		changedRecords.clear();
+		removedRecords.clear();
+		close();
+	}
+	
+	/**
+	 * Closes the prepared statements and the connection they were prepared on.
+	 * They will be prepared again the next time changes are stored.
+	 */
+	public void close() {
+		for (PreparedStatement ps : new PreparedStatement[] {deletePs, updatePs, insertPs}) {
+			if (ps != null) try { ps.close(); } catch (SQLException ex) { logger.error("Couldn't close prepared statement", ex); }
+		}
+		deletePs = null;
+		updatePs = null;
+		insertPs = null;
+		if (con != null) try { con.close(); } catch (SQLException ex) { logger.error("Couldn't close connection", ex); }
+		con = null;
+		resultTable = null;
+	}
+	
+	/**
+	 * Returns the connection currently held for storing changes, or null if
+	 * none is open. It is set to default accessibility so that the unit test
+	 * can call it.
+	 */
+	Connection getConnection() {
+		return con;
+	}
+	
+	private static boolean isDeleted(PotentialMatchRecord pmr) {
+		return pmr.getMatchStatus() == MatchType.DELETE || pmr.getMatchStatus() == MatchType.MERGED;
+	}
+	
+	/**
+	 * Writes the potential match records that were added, changed or removed
+	 * since the last call to the result table. Only those records are looked
+	 * at, so the time this takes depends on the number of changes rather than
+	 * the size of the pool.
+	 */
 	public void store() {
+		if (storing || (changedRecords.isEmpty() && removedRecords.isEmpty())) {
+			return;
+		}
+		storing = true;
+		ResultTableBulkWriter bulkWriter = null;
 		try { 
 	        pool.setProgress(0);
 	        pool.setCancelled(false);
 	        pool.setFinished(false);
 	        
-			final List<PotentialMatchRecord> potentialMatchRecords = pool.getPotentialMatchRecords();
-			
-		    final List<SourceTableRecord> sourceTableRecords = pool.getAllSourceTableRecords();
-		    
-		    final List<PotentialMatchRecord> deletedMatchRecords = new ArrayList<PotentialMatchRecord>();
-
-		    for(PotentialMatchRecord pmr : potentialMatchRecords) {
-		    	if(pmr.getMatchStatus().equals(MatchType.DELETE) || pmr.getMatchStatus().equals(MatchType.MERGED)) {
+		    final List<PotentialMatchRecord> deletedMatchRecords = new ArrayList<PotentialMatchRecord>(removedRecords);
+		    final List<PotentialMatchRecord> updatedMatchRecords = new ArrayList<PotentialMatchRecord>();
+		    final List<PotentialMatchRecord> newMatchRecords = new ArrayList<PotentialMatchRecord>();
+		    for (PotentialMatchRecord pmr : changedRecords) {
+		    	if (isDeleted(pmr)) {
 		    		deletedMatchRecords.add(pmr);
+		    	} else if (pmr.getStoreState() == StoreState.NEW) {
+		    		newMatchRecords.add(pmr);
+		    	} else if (pmr.getStoreState() == StoreState.DIRTY) {
+		    		updatedMatchRecords.add(pmr);
 		    	}
 		    }
-		    for(PotentialMatchRecord pmr : deletedMatchRecords) {
-	    		potentialMatchRecords.remove(pmr);
+		    if (deletedMatchRecords.isEmpty() && updatedMatchRecords.isEmpty() && newMatchRecords.isEmpty()) {
+		    	changedRecords.clear();
+		    	return;
 		    }
 		    
-		    resultTable = pool.getProject().getResultTable();
-	        con = null;
-	        lastSQL = null;
-	        ps = null;
-			con = pool.getProject().createResultTableConnection();
-			if(sourceTableRecords == null || sourceTableRecords.size() == 0) {
-				return;
-			}
-	        numKeyValues = ((SourceTableRecord)sourceTableRecords.toArray()[0]).getKeyValues().size();
-            boolean supportsBatchUpdates = pool.getProject().getMungeSettings().isUseBatchExecution()
+		    prepareStatements(changedRecords.isEmpty() ? 
+		    		removedRecords.iterator().next() : changedRecords.iterator().next());
+		    MungeSettings settings = pool.getProject().getMungeSettings();
+		    if (settings.isUseBulkWrite() && !newMatchRecords.isEmpty()) {
+		    	// done first as creating the staging table may commit the connection
+		    	bulkWriter = new ResultTableBulkWriter(pool.getProject(), settings.getBulkWriteBatchSize());
+		    	bulkWriter.prepareStagingTable(con, numKeyValues);
+		    }
+            boolean supportsBatchUpdates = settings.isUseBatchExecution()
             	&& con.getMetaData().supportsBatchUpdates();
-            con.setAutoCommit(false);
-            sql = new StringBuilder();
-            sql.append("DELETE FROM ").append(DDLUtils.toQualifiedName(resultTable));
-            sql.append("\n WHERE ");
-            for (int i = 0;; i++) {
-            	sql.append("DUP_CANDIDATE_1" + i + "=?");
-            	sql.append(" AND DUP_CANDIDATE_2" + i + "=?");
-            	if (i + 1 >= numKeyValues) break;
-            	sql.append(" AND ");
-            }
-            lastSQL = sql.toString();
-            logger.debug("The SQL statement we are running is " + lastSQL);
-            
-            ps = con.prepareStatement(lastSQL);
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            String appUser = pool.getSession().getAppUser();
             
             int batchCount = 0;
-            for (Iterator<PotentialMatchRecord> it = deletedMatchRecords.iterator(); it.hasNext(); ) {
+            for (PotentialMatchRecord pmr : deletedMatchRecords) {
             	pool.incrementProgress();
-            	PotentialMatchRecord pmr = it.next();
             	logger.debug("Dropping " + pmr + " from the database.");
             	for (int i = 0; i < numKeyValues; i++) {
-            		ps.setObject(i * 2 + 1, pmr.getOrigLHS().getKeyValues().get(i));
-            		logger.debug("Param " + (i * 2 + 1) + ": " + pmr.getOrigRHS().getKeyValues().get(i));
-            		ps.setObject(i * 2 + 2, pmr.getOrigLHS().getKeyValues().get(i));
-                    logger.debug("Param " + (i * 2 + 2) + ": " + pmr.getOrigRHS().getKeyValues().get(i));
+            		deletePs.setObject(i * 2 + 1, pmr.getOrigLHS().getKeyValues().get(i));
+            		deletePs.setObject(i * 2 + 2, pmr.getOrigRHS().getKeyValues().get(i));
             	}
-            	
-            	// Since not all JDBC drivers support batch updates.
-            	if (supportsBatchUpdates) {
-	        		batchCount++;
-	        		logger.debug("Adding statement to batch");
-	        		ps.addBatch();
-	        		if (batchCount >= MatchPool.DEFAULT_BATCH_SIZE || !it.hasNext()) {
-	        			logger.debug("Executing batch update");
-	        			ps.executeBatch();
-	        			batchCount = 0;
-	        		}
-            	} else {
-            		logger.debug("Executing update statement");
-            		ps.executeUpdate();
-            	}
-            	it.remove();
-            }
-            
-            sql = new StringBuilder();
-            sql.append("UPDATE ");
-            sql.append(DDLUtils.toQualifiedName(resultTable)); 
-            sql.append("\n SET ");
-            sql.append("MATCH_STATUS=?");
-            sql.append(", MATCH_STATUS_DATE=" + SQL.escapeDateTime(con, new Date(System.currentTimeMillis())));
-            sql.append(", MATCH_STATUS_USER=" + SQL.quote(pool.getSession().getAppUser()));
-            sql.append(", DUP1_MASTER_IND=? ");
-            sql.append("\n WHERE ");
-            for (int i = 0;; i++) {
-            	sql.append("DUP_CANDIDATE_1" + i + "=?");
-            	sql.append(" AND DUP_CANDIDATE_2" + i + "=?");
-            	if (i + 1 >= numKeyValues) break;
-            	sql.append(" AND ");
+            	batchCount = execute(deletePs, supportsBatchUpdates, batchCount);
             }
-            lastSQL = sql.toString();
-            logger.debug("The SQL statement we are running is " + lastSQL);
-            
-            if (ps != null) ps.close();
-            ps = null;
-            ps = con.prepareStatement(lastSQL);
+            finishBatch(deletePs, batchCount);
             
             batchCount = 0;
-            for (Iterator<PotentialMatchRecord> it = potentialMatchRecords.iterator(); it.hasNext();) {
+            for (PotentialMatchRecord pmr : updatedMatchRecords) {
             	pool.incrementProgress();
-                PotentialMatchRecord pmr = it.next();
-            	if (pmr.getStoreState() == StoreState.DIRTY) {
-            		logger.debug("The potential match " + pmr + " was dirty, storing");
-            		ps.setObject(1, pmr.getMatchStatus().getCode());
-            		if (pmr.isDirectMaster()) {
-            			ps.setObject(2, "Y");
-                    } else if (pmr.isReferencedMaster()) {
-                    	ps.setObject(2, "N");
-                    } else {
-                    	ps.setNull(2, Types.VARCHAR);
-                    }
-            		for (int i = 0; i < pmr.getOrigLHS().getKeyValues().size(); i++) {
-            			ps.setObject(i * 2 + 3, pmr.getOrigLHS().getKeyValues().get(i));
-            			ps.setObject(i * 2 + 4, pmr.getOrigRHS().getKeyValues().get(i));
-            		}
-
-            		if (supportsBatchUpdates) {
-	            		batchCount++;
-	            		logger.debug("Adding statement to batch");
-	            		ps.addBatch();
-	            		if (batchCount >= MatchPool.DEFAULT_BATCH_SIZE || !it.hasNext()) {
-	            			logger.debug("Executing batch update");
-	            			ps.executeBatch();
-	            			batchCount = 0;
-	            		}
-            		} else {
-            			logger.debug("Executing update statement");
-            			ps.executeUpdate();
-            		}
-            		pmr.setStoreState(StoreState.CLEAN);
-            	} else if (!it.hasNext() && supportsBatchUpdates) {
-            		// execute remaining batched commands
-            		logger.debug("Executing batch update");
-            		ps.executeBatch();
+            	logger.debug("The potential match " + pmr + " was dirty, storing");
+            	syncClusterPosition(pmr);
+            	updatePs.setObject(1, pmr.getMatchStatus().getCode());
+            	updatePs.setTimestamp(2, now);
+            	updatePs.setString(3, appUser);
+            	if (pmr.isDirectMaster()) {
+            		updatePs.setObject(4, "Y");
+            	} else if (pmr.isReferencedMaster()) {
+            		updatePs.setObject(4, "N");
+            	} else {
+            		updatePs.setNull(4, Types.VARCHAR);
             	}
-            	
-            }
-            
-            sql = new StringBuilder();
-            sql.append("INSERT INTO ").append(DDLUtils.toQualifiedName(resultTable)).append(" ");
-            sql.append("(");
-            for (int i = 0; i < numKeyValues; i++) {
-            	sql.append("DUP_CANDIDATE_1").append(i).append(", ");
-            	sql.append("DUP_CANDIDATE_2").append(i).append(", ");
-            }
-            sql.append("MATCH_PERCENT");
-            sql.append(", GROUP_ID");
-            sql.append(", MATCH_STATUS");
-            sql.append(", DUP1_MASTER_IND");
-            sql.append(", MATCH_DATE");
-            sql.append(", MATCH_STATUS_DATE");
-            sql.append(", MATCH_STATUS_USER");
-            
-            //These fields are only used for the old merge engine and will be removed when
-            //the merging is rewritten in Java
-            for (int i = 0; i < numKeyValues; i++) {
-            	sql.append(", DUP_ID").append(i);
-            	sql.append(", MASTER_ID").append(i);
-            }
-            
-            sql.append(")");
-            sql.append("\n VALUES (");
-            
-            for (int i = 0; i < numKeyValues * 2; i++) {
-            	sql.append("?, ");
-            }
-            sql.append("?, ");
-            sql.append("?, ");
-            sql.append("?, ");
-            sql.append("?, ");
-            sql.append(SQL.escapeDateTime(con, new Date(System.currentTimeMillis()))).append(", ");
-            sql.append(SQL.escapeDateTime(con, new Date(System.currentTimeMillis()))).append(", ");
-            sql.append(SQL.quote(pool.getSession().getAppUser()));
-            for (int i = 0; i < numKeyValues * 2; i++) {
-            	sql.append(", ?");
+            	int whereIndex = 5;
+            	if (clusterColumns) {
+            		updatePs.setObject(5, pmr.getClusterId());
+            		updatePs.setObject(6, pmr.getClusterOrdinal());
+            		whereIndex = 7;
+            	}
+            	for (int i = 0; i < numKeyValues; i++) {
+            		updatePs.setObject(whereIndex + i * 2, pmr.getOrigLHS().getKeyValues().get(i));
+            		updatePs.setObject(whereIndex + i * 2 + 1, pmr.getOrigRHS().getKeyValues().get(i));
+            	}
+            	batchCount = execute(updatePs, supportsBatchUpdates, batchCount);
             }
-            sql.append(")");
-            lastSQL = sql.toString();
-            logger.debug("The SQL statement we are running is " + lastSQL);
-            
-            if (ps != null) ps.close();
-            ps = null;
-            ps = con.prepareStatement(lastSQL);
+            finishBatch(updatePs, batchCount);
             
-            batchCount = 0;
-            
-            for (Iterator<PotentialMatchRecord> it = potentialMatchRecords.iterator(); it.hasNext();) {
-            	pool.incrementProgress();
-                PotentialMatchRecord pmr = it.next();
-            	if (pmr.getStoreState() == StoreState.NEW) {
+            if (bulkWriter != null) {
+            	logger.debug("Writing " + newMatchRecords.size() + " new potential matches in bulk");
+            	for (PotentialMatchRecord pmr : newMatchRecords) {
+            		syncClusterPosition(pmr);
+            	}
+            	bulkWriter.write(con, newMatchRecords, clusterColumns, edgeStrategyColumn, now, appUser);
+            	pool.setProgress(pool.getProgress() + newMatchRecords.size());
+            } else {
+            	batchCount = 0;
+            	for (PotentialMatchRecord pmr : newMatchRecords) {
+            		pool.incrementProgress();
             		logger.debug("The potential match " + pmr + " was new, storing");
-            		for (int i = 0; i < numKeyValues; i++) {
-            			ps.setObject(i * 2 + 1, pmr.getOrigLHS().getKeyValues().get(i));
-            			ps.setObject(i * 2 + 2, pmr.getOrigRHS().getKeyValues().get(i));
-            		}
-            		ps.setObject(numKeyValues * 2 + 1, pmr.getMungeProcess().getMatchPriority());
-            		ps.setObject(numKeyValues * 2 + 2, pmr.getMungeProcess().getName());
-            		ps.setObject(numKeyValues * 2 + 3, pmr.getMatchStatus().getCode());
-            		
-            		SourceTableRecord duplicate;
-            		SourceTableRecord master;
-            		if (pmr.isDirectMaster()) {
-            			ps.setObject(numKeyValues * 2 + 4, "Y");
-            			duplicate = pmr.getOrigRHS();
-            			master = pmr.getOrigLHS();
-                    } else if (pmr.isReferencedMaster()) {
-                    	ps.setObject(numKeyValues * 2 + 4, "N");
-                    	duplicate = pmr.getOrigLHS();
-            			master = pmr.getOrigRHS();
-                    } else {
-                    	ps.setObject(numKeyValues * 2 + 4, null);
-                    	duplicate = null;
-            			master = null;
-                    }
-            		
-            		//These fields are only used for the old merge engine and will be removed when
-                    //the merging is rewritten in Java
-            		if (duplicate != null && master != null) {
-            			for (int i = 0; i < numKeyValues; i++) {
-            				int baseParamIndex = (numKeyValues + i) * 2;
-							ps.setObject(baseParamIndex + 5, duplicate.getKeyValues().get(i));
-            				ps.setObject(baseParamIndex + 6, master.getKeyValues().get(i));
-            			}
-            		} else {
-            			for (int i = 0; i < numKeyValues; i++) {
-            				int baseParamIndex = (numKeyValues + i) * 2;
-							ps.setObject(baseParamIndex + 5, null);
-            				ps.setObject(baseParamIndex + 6, null);
-            			}
-            		}
-            		
-            		if (supportsBatchUpdates) {
-	            		batchCount++;
-	            		logger.debug("Adding insert statement to batch");
-	            		ps.addBatch();
-	            		if (batchCount >= MatchPool.DEFAULT_BATCH_SIZE || !it.hasNext()) {
-	            			logger.debug("Executing batch insert");
-	            			ps.executeBatch();
-	            			batchCount = 0;
-	            		}
-            		} else {
-            			logger.debug("Executing insert statement");
-            			ps.executeUpdate();
-            		}
-            		pmr.setStoreState(StoreState.CLEAN);
-            	} else if (!it.hasNext() && supportsBatchUpdates) {
-            		// execute remaining batched commands
-            		logger.debug("Executing batch insert");
-            		ps.executeBatch();
+            		syncClusterPosition(pmr);
+            		ResultTableBulkWriter.bindInsertRow(insertPs, 0, pmr, numKeyValues, clusterColumns, edgeStrategyColumn, now, appUser);
+            		batchCount = execute(insertPs, supportsBatchUpdates, batchCount);
             	}
+            	finishBatch(insertPs, batchCount);
             }
             
-            if (ps != null) ps.close();
-            ps = null;
-            
             if (pool.isDebug()) {
             	con.rollback();
             } else {
             	con.commit();
+            	for (PotentialMatchRecord pmr : updatedMatchRecords) {
+            		pmr.setStoreState(StoreState.CLEAN);
+            	}
+            	for (PotentialMatchRecord pmr : newMatchRecords) {
+            		pmr.setStoreState(StoreState.CLEAN);
+            	}
+            	changedRecords.clear();
+            	removedRecords.clear();
+            }
+            if (bulkWriter != null) {
+            	// after the commit or rollback as dropping the table may commit
+            	bulkWriter.dropStagingTable(con);
             }
 		} catch (SQLException ex) {
             logger.error("Error in query: "+lastSQL, ex);
@@ -376,30 +375,159 @@ public class DatabaseMatchPoolListener implements SPListener {
                     "\nMessage: "+ex.getMessage() +
                     "\nSQL State: "+ex.getSQLState() +
                     "\nQuery: "+lastSQL);
-            try {
-                con.rollback();
-            } catch (SQLException doubleException) {
-                logger.error("Rollback failed. Squishing this exception since it would shadow the original one:", doubleException);
-            }
+            rollback(bulkWriter);
             throw new RuntimeException(ex);
-        } catch (Exception ex) {
-            try {
-                con.rollback();
-            } catch (SQLException doubleException) {
-                logger.error("Rollback failed. Squishing this exception since it would shadow the original one:", doubleException);
-            }
-            if (ex instanceof RuntimeException) {
-                throw (RuntimeException) ex;
-            } else {
-                throw new RuntimeException(ex);
-            }
+        } catch (RuntimeException ex) {
+            rollback(bulkWriter);
+            throw ex;
         } finally {
+        	storing = false;
         	pool.setFinished(true);
-            if (ps != null) try { ps.close(); } catch (SQLException ex) { logger.error("Couldn't close prepared statement", ex); }
-            if (con != null) try { con.close(); } catch (SQLException ex) { logger.error("Couldn't close connection", ex); }
         }
 	}
 
+	/**
+	 * Gives the record the cluster id and ordinal of the cluster it is in, if
+	 * the cluster has them. This covers records added to a cluster after it
+	 * was read, such as synthetic matches made while validating.
+	 */
+	private void syncClusterPosition(PotentialMatchRecord pmr) {
+		if (pmr.getParent() instanceof MatchCluster) {
+			MatchCluster mc = (MatchCluster) pmr.getParent();
+			if (mc.getClusterId() != null) {
+				pmr.setClusterPosition(mc.getClusterId(), mc.getClusterOrdinal());
+			}
+		}
+	}
+	
+	/**
+	 * Rolls back the current store, drops the bulk writer's staging table if
+	 * there is one and closes the connection, so the statements will be
+	 * prepared on a new connection next time.
+	 * 
+	 * @param bulkWriter
+	 *            The bulk writer used by the failed store, or null if it did
+	 *            not use one.
+	 */
+	private void rollback(ResultTableBulkWriter bulkWriter) {
+		if (con != null) {
+			try {
+				con.rollback();
+			} catch (SQLException doubleException) {
+				logger.error("Rollback failed. Squishing this exception since it would shadow the original one:", doubleException);
+			}
+			if (bulkWriter != null) {
+				bulkWriter.dropStagingTable(con);
+			}
+		}
+		close();
+	}
+	
+	/**
+	 * Adds the statement to the batch if batch updates are supported, executing
+	 * the batch once it is full, or executes it right away otherwise.
+	 * 
+	 * @return The number of statements now waiting in the batch.
+	 */
+	private int execute(PreparedStatement ps, boolean supportsBatchUpdates, int batchCount) throws SQLException {
+		// Since not all JDBC drivers support batch updates.
+		if (supportsBatchUpdates) {
+			logger.debug("Adding statement to batch");
+			ps.addBatch();
+			batchCount++;
+			if (batchCount >= MatchPool.DEFAULT_BATCH_SIZE) {
+				logger.debug("Executing batch update");
+				ps.executeBatch();
+				batchCount = 0;
+			}
+		} else {
+			logger.debug("Executing update statement");
+			ps.executeUpdate();
+		}
+		return batchCount;
+	}
+	
+	private void finishBatch(PreparedStatement ps, int batchCount) throws SQLException {
+		if (batchCount > 0) {
+			logger.debug("Executing batch update");
+			ps.executeBatch();
+		}
+	}
+
+	/**
+	 * Makes sure the connection is open and the delete, update and insert
+	 * statements are prepared for the project's current result table.
+	 * 
+	 * @param pmr
+	 *            Any potential match record of the pool, used to find the
+	 *            number of key columns.
+	 */
+	private void prepareStatements(PotentialMatchRecord pmr) throws SQLException {
+		SQLTable currentResultTable = pool.getProject().getResultTable();
+		int currentNumKeyValues = pmr.getOrigLHS().getKeyValues().size();
+		if (con != null && !con.isClosed() && currentResultTable == resultTable 
+				&& currentNumKeyValues == numKeyValues) {
+			return;
+		}
+		close();
+		resultTable = currentResultTable;
+		numKeyValues = currentNumKeyValues;
+		try {
+			clusterColumns = pool.getProject().doesResultTableHaveClusterColumns();
+			edgeStrategyColumn = pool.getProject().doesResultTableHaveEdgeStrategyColumn();
+		} catch (SQLObjectException e) {
+			throw new RuntimeException(e);
+		}
+		con = pool.getProject().createResultTableConnection();
+		con.setAutoCommit(false);
+		
+		StringBuilder where = new StringBuilder();
+		where.append("\n WHERE ");
+		for (int i = 0;; i++) {
+			where.append("DUP_CANDIDATE_1" + i + "=?");
+			where.append(" AND DUP_CANDIDATE_2" + i + "=?");
+			if (i + 1 >= numKeyValues) break;
+			where.append(" AND ");
+		}
+		
+		StringBuilder sql = new StringBuilder();
+		sql.append("DELETE FROM ").append(DDLUtils.toQualifiedName(resultTable));
+		sql.append(where);
+		lastSQL = sql.toString();
+		logger.debug("Preparing " + lastSQL);
+		deletePs = con.prepareStatement(lastSQL);
+		
+		sql = new StringBuilder();
+		sql.append("UPDATE ");
+		sql.append(DDLUtils.toQualifiedName(resultTable)); 
+		sql.append("\n SET ");
+		sql.append("MATCH_STATUS=?");
+		sql.append(", MATCH_STATUS_DATE=?");
+		sql.append(", MATCH_STATUS_USER=?");
+		sql.append(", DUP1_MASTER_IND=? ");
+		if (clusterColumns) {
+			sql.append(", CLUSTER_ID=?");
+			sql.append(", CLUSTER_ORDINAL=? ");
+		}
+		sql.append(where);
+		lastSQL = sql.toString();
+		logger.debug("Preparing " + lastSQL);
+		updatePs = con.prepareStatement(lastSQL);
+		
+		sql = new StringBuilder();
+		sql.append("INSERT INTO ").append(DDLUtils.toQualifiedName(resultTable)).append(" ");
+		sql.append(ResultTableBulkWriter.getInsertColumns(numKeyValues, clusterColumns, edgeStrategyColumn));
+		sql.append("\n VALUES (");
+		for (int i = 0; i < ResultTableBulkWriter.getInsertParameterCount(numKeyValues, clusterColumns, edgeStrategyColumn); i++) {
+			sql.append("?, ");
+		}
+		sql.setLength(sql.length() - 2);
+		sql.append(")");
+		lastSQL = sql.toString();
+		logger.debug("Preparing " + lastSQL);
+		insertPs = con.prepareStatement(lastSQL);
+	}
+
 	@Override
 	public void transactionRollback(TransactionEvent e) {
 		// DO NOTHING
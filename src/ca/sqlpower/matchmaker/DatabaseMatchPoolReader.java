@@ -25,6 +25,8 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,12 +41,19 @@ import ca.sqlpower.matchmaker.PotentialMatchRecord.MasterSide;
 import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
 import ca.sqlpower.matchmaker.PotentialMatchRecord.StoreState;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcess.EdgeStrategy;
 import ca.sqlpower.sqlobject.SQLColumn;
 import ca.sqlpower.sqlobject.SQLIndex;
 import ca.sqlpower.sqlobject.SQLObjectException;
 import ca.sqlpower.sqlobject.SQLTable;
 
 
+/**
+ * Reads the match pool from the result table. If the engine stored a cluster
+ * ordinal with every row, a page of clusters is read with a range query on
+ * the ordinal. Otherwise the whole result table is read and the clusters are
+ * worked out in memory and cached.
+ */
 public class DatabaseMatchPoolReader extends AbstractMatchPoolReader {
 
 	private static Logger logger = Logger.getLogger(DatabaseMatchPoolReader.class);
@@ -55,6 +64,14 @@ public class DatabaseMatchPoolReader extends AbstractMatchPoolReader {
 	}
 	
 	public void getClusters(int from, int to) {
+		Integer storedClusterCount = findStoredClusterCount();
+		if (storedClusterCount != null) {
+			matchPool.setClusterCount(storedClusterCount);
+			for (MatchCluster mc : read(from, Math.min(to, storedClusterCount))) {
+				matchPool.addMatchCluster(mc);
+			}
+			return;
+		}
 		if(clusterCache.isEmpty()) {
 			read();
 		}
@@ -78,7 +95,72 @@ public class DatabaseMatchPoolReader extends AbstractMatchPoolReader {
 		clusterCache.clear();
 	}
 	
+	/**
+	 * Returns the number of clusters numbered in the result table, or null if
+	 * the result table has no cluster ordinals to read pages by. The highest
+	 * ordinal is found through the index on the ordinal column.
+	 */
+	private Integer findStoredClusterCount() {
+		SQLTable resultTable = matchPool.getProject().getResultTable();
+        Connection con = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        String lastSQL = null;
+        try {
+        	if (!matchPool.getProject().doesResultTableHaveClusterColumns()) {
+        		return null;
+        	}
+        	con = matchPool.getProject().createResultTableConnection();
+        	stmt = con.createStatement();
+        	lastSQL = "SELECT MAX(" + Project.CLUSTER_ORDINAL_COLUMN + ") FROM " + 
+        		DDLUtils.toQualifiedName(resultTable);
+        	logger.debug("Finding the cluster count: " + lastSQL);
+        	rs = stmt.executeQuery(lastSQL);
+        	if (rs.next()) {
+        		int maxOrdinal = rs.getInt(1);
+        		if (!rs.wasNull()) {
+        			return maxOrdinal + 1;
+        		}
+        	}
+        	return null;
+        } catch (SQLException ex) {
+            logger.error("Error in query: "+lastSQL, ex);
+            matchPool.getSession().handleWarning(
+                    "Error in SQL Query!" +
+                    "\nMessage: "+ex.getMessage() +
+                    "\nSQL State: "+ex.getSQLState() +
+                    "\nQuery: "+lastSQL);
+            throw new RuntimeException(ex);
+        } catch (SQLObjectException ex) {
+            throw new RuntimeException(ex);
+		} finally {
+            if (rs != null) try { rs.close(); } catch (SQLException ex) { logger.error("Couldn't close result set", ex); }
+            if (stmt != null) try { stmt.close(); } catch (SQLException ex) { logger.error("Couldn't close statement", ex); }
+            if (con != null) try { con.close(); } catch (SQLException ex) { logger.error("Couldn't close connection", ex); }
+        }
+	}
+	
+	/**
+	 * Reads the whole result table into the cluster cache.
+	 */
 	public void read() {
+		clusterCache = read(null, null);
+		matchPool.setClusterCount(clusterCache.size());
+	}
+
+	/**
+	 * Reads the matches of the result table into clusters.
+	 * 
+	 * @param from
+	 *            The first cluster ordinal to read, or null to read the whole
+	 *            table.
+	 * @param to
+	 *            One past the last cluster ordinal to read, or null to read
+	 *            the whole table.
+	 * @return The clusters read, in order of their ordinals if they were read
+	 *         by ordinal.
+	 */
+	private List<MatchCluster> read(Integer from, Integer to) {
 		List<SQLColumn> displayColumns = matchPool.getDisplayColumns();
 		Map<List<Object>,SourceTableRecord> sourceTableRecords = new HashMap<List<Object>,SourceTableRecord>();
 		Set<PotentialMatchRecord> potentialMatchRecords = new HashSet<PotentialMatchRecord>();
@@ -147,6 +229,13 @@ public class DatabaseMatchPoolReader extends AbstractMatchPoolReader {
             	sql.append("source2." + col.getColumn().getName());
             	index++;
             }
+        	if (from != null) {
+        		sql.append(index == 0 ? "\n WHERE" : " AND");
+        		sql.append(" result.").append(Project.CLUSTER_ORDINAL_COLUMN).append(" >= ").append(from);
+        		sql.append(" AND result.").append(Project.CLUSTER_ORDINAL_COLUMN).append(" < ").append(to);
+        	}
+            boolean clusterColumns = matchPool.getProject().doesResultTableHaveClusterColumns();
+            boolean edgeStrategyColumn = matchPool.getProject().doesResultTableHaveEdgeStrategyColumn();
             lastSQL = sql.toString();
             logger.debug("MatchmatchPool's findAll method SQL: \n" + lastSQL);
             rs = stmt.executeQuery(lastSQL);
@@ -207,6 +296,16 @@ public class DatabaseMatchPoolReader extends AbstractMatchPoolReader {
             		sourceTableRecords.put(lhsKeyValues, lhs);
                	}
                	PotentialMatchRecord pmr = new PotentialMatchRecord(mungeProcess, matchStatus, lhs, rhs, false);
+               	if (clusterColumns) {
+               		pmr.setClusterPosition(getInteger(rs, Project.CLUSTER_ID_COLUMN), 
+               				getInteger(rs, Project.CLUSTER_ORDINAL_COLUMN));
+               	}
+               	if (edgeStrategyColumn) {
+               		String edgeStrategy = rs.getString(Project.EDGE_STRATEGY_COLUMN);
+               		if (edgeStrategy != null) {
+               			pmr.setEdgeStrategy(EdgeStrategy.valueOf(edgeStrategy.trim()));
+               		}
+               	}
                 pmr.setStoreState(StoreState.CLEAN);
                	String master = (String)(rs.getObject("DUP1_MASTER_IND"));
                	if ("Y".equals(master)) {
@@ -239,8 +338,27 @@ public class DatabaseMatchPoolReader extends AbstractMatchPoolReader {
         }
 		
 		//We must sort the read records and make them into clusters
-		clusterCache = MatchPool.sortMatches(sourceTableRecords.values(), potentialMatchRecords);
-		
-		matchPool.setClusterCount(clusterCache.size());
+		List<MatchCluster> clusters = MatchClusterBuilder.buildClusters(sourceTableRecords.values(), potentialMatchRecords);
+		for (MatchCluster mc : clusters) {
+			for (PotentialMatchRecord pmr : mc.getPotentialMatchRecords()) {
+				if (pmr.getClusterId() != null) {
+					mc.setClusterPosition(pmr.getClusterId(), pmr.getClusterOrdinal());
+					break;
+				}
+			}
+		}
+		if (from != null) {
+			Collections.sort(clusters, new Comparator<MatchCluster>() {
+				public int compare(MatchCluster mc1, MatchCluster mc2) {
+					return mc1.getClusterOrdinal().compareTo(mc2.getClusterOrdinal());
+				}
+			});
+		}
+		return clusters;
+	}
+	
+	private static Integer getInteger(ResultSet rs, String columnName) throws SQLException {
+		int value = rs.getInt(columnName);
+		return rs.wasNull() ? null : value;
 	}
 }
@@ -22,7 +22,9 @@ package ca.sqlpower.matchmaker;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -48,6 +50,37 @@ public class MatchCluster extends AbstractMatchMakerObject {
 	
 	private final List<PotentialMatchRecord> potentialMatchRecords = new ArrayList<PotentialMatchRecord>();
 	
+	/**
+	 * The source table records of this cluster by their key values.
+	 */
+	private final Map<List<?>, SourceTableRecord> recordsByKey = new HashMap<List<?>, SourceTableRecord>();
+	
+	/**
+	 * The potential match records of this cluster incident to each source
+	 * table record, by the original left and right hand side of the match.
+	 */
+	private final Map<SourceTableRecord, List<PotentialMatchRecord>> originalEdges = 
+		new HashMap<SourceTableRecord, List<PotentialMatchRecord>>();
+	
+	/**
+	 * The potential match records of this cluster by the pair of records they
+	 * originally connected. The order of the pair does not matter.
+	 */
+	private final Map<RecordPair, PotentialMatchRecord> matchRecordsByPair = 
+		new HashMap<RecordPair, PotentialMatchRecord>();
+	
+	/**
+	 * The id of this cluster in the result table, or null if it has not been
+	 * given one. See {@link MatchPool#assignClusterOrdinals()}.
+	 */
+	private Integer clusterId;
+	
+	/**
+	 * The position of this cluster in the order the result table's clusters
+	 * are shown in, or null if it has not been given one.
+	 */
+	private Integer clusterOrdinal;
+	
 	@Constructor
 	public MatchCluster() {
 		setName("matchCluster");
@@ -64,16 +97,18 @@ public class MatchCluster extends AbstractMatchMakerObject {
 
 	public void addSourceTableRecord(SourceTableRecord src, int index) {
 		sourceTableRecords.add(index, src);
+		recordsByKey.put(src.getKeyValues(), src);
 		fireChildAdded(SourceTableRecord.class, src, index);
 	}
 
 	public void addPotentialMatchRecord(PotentialMatchRecord pmr, int index) {
 		potentialMatchRecords.add(index, pmr);
+		indexPotentialMatchRecord(pmr);
 		fireChildAdded(PotentialMatchRecord.class, pmr, index);
 	}
 	
 	public void addSourceTableRecord(SourceTableRecord src) {
-		if(!sourceTableRecords.contains(src)) {
+		if(!recordsByKey.containsKey(src.getKeyValues())) {
 			addChild(src, sourceTableRecords.size());
 		}
 	}
@@ -83,9 +118,10 @@ public class MatchCluster extends AbstractMatchMakerObject {
 	 * the cluster cache for the database reading the community edition.
 	 */
 	public void putSourceTableRecord(SourceTableRecord src) {
-		if(!sourceTableRecords.contains(src)) {
+		if(!recordsByKey.containsKey(src.getKeyValues())) {
 			src.setParent(this);
 			sourceTableRecords.add(src);
+			recordsByKey.put(src.getKeyValues(), src);
 		}
 	}
 	
@@ -94,9 +130,7 @@ public class MatchCluster extends AbstractMatchMakerObject {
 	 * the cluster cache for the database reading the community edition.
 	 */
 	public void putPotentialMatchRecord(PotentialMatchRecord pmr) {
-		PotentialMatchRecord existing = potentialMatchRecords.contains(pmr) ? 
-				potentialMatchRecords.get(potentialMatchRecords.indexOf(pmr)) :
-					null;
+		PotentialMatchRecord existing = getMatchRecordByOriginalAdjacentSourceTableRecord(pmr.getOrigLHS(), pmr.getOrigRHS());
     	if (existing != null) { 
     		logger.debug("Found duplicate match of " + pmr);
     		Integer otherPriority = existing.getMungeProcess().getMatchPriority();
@@ -106,17 +140,20 @@ public class MatchCluster extends AbstractMatchMakerObject {
     			return;
     		} else {
     			logger.debug("pmr's priority is higher, so removing other");
-    			if(isMagicEnabled())
+    			if(isMagicEnabled()) {
     				potentialMatchRecords.remove(existing);
+    				unindexPotentialMatchRecord(existing);
+    			}
     		}
     	}
     	
-    	if (potentialMatchRecords.contains(pmr)) {
+    	if (matchRecordsByPair.containsKey(new RecordPair(pmr.getOrigLHS(), pmr.getOrigRHS()))) {
             throw new IllegalStateException("Potential match is already in pool (it should not be)");
         }
 		
     	pmr.setParent(this);
 		potentialMatchRecords.add(pmr);
+		indexPotentialMatchRecord(pmr);
 		
     	logger.debug("put " + pmr + " in Cluster " + this);
     	
@@ -127,9 +164,7 @@ public class MatchCluster extends AbstractMatchMakerObject {
 	
 	
 	public void addPotentialMatchRecord(PotentialMatchRecord pmr) {
-		PotentialMatchRecord existing = potentialMatchRecords.contains(pmr) ? 
-				potentialMatchRecords.get(potentialMatchRecords.indexOf(pmr)) :
-					null;
+		PotentialMatchRecord existing = getMatchRecordByOriginalAdjacentSourceTableRecord(pmr.getOrigLHS(), pmr.getOrigRHS());
     	if (existing != null) {
     		boolean replace = false;
     		
@@ -164,7 +199,7 @@ public class MatchCluster extends AbstractMatchMakerObject {
     		}
     	}
     	
-    	if (potentialMatchRecords.contains(pmr)) {
+    	if (matchRecordsByPair.containsKey(new RecordPair(pmr.getOrigLHS(), pmr.getOrigRHS()))) {
             throw new IllegalStateException("Potential match is already in pool (it should not be)");
         }
     	addChild(pmr, potentialMatchRecords.size());
@@ -193,6 +228,9 @@ public class MatchCluster extends AbstractMatchMakerObject {
 		int index = sourceTableRecords.indexOf(child);
 		boolean removed = sourceTableRecords.remove(child);
 		if(removed) {
+			if (recordsByKey.get(child.getKeyValues()) == child) {
+				recordsByKey.remove(child.getKeyValues());
+			}
 			fireChildRemoved(SourceTableRecord.class, child, index);
 		}
 		return removed;
@@ -202,6 +240,7 @@ public class MatchCluster extends AbstractMatchMakerObject {
 		int index = potentialMatchRecords.indexOf(child);
 		boolean removed = potentialMatchRecords.remove(child);
 		if(removed) {
+			unindexPotentialMatchRecord(child);
 			fireChildRemoved(PotentialMatchRecord.class, child, index);
 		}
 		return removed;
@@ -237,6 +276,22 @@ public class MatchCluster extends AbstractMatchMakerObject {
 		return Collections.unmodifiableList(potentialMatchRecords);
 	}
 
+	@NonProperty
+	public Integer getClusterId() {
+		return clusterId;
+	}
+	
+	@NonProperty
+	public Integer getClusterOrdinal() {
+		return clusterOrdinal;
+	}
+	
+	@NonProperty
+	public void setClusterPosition(Integer clusterId, Integer clusterOrdinal) {
+		this.clusterId = clusterId;
+		this.clusterOrdinal = clusterOrdinal;
+	}
+	
 	@NonProperty
 	public MatchPool getPool() {
 		return (MatchPool) getParent();
@@ -264,47 +319,80 @@ public class MatchCluster extends AbstractMatchMakerObject {
 
 	@NonProperty
     public SourceTableRecord getSourceTableRecord(List<? extends Object> key) {
-    	for(SourceTableRecord str : sourceTableRecords) {
-    		if(key.equals(str.getKeyValues())) {
-    			return str;
-    		}
-    	}
-    	return null;
+    	return recordsByKey.get(key);
     }
 	
+	/**
+	 * Returns a new list of the potential match records that originally had
+	 * the given record on either side, or null if there are none.
+	 */
 	@NonProperty
 	protected List<PotentialMatchRecord> getOriginalMatchEdges(SourceTableRecord src) {
-		List<PotentialMatchRecord> records = new ArrayList<PotentialMatchRecord>();
-		for(PotentialMatchRecord p : potentialMatchRecords) {
-			if(p.getOrigLHS().equals(src) || p.getOrigRHS().equals(src)) {
-				records.add(p);
-			}
-		}
-		return records.isEmpty() ? null : records;
+		List<PotentialMatchRecord> records = originalEdges.get(src);
+		return records == null ? null : new ArrayList<PotentialMatchRecord>(records);
 	}
 	
 	@NonProperty
 	protected PotentialMatchRecord getMatchRecordByOriginalAdjacentSourceTableRecord(SourceTableRecord src1, SourceTableRecord src2) {
-		for(PotentialMatchRecord p : potentialMatchRecords) {
-			if((p.getOrigLHS().equals(src1) && p.getOrigRHS().equals(src2)) ||
-					(p.getOrigLHS().equals(src2) && p.getOrigRHS().equals(src1))) {
-				return p;
-			}
-		}
-		return null;
+		return matchRecordsByPair.get(new RecordPair(src1, src2));
 	}
 	
+	/**
+	 * The master and duplicate of a potential match record are always its
+	 * original left and right hand sides in some order, so the validated edge
+	 * is the original edge between the records if it has a master.
+	 */
 	@NonProperty
     protected PotentialMatchRecord getMatchRecordByValidatedSourceTableRecord(SourceTableRecord src1, SourceTableRecord src2) {
-        for (PotentialMatchRecord p : potentialMatchRecords) {
-			if((p.getMasterRecord().equals(src1) && p.getDuplicate().equals(src2)) ||
-					(p.getMasterRecord().equals(src2) && p.getDuplicate().equals(src1))) {
-                return p;
-            }
-        }
+		PotentialMatchRecord p = matchRecordsByPair.get(new RecordPair(src1, src2));
+		if (p != null && p.getMasterRecord() != null) {
+			return p;
+		}
         return null;
     }
 	
+	private void indexPotentialMatchRecord(PotentialMatchRecord pmr) {
+		matchRecordsByPair.put(new RecordPair(pmr.getOrigLHS(), pmr.getOrigRHS()), pmr);
+		addOriginalEdge(pmr.getOrigLHS(), pmr);
+		if (pmr.getOrigRHS() != null && !pmr.getOrigRHS().equals(pmr.getOrigLHS())) {
+			addOriginalEdge(pmr.getOrigRHS(), pmr);
+		}
+	}
+	
+	private void addOriginalEdge(SourceTableRecord src, PotentialMatchRecord pmr) {
+		if (src == null) return;
+		List<PotentialMatchRecord> edges = originalEdges.get(src);
+		if (edges == null) {
+			edges = new ArrayList<PotentialMatchRecord>(2);
+			originalEdges.put(src, edges);
+		}
+		edges.add(pmr);
+	}
+	
+	private void unindexPotentialMatchRecord(PotentialMatchRecord pmr) {
+		RecordPair pair = new RecordPair(pmr.getOrigLHS(), pmr.getOrigRHS());
+		if (matchRecordsByPair.get(pair) == pmr) {
+			matchRecordsByPair.remove(pair);
+		}
+		removeOriginalEdge(pmr.getOrigLHS(), pmr);
+		removeOriginalEdge(pmr.getOrigRHS(), pmr);
+	}
+	
+	private void removeOriginalEdge(SourceTableRecord src, PotentialMatchRecord pmr) {
+		if (src == null) return;
+		List<PotentialMatchRecord> edges = originalEdges.get(src);
+		if (edges == null) return;
+		for (int i = 0; i < edges.size(); i++) {
+			if (edges.get(i) == pmr) {
+				edges.remove(i);
+				break;
+			}
+		}
+		if (edges.isEmpty()) {
+			originalEdges.remove(src);
+		}
+	}
+	
 	public boolean doesSourceRecordExist(List<Object> keyValues) {
 		SourceTableRecord src = getSourceTableRecord(keyValues);
 		return src == null ? false : true;
@@ -333,4 +421,40 @@ public class MatchCluster extends AbstractMatchMakerObject {
 		}
 		return s;
 	}
+	
+	/**
+	 * An unordered pair of source table records, used as the key of the
+	 * potential match records of this cluster. Two pairs are equal if they
+	 * hold equal records regardless of order, the same as
+	 * {@link PotentialMatchRecord#equals(Object)}.
+	 */
+	private static final class RecordPair {
+		
+		private final SourceTableRecord first;
+		private final SourceTableRecord second;
+		
+		RecordPair(SourceTableRecord first, SourceTableRecord second) {
+			this.first = first;
+			this.second = second;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RecordPair)) {
+				return false;
+			}
+			RecordPair other = (RecordPair) obj;
+			return (same(first, other.first) && same(second, other.second))
+				|| (same(first, other.second) && same(second, other.first));
+		}
+		
+		@Override
+		public int hashCode() {
+			return (first == null ? 0 : first.hashCode()) + (second == null ? 0 : second.hashCode());
+		}
+		
+		private static boolean same(SourceTableRecord src1, SourceTableRecord src2) {
+			return src1 == null ? src2 == null : src1.equals(src2);
+		}
+	}
 }
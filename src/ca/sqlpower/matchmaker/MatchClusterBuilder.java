@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sorts source table records and the potential match records between them
+ * into match clusters using a disjoint-set (union-find) structure. Each record
+ * is given an integer index when it is added, and every potential match joins
+ * the sets of its two records, with path compression and union by rank. Once
+ * everything has been added each set becomes one {@link MatchCluster}, so the
+ * whole process is close to linear in the number of records and matches.
+ * <p>
+ * Records that have no potential matches end up in a cluster of their own.
+ * The clusters are returned in the order their first record was added.
+ */
+public class MatchClusterBuilder {
+
+	/**
+	 * The index of each record that has been added.
+	 */
+	private final Map<SourceTableRecord, Integer> recordIndices;
+
+	/**
+	 * The records that have been added, by index.
+	 */
+	private final List<SourceTableRecord> records;
+
+	/**
+	 * The potential match records that have been added, in the order they were
+	 * added.
+	 */
+	private final List<PotentialMatchRecord> potentialMatchRecords = new ArrayList<PotentialMatchRecord>();
+
+	/**
+	 * The parent of each record's index in the disjoint-set forest. A record
+	 * that is its own parent is the root of its set.
+	 */
+	private int[] parent;
+
+	/**
+	 * An upper bound on the height of the tree under each root.
+	 */
+	private byte[] rank;
+
+	public MatchClusterBuilder() {
+		this(16);
+	}
+
+	/**
+	 * Creates a builder with room for the given number of records before it
+	 * has to grow.
+	 */
+	public MatchClusterBuilder(int expectedRecords) {
+		int capacity = Math.max(expectedRecords, 1);
+		recordIndices = new HashMap<SourceTableRecord, Integer>(capacity * 4 / 3 + 1);
+		records = new ArrayList<SourceTableRecord>(capacity);
+		parent = new int[capacity];
+		rank = new byte[capacity];
+	}
+
+	/**
+	 * Sorts the given records and matches into clusters. This is a shortcut
+	 * for adding all of them to a new builder and calling
+	 * {@link #buildClusters()}.
+	 */
+	public static List<MatchCluster> buildClusters(Collection<SourceTableRecord> sourceTableRecords,
+			Collection<PotentialMatchRecord> potentialMatchRecords) {
+		MatchClusterBuilder builder = new MatchClusterBuilder(sourceTableRecords.size());
+		for (SourceTableRecord str : sourceTableRecords) {
+			builder.addSourceTableRecord(str);
+		}
+		for (PotentialMatchRecord pmr : potentialMatchRecords) {
+			builder.addPotentialMatchRecord(pmr);
+		}
+		return builder.buildClusters();
+	}
+
+	/**
+	 * Adds the record to the builder as a set of its own if it has not been
+	 * added already.
+	 *
+	 * @return The index of the record
+	 */
+	public int addSourceTableRecord(SourceTableRecord str) {
+		Integer index = recordIndices.get(str);
+		if (index != null) {
+			return index;
+		}
+		int newIndex = records.size();
+		if (newIndex == parent.length) {
+			parent = Arrays.copyOf(parent, newIndex * 2);
+			rank = Arrays.copyOf(rank, newIndex * 2);
+		}
+		parent[newIndex] = newIndex;
+		records.add(str);
+		recordIndices.put(str, newIndex);
+		return newIndex;
+	}
+
+	/**
+	 * Adds the potential match record and joins the sets of the two records
+	 * it connects. The records are added if they have not been already.
+	 */
+	public void addPotentialMatchRecord(PotentialMatchRecord pmr) {
+		int lhs = addSourceTableRecord(pmr.getOrigLHS());
+		int rhs = addSourceTableRecord(pmr.getOrigRHS());
+		union(lhs, rhs);
+		potentialMatchRecords.add(pmr);
+	}
+
+	/**
+	 * Returns the index of the root of the set the given index belongs to,
+	 * pointing every index on the way directly at the root.
+	 */
+	int find(int index) {
+		int root = index;
+		while (parent[root] != root) {
+			root = parent[root];
+		}
+		while (parent[index] != root) {
+			int next = parent[index];
+			parent[index] = root;
+			index = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Joins the sets of the two given indices, hanging the shorter tree under
+	 * the root of the taller one.
+	 */
+	void union(int index1, int index2) {
+		int root1 = find(index1);
+		int root2 = find(index2);
+		if (root1 == root2) return;
+		if (rank[root1] < rank[root2]) {
+			parent[root1] = root2;
+		} else if (rank[root1] > rank[root2]) {
+			parent[root2] = root1;
+		} else {
+			parent[root2] = root1;
+			rank[root1]++;
+		}
+	}
+
+	/**
+	 * Creates one match cluster for each set of connected records, holding
+	 * the records and the potential match records between them.
+	 */
+	public List<MatchCluster> buildClusters() {
+		List<MatchCluster> matchClusters = new ArrayList<MatchCluster>();
+		int[] clusterIndex = new int[records.size()];
+		Arrays.fill(clusterIndex, -1);
+
+		for (int i = 0; i < records.size(); i++) {
+			int root = find(i);
+			if (clusterIndex[root] == -1) {
+				clusterIndex[root] = matchClusters.size();
+				matchClusters.add(new MatchCluster());
+			}
+			matchClusters.get(clusterIndex[root]).addSourceTableRecord(records.get(i));
+		}
+
+		for (PotentialMatchRecord pmr : potentialMatchRecords) {
+			int root = find(recordIndices.get(pmr.getOrigLHS()));
+			matchClusters.get(clusterIndex[root]).addPotentialMatchRecord(pmr);
+		}
+		return matchClusters;
+	}
+}
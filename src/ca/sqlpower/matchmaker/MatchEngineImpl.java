@@ -31,7 +31,7 @@ import org.apache.log4j.PatternLayout;
 import ca.sqlpower.architect.ddl.DDLUtils;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
 import ca.sqlpower.matchmaker.munge.MungeProcessor;
-import ca.sqlpower.matchmaker.munge.MungeResult;
+import ca.sqlpower.matchmaker.munge.SharedScanMungeProcessor;
 import ca.sqlpower.sqlobject.SQLObjectException;
 import ca.sqlpower.util.EmailAppender;
 import ca.sqlpower.util.Monitorable;
@@ -186,7 +186,7 @@ public class MatchEngineImpl extends AbstractEngine {
 				progressMessage = "Clearing Match Pool";
 				logger.info(progressMessage);
 				setCurrentProcessor(pool);
-				pool.clear();
+				pool.clear(null, getProject().getMungeSettings().isUseBulkWrite());
 				progress += clearJobSize;
 				setCurrentProcessor(null);
 			} else {
@@ -211,6 +211,9 @@ public class MatchEngineImpl extends AbstractEngine {
 	            setCurrentProcessor(null);
 	            pool.setUseBatchUpdates(getProject().getMungeSettings().isUseBatchExecution());
 	            pool.setDebug(getProject().getMungeSettings().getDebug());
+	            if (getProject().doesResultTableHaveClusterColumns()) {
+	            	pool.assignClusterOrdinals();
+	            }
 	            pool.commit();
 	        	pool.clearRecords();
 	        	pool.setCurrentMatchNumber(0);
@@ -255,18 +258,46 @@ public class MatchEngineImpl extends AbstractEngine {
 
 	private void mungeAndMatch(int rowCount, List<MungeProcess> mungeProcesses,
 			MatchPool pool) throws Exception {
-		for (MungeProcess currentProcess: mungeProcesses) {
-			munger = new MungeProcessor(currentProcess, logger);
-			setCurrentProcessor(munger);
-			progressMessage = "Running transformation " + currentProcess.getName();
+		boolean sharedScan = getProject().getMungeSettings().isShareSourceScan()
+				&& SharedScanMungeProcessor.canShareScan(mungeProcesses);
+		if (sharedScan) {
+			SharedScanMungeProcessor sharedMunger = new SharedScanMungeProcessor(mungeProcesses, logger);
+			setCurrentProcessor(sharedMunger);
+			progressMessage = "Running " + mungeProcesses.size() + " transformations";
+			logger.info(getMessage());
+			sharedMunger.call(rowCount);
+			// every process has munged each row that was read
+			progress += sharedMunger.getProgress() * mungeProcesses.size();
+			setCurrentProcessor(null);
+		}
+		
+		int processThreadCount = getProject().getMungeSettings().getProcessThreadCount();
+		if (processThreadCount > 1 && mungeProcesses.size() > 1) {
+			ConcurrentMungeAndMatchProcessor concurrent = new ConcurrentMungeAndMatchProcessor(
+					pool, mungeProcesses, !sharedScan, rowCount, processThreadCount, logger);
+			setCurrentProcessor(concurrent);
+			progressMessage = "Running " + mungeProcesses.size() + " transformations on " +
+					Math.min(processThreadCount, mungeProcesses.size()) + " threads";
 			logger.info(getMessage());
-			munger.call(rowCount);
-			progress += munger.getProgress();
+			concurrent.call();
+			checkCancelled();
+			progress += concurrent.getProgress();
 			setCurrentProcessor(null);
+			return;
+		}
+		
+		for (MungeProcess currentProcess: mungeProcesses) {
+			if (!sharedScan) {
+				munger = new MungeProcessor(currentProcess, logger);
+				setCurrentProcessor(munger);
+				progressMessage = "Running transformation " + currentProcess.getName();
+				logger.info(getMessage());
+				munger.call(rowCount);
+				progress += munger.getProgress();
+				setCurrentProcessor(null);
+			}
 
-			List<MungeResult> results = currentProcess.getResults();
-			
-			matcher = new MatchProcessor(pool, currentProcess, results, logger);
+			matcher = MatchProcessor.forProcess(pool, currentProcess, logger);
 			setCurrentProcessor(matcher);
 			progressMessage = "Matching transformation " + currentProcess.getName();
 			logger.info(getMessage());
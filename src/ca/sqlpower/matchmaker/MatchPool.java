@@ -27,12 +27,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -89,6 +89,18 @@ public class MatchPool extends MatchMakerMonitorableImpl {
      */
     private List<MatchCluster> matchClusters = new ArrayList<MatchCluster>();
     
+    /**
+     * An index of the cluster each source table record in this pool belongs
+     * to. This is kept up to date as clusters are added, merged and removed
+     * and as records are added to or removed from the clusters in the pool.
+     */
+    private final Map<SourceTableRecord, MatchCluster> recordClusters = new HashMap<SourceTableRecord, MatchCluster>();
+    
+    /**
+     * An index of the source table records in this pool by their key values.
+     */
+    private final Map<List<?>, SourceTableRecord> recordsByKey = new HashMap<List<?>, SourceTableRecord>();
+    
     /**
      * A flag to keep track of whether or not to use batch updates when writing to the database.
      */
@@ -130,74 +142,12 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	
 	/**
 	 * This method sort a list of potential match records and source table records and sorts
-	 * them into their respectice match clusters.
+	 * them into their respectice match clusters. The work is done by a
+	 * {@link MatchClusterBuilder}.
 	 */
 	public static List<MatchCluster> sortMatches(Collection<SourceTableRecord> sourceTableRecords, 
 			Collection<PotentialMatchRecord> potentialMatchRecords) {
-		
-		/*
-		 * First create a map of source table records to their potential match records. This
-		 * should speed up this process by having them all already found.
-		 */
-		
-		Map<SourceTableRecord, Set<PotentialMatchRecord>> recordMap
-			= new HashMap<SourceTableRecord, Set<PotentialMatchRecord>>();
-		
-		for(SourceTableRecord src : sourceTableRecords) {
-			recordMap.put(src, new HashSet<PotentialMatchRecord>());
-		}
-		
-		for(PotentialMatchRecord pmr : potentialMatchRecords) {
-			recordMap.get(pmr.getOrigLHS()).add(pmr);
-			recordMap.get(pmr.getOrigRHS()).add(pmr);
-		}
-		
-		//Now we can sort the matches
-		
-		List<MatchCluster> matchClusters = new ArrayList<MatchCluster>();
-		Queue<SourceTableRecord> untouchedNodes = new LinkedList<SourceTableRecord>();
-		untouchedNodes.addAll(sourceTableRecords);
-		Queue<SourceTableRecord> stillToProcess = new LinkedList<SourceTableRecord>();
-		MatchCluster mc = null;
-		do {
-			if(!stillToProcess.isEmpty()) {
-				SourceTableRecord src = stillToProcess.poll();
-				if(untouchedNodes.contains(src)) {
-					untouchedNodes.remove(src);
-				}
-				List<SourceTableRecord> neighbours = new ArrayList<SourceTableRecord>();
-				for(PotentialMatchRecord pmr : recordMap.get(src)) {
-					SourceTableRecord foundSrc;
-					if(pmr.getOrigRHS() == src) {
-						foundSrc = pmr.getOrigLHS();
-					} else {
-						foundSrc = pmr.getOrigRHS();
-					}
-					if(!mc.getSourceTableRecords().contains(foundSrc)) {
-						mc.addSourceTableRecord(foundSrc);
-						neighbours.add(foundSrc);
-					}
-					if(untouchedNodes.contains(foundSrc)) {
-						untouchedNodes.remove(foundSrc);
-					}
-					mc.addPotentialMatchRecord(pmr);
-				}
-				stillToProcess.addAll(neighbours);
-				mc.addSourceTableRecord(src);
-			} else {
-				if(!untouchedNodes.isEmpty()) {
-					stillToProcess.add(untouchedNodes.poll());
-					if (mc != null) {
-						matchClusters.add(mc);
-					}
-					mc = new MatchCluster();
-				}
-			}
-		} while(!untouchedNodes.isEmpty() || !stillToProcess.isEmpty());
-		if (mc != null) {
-			matchClusters.add(mc);
-		}
-		return matchClusters;
+		return MatchClusterBuilder.buildClusters(sourceTableRecords, potentialMatchRecords);
 	}
 	
 	@Constructor
@@ -360,6 +310,12 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	 * will be undecided (or UNMATCH).</li>
 	 * </ol>
 	 * <p>
+	 * The last three steps are skipped when the duplicate is adjacent to the
+	 * master and can only be reached through it, and the master's records
+	 * already form a tree, as the shortest paths would just be the tree and
+	 * the edge to the duplicate. See
+	 * {@link #matchAdjacentDuplicate(SourceTableRecord, SourceTableRecord, PotentialMatchRecord, Set, boolean)}.
+	 * <p>
 	 * Additionally, there is an isAutoMatch boolean flag that should be used when
 	 * the method is being called by the AutoMatch feature. In this case, all of the
 	 * PotentialMatchRecords will have their match status set to AUTOMATCH, and the
@@ -388,7 +344,13 @@ public class MatchPool extends MatchMakerMonitorableImpl {
     	BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord> bfs =
             new BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord>();
         Set<SourceTableRecord> reachable = new HashSet<SourceTableRecord>(bfs.performSearch(nonDirectedGraph, master));
-        reachable.addAll(bfs.performSearch(nonDirectedGraph, duplicate));
+        if (!reachable.contains(duplicate)) {
+        	if (potentialMatch != null
+        			&& matchAdjacentDuplicate(master, duplicate, potentialMatch, reachable, isAutoMatch)) {
+        		return;
+        	}
+        	reachable.addAll(bfs.performSearch(nonDirectedGraph, duplicate));
+        }
 
         GraphModel<SourceTableRecord, PotentialMatchRecord> considerGivenNodesGraph =
         	new GraphConsideringOnlyGivenNodes(this, reachable);
@@ -416,6 +378,128 @@ public class MatchPool extends MatchMakerMonitorableImpl {
     	defineMatchEdges(considerGivenNodesGraph, masterMapping, isAutoMatch);
 	}
     
+    /**
+	 * Matches a duplicate to a master it is adjacent to without searching for
+	 * the shortest paths, if that gives the same edges as the search would.
+	 * This is the case when the duplicate has no decided edges and no edges to
+	 * the master's records other than the one to the master, and the master's
+	 * records are joined by a tree of decided edges with no other edges
+	 * between them. The shortest paths from the ultimate master are then the
+	 * edges of the tree, and the duplicate can only be reached through the
+	 * master. Auto-match knows the trees of its records already and uses
+	 * {@link #joinMatchTrees(SourceTableRecord, SourceTableRecord, boolean)}
+	 * instead.
+	 * <p>
+	 * As in the full search, the edges of the tree are set again, so they are
+	 * marked as auto-matches if this is an auto-match.
+	 * 
+	 * @param masterRecords
+	 *            The records reachable from the master by decided edges,
+	 *            including the master. The duplicate must not be one of them.
+	 * @return True if the duplicate was matched to the master, false if the
+	 *         full search is needed.
+	 */
+    private boolean matchAdjacentDuplicate(SourceTableRecord master, SourceTableRecord duplicate,
+    		PotentialMatchRecord edgeToMaster, Set<SourceTableRecord> masterRecords,
+    		boolean isAutoMatch) {
+    	for (PotentialMatchRecord pmr : duplicate.getOriginalMatchEdges()) {
+    		if (pmr == edgeToMaster) continue;
+    		if (pmr.getMasterRecord() != null || masterRecords.contains(otherSide(pmr, duplicate))) {
+    			return false;
+    		}
+    	}
+    	
+    	Set<PotentialMatchRecord> treeEdges = new HashSet<PotentialMatchRecord>();
+    	for (SourceTableRecord record : masterRecords) {
+    		int masterCount = 0;
+    		for (PotentialMatchRecord pmr : record.getOriginalMatchEdges()) {
+    			if (!masterRecords.contains(otherSide(pmr, record))) continue;
+    			if (pmr.getMasterRecord() == null) {
+    				return false;
+    			}
+    			if (pmr.getDuplicate() == record) {
+    				masterCount++;
+    			}
+    			treeEdges.add(pmr);
+    		}
+    		if (masterCount > 1) {
+    			return false;
+    		}
+    	}
+    	if (treeEdges.size() != masterRecords.size() - 1) {
+    		return false;
+    	}
+    	
+    	logger.debug("The duplicate can only be reached through the master, matching it directly");
+    	for (PotentialMatchRecord pmr : treeEdges) {
+    		pmr.setMasterRecord(pmr.getMasterRecord(), isAutoMatch);
+    		decidedRecordsCache.add(pmr);
+    	}
+    	edgeToMaster.setMasterRecord(master, isAutoMatch);
+    	decidedRecordsCache.add(edgeToMaster);
+    	return true;
+    }
+    
+    /**
+	 * Makes the given master the master of the given duplicate when the caller
+	 * knows that the records reachable from each of them by decided edges form
+	 * two separate trees. Only the edge between them is set, along with the
+	 * edges from the duplicate up to the root of its own tree, which are
+	 * turned around so the duplicate becomes the root of its tree before it
+	 * is joined to the master. None of the other edges are looked at, so this
+	 * takes time in the depth of the duplicate rather than the size of the
+	 * trees.
+	 * <p>
+	 * Auto-match tracks which records are in which tree as it goes and uses
+	 * this in place of
+	 * {@link #defineMaster(SourceTableRecord, SourceTableRecord, boolean)}
+	 * whenever it can. It is set to default accessibility as it trusts the
+	 * caller to know the records are in separate trees.
+	 */
+    void joinMatchTrees(SourceTableRecord master, SourceTableRecord duplicate, boolean isAutoMatch) {
+    	PotentialMatchRecord edgeToMaster = getPotentialMatchFromOriginals(master, duplicate);
+    	if (edgeToMaster == null) {
+    		edgeToMaster = addSyntheticPotentialMatchRecord(master, duplicate);
+    	}
+    	
+    	SourceTableRecord record = duplicate;
+    	PotentialMatchRecord edge = findMasterEdge(record);
+    	while (edge != null) {
+    		SourceTableRecord next = edge.getMasterRecord();
+    		PotentialMatchRecord nextEdge = findMasterEdge(next);
+    		edge.setMasterRecord(record, isAutoMatch);
+    		record = next;
+    		edge = nextEdge;
+    	}
+    	edgeToMaster.setMasterRecord(master, isAutoMatch);
+    	decidedRecordsCache.add(edgeToMaster);
+    }
+    
+    /**
+     * Returns the decided edge to the master of the given record, or null if
+     * it has no master.
+     */
+    private PotentialMatchRecord findMasterEdge(SourceTableRecord record) {
+    	for (PotentialMatchRecord pmr : record.getOriginalMatchEdges()) {
+    		if (pmr.getDuplicate() == record && pmr.getMasterRecord() != record
+    				&& decidedRecordsCache.contains(pmr)) {
+    			return pmr;
+    		}
+    	}
+    	return null;
+    }
+    
+    /**
+     * Returns the record on the other side of the given potential match
+     * record from the given record.
+     */
+    private static SourceTableRecord otherSide(PotentialMatchRecord pmr, SourceTableRecord record) {
+    	if (pmr.getOrigLHS() == record) {
+    		return pmr.getOrigRHS();
+    	}
+    	return pmr.getOrigLHS();
+    }
+    
     /**
      * Similar to {@link #defineMaster(SourceTableRecord, SourceTableRecord, boolean)} except the isAutoMatch
      * boolean flag is set to false by default. DO NOT use this version if you are performing an AutoMatch!
@@ -803,9 +887,10 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	 * forever. We do not claim, nor should we, that the total number of matches
 	 * created by this method is maximal or predictable.
 	 * <p>
-	 * NOTE: This depends on {@link #findNoMatchNodes(Set)} to return the set
-	 * of nodes that should never be matched to any node in the provided set
-	 * because of the current no-match and match edge configuration
+	 * NOTE: The nodes that should never be matched to the selected node because
+	 * of the current no-match and match edge configuration are the same as the
+	 * ones {@link #findNoMatchNodes(Set)} would return, but they are kept up
+	 * to date by the {@link AutoMatcher} as matches are made.
 	 * <p>
 	 * This is the current algorithm:
 	 * <ol>
@@ -836,112 +921,84 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	 * @throws SQLException
 	 */
 	public void doAutoMatch(MungeProcess mungeProcess) throws SQLException, SQLObjectException {
-		if (mungeProcess == null) {
-			throw new IllegalArgumentException("Auto-Match invoked with an " +
-					"invalid munge process");
-		}
-		List<SourceTableRecord> records = new ArrayList<SourceTableRecord>();
-		for(MatchCluster mc : matchClusters) {
-			records.addAll(mc.getSourceTableRecords());
-		}
-		
-		logger.debug("Auto-Matching with " + records.size() + " records.");
-		
-		Set<SourceTableRecord> visited = new HashSet<SourceTableRecord>();
-		SourceTableRecord selected = null;
-		for (SourceTableRecord record : records) {
-			boolean addToVisited = true;
-			for (PotentialMatchRecord pmr : record.getOriginalMatchEdges()) {
-				if (pmr.getMatchStatus() != MatchType.NOMATCH
-						&& pmr.getMungeProcess() == mungeProcess) {
-					addToVisited = false;
+		new AutoMatcher(this).actuallyDoAutoMatch(mungeProcess);
+	}
+
+	/**
+	 * Gives every cluster in the pool that will be stored a cluster id and an
+	 * ordinal, and passes them on to the cluster's potential match records so
+	 * they are written to the result table with them. Records whose values
+	 * change are marked dirty.
+	 * <p>
+	 * A cluster keeps the lowest id stored with any of its records, so
+	 * clusters keep their ids from one engine run to the next, and new
+	 * clusters get ids after the highest one in use. The ordinals number the
+	 * clusters from 0 in order of their ids, which lets the reader fetch a
+	 * page of clusters with a range query. Records that are going to be
+	 * dropped from the result table are left alone, as are clusters made up
+	 * only of them.
+	 */
+	public void assignClusterOrdinals() {
+		List<MatchCluster> storedClusters = new ArrayList<MatchCluster>();
+		int nextId = 0;
+		for (MatchCluster mc : matchClusters) {
+			Integer clusterId = null;
+			boolean stored = false;
+			for (PotentialMatchRecord pmr : mc.getPotentialMatchRecords()) {
+				if (isDropped(pmr)) continue;
+				stored = true;
+				Integer recordClusterId = pmr.getClusterId();
+				if (recordClusterId != null) {
+					nextId = Math.max(nextId, recordClusterId + 1);
+					if (clusterId == null || recordClusterId < clusterId) {
+						clusterId = recordClusterId;
+					}
 				}
 			}
-			if (addToVisited) {
-				visited.add(record);
-			} else {
-				// rather than iterating through all the records again, looking
-				// for one that isn't in visited...
-				selected = record;
+			mc.setClusterPosition(clusterId, null);
+			if (stored) {
+				storedClusters.add(mc);
 			}
 		}
 		
-		logger.debug("The size of visited is " + visited.size());
-
-		Set<SourceTableRecord> neighbours = findAutoMatchNeighbours(mungeProcess, selected, visited);
-		makeAutoMatches(mungeProcess, selected, neighbours, visited);
-		//If we haven't visited all the nodes, we are not done!
-		while (visited.size() != records.size()) {
-			if(visited.size() == 103) {
-					System.out.println("sop");
-			}
-			SourceTableRecord temp = null;
-			for (SourceTableRecord record : records) {
-				if (!visited.contains(record)) {
-					temp = record;
-					break;
+		Collections.sort(storedClusters, new Comparator<MatchCluster>() {
+			public int compare(MatchCluster mc1, MatchCluster mc2) {
+				if (mc1.getClusterId() == null) {
+					return mc2.getClusterId() == null ? 0 : 1;
+				} else if (mc2.getClusterId() == null) {
+					return -1;
 				}
+				return mc1.getClusterId().compareTo(mc2.getClusterId());
 			}
-			neighbours = findAutoMatchNeighbours(mungeProcess, temp, visited);
-			makeAutoMatches(mungeProcess, temp, neighbours, visited);
-		}
-	}
-
-	/**
-	 * Creates the matches necessary in an auto-match while maintaining the
-	 * 'visited' set and propagating the algorithm to neighbours of selected
-	 * nodes.
-	 */
-	private void makeAutoMatches(MungeProcess mungeProcess,
-			SourceTableRecord selected,
-			Set<SourceTableRecord> neighbours,
-			Set<SourceTableRecord> visited) throws SQLException, SQLObjectException {
-		logger.debug("makeAutoMatches called, selected's key values = " + selected.getKeyValues());
-		visited.add(selected);
-		GraphModel<SourceTableRecord, PotentialMatchRecord> nonDirectedGraph =
-			new NonDirectedUserValidatedMatchPoolGraphModel(this, new HashSet<PotentialMatchRecord>());
-		BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord> bfs =
-			new BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord>();
-		Set<SourceTableRecord> reachable = new HashSet<SourceTableRecord>(bfs.performSearch(nonDirectedGraph, selected));
-		Set<SourceTableRecord> noMatchNodes = findNoMatchNodes(reachable);
-		for (SourceTableRecord record : neighbours) {
-			if (!noMatchNodes.contains(record)) {
-				defineMaster(selected, record, true);
-				nonDirectedGraph = new NonDirectedUserValidatedMatchPoolGraphModel(this, new HashSet<PotentialMatchRecord>());
-				bfs = new BreadthFirstSearch<SourceTableRecord, PotentialMatchRecord>();
-				reachable = new HashSet<SourceTableRecord>(bfs.performSearch(nonDirectedGraph, selected));
-				noMatchNodes = findNoMatchNodes(reachable);
+		});
+		
+		// a cluster that was split keeps its id in only one of the parts
+		Set<Integer> usedIds = new HashSet<Integer>();
+		for (MatchCluster mc : storedClusters) {
+			if (mc.getClusterId() == null || !usedIds.add(mc.getClusterId())) {
+				mc.setClusterPosition(nextId++, null);
 			}
 		}
-		for (SourceTableRecord record : neighbours) {
-			if (!visited.contains(record)) {
-				makeAutoMatches(mungeProcess, record, findAutoMatchNeighbours(mungeProcess, record, visited), visited);
+		Collections.sort(storedClusters, new Comparator<MatchCluster>() {
+			public int compare(MatchCluster mc1, MatchCluster mc2) {
+				return mc1.getClusterId().compareTo(mc2.getClusterId());
 			}
-		}
-	}
-
-	/**
-	 * Finds all the neighbours that auto-match worries about as explained in
-	 * the comment for doAutoMatch in the context that 'record' is selected in
-	 * step 3
-	 */
-	private Set<SourceTableRecord> findAutoMatchNeighbours(MungeProcess mungeProcess,
-			SourceTableRecord record,
-			Set<SourceTableRecord> visited) {
-		logger.debug("The size of visited is " + visited.size());
-		Set<SourceTableRecord> ret = new HashSet<SourceTableRecord>();
-		for (PotentialMatchRecord pmr : record.getOriginalMatchEdges()) {
-			if (pmr.getMungeProcess() == mungeProcess 
-					&& pmr.getMatchStatus() != MatchType.NOMATCH) {
-				if (record == pmr.getOrigLHS() && !visited.contains(pmr.getOrigRHS())) {
-					ret.add(pmr.getOrigRHS());
-				} else if (record == pmr.getOrigRHS() && !visited.contains(pmr.getOrigLHS())) {
-					ret.add(pmr.getOrigLHS());
+		});
+		
+		for (int ordinal = 0; ordinal < storedClusters.size(); ordinal++) {
+			MatchCluster mc = storedClusters.get(ordinal);
+			mc.setClusterPosition(mc.getClusterId(), ordinal);
+			for (PotentialMatchRecord pmr : mc.getPotentialMatchRecords()) {
+				if (!isDropped(pmr)) {
+					pmr.setClusterPosition(mc.getClusterId(), ordinal);
 				}
 			}
 		}
-		logger.debug("findAutoMatchNeighbours: The neighbours to automatch for " + record + " are " + ret);
-		return ret;
+		setClusterCount(storedClusters.size());
+	}
+	
+	private static boolean isDropped(PotentialMatchRecord pmr) {
+		return pmr.getMatchStatus() == MatchType.DELETE || pmr.getMatchStatus() == MatchType.MERGED;
 	}
 	
 	/**
@@ -953,6 +1010,22 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	 *            the user cancels it
 	 */
 	public void clear(Aborter aborter) throws SQLException {
+		clear(aborter, false);
+	}
+
+	/**
+	 * Completely removes all SourceTableRecords and PotentialMatchRecords, and also
+	 * removes all PotentialMatchRecords in the database repository for this MatchPool
+	 * 
+	 * @param aborter
+	 *            {@link Aborter} to alert the MatchPool to stop the clear operation if
+	 *            the user cancels it
+	 * @param truncate
+	 *            If true the result table is emptied with TRUNCATE TABLE, which
+	 *            is much faster than deleting every row on large tables. If
+	 *            the database refuses the truncate the rows are deleted instead.
+	 */
+	public void clear(Aborter aborter, boolean truncate) throws SQLException {
 		SQLTable resultTable = getProject().getResultTable();
         Connection con = null;
         String lastSQL = null;
@@ -972,7 +1045,21 @@ public class MatchPool extends MatchMakerMonitorableImpl {
         	    aborter.checkCancelled();
             }
             
-            stmt.executeUpdate(lastSQL);
+            boolean truncated = false;
+            if (truncate) {
+            	String truncateSQL = "TRUNCATE TABLE " + DDLUtils.toQualifiedName(resultTable);
+            	logger.debug("The SQL statement we are running is " + truncateSQL);
+            	try {
+            		stmt.executeUpdate(truncateSQL);
+            		truncated = true;
+            	} catch (SQLException ex) {
+            		logger.warn("Couldn't truncate the result table, deleting its rows instead", ex);
+            		con.rollback();
+            	}
+            }
+            if (!truncated) {
+            	stmt.executeUpdate(lastSQL);
+            }
             con.commit();
         } catch (SQLException ex) {
             logger.error("Error in query: "+lastSQL, ex);
@@ -1019,7 +1106,10 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	 */
 	public void clearRecords() {
 		matchClusters.clear();
+		recordClusters.clear();
+		recordsByKey.clear();
 		decidedRecordsCache.clear();
+		matchPoolListener.clear();
 	}
 	
 	/**
@@ -1048,9 +1138,10 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	 * A cache of potential match records that have been decided as matching.
 	 * This is an optimization to graph algorithms such as auto-match which
 	 * need to treat the match pool as a graph where the edges are the decided
-	 * PMR's.
+	 * PMR's. It is a set so records can be looked up quickly and a record whose
+	 * state changes many times is only in it once.
 	 */
-	private final List<PotentialMatchRecord> decidedRecordsCache = new ArrayList<PotentialMatchRecord>();
+	private final Set<PotentialMatchRecord> decidedRecordsCache = new LinkedHashSet<PotentialMatchRecord>();
 	
 	private final SPListener matchListener = new SPListener() {
 		public void childAdded(SPChildEvent e) {
@@ -1069,6 +1160,9 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 					decidedRecordsCache.add(pmr);
 				}
 			}
+			if(e.getSource() instanceof MatchCluster && e.getChild() instanceof SourceTableRecord) {
+				indexRecord((SourceTableRecord)e.getChild(), (MatchCluster)e.getSource());
+			}
 		}
 
 		@Override
@@ -1077,6 +1171,9 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 				MatchCluster mc = (MatchCluster)e.getChild();
 				mc.removeSPListener(this);
 			}
+			if(e.getSource() instanceof MatchCluster && e.getChild() instanceof SourceTableRecord) {
+				unindexRecord((SourceTableRecord)e.getChild(), (MatchCluster)e.getSource());
+			}
 		}
 
 		@Override
@@ -1106,7 +1203,7 @@ public class MatchPool extends MatchMakerMonitorableImpl {
     }
 
 	@NonProperty
-    public List<PotentialMatchRecord> getDecidedRecordsCache() {
+    public Set<PotentialMatchRecord> getDecidedRecordsCache() {
         return decidedRecordsCache;
     }
 
@@ -1138,6 +1235,9 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 
 	public void addMatchCluster(MatchCluster mc, int index) {
 		matchClusters.add(index, mc);
+		for (SourceTableRecord src : mc.getSourceTableRecords()) {
+			indexRecord(src, mc);
+		}
 		fireChildAdded(MatchCluster.class, mc, index);
 	}
 	
@@ -1157,6 +1257,9 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 		int index = matchClusters.indexOf(child);
 		boolean removed = matchClusters.remove(child);
 		if(removed) {
+			for (SourceTableRecord src : child.getSourceTableRecords()) {
+				unindexRecord(src, child);
+			}
 			fireChildRemoved(MatchCluster.class, child, index);
 		}
 		return removed;
@@ -1229,36 +1332,50 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	}
 
 	public MatchCluster alreadyContains(SourceTableRecord src1, SourceTableRecord src2) {
-		for(MatchCluster mc : matchClusters) {
-			if(mc.getSourceTableRecords().contains(src1) ||
-					mc.getSourceTableRecords().contains(src2)) {
-				return mc;
-			}
+		MatchCluster mc = recordClusters.get(src1);
+		if (mc == null) {
+			mc = recordClusters.get(src2);
 		}
-		return null;
+		return mc;
 	}
 
+	/**
+	 * Returns the cluster in this pool that holds a record equal to the given
+	 * one, or null if there is no such record in the pool.
+	 */
+	@NonProperty
+	public MatchCluster getMatchCluster(SourceTableRecord src) {
+		return recordClusters.get(src);
+	}
+	
 	/**
 	 * Takes in a list of foreign clusters and checks, for each match cluster, if it has
 	 * any duplicate source table records to any clusters currently in the match pool.
 	 * If so, then it will merge them into a single larger cluster and remove the old one.
-	 * Otherwise it will add the match cluster to the match pool.
+	 * If the foreign cluster joins several clusters of the pool they are all merged into
+	 * the first one found. Otherwise it will add the match cluster to the match pool.
+	 * <p>
+	 * The clusters in the pool are found through the record index, so this takes time
+	 * proportional to the size of the foreign clusters rather than the size of the pool.
 	 * @param foundMatchClusters List of foreign match clusters
 	 */
 	public void mergeInClusters(List<MatchCluster> foundMatchClusters) {
-		boolean merged;
 		for(MatchCluster mc : foundMatchClusters) {
-			merged = false;
+			MatchCluster target = null;
 			for(SourceTableRecord src : mc.getSourceTableRecords()) {
-				for(MatchCluster mc2 : matchClusters) {
-					if(!merged && mc2.getSourceTableRecords().contains(src)){
-						mergeCluster(mc2, mc);
-						merged = true;
-					}
+				MatchCluster existing = recordClusters.get(src);
+				if (existing == null || existing == target) continue;
+				if (target == null) {
+					target = existing;
+				} else {
+					mergeCluster(target, existing);
+					removeMatchCluster(existing);
 				}
 			}
-			if(!merged) {
+			if(target == null) {
 				addMatchCluster(mc);
+			} else {
+				mergeCluster(target, mc);
 			}
 		}
 	}
@@ -1277,25 +1394,28 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 		pmrl.addAll(from.getPotentialMatchRecords());
 		
 		for(PotentialMatchRecord pmr : pmrl) {
-			for(SourceTableRecord src : to.getSourceTableRecords()) {
-				if(pmr.getOrigLHS().equals(src)) {
-					pmr.setOrigLHS(src);
-				} else if(pmr.getOrigRHS().equals(src)) {
-					pmr.setOrigRHS(src);
-				}
+			SourceTableRecord lhs = to.getSourceTableRecord(pmr.getOrigLHS().getKeyValues());
+			SourceTableRecord rhs = to.getSourceTableRecord(pmr.getOrigRHS().getKeyValues());
+			if(lhs != null) {
+				pmr.setOrigLHS(lhs);
+			}
+			if(rhs != null) {
+				pmr.setOrigRHS(rhs);
 			}
 		}
 		
+		boolean inPool = !to.getSourceTableRecords().isEmpty() 
+				&& recordClusters.get(to.getSourceTableRecords().get(0)) == to;
 		for(SourceTableRecord src : srcl) {
-			if(!to.getSourceTableRecords().contains(src)) {
+			if(to.getSourceTableRecord(src.getKeyValues()) == null) {
 				to.addSourceTableRecord(src);
+				src.setParent(to);
+				if (inPool) {
+					indexRecord(src, to);
+				}
 			}
 		}
 		
-		for(SourceTableRecord src : to.getSourceTableRecords()) {
-			src.setParent(to);
-		}
-		
 		for(PotentialMatchRecord pmr : pmrl) {
 			to.addPotentialMatchRecord(pmr);
 		}
@@ -1303,12 +1423,30 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 
 	@NonProperty
 	public SourceTableRecord getSourceTableRecord(List<? extends Object> keyList) {
-		SourceTableRecord src;
-		for(MatchCluster mc : getMatchClusters()) {
-			src = mc.getSourceTableRecord(keyList);
-			if(src != null) return src;
+		return recordsByKey.get(keyList);
+	}
+	
+	/**
+	 * Points the record indexes at the given record in the given cluster.
+	 */
+	private void indexRecord(SourceTableRecord src, MatchCluster mc) {
+		recordClusters.put(src, mc);
+		recordsByKey.put(src.getKeyValues(), src);
+	}
+	
+	/**
+	 * Removes the given record from the record indexes, but only if they
+	 * still point at the given cluster and record. A record that has been
+	 * merged into another cluster stays indexed under that cluster.
+	 */
+	private void unindexRecord(SourceTableRecord src, MatchCluster mc) {
+		if (recordClusters.get(src) != mc) {
+			return;
+		}
+		recordClusters.remove(src);
+		if (recordsByKey.get(src.getKeyValues()) == src) {
+			recordsByKey.remove(src.getKeyValues());
 		}
-		return null;
 	}
 	
 	/**
@@ -1354,4 +1492,12 @@ public class MatchPool extends MatchMakerMonitorableImpl {
 	public void store() {
 		matchPoolListener.store();
 	}
+	
+	/**
+	 * Returns the listener that stores this pool's changes. It is set to
+	 * default accessibility so that the unit test can call it.
+	 */
+	DatabaseMatchPoolListener getMatchPoolListener() {
+		return matchPoolListener;
+	}
 }
\ No newline at end of file
@@ -19,17 +19,29 @@
 
 package ca.sqlpower.matchmaker;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import ca.sqlpower.matchmaker.MungeSettings.MatchMode;
 import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
+import ca.sqlpower.matchmaker.munge.DeDupeResultStep;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcess.EdgeStrategy;
 import ca.sqlpower.matchmaker.munge.MungeResult;
+import ca.sqlpower.matchmaker.munge.MungeResultArena;
+import ca.sqlpower.matchmaker.munge.MungeResultStep;
+import ca.sqlpower.matchmaker.munge.MungeResultSorter;
+import ca.sqlpower.matchmaker.munge.SpilledMungeResults;
 
 /**
  * A Processor which takes a List of arrays of MungeStepOutputs, which it would
@@ -37,6 +49,20 @@ import ca.sqlpower.matchmaker.munge.MungeResult;
  * the match results into the match repository. This default implementation of matching
  * only considers two records to form a potential match if their munged data is perfectly
  * equal (that is, all of the MungeStepOutputs in the munged data are equal).
+ * <p>
+ * The equal munged data is found either by sorting and scanning the data or by
+ * grouping it in a hash table, depending on the {@link MatchMode} in the
+ * project's {@link MungeSettings}. Munge results that were spilled to disk are
+ * always matched with a merge of the sorted runs, and munge results that were
+ * kept off the heap are always matched by sorting them where they are.
+ * <p>
+ * Source table records and potential match records are only created for the
+ * munge results that match at least one other result.
+ * <p>
+ * Every pair of records in a group of equal munged data is normally a
+ * potential match, so the matches grow with the square of the group size.
+ * Groups larger than the munge process's edge group threshold are connected
+ * with its {@link EdgeStrategy} instead.
  */
 public class MatchProcessor extends AbstractProcessor {
 
@@ -48,6 +74,18 @@ public class MatchProcessor extends AbstractProcessor {
 	 */
 	private List<MungeResult> matchData;
 	
+	/**
+	 * The munge results that were written to sorted runs on disk instead of
+	 * being kept in {@link #matchData}. This is null if they all fit in memory.
+	 */
+	private SpilledMungeResults spilledData;
+	
+	/**
+	 * The munge results that were kept off the heap instead of in
+	 * {@link #matchData}, or null if they are all in the list.
+	 */
+	private MungeResultArena arenaData;
+	
 	/**
 	 * The MungeProces that this MatchProcess is processing
 	 */
@@ -61,6 +99,14 @@ public class MatchProcessor extends AbstractProcessor {
 	 */
 	private MatchPool pool;
 	
+	/**
+	 * The number of groups of equal munged data found in the last call to
+	 * {@link #findMatchClusters()} that were larger than the munge process's
+	 * edge group threshold, and the number of records in them.
+	 */
+	private int largeGroupCount;
+	private int largeGroupRecordCount;
+	
 	public MatchProcessor(MatchPool pool, MungeProcess process,
 			List<MungeResult> matchData, Logger logger) {
 		this.engineLogger = logger;
@@ -72,66 +118,398 @@ public class MatchProcessor extends AbstractProcessor {
 		}
 		monitorableHelper.setJobSize(matchData.size());
 	}
+
+	/**
+	 * Creates a match processor for munge results that have been spilled to
+	 * disk. The run files are deleted once they have been merged.
+	 */
+	public MatchProcessor(MatchPool pool, MungeProcess process,
+			SpilledMungeResults spilledData, Logger logger) {
+		this(pool, process, Collections.<MungeResult>emptyList(), logger);
+		this.spilledData = spilledData;
+		monitorableHelper.setJobSize(spilledData.getRowCount());
+	}
+	
+	/**
+	 * Creates a match processor for munge results that were kept off the
+	 * heap. The arena is freed once it has been matched.
+	 */
+	public MatchProcessor(MatchPool pool, MungeProcess process,
+			MungeResultArena arenaData, Logger logger) {
+		this(pool, process, Collections.<MungeResult>emptyList(), logger);
+		this.arenaData = arenaData;
+		monitorableHelper.setJobSize(arenaData.size());
+	}
+	
+	/**
+	 * Creates a match processor for the results of the given munge process,
+	 * reading them back from disk if its result step spilled them or from
+	 * its off-heap arena if it kept them there.
+	 */
+	public static MatchProcessor forProcess(MatchPool pool, MungeProcess process, Logger logger) {
+		MungeResultStep resultStep = process.getResultStep();
+		if (resultStep instanceof DeDupeResultStep
+				&& ((DeDupeResultStep) resultStep).getArenaResults() != null) {
+			return new MatchProcessor(pool, process, ((DeDupeResultStep) resultStep).getArenaResults(), logger);
+		} else if (resultStep instanceof DeDupeResultStep
+				&& ((DeDupeResultStep) resultStep).getSpilledResults() != null) {
+			return new MatchProcessor(pool, process, ((DeDupeResultStep) resultStep).getSpilledResults(), logger);
+		} else {
+			return new MatchProcessor(pool, process, process.getResults(), logger);
+		}
+	}
 	
+	/**
+	 * Finds the matches and merges them into the match pool.
+	 */
 	public Boolean call() throws Exception {
+		List<MatchCluster> matchClusters = findMatchClusters();
 		
-		Collections.sort(matchData);
+		engineLogger.debug("Merging matches into MatchPool");
 		
-		int dataIndex = 0;
-		int matchCount = 0;
+		pool.mergeInClusters(matchClusters);
+		
+		return Boolean.TRUE;
+	}
+	
+	/**
+	 * Finds the matches in the munge results and sorts them into match
+	 * clusters without touching the match pool, so several processes can be
+	 * matched at once and their clusters merged into the pool afterwards with
+	 * {@link MatchPool#mergeInClusters(List)}.
+	 */
+	public List<MatchCluster> findMatchClusters() throws Exception {
 		
 		Set<SourceTableRecord> sourceTableRecords = new HashSet<SourceTableRecord>();
 		Set<PotentialMatchRecord> potentialMatchRecords = new HashSet<PotentialMatchRecord>();
+		largeGroupCount = 0;
+		largeGroupRecordCount = 0;
+		
+		int matchCount;
+		if (arenaData != null) {
+			try {
+				matchCount = sortArena(sourceTableRecords, potentialMatchRecords);
+			} finally {
+				arenaData.free();
+			}
+		} else if (spilledData != null) {
+			try {
+				matchCount = mergeRuns(sourceTableRecords, potentialMatchRecords);
+			} finally {
+				spilledData.delete();
+			}
+		} else if (mungeProcess.getParent().getMungeSettings().getMatchMode() == MatchMode.SORT_AND_SCAN) {
+			matchCount = sortAndScan(sourceTableRecords, potentialMatchRecords);
+		} else {
+			matchCount = hashGroup(sourceTableRecords, potentialMatchRecords);
+		}
+		
+		engineLogger.debug("Sorting matches into Clusters");
+		
+		//Sort the new matches into match clusters then add them to the match pool
+		List<MatchCluster> matchClusters = MatchClusterBuilder.buildClusters(sourceTableRecords, potentialMatchRecords);
+
+		engineLogger.info("Transformation '" + mungeProcess.getName() + "' found " + matchCount + " matches");
+		if (largeGroupCount > 0) {
+			engineLogger.info("Transformation '" + mungeProcess.getName() + "' found " + largeGroupCount + 
+					" groups of equal munged data larger than " + mungeProcess.getEdgeGroupThreshold() + 
+					" records, holding " + largeGroupRecordCount + " records in all, and used the " + 
+					mungeProcess.getEdgeStrategy() + " edge strategy for them");
+		}
+		
+		return matchClusters;
+	}
+
+	/**
+	 * Finds the matches by sorting the munged data on its binary sort key and
+	 * matching up the records of each run of equal results.
+	 * 
+	 * @return The number of matches found
+	 */
+	private int sortAndScan(Set<SourceTableRecord> sourceTableRecords,
+			Set<PotentialMatchRecord> potentialMatchRecords) throws InterruptedException {
+		MungeResult[] sortedData = matchData.toArray(new MungeResult[matchData.size()]);
+		MungeResultSorter.sort(sortedData);
+		
+		int matchCount = 0;
+		List<SourceTableRecord> group = new ArrayList<SourceTableRecord>();
 		
-		for (MungeResult data: matchData) {
+		int runStart = 0;
+		while (runStart < sortedData.length) {
             checkCancelled();
-			monitorableHelper.incrementProgress();
-			dataIndex++;
-			for (int i=dataIndex; i<matchData.size(); i++) {
-				if (data.compareTo(matchData.get(i)) == 0) {
-					boolean nullMatch = false;
-					for (int j = 0; j < data.getMungedData().length; j++) {
-						if (data.getMungedData()[j] == null && matchData.get(i).getMungedData()[j] == null) {
-							engineLogger.debug("Ignoring match on null data");
-							nullMatch = true;
-							break;
-						}
-					}
-					
-					if (!nullMatch) {
-						// Potential Match! so store in Match Result Table
-						engineLogger.debug("Found Match!\nRecord 1:" + data
-								+ "\nRecord 2:" + matchData.get(i));
-						matchCount++;
-						PotentialMatchRecord pmr = new PotentialMatchRecord(
-								mungeProcess, MatchType.UNMATCH, data
-										.getSourceTableRecord(), matchData.get(
-										i).getSourceTableRecord(), false);
-						SourceTableRecord src1 = data.getSourceTableRecord();
-						SourceTableRecord src2 = matchData.get(i).getSourceTableRecord();
-						sourceTableRecords.add(src1);
-						sourceTableRecords.add(src2);
-						potentialMatchRecords.add(pmr);
-					}
+			MungeResult data = sortedData[runStart];
+			byte[] key = data.getSortKey();
+			int runEnd = runStart + 1;
+			while (runEnd < sortedData.length && Arrays.equals(key, sortedData[runEnd].getSortKey())) {
+				runEnd++;
+			}
+			monitorableHelper.setProgress(runEnd);
+			if (runEnd > runStart + 1) {
+				if (data.hasNullData()) {
+					// every result in the run has nulls in the same columns
+					engineLogger.debug("Ignoring match on null data");
 				} else {
-					// If data doesn't match perfectly, then there should be 
-					// no further matches if list was sorted properly
-					break;
+					group.clear();
+					for (int i = runStart; i < runEnd; i++) {
+						group.add(sortedData[i].createSourceTableRecord(mungeProcess.getParent()));
+					}
+					matchCount += addGroupMatches(group, sourceTableRecords, potentialMatchRecords);
 				}
 			}
+			runStart = runEnd;
 		}
+		return matchCount;
+	}
+
+	/**
+	 * Finds the matches in munge results that were kept off the heap by
+	 * sorting the arena in place and matching up the records of each run of
+	 * equal sort keys. The key values are only read out of the arena for the
+	 * results in a run.
+	 * 
+	 * @return The number of matches found
+	 */
+	private int sortArena(Set<SourceTableRecord> sourceTableRecords,
+			Set<PotentialMatchRecord> potentialMatchRecords) {
+		engineLogger.debug("Sorting " + arenaData.size() + " munge results in " + 
+				arenaData.getMemoryUsed() + " bytes off the heap");
+		arenaData.sort();
 		
-		engineLogger.debug("Sorting matches into Clusters");
+		int matchCount = 0;
+		List<SourceTableRecord> group = new ArrayList<SourceTableRecord>();
 		
-		//Sort the new matches into match clusters then add them to the match pool
-		List<MatchCluster> matchClusters = MatchPool.sortMatches(sourceTableRecords, potentialMatchRecords);
+		int runStart = 0;
+		while (runStart < arenaData.size()) {
+			checkCancelled();
+			int runEnd = runStart + 1;
+			while (runEnd < arenaData.size() && arenaData.compareKeys(runStart, runEnd) == 0) {
+				runEnd++;
+			}
+			monitorableHelper.setProgress(runEnd);
+			if (runEnd > runStart + 1) {
+				group.clear();
+				for (int i = runStart; i < runEnd; i++) {
+					group.add(new SourceTableRecord(mungeProcess.getParent(), arenaData.getKeyValues(i)));
+				}
+				matchCount += addGroupMatches(group, sourceTableRecords, potentialMatchRecords);
+			}
+			runStart = runEnd;
+		}
+		return matchCount;
+	}
+
+	/**
+	 * Finds the matches by putting every munge result into a bucket keyed on
+	 * its munged data in a single pass over the data, then matching up the
+	 * records within each bucket. Results with any null munged data are
+	 * skipped entirely as they can never form a match.
+	 * 
+	 * @return The number of matches found
+	 */
+	private int hashGroup(Set<SourceTableRecord> sourceTableRecords,
+			Set<PotentialMatchRecord> potentialMatchRecords) {
+		Map<MungeResultGroup, MungeResultGroup> groups =
+			new HashMap<MungeResultGroup, MungeResultGroup>(matchData.size() * 4 / 3 + 1);
 		
-		engineLogger.debug("Merging matches into MatchPool");
+		for (MungeResult data : matchData) {
+			checkCancelled();
+			monitorableHelper.incrementProgress();
+			if (data.hasNullData()) {
+				engineLogger.debug("Ignoring null data in " + data);
+				continue;
+			}
+			MungeResultGroup group = new MungeResultGroup(data);
+			MungeResultGroup existing = groups.get(group);
+			if (existing == null) {
+				groups.put(group, group);
+			} else {
+				existing.add(data);
+			}
+		}
 		
-		pool.mergeInClusters(matchClusters);
+		int matchCount = 0;
+		List<SourceTableRecord> records = new ArrayList<SourceTableRecord>();
+		for (MungeResultGroup group : groups.keySet()) {
+			checkCancelled();
+			if (group.others == null) continue;
+			records.clear();
+			records.add(group.first.createSourceTableRecord(mungeProcess.getParent()));
+			for (MungeResult other : group.others) {
+				records.add(other.createSourceTableRecord(mungeProcess.getParent()));
+			}
+			matchCount += addGroupMatches(records, sourceTableRecords, potentialMatchRecords);
+		}
+		return matchCount;
+	}
 
-		engineLogger.info("Transformation '" + mungeProcess.getName() + "' found " + matchCount + " matches");
+	/**
+	 * Finds the matches in munge results that were spilled to disk by merging
+	 * all of the sorted runs at once. Equal munged data comes out of the merge
+	 * in consecutive groups, so only one group is held in memory at a time.
+	 * 
+	 * @return The number of matches found
+	 */
+	private int mergeRuns(Set<SourceTableRecord> sourceTableRecords,
+			Set<PotentialMatchRecord> potentialMatchRecords) throws IOException {
+		engineLogger.debug("Merging " + spilledData.getRunCount() + " runs of spilled munge results");
+		int matchCount = 0;
+		List<List<Object>> groupKeyValues = new ArrayList<List<Object>>();
+		List<SourceTableRecord> group = new ArrayList<SourceTableRecord>();
+		byte[] groupKey = null;
+		SpilledMungeResults.RunMerger merger = spilledData.openMerger();
+		try {
+			while (merger.next()) {
+				checkCancelled();
+				monitorableHelper.incrementProgress();
+				if (groupKey == null || !Arrays.equals(groupKey, merger.getSortKey())) {
+					matchCount += addSpilledGroupMatches(groupKeyValues, group, sourceTableRecords, potentialMatchRecords);
+					groupKeyValues.clear();
+					groupKey = merger.getSortKey();
+				}
+				groupKeyValues.add(merger.getKeyValues());
+			}
+			matchCount += addSpilledGroupMatches(groupKeyValues, group, sourceTableRecords, potentialMatchRecords);
+		} finally {
+			merger.close();
+		}
+		return matchCount;
+	}
+	
+	/**
+	 * Creates the source table records for a group of spilled results with
+	 * equal munged data and adds the matches between them. Nothing is created
+	 * for a result that has no equal.
+	 * 
+	 * @param group
+	 *            A list to reuse for the source table records.
+	 */
+	private int addSpilledGroupMatches(List<List<Object>> groupKeyValues, List<SourceTableRecord> group,
+			Set<SourceTableRecord> sourceTableRecords,
+			Set<PotentialMatchRecord> potentialMatchRecords) {
+		if (groupKeyValues.size() < 2) return 0;
+		group.clear();
+		for (List<Object> keyValues : groupKeyValues) {
+			group.add(new SourceTableRecord(mungeProcess.getParent(), keyValues));
+		}
+		return addGroupMatches(group, sourceTableRecords, potentialMatchRecords);
+	}
+	
+	/**
+	 * Adds the potential matches between a group of records with equal munged
+	 * data. A group no larger than the munge process's edge group threshold
+	 * gets a match between every pair of its records. A larger group is
+	 * connected the way the process's {@link EdgeStrategy} says: a star or a
+	 * chain still joins every record of the group into one cluster with only
+	 * one match per record, while a skipped group gets no matches at all and
+	 * is reported in the engine log.
+	 * 
+	 * @return The number of matches added
+	 */
+	private int addGroupMatches(List<SourceTableRecord> group,
+			Set<SourceTableRecord> sourceTableRecords,
+			Set<PotentialMatchRecord> potentialMatchRecords) {
+		int size = group.size();
+		if (size < 2) return 0;
+		EdgeStrategy strategy = mungeProcess.getEdgeStrategy();
+		if (strategy == null || size <= mungeProcess.getEdgeGroupThreshold()) {
+			strategy = EdgeStrategy.FULL;
+		} else {
+			largeGroupCount++;
+			largeGroupRecordCount += size;
+		}
+		int matchCount = 0;
+		switch (strategy) {
+		case FULL:
+			for (int i = 0; i < size; i++) {
+				for (int j = i + 1; j < size; j++) {
+					addMatch(group.get(i), group.get(j), strategy, sourceTableRecords, potentialMatchRecords);
+					matchCount++;
+				}
+			}
+			break;
+		case STAR:
+			SourceTableRecord representative = group.get(0);
+			for (int i = 1; i < size; i++) {
+				addMatch(representative, group.get(i), strategy, sourceTableRecords, potentialMatchRecords);
+				matchCount++;
+			}
+			break;
+		case CHAIN:
+			for (int i = 1; i < size; i++) {
+				addMatch(group.get(i - 1), group.get(i), strategy, sourceTableRecords, potentialMatchRecords);
+				matchCount++;
+			}
+			break;
+		case SKIP:
+			engineLogger.warn("Transformation '" + mungeProcess.getName() + "' skipped a group of " + size + 
+					" records with equal munged data, starting with " + group.get(0));
+			break;
+		default:
+			throw new IllegalStateException("Unknown edge strategy " + strategy);
+		}
+		return matchCount;
+	}
+	
+	/**
+	 * Records a potential match between the two given source table records,
+	 * created by the given edge strategy.
+	 */
+	private void addMatch(SourceTableRecord src1, SourceTableRecord src2, EdgeStrategy strategy,
+			Set<SourceTableRecord> sourceTableRecords,
+			Set<PotentialMatchRecord> potentialMatchRecords) {
+		if (engineLogger.isDebugEnabled()) {
+			engineLogger.debug("Found Match!\nRecord 1:" + src1
+					+ "\nRecord 2:" + src2);
+		}
+		// Potential Match! so store in Match Result Table
+		PotentialMatchRecord pmr = new PotentialMatchRecord(
+				mungeProcess, MatchType.UNMATCH, src1, src2, false);
+		pmr.setEdgeStrategy(strategy);
+		sourceTableRecords.add(src1);
+		sourceTableRecords.add(src2);
+		potentialMatchRecords.add(pmr);
+	}
+
+	/**
+	 * A bucket of munge results that all have equal munged data, as decided by
+	 * their binary sort keys. The hash code of the key is computed once when the group is created and the
+	 * list of other results is only allocated when a second result arrives,
+	 * as most groups will only ever hold one result.
+	 */
+	private static final class MungeResultGroup {
 		
-		return Boolean.TRUE;
+		private final MungeResult first;
+		
+		private final byte[] key;
+		
+		private final int hash;
+		
+		private List<MungeResult> others;
+		
+		MungeResultGroup(MungeResult first) {
+			this.first = first;
+			this.key = first.getSortKey();
+			this.hash = Arrays.hashCode(key);
+		}
+		
+		void add(MungeResult result) {
+			if (others == null) {
+				others = new ArrayList<MungeResult>(2);
+			}
+			others.add(result);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof MungeResultGroup)) return false;
+			MungeResultGroup other = (MungeResultGroup) obj;
+			return hash == other.hash && Arrays.equals(key, other.key);
+		}
 	}
 }
@@ -19,10 +19,16 @@
 
 package ca.sqlpower.matchmaker;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -38,7 +44,6 @@ import ca.sqlpower.graph.DepthFirstSearch;
 import ca.sqlpower.matchmaker.ColumnMergeRules.MergeActionType;
 import ca.sqlpower.matchmaker.PotentialMatchRecord.MatchType;
 import ca.sqlpower.matchmaker.graph.MatchPoolDirectedGraphModel;
-import ca.sqlpower.sql.SQL;
 import ca.sqlpower.sqlobject.SQLColumn;
 import ca.sqlpower.sqlobject.SQLIndex;
 import ca.sqlpower.sqlobject.SQLObjectException;
@@ -51,6 +56,12 @@ import ca.sqlpower.sqlobject.SQLTable;
  * a special Logger instance passed in via the constructor--this log information
  * is expected to be presented to the end user of the product, so developers
  * maintaining this class should keep that fact in mind.
+ * <p>
+ * All of the SQL is run through prepared statements that are cached by their
+ * text, with the values bound as parameters. Updates, inserts and deletes are
+ * sent in batches of up to the merge settings' batch size, and a batch is
+ * sent as soon as anything needs to read from the database or a different
+ * statement comes along, so the statements run in the order they were made.
  */
 public class MergeProcessor extends AbstractProcessor {
 
@@ -76,7 +87,32 @@ public class MergeProcessor extends AbstractProcessor {
      */
     private final Connection con;
     
-    private Statement stmt;
+    /**
+     * The prepared statements of this merge, by their SQL. The SQL only
+     * depends on the table merge rule, the operation and which of the values
+     * in the WHERE clause are null, so each statement is prepared once and run
+     * for every row it applies to. They are closed at the end of {@link #call()}.
+     */
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    
+    /**
+     * The statement with updates, inserts or deletes waiting in its batch, or
+     * null if nothing is waiting.
+     */
+    private PreparedStatement batchStatement;
+    
+    /**
+     * The rows changed by the statements waiting in the batch of
+     * {@link #batchStatement}, in the order they were added.
+     */
+    private final List<BatchEntry> batchEntries = new ArrayList<BatchEntry>();
+    
+    /**
+     * The largest number of statements sent in one batch. This is 1 if the
+     * database does not support batch updates, in which case every statement
+     * is run on its own. It is set up at the start of {@link #call()}.
+     */
+    private int batchSize = 1;
     
     /**
      * The special merge rule that applies to the project's source table. This is
@@ -156,10 +192,18 @@ public class MergeProcessor extends AbstractProcessor {
 			
 			engineLogger.info("Starting merge operation for project " + project.getName());
 
-			stmt = con.createStatement();
+			MergeSettings settings = project.getMergeSettings();
+			batchSize = Math.max(1, settings.getBatchSize());
+			if (batchSize > 1 && !con.getMetaData().supportsBatchUpdates()) {
+				engineLogger.debug("The database does not support batch updates, running statements one at a time");
+				batchSize = 1;
+			}
+			int commitInterval = settings.getDebug() ? 0 : settings.getCommitInterval();
 
 			initVariables();
 			
+            pool.setUseBatchUpdates(true);
+            pool.setDebug(settings.getDebug());
 			pool.begin("Starting the merge engine");
 			
 			for (PotentialMatchRecord pm : pmProcessOrder) {
@@ -186,28 +230,14 @@ public class MergeProcessor extends AbstractProcessor {
 								sourceTableMergeRule, dupKeyValues);
 						ResultRow masterRow = findRowByUniqueKey(
 								sourceTableMergeRule, masterKeyValues);
-						int rows = mergeRows(dupRow, masterRow,
-								sourceTableMergeRule);
-
-						if (rows != 1) {
-							throw new IllegalStateException(
-									"The update did not affect the correct "
-											+ "number of rows: expected 1 but got "
-											+ rows);
-						}
+						mergeRows(dupRow, masterRow, sourceTableMergeRule);
 					}
 					//delete the duplicate record
 					engineLogger.debug("Deleting duplicate record: "
 							+ dupKeyValues + " on table: "
 							+ sourceTableMergeRule.getSourceTable());
-					int rows = deleteRowByUniqueKey(sourceTableMergeRule
-							.getSourceTable(), dupKeyValues);
-					if (rows != 1) {
-						throw new IllegalStateException(
-								"The delete did not affect the correct "
-										+ "number of rows: expected 1 but got "
-										+ rows);
-					}
+					deleteRowByUniqueKey(sourceTableMergeRule
+							.getSourceTable(), dupKeyValues, true);
 				}
 				
 				//clean up match pool
@@ -230,23 +260,39 @@ public class MergeProcessor extends AbstractProcessor {
 				for (PotentialMatchRecord pmr : toBeDeleted) {
 					pmr.setMatchStatus(MatchType.DELETE);
 				}
+				
+				if (commitInterval > 0 && monitorableHelper.getProgress() % commitInterval == 0) {
+					commit();
+				}
 			}
+			flushBatch();
 
             checkCancelled();
             
-            pool.setUseBatchUpdates(true);
-            pool.setDebug(project.getMergeSettings().getDebug());
             pool.commit();
         	pool.clearRecords();
         	pool.clearCache();
 			return Boolean.TRUE;
 		} finally {
 		    monitorableHelper.setFinished(true);
-			stmt.close();
+			closeStatements();
 			engineLogger.info("\n" + getActivitySummary());
 		}
 		
 	}
+
+	/**
+	 * Commits the changes made to the source table and the match pool so far
+	 * and starts a new transaction on the pool, so a merge that fails later on
+	 * only rolls back the records merged after this.
+	 */
+	private void commit() throws SQLException {
+		flushBatch();
+		con.commit();
+		pool.commit();
+		pool.begin("Continuing the merge engine");
+		engineLogger.info("Committed the first " + monitorableHelper.getProgress() + " merged records");
+	}
 	
 	private void initVariables() throws SQLException, SQLObjectException {
 		//Initialize the match pool
@@ -438,6 +484,116 @@ public class MergeProcessor extends AbstractProcessor {
         
         return sb.toString();
     }
+
+	/**
+	 * Returns the cached prepared statement for the given SQL, preparing it
+	 * if this is the first time it is used, with the SQL's values bound.
+	 */
+	private PreparedStatement prepare(BoundSQL sql) throws SQLException {
+		PreparedStatement ps = statements.get(sql.getSQL());
+		if (ps == null) {
+			ps = con.prepareStatement(sql.getSQL());
+			statements.put(sql.getSQL(), ps);
+		}
+		sql.bind(ps);
+		return ps;
+	}
+
+	/**
+	 * Runs the given query once every statement waiting in the batch has been
+	 * sent, so the query sees their changes.
+	 */
+	private ResultSet executeQuery(BoundSQL sql) throws SQLException {
+		flushBatch();
+		return prepare(sql).executeQuery();
+	}
+
+	/**
+	 * Adds an update, insert or delete to the batch. The batch is sent first
+	 * if it belongs to a different statement, and once it is full.
+	 * 
+	 * @param table
+	 *            The table the statement changes.
+	 * @param row
+	 *            The row the statement changes, for the log.
+	 * @param expectOneRow
+	 *            True if the merge has to fail unless the statement changes
+	 *            exactly one row.
+	 */
+	private void addToBatch(BoundSQL sql, Operation operation, SQLTable table, ResultRow row,
+			boolean expectOneRow) throws SQLException {
+		BatchEntry entry = new BatchEntry(operation, table, row, expectOneRow);
+		if (batchStatement != null && batchStatement != statements.get(sql.getSQL())) {
+			flushBatch();
+		}
+		PreparedStatement ps = prepare(sql);
+		if (batchSize == 1) {
+			finish(entry, ps.executeUpdate());
+			return;
+		}
+		ps.addBatch();
+		batchStatement = ps;
+		batchEntries.add(entry);
+		if (batchEntries.size() >= batchSize) {
+			flushBatch();
+		}
+	}
+
+	/**
+	 * Sends the statements waiting in the batch to the database.
+	 */
+	private void flushBatch() throws SQLException {
+		if (batchStatement == null) return;
+		PreparedStatement ps = batchStatement;
+		List<BatchEntry> entries = new ArrayList<BatchEntry>(batchEntries);
+		batchStatement = null;
+		batchEntries.clear();
+		engineLogger.debug("Executing a batch of " + entries.size() + " statements");
+		int[] counts = ps.executeBatch();
+		for (int i = 0; i < entries.size(); i++) {
+			finish(entries.get(i), counts[i]);
+		}
+	}
+
+	/**
+	 * Counts the rows changed by a statement that has been run towards the
+	 * activity summary. Some drivers do not say how many rows each statement
+	 * of a batch changed, and those statements are taken to have changed one.
+	 */
+	private void finish(BatchEntry entry, int count) {
+		if (count == Statement.SUCCESS_NO_INFO) {
+			count = 1;
+		}
+		if (entry.operation == Operation.UPDATE) {
+			logUpdate(entry.table, count);
+		} else if (entry.operation == Operation.INSERT) {
+			logInsert(entry.table, count);
+		} else {
+			logDelete(entry.table, count);
+		}
+		if (entry.expectOneRow && count != 1) {
+			throw new IllegalStateException("The " + entry.operation.name().toLowerCase() +
+					" did not affect the correct number of rows: expected 1 but got " + count +
+					" for " + entry.row + " in " + DDLUtils.toQualifiedName(entry.table));
+		}
+	}
+
+	/**
+	 * Forgets the statements still waiting in the batch and closes all of the
+	 * prepared statements.
+	 */
+	private void closeStatements() {
+		batchStatement = null;
+		batchEntries.clear();
+		for (PreparedStatement ps : statements.values()) {
+			try {
+				ps.close();
+			} catch (SQLException e) {
+				engineLogger.warn("Could not close a merge statement", e);
+			}
+		}
+		statements.clear();
+	}
     
 	/**
 	 * Merges the child tables recursively, in an order that is safe given the foreign
@@ -536,11 +692,7 @@ public class MergeProcessor extends AbstractProcessor {
 											"because updating the column " + column.getName() + " violates a foreign key constraint");
 								}
 							}
-							int numUpdated = updateRow(childTableMergeRule.getSourceTable(), row);
-							if (numUpdated != 1) {
-								throw new IllegalStateException("The update did not affect the correct " +
-										"number of rows: expected 1 but got " + numUpdated); 
-							}
+							updateRow(childTableMergeRule.getSourceTable(), row);
 						}
 					}
 				} else if (childTableMergeRule.getChildMergeAction() == 
@@ -596,13 +748,17 @@ public class MergeProcessor extends AbstractProcessor {
 							} else if (cmr.getUpdateStatement() != null && cmr.getUpdateStatement().length() != 0) {
 								ResultSet rs = findUpdateValueByUniqueKey(childTableMergeRule.getSourceTable(), 
 										cmr.getUpdateStatement(), row);
-								if (!rs.next()) {
-									throw new IllegalStateException("Invalid SQL Update Statement from merge.");
-								} else {
-									temp.setValue(cmr.getColumnName(), rs.getObject(1));
-									if (rs.next()) {
-										throw new IllegalStateException("Multiple rows with the same primary key.");
+								try {
+									if (!rs.next()) {
+										throw new IllegalStateException("Invalid SQL Update Statement from merge.");
+									} else {
+										temp.setValue(cmr.getColumnName(), rs.getObject(1));
+										if (rs.next()) {
+											throw new IllegalStateException("Multiple rows with the same primary key.");
+										}
 									}
+								} finally {
+									rs.close();
 								}
 							}
 						}
@@ -675,26 +831,14 @@ public class MergeProcessor extends AbstractProcessor {
 													"because updating the column " + column.getName() + " violates a foreign key constraint");
 										}
 									}
-									int numUpdated = updateRow(childTableMergeRule.getSourceTable(), childMasterRows.get(i));
-									if (numUpdated != 1) {
-										throw new IllegalStateException("The update did not affect the correct " +
-												"number of rows: expected 1 but got " + numUpdated); 
-									}
+									updateRow(childTableMergeRule.getSourceTable(), childMasterRows.get(i));
 								} else {
-									int rowsCount = mergeRows(childDupRows.get(i), masterRow, childTableMergeRule);
-									if (rowsCount != 1) {
-										throw new IllegalStateException("The update did not affect the correct " +
-												"number of rows: expected 1 but got " + rowsCount);
-									}
+									mergeRows(childDupRows.get(i), masterRow, childTableMergeRule);
 									// original duplicate record has been merged, delete it now
 									deleteDupRows.add(childDupRows.get(i));
 								}
 							} else {
-								int numUpdated = updateRow(childTableMergeRule.getSourceTable(), childMasterRows.get(i));
-							    if (numUpdated != 1) {
-									throw new IllegalStateException("The update did not affect the correct " +
-											"number of rows: expected 1 but got " + numUpdated); 
-								}
+								updateRow(childTableMergeRule.getSourceTable(), childMasterRows.get(i));
 							}
 						}
 					}
@@ -709,7 +853,7 @@ public class MergeProcessor extends AbstractProcessor {
 				// Delete the duplicate child records
 				engineLogger.debug("Deleting duplicate's child records on table " + childTableMergeRule.getSourceTable());
 				for (ResultRow row : deleteDupRows) {
-					deleteRowByUniqueKey(childTableMergeRule.getSourceTable(), row);
+					deleteRowByUniqueKey(childTableMergeRule.getSourceTable(), row, false);
 				}
 			} 
 		} finally {
@@ -717,8 +861,12 @@ public class MergeProcessor extends AbstractProcessor {
 		}
 	}
 
-	private int updateRow(SQLTable sourceTable, ResultRow row) throws SQLException {
-		StringBuilder sql = new StringBuilder();
+	/**
+	 * Updates the columns of the given row that are not in the primary key,
+	 * failing the merge unless exactly one row is changed.
+	 */
+	private void updateRow(SQLTable sourceTable, ResultRow row) throws SQLException {
+		BoundSQL sql = new BoundSQL();
 		sql.append("UPDATE ");
 		sql.append(DDLUtils.toQualifiedName(sourceTable));
 		sql.append(" SET ");
@@ -731,16 +879,13 @@ public class MergeProcessor extends AbstractProcessor {
 				sql.append("\n");
 				sql.append(row.getColumnName(i));
 				sql.append("=");
-				sql.append(formatObjectToSQL(row.getValue(i)));
+				sql.appendValue(row.getValue(i), row.getSQLType(i));
 				first = false;
 			}
 		}
 		sql.append(generatePKWhereStatement(row));
 		engineLogger.debug("MergeProcessor.updateRow is executing the SQL statement:\n" + sql);
-		int count = stmt.executeUpdate(sql.toString());
-		
-		logUpdate(sourceTable, count);
-		return count;
+		addToBatch(sql, Operation.UPDATE, sourceTable, row, true);
 	}
 
 	/**
@@ -752,32 +897,32 @@ public class MergeProcessor extends AbstractProcessor {
 	 * @param row
 	 *            The row containing the unique key values used to find the rows
 	 *            to delete.
-	 * 
-	 * @return number of rows deleted.
+	 * @param expectOneRow
+	 *            True if the merge has to fail unless exactly one row is
+	 *            deleted.
 	 * 
 	 * @throws SQLException
 	 * @throws SQLObjectException
 	 */
-	private int deleteRowByUniqueKey(SQLTable table, ResultRow row) throws SQLException, SQLObjectException {
-		StringBuilder sql = new StringBuilder();
+	private void deleteRowByUniqueKey(SQLTable table, ResultRow row, boolean expectOneRow)
+			throws SQLException, SQLObjectException {
+		BoundSQL sql = new BoundSQL();
 		sql.append("DELETE FROM ");
 		sql.append(DDLUtils.toQualifiedName(table));
 		sql.append(generateUKWhereStatement(row));
 		engineLogger.debug(sql.toString());
-		int count = stmt.executeUpdate(sql.toString());
-		logDelete(table, count);
-        return count;
+		addToBatch(sql, Operation.DELETE, table, row, expectOneRow);
 	}
 
 	private ResultSet findUpdateValueByUniqueKey(SQLTable table,
 			String updateStatement, ResultRow row) throws SQLException, SQLObjectException {
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 		sql.append("SELECT (");
 		sql.append(updateStatement);
 		sql.append(")\n FROM ");
 		sql.append(DDLUtils.toQualifiedName(table));
 		sql.append(generateUKWhereStatement(row));
-		return stmt.executeQuery(sql.toString());
+		return executeQuery(sql);
 	}
 
 	/**
@@ -796,7 +941,7 @@ public class MergeProcessor extends AbstractProcessor {
 	 * @throws SQLException
 	 */
 	private boolean isRowUnique(SQLTable sourceTable, ResultRow row) throws SQLObjectException, SQLException {
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 		sql.append("SELECT COUNT(*)");
 		sql.append(" FROM ");
 		sql.append(DDLUtils.toQualifiedName(sourceTable));
@@ -817,21 +962,13 @@ public class MergeProcessor extends AbstractProcessor {
 					sql.append("(");
 					firstCol = false;
 				}
-				String colName = col.getName();
-				Object val = row.getValue(colName);
-				sql.append(col.getName());
-				if (val == null) {
-					sql.append(" IS NULL");
-				} else {
-					sql.append("=");
-					sql.append(formatObjectToSQL(val));
-				} 
+				sql.appendCondition(col.getName(), row.getValue(col.getName()));
 			}
 			sql.append(")");
 		}
 		ResultSet rs = null;
 		try {
-			rs = stmt.executeQuery(sql.toString());
+			rs = executeQuery(sql);
 			rs.next();
 			return rs.getInt(1) == 0;
 		} finally {
@@ -857,9 +994,9 @@ public class MergeProcessor extends AbstractProcessor {
 	 * @throws SQLException
 	 * @throws SQLObjectException
 	 */
-	private ResultRow findRowByWhereStatement(TableMergeRules tableMergeRule, String whereStatement)
+	private ResultRow findRowByWhereStatement(TableMergeRules tableMergeRule, BoundSQL whereStatement)
 			throws SQLException {
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 		boolean first = true;
 		sql.append("SELECT ");
 		for (ColumnMergeRules cmr : tableMergeRule.getChildren(ColumnMergeRules.class)) {
@@ -869,18 +1006,22 @@ public class MergeProcessor extends AbstractProcessor {
 		}
 		sql.append(" FROM ");
 		sql.append(DDLUtils.toQualifiedName(tableMergeRule.getSourceTable()));
-		if (whereStatement.length() == 0) return null;
+		if (whereStatement.isEmpty()) return null;
 		sql.append(whereStatement);
-		engineLogger.debug("MergeProcessor.findRowByWhereStatement: Executing SQL Statement: " + sql.toString());
-		ResultSet rs = stmt.executeQuery(sql.toString());
-		if (rs.next()) {
-			ResultRow result = new ResultRow(tableMergeRule, rs);
+		engineLogger.debug("MergeProcessor.findRowByWhereStatement: Executing SQL Statement: " + sql);
+		ResultSet rs = executeQuery(sql);
+		try {
 			if (rs.next()) {
-				throw new IllegalStateException("Multiple rows with the same unique key.");
+				ResultRow result = new ResultRow(tableMergeRule, rs);
+				if (rs.next()) {
+					throw new IllegalStateException("Multiple rows with the same unique key.");
+				}
+				return result;
+			} else {
+				return null;
 			}
-			return result;
-		} else {
-			return null;
+		} finally {
+			rs.close();
 		}
 	}
 	
@@ -958,15 +1099,15 @@ public class MergeProcessor extends AbstractProcessor {
 	 *            The specific row for which we are trying to form a WHERE
 	 *            clause to find based on its primary key.
 	 *
-	 * @return The WHERE clause in String form. If the given row does not have
-	 *         any columns in the primary key, then it returns an empty String.
+	 * @return The WHERE clause with its values. If the given row does not have
+	 *         any columns in the primary key, then it is empty.
 	 * 
 	 * @throws SQLException
 	 * @throws SQLObjectException
 	 */
-	private String generatePKWhereStatement(ResultRow row) throws SQLException {
+	private BoundSQL generatePKWhereStatement(ResultRow row) throws SQLException {
 		boolean first = true;
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 		for (int i = 0; i < row.size(); i ++) {
 			if (row.isInPrimaryKey(i)) {
 				if (!first) {
@@ -975,18 +1116,11 @@ public class MergeProcessor extends AbstractProcessor {
 					sql.append("\n WHERE ");
 					first = false;
 				}
-				sql.append(row.getColumnName(i));
-				Object ival = row.getValue(i);
-				if (ival == null) {
-					sql.append(" IS NULL");
-				} else {
-					sql.append("=");
-					sql.append(formatObjectToSQL(ival));
-				} 
+				sql.appendCondition(row.getColumnName(i), row.getValue(i));
 			}
 		}
 		engineLogger.debug("generatePKWhereStatement returns: " + sql);
-		return sql.toString();
+		return sql;
 	}
 	
 	/**
@@ -996,14 +1130,14 @@ public class MergeProcessor extends AbstractProcessor {
 	 * @param row
 	 *            The specific row for which we are trying to form a WHERE
 	 *            clause to find based on its unique key.
-	 * @return The WHERE clause in String form. If the given row does not have
-	 *         any columns in the unique key, then it returns an empty String.
+	 * @return The WHERE clause with its values. If the given row does not have
+	 *         any columns in the unique key, then it is empty.
 	 * @throws SQLException
 	 * @throws SQLObjectException
 	 */
-	private String generateUKWhereStatement(ResultRow row) throws SQLException, SQLObjectException {
+	private BoundSQL generateUKWhereStatement(ResultRow row) throws SQLException, SQLObjectException {
 		boolean first = true;
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 		for (SQLColumn col : row.tableMergeRule.getUniqueKeyColumns()) {
 			if (!first) {
 				sql.append(" AND ");
@@ -1012,16 +1146,9 @@ public class MergeProcessor extends AbstractProcessor {
 				first = false;
 			}
 			String colName = col.getName();
-			sql.append(colName);
-			Object ival = row.getValue(colName);
-			if (ival == null) {
-				sql.append(" IS NULL");
-			} else {
-				sql.append("=");
-				sql.append(formatObjectToSQL(ival));
-			} 
+			sql.appendCondition(colName, row.getValue(colName));
 		}
-		return sql.toString();
+		return sql;
 	}
 	
 	/**
@@ -1032,15 +1159,15 @@ public class MergeProcessor extends AbstractProcessor {
 	 *            The specific row for which we are trying to form a WHERE
 	 *            clause to find based on its imported key.
 	 * 
-	 * @return The WHERE clause in String form. If the given row does not have
-	 *         any columns in the imported key, then it returns an empty String.
+	 * @return The WHERE clause with its values. If the given row does not have
+	 *         any columns in the imported key, then it is empty.
 	 * 
 	 * @throws SQLException
 	 * @throws SQLObjectException
 	 */
-	private String generateFKWhereStatement(ResultRow row) throws SQLException {
+	private BoundSQL generateFKWhereStatement(ResultRow row) throws SQLException {
 		boolean first = true;
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 		for (int i = 0; i < row.size(); i ++) {
 			if (row.isImportedKey(i)) {
 				if (!first) {
@@ -1049,17 +1176,10 @@ public class MergeProcessor extends AbstractProcessor {
 					sql.append("\n WHERE ");
 					first = false;
 				}
-				sql.append(row.getColumnName(i));
-				Object ival = row.getValue(i);
-				if (ival == null) {
-					sql.append(" IS NULL");
-				} else {
-					sql.append("=");
-					sql.append(formatObjectToSQL(ival));
-				} 
+				sql.appendCondition(row.getColumnName(i), row.getValue(i));
 			}
 		}
-		return sql.toString();
+		return sql;
 	}
 
 	/**
@@ -1086,7 +1206,7 @@ public class MergeProcessor extends AbstractProcessor {
 		
 		
 		boolean first = true;
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 		sql.append("SELECT ");
 		for (ColumnMergeRules cmr : tableMergeRule.getColumnMergeRules()) {
 			if (!first) sql.append(", ");
@@ -1100,62 +1220,54 @@ public class MergeProcessor extends AbstractProcessor {
 		for (ColumnMergeRules column : tableMergeRule.getImportedKey()) {
 			if (!first) sql.append(" AND ");
 			first = false;
-			sql.append(column.getColumnName());
-			Object ival = foreignKeyValues.getValue(column.getImportedKeyColumn().getName());
-			if (ival == null) {
-				sql.append(" IS NULL");
-			} else {
-				sql.append("=");
-				sql.append(formatObjectToSQL(ival));
-			} 
+			sql.appendCondition(column.getColumnName(),
+					foreignKeyValues.getValue(column.getImportedKeyColumn().getName()));
 		}
-		ResultSet rs = stmt.executeQuery(sql.toString());
+		ResultSet rs = executeQuery(sql);
 		
 		List<ResultRow> result = new ArrayList<ResultRow>();
-		while (rs.next()) {
-			ResultRow tempRow = new ResultRow(tableMergeRule, rs);
-			result.add(tempRow);
+		try {
+			while (rs.next()) {
+				ResultRow tempRow = new ResultRow(tableMergeRule, rs);
+				result.add(tempRow);
+			}
+		} finally {
+			rs.close();
 		}
 		return result;
 	}
 
 	private void insertRow(SQLTable table, ResultRow row) throws SQLException {
-		StringBuilder sql = new StringBuilder();
-		StringBuilder sqlValues = new StringBuilder();
-		boolean first = true;
-		Object ival;
+		BoundSQL sql = new BoundSQL();
 		
 		sql.append("INSERT INTO ");
 		sql.append(DDLUtils.toQualifiedName(table));
 		sql.append("\n (");
-		sqlValues.append("\n VALUES (");
 		for (int i = 0; i < row.size(); i++) {
-			if (!first) {
-				sql.append(", ");
-				sqlValues.append(", ");
-			}
-			first = false;
+			if (i > 0) sql.append(", ");
 			sql.append(row.getColumnName(i));
-			ival = row.getValue(i);
-			if (ival == null) {
-				sqlValues.append("NULL");
-			} else {
-				sqlValues.append(formatObjectToSQL(ival));
-			} 
 		}
 		sql.append(")");
-		sqlValues.append(")");
-		sql.append(sqlValues.toString());
-		int count = stmt.executeUpdate(sql.toString());
-		logInsert(table, count);
+		sql.append("\n VALUES (");
+		for (int i = 0; i < row.size(); i++) {
+			if (i > 0) sql.append(", ");
+			sql.appendValue(row.getValue(i), row.getSQLType(i));
+		}
+		sql.append(")");
+		addToBatch(sql, Operation.INSERT, table, row, false);
 	}
 
-	private int mergeRows(ResultRow dupRowValues, ResultRow masterRowValues,
+	/**
+	 * Updates the master row with the values its merge rules take from the
+	 * duplicate row, failing the merge unless exactly one row is changed.
+	 * Nothing is run if none of the rules need the duplicate's values.
+	 */
+	private void mergeRows(ResultRow dupRowValues, ResultRow masterRowValues,
 			TableMergeRules tableMergeRules) throws SQLException, SQLObjectException {
 		boolean first = true;
 
 		//builds the update sql
-		StringBuilder sql = new StringBuilder();
+		BoundSQL sql = new BoundSQL();
 
 		sql.append("UPDATE ");
 		sql.append(DDLUtils.toQualifiedName(tableMergeRules.getSourceTable()));
@@ -1194,44 +1306,57 @@ public class MergeProcessor extends AbstractProcessor {
 				first = false;
 
 				sql.append(cmr.getColumnName() + "=");
-				if (cmr.getActionType().equals(MergeActionType.SUM)) {
-					sql.append(resultVal.toString());
-				} else if (resultVal == null) {
-					sql.append("null");
-				} else {
-					sql.append(formatObjectToSQL(resultVal));
-				} 
+				sql.appendValue(resultVal, cmr.getColumn().getType());
 			}
 		}
 		if (!first) {
-			String whereStatement = generatePKWhereStatement(masterRowValues);
-			sql.append(whereStatement);
-			int count = stmt.executeUpdate(sql.toString());
-			logUpdate(tableMergeRules.getSourceTable(), count);
-            return count;
-		} else {
-			return 1;
-		}
-	}
-	
-	private String formatObjectToSQL(Object ival) throws SQLException {
-		if (ival == null) {
-			return "NULL";
-		} else if (ival instanceof Date) {
-			return SQL.escapeDateTime(con, (Date) ival);
-		} else if (ival instanceof Number) {
-			return ival.toString();
-		} else {
-			return SQL.quote(ival.toString());
+			sql.append(generatePKWhereStatement(masterRowValues));
+			addToBatch(sql, Operation.UPDATE, tableMergeRules.getSourceTable(), masterRowValues, true);
 		}
 	}
 
-	private Object sumOfObjects(Object masterVal, Object dupVal) {
-		if (masterVal instanceof Number) {
-			return masterVal.toString() +  " + " + dupVal.toString();
-		} else {
+	/**
+	 * Adds up the two values the way the database would: the sum is null if
+	 * either value is null, and a duplicate value that is not a number is
+	 * read as one if its text is numeric. The sum is worked out exactly and
+	 * returned as the same Java type as the master value, which is the type
+	 * the driver uses for the column.
+	 */
+	static Object sumOfObjects(Object masterVal, Object dupVal) {
+		if (masterVal == null || dupVal == null) {
+			return null;
+		}
+		if (!(masterVal instanceof Number)) {
 			throw new IllegalStateException("Illegal type for the SUM operation.");
 		}
+		BigDecimal sum;
+		try {
+			sum = new BigDecimal(masterVal.toString()).add(new BigDecimal(dupVal.toString()));
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("Illegal type for the SUM operation: " + dupVal + " is not a number.");
+		}
+		try {
+			if (masterVal instanceof Integer) {
+				return Integer.valueOf(sum.intValueExact());
+			} else if (masterVal instanceof Long) {
+				return Long.valueOf(sum.longValueExact());
+			} else if (masterVal instanceof Short) {
+				return Short.valueOf(sum.shortValueExact());
+			} else if (masterVal instanceof Byte) {
+				return Byte.valueOf(sum.byteValueExact());
+			} else if (masterVal instanceof BigInteger) {
+				return sum.toBigIntegerExact();
+			} else if (masterVal instanceof Double) {
+				return Double.valueOf(sum.doubleValue());
+			} else if (masterVal instanceof Float) {
+				return Float.valueOf(sum.floatValue());
+			} else {
+				return sum;
+			}
+		} catch (ArithmeticException e) {
+			throw new IllegalStateException("The SUM of " + masterVal + " and " + dupVal +
+					" does not fit in a " + masterVal.getClass().getSimpleName() + ".");
+		}
 	}
 
 	private Object concatObjects(Object masterVal, Object dupVal) {
@@ -1428,6 +1553,14 @@ public class MergeProcessor extends AbstractProcessor {
 			return tableMergeRule.getColumnMergeRules().get(index).getColumnName();
 		}
 		
+		/**
+		 * Returns the JDBC type of the column with the given index, used to
+		 * bind a null value for it.
+		 */
+		public int getSQLType(int index) {
+			return tableMergeRule.getColumnMergeRules().get(index).getColumn().getType();
+		}
+		
 		/**
 		 * Creates a copy of this Result Row. The actual data values are shared
 		 * with the copy, but the list structure is not.
@@ -1458,4 +1591,103 @@ public class MergeProcessor extends AbstractProcessor {
 		}
 	}
 
+	/**
+	 * The kinds of statements that are sent in batches.
+	 */
+	private enum Operation {
+		UPDATE, INSERT, DELETE
+	}
+
+	/**
+	 * A statement waiting in the batch, kept so the number of rows it changed
+	 * can be counted and checked once the batch has been sent.
+	 */
+	private static class BatchEntry {
+		private final Operation operation;
+		private final SQLTable table;
+		private final ResultRow row;
+		private final boolean expectOneRow;
+		
+		BatchEntry(Operation operation, SQLTable table, ResultRow row, boolean expectOneRow) {
+			this.operation = operation;
+			this.table = table;
+			this.row = row;
+			this.expectOneRow = expectOneRow;
+		}
+	}
+
+	/**
+	 * The text of a SQL statement with a ? in place of each value, and the
+	 * values to bind to them in order. Values in conditions are never null,
+	 * as a null value is compared with IS NULL instead.
+	 */
+	static class BoundSQL {
+		private final StringBuilder sql = new StringBuilder();
+		private final List<Object> values = new ArrayList<Object>();
+		
+		/**
+		 * The JDBC type of each of the values, used to bind the nulls.
+		 */
+		private final List<Integer> types = new ArrayList<Integer>();
+		
+		public void append(String text) {
+			sql.append(text);
+		}
+		
+		public void append(BoundSQL other) {
+			sql.append(other.sql);
+			values.addAll(other.values);
+			types.addAll(other.types);
+		}
+		
+		public void appendValue(Object value, int sqlType) {
+			sql.append("?");
+			values.add(value);
+			types.add(sqlType);
+		}
+		
+		/**
+		 * Appends a condition that the given column has the given value.
+		 */
+		public void appendCondition(String columnName, Object value) {
+			sql.append(columnName);
+			if (value == null) {
+				sql.append(" IS NULL");
+			} else {
+				sql.append("=");
+				appendValue(value, Types.NULL);
+			}
+		}
+		
+		public boolean isEmpty() {
+			return sql.length() == 0;
+		}
+		
+		public String getSQL() {
+			return sql.toString();
+		}
+		
+		/**
+		 * Binds the values to the parameters of the given statement. Dates
+		 * that are not one of the JDBC date types are bound as timestamps.
+		 */
+		public void bind(PreparedStatement ps) throws SQLException {
+			for (int i = 0; i < values.size(); i++) {
+				Object value = values.get(i);
+				if (value == null) {
+					ps.setNull(i + 1, types.get(i));
+				} else if (value instanceof Date && !(value instanceof java.sql.Date
+						|| value instanceof Time || value instanceof Timestamp)) {
+					ps.setTimestamp(i + 1, new Timestamp(((Date) value).getTime()));
+				} else {
+					ps.setObject(i + 1, value);
+				}
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return sql + " " + values;
+		}
+	}
 }
@@ -37,6 +37,13 @@ public class MergeSettings extends MatchMakerSettings {
 	
 	public static final List<Class<? extends SPObject>> allowedChildTypes =
         Collections.emptyList();
+	
+	/**
+	 * The number of statements the merge engine sends to the database in
+	 * one batch unless the project says otherwise.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	
 	/**
 	 * Backup the data that is going to be merged
 	 */
@@ -48,6 +55,23 @@ public class MergeSettings extends MatchMakerSettings {
      * master is left alone.
 	 */
 	private boolean augmentNull;
+	
+	/**
+	 * The largest number of updates, inserts and deletes the merge engine
+	 * sends to the database in one batch. Statements are only batched while
+	 * nothing needs to read their results, so this is an upper limit. A value
+	 * of 1 or less sends every statement on its own.
+	 */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	
+	/**
+	 * The number of merged records after which the merge engine commits its
+	 * changes to the source table and the match pool. 0 commits everything
+	 * once at the end, so a failed merge leaves the source table untouched;
+	 * with a commit interval only the records merged since the last commit
+	 * are rolled back. Nothing is committed in debug mode.
+	 */
+	private int commitInterval;
 		
 	@Override
 	public int hashCode() {
@@ -55,6 +79,8 @@ public class MergeSettings extends MatchMakerSettings {
 		int result = super.hashCode();
 		result = PRIME * result + (augmentNull ? 1231 : 1237);
 		result = PRIME * result + (backUp ? 1231 : 1237);
+		result = PRIME * result + batchSize;
+		result = PRIME * result + commitInterval;
 		return result;
 	}
 
@@ -77,6 +103,12 @@ public class MergeSettings extends MatchMakerSettings {
 		if (backUp != other.backUp)
 			return false;
 		
+		if (batchSize != other.batchSize)
+			return false;
+		
+		if (commitInterval != other.commitInterval)
+			return false;
+		
 		return true;
 	}
 
@@ -104,6 +136,30 @@ public class MergeSettings extends MatchMakerSettings {
 		firePropertyChange("augmentNull", oldValue,
 				this.augmentNull);
 	}
+
+	@Accessor
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	@Mutator
+	public void setBatchSize(int batchSize) {
+		int oldValue = this.batchSize;
+		this.batchSize = batchSize;
+		firePropertyChange("batchSize", oldValue, batchSize);
+	}
+
+	@Accessor
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+	@Mutator
+	public void setCommitInterval(int commitInterval) {
+		int oldValue = this.commitInterval;
+		this.commitInterval = commitInterval;
+		firePropertyChange("commitInterval", oldValue, commitInterval);
+	}
 	
 	public MergeSettings duplicate(MatchMakerObject parent) {
 		MergeSettings settings = new MergeSettings();
@@ -120,6 +176,8 @@ public class MergeSettings extends MatchMakerSettings {
 		settings.setAppendToLog(getAppendToLog());
 		settings.setAugmentNull(getAugmentNull());
 		settings.setBackUp(getBackUp());
+		settings.setBatchSize(getBatchSize());
+		settings.setCommitInterval(getCommitInterval());
 		settings.setDebug(getDebug());
 		settings.setDescription(getDescription()==null?null:new String(getDescription()));
 		settings.setLastRunDate(getLastRunDate()==null?null:new Date(getLastRunDate().getTime()));
@@ -135,6 +193,8 @@ public class MergeSettings extends MatchMakerSettings {
         buf.append("MergeSettings [");
         buf.append("augmentNull->" + augmentNull + ", ");
         buf.append("backUp->" + backUp + ", ");
+        buf.append("batchSize->" + batchSize + ", ");
+        buf.append("commitInterval->" + commitInterval + ", ");
         buf.append(super.toString());
         buf.append("]");
         return buf.toString();
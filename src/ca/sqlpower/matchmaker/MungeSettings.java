@@ -128,6 +128,36 @@ public class MungeSettings extends MatchMakerSettings {
 		}
 	}
 	
+	/**
+	 * An enumeration of the ways the match engine can find the munge results
+	 * that have identical munged data.
+	 */
+	public enum MatchMode {
+		/**
+		 * Sorts all of the munge results of a transformation and compares each
+		 * one with the run of equal results that follows it.
+		 */
+		SORT_AND_SCAN("Sort the munged data and scan for equal runs"),
+		/**
+		 * Buckets the munge results of a transformation by a hash of their
+		 * munged data in a single pass, without building a sorted order.
+		 */
+		HASH_GROUPING("Group the munged data by hash");
+		
+		/**
+		 * A longer description of this setting
+		 */
+		private String longDescription;
+		
+		private MatchMode(String longDescription) {
+			this.longDescription = longDescription;
+		}
+		
+		public String getLongDescription() {
+			return longDescription;
+		}
+	}
+	
 	@Override
     public int hashCode() {
         final int PRIME = 31;
@@ -139,6 +169,17 @@ public class MungeSettings extends MatchMakerSettings {
         result = PRIME * result + ((autoWriteAutoValidatedAddresses == true) ? 1 : 0);
         result = PRIME * result + ((poolFilterSetting == null) ? 0 : poolFilterSetting.hashCode());
         result = PRIME * result + ((autoMatchThreshold == null) ? 0 : autoValidateSetting.hashCode());
+        result = PRIME * result + ((matchMode == null) ? 0 : matchMode.hashCode());
+        result = PRIME * result + spillHeapPercentage;
+        result = PRIME * result + ((useBulkWrite == true) ? 1 : 0);
+        result = PRIME * result + bulkWriteBatchSize;
+        result = PRIME * result + mungeThreadCount;
+        result = PRIME * result + ((shareSourceScan == true) ? 1 : 0);
+        result = PRIME * result + processThreadCount;
+        result = PRIME * result + prefetchRowCount;
+        result = PRIME * result + ((useOffHeapResults == true) ? 1 : 0);
+        result = PRIME * result + ((twoPassMunge == true) ? 1 : 0);
+        result = PRIME * result + singletonFilterSize;
         return result;
     }
 
@@ -173,6 +214,28 @@ public class MungeSettings extends MatchMakerSettings {
         
         if (autoValidateSetting != other.autoValidateSetting) return false;
         
+        if (matchMode != other.matchMode) return false;
+        
+        if (spillHeapPercentage != other.spillHeapPercentage) return false;
+        
+        if (useBulkWrite != other.useBulkWrite) return false;
+        
+        if (bulkWriteBatchSize != other.bulkWriteBatchSize) return false;
+        
+        if (mungeThreadCount != other.mungeThreadCount) return false;
+        
+        if (shareSourceScan != other.shareSourceScan) return false;
+        
+        if (processThreadCount != other.processThreadCount) return false;
+        
+        if (prefetchRowCount != other.prefetchRowCount) return false;
+        
+        if (useOffHeapResults != other.useOffHeapResults) return false;
+        
+        if (twoPassMunge != other.twoPassMunge) return false;
+        
+        if (singletonFilterSize != other.singletonFilterSize) return false;
+        
         return true;
     }
 
@@ -212,6 +275,92 @@ public class MungeSettings extends MatchMakerSettings {
 	
 	private AutoValidateSetting autoValidateSetting = AutoValidateSetting.EVERYTHING_WITH_ONE_SUGGESTION;
 	
+	/**
+	 * The way the match engine looks for munge results with equal munged data.
+	 * The sort based mode is kept around so the two can be compared.
+	 */
+	private MatchMode matchMode = MatchMode.HASH_GROUPING;
+	
+	/**
+	 * The percentage of the maximum heap that can be in use while munging
+	 * before the munge results are written out to sorted runs on the local
+	 * disk instead of being kept in memory. A value of 100 or more turns
+	 * spilling off.
+	 */
+	private int spillHeapPercentage = 80;
+	
+	/**
+	 * If true, the new matches found by the engine are written to a staging
+	 * copy of the result table with multi-row inserts and then moved into the
+	 * result table with a single set based statement, instead of being
+	 * inserted into the result table one at a time.
+	 */
+	private boolean useBulkWrite = false;
+	
+	/**
+	 * The number of rows sent to the staging table in each round trip to the
+	 * database when {@link #useBulkWrite} is set.
+	 */
+	private int bulkWriteBatchSize = 10000;
+	
+	/**
+	 * The number of threads the match engine munges with. When this is more
+	 * than one the source table is split into that many key ranges, each read
+	 * over its own connection and munged on its own thread. Munge processes
+	 * that write back to the source table are always munged on one thread.
+	 */
+	private int mungeThreadCount = 1;
+	
+	/**
+	 * When true, and every munge process of the project has a single input
+	 * step and a deduplicating result step, the engine munges all of the
+	 * processes with one scan of the source table instead of reading the
+	 * table once per process. The munge results of every process are then
+	 * held until each process has been matched.
+	 */
+	private boolean shareSourceScan = false;
+	
+	/**
+	 * The number of munge processes the engine munges and matches at once,
+	 * each on a thread of its own. The match clusters every process finds
+	 * are merged into the match pool in process order once they are all
+	 * done, so the result does not depend on which process finishes first.
+	 */
+	private int processThreadCount = 1;
+	
+	/**
+	 * The number of source table rows the engine reads ahead of munging, on
+	 * a thread of its own for each input step or partition. 0 reads each row
+	 * on the munging thread as it is needed.
+	 */
+	private int prefetchRowCount = 1000;
+	
+	/**
+	 * If true, the dedupe result steps keep their munge results in direct
+	 * buffers outside of the Java heap instead of as objects, so a large run
+	 * does not fill the heap or keep the garbage collector busy. The results
+	 * are then never spilled to disk, and are always matched by sorting.
+	 */
+	private boolean useOffHeapResults = false;
+	
+	/**
+	 * If true, a munge process whose results are matched is run twice. The
+	 * first run only counts the sort keys of the munged data, and the second
+	 * keeps only the rows whose munged data may have been seen more than once,
+	 * so the memory used for the results grows with the number of possible
+	 * duplicates rather than with the size of the source table. Every step of
+	 * the process runs twice, and the source table is read twice.
+	 */
+	private boolean twoPassMunge = false;
+	
+	/**
+	 * The size in megabytes of the counts kept by the first run of a two pass
+	 * munge. Each megabyte holds about four million counts, and rows with
+	 * unique munged data are kept by mistake more often as the number of
+	 * distinct values in the source table gets closer to that.
+	 */
+	private int singletonFilterSize = 16;
+	
 	@Transient @Accessor
 	public boolean getClearMatchPool() {
 		return clearMatchPool;
@@ -306,6 +455,138 @@ public class MungeSettings extends MatchMakerSettings {
 		firePropertyChange("autoValidateSetting", oldValue, autoValidateSetting);
 	}
 
+	@Accessor
+	public MatchMode getMatchMode() {
+		return matchMode;
+	}
+
+	@Mutator
+	public void setMatchMode(MatchMode matchMode) {
+		MatchMode oldValue = this.matchMode;
+		this.matchMode = matchMode;
+		firePropertyChange("matchMode", oldValue, matchMode);
+	}
+
+	@Accessor
+	public int getSpillHeapPercentage() {
+		return spillHeapPercentage;
+	}
+
+	@Mutator
+	public void setSpillHeapPercentage(int spillHeapPercentage) {
+		int oldValue = this.spillHeapPercentage;
+		this.spillHeapPercentage = spillHeapPercentage;
+		firePropertyChange("spillHeapPercentage", oldValue, spillHeapPercentage);
+	}
+
+	@Accessor
+	public boolean isUseBulkWrite() {
+		return useBulkWrite;
+	}
+
+	@Mutator
+	public void setUseBulkWrite(boolean useBulkWrite) {
+		boolean oldValue = this.useBulkWrite;
+		this.useBulkWrite = useBulkWrite;
+		firePropertyChange("useBulkWrite", oldValue, useBulkWrite);
+	}
+
+	@Accessor
+	public int getBulkWriteBatchSize() {
+		return bulkWriteBatchSize;
+	}
+
+	@Mutator
+	public void setBulkWriteBatchSize(int bulkWriteBatchSize) {
+		int oldValue = this.bulkWriteBatchSize;
+		this.bulkWriteBatchSize = bulkWriteBatchSize;
+		firePropertyChange("bulkWriteBatchSize", oldValue, bulkWriteBatchSize);
+	}
+
+	@Accessor
+	public int getMungeThreadCount() {
+		return mungeThreadCount;
+	}
+
+	@Mutator
+	public void setMungeThreadCount(int mungeThreadCount) {
+		int oldValue = this.mungeThreadCount;
+		this.mungeThreadCount = mungeThreadCount;
+		firePropertyChange("mungeThreadCount", oldValue, mungeThreadCount);
+	}
+
+	@Accessor
+	public boolean isShareSourceScan() {
+		return shareSourceScan;
+	}
+
+	@Mutator
+	public void setShareSourceScan(boolean shareSourceScan) {
+		boolean oldValue = this.shareSourceScan;
+		this.shareSourceScan = shareSourceScan;
+		firePropertyChange("shareSourceScan", oldValue, shareSourceScan);
+	}
+
+	@Accessor
+	public int getProcessThreadCount() {
+		return processThreadCount;
+	}
+
+	@Mutator
+	public void setProcessThreadCount(int processThreadCount) {
+		int oldValue = this.processThreadCount;
+		this.processThreadCount = processThreadCount;
+		firePropertyChange("processThreadCount", oldValue, processThreadCount);
+	}
+
+	@Accessor
+	public int getPrefetchRowCount() {
+		return prefetchRowCount;
+	}
+
+	@Mutator
+	public void setPrefetchRowCount(int prefetchRowCount) {
+		int oldValue = this.prefetchRowCount;
+		this.prefetchRowCount = prefetchRowCount;
+		firePropertyChange("prefetchRowCount", oldValue, prefetchRowCount);
+	}
+
+	@Accessor
+	public boolean isUseOffHeapResults() {
+		return useOffHeapResults;
+	}
+
+	@Mutator
+	public void setUseOffHeapResults(boolean useOffHeapResults) {
+		boolean oldValue = this.useOffHeapResults;
+		this.useOffHeapResults = useOffHeapResults;
+		firePropertyChange("useOffHeapResults", oldValue, useOffHeapResults);
+	}
+
+	@Accessor
+	public boolean isTwoPassMunge() {
+		return twoPassMunge;
+	}
+
+	@Mutator
+	public void setTwoPassMunge(boolean twoPassMunge) {
+		boolean oldValue = this.twoPassMunge;
+		this.twoPassMunge = twoPassMunge;
+		firePropertyChange("twoPassMunge", oldValue, twoPassMunge);
+	}
+
+	@Accessor
+	public int getSingletonFilterSize() {
+		return singletonFilterSize;
+	}
+
+	@Mutator
+	public void setSingletonFilterSize(int singletonFilterSize) {
+		int oldValue = this.singletonFilterSize;
+		this.singletonFilterSize = singletonFilterSize;
+		firePropertyChange("singletonFilterSize", oldValue, singletonFilterSize);
+	}
+
 	@Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -317,6 +598,17 @@ public class MungeSettings extends MatchMakerSettings {
         buf.append("autoWriteAutoValidatedAddresses->"+autoWriteAutoValidatedAddresses+", ");
         buf.append("poolFilterSetting->" + poolFilterSetting + ", ");
         buf.append("autoValidateSetting->" + autoValidateSetting + ", ");
+        buf.append("matchMode->" + matchMode + ", ");
+        buf.append("spillHeapPercentage->" + spillHeapPercentage + ", ");
+        buf.append("useBulkWrite->" + useBulkWrite + ", ");
+        buf.append("bulkWriteBatchSize->" + bulkWriteBatchSize + ", ");
+        buf.append("mungeThreadCount->" + mungeThreadCount + ", ");
+        buf.append("shareSourceScan->" + shareSourceScan + ", ");
+        buf.append("processThreadCount->" + processThreadCount + ", ");
+        buf.append("prefetchRowCount->" + prefetchRowCount + ", ");
+        buf.append("useOffHeapResults->" + useOffHeapResults + ", ");
+        buf.append("twoPassMunge->" + twoPassMunge + ", ");
+        buf.append("singletonFilterSize->" + singletonFilterSize + ", ");
         buf.append(super.toString());
         buf.append("]");
         return buf.toString();
@@ -353,6 +645,17 @@ public class MungeSettings extends MatchMakerSettings {
 		settings.setAutoWriteAutoValidatedAddresses(isAutoWriteAutoValidatedAddresses());
 		settings.setPoolFilterSetting(getPoolFilterSetting());
 		settings.setAutoValidateSetting(getAutoValidateSetting());
+		settings.setMatchMode(getMatchMode());
+		settings.setSpillHeapPercentage(getSpillHeapPercentage());
+		settings.setUseBulkWrite(isUseBulkWrite());
+		settings.setBulkWriteBatchSize(getBulkWriteBatchSize());
+		settings.setMungeThreadCount(getMungeThreadCount());
+		settings.setShareSourceScan(isShareSourceScan());
+		settings.setProcessThreadCount(getProcessThreadCount());
+		settings.setPrefetchRowCount(getPrefetchRowCount());
+		settings.setUseOffHeapResults(isUseOffHeapResults());
+		settings.setTwoPassMunge(isTwoPassMunge());
+		settings.setSingletonFilterSize(getSingletonFilterSize());
 	}
 
 	@NonProperty
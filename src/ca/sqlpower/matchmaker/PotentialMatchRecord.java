@@ -25,6 +25,7 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcess.EdgeStrategy;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Accessor;
 import ca.sqlpower.object.annotation.Constructor;
@@ -93,6 +94,25 @@ public class PotentialMatchRecord extends AbstractMatchMakerObject{
      * need to update its information in the database.
      */
     private StoreState storeState;
+    
+    /**
+     * The id of the cluster this record was stored with in the result table,
+     * or null if it has not been stored with one.
+     */
+    private Integer clusterId;
+    
+    /**
+     * The ordinal of the cluster this record was stored with in the result
+     * table, or null if it has not been stored with one.
+     */
+    private Integer clusterOrdinal;
+    
+    /**
+     * The edge strategy of the munge process that created this match, or
+     * null if it is not known, as for matches stored before the result table
+     * had an edge strategy column.
+     */
+    private EdgeStrategy edgeStrategy;
 
     /**
      * The values that are used to keep track of which side of a record is
@@ -261,6 +281,42 @@ public class PotentialMatchRecord extends AbstractMatchMakerObject{
     	firePropertyChange("storeState", old, newState);
     }
     
+    @NonProperty
+    public Integer getClusterId() {
+    	return clusterId;
+    }
+    
+    @NonProperty
+    public Integer getClusterOrdinal() {
+    	return clusterOrdinal;
+    }
+
+    /**
+	 * Sets the cluster id and ordinal to store this record with. If they
+	 * differ from the ones it was stored with a clean record is marked dirty
+	 * so the new values will be written.
+	 */
+    @NonProperty
+    public void setClusterPosition(Integer clusterId, Integer clusterOrdinal) {
+    	boolean changed = (this.clusterId == null ? clusterId != null : !this.clusterId.equals(clusterId))
+    		|| (this.clusterOrdinal == null ? clusterOrdinal != null : !this.clusterOrdinal.equals(clusterOrdinal));
+    	this.clusterId = clusterId;
+    	this.clusterOrdinal = clusterOrdinal;
+    	if (changed && storeState == StoreState.CLEAN) {
+    		setStoreState(StoreState.DIRTY);
+    	}
+    }
+    
+    @NonProperty
+    public EdgeStrategy getEdgeStrategy() {
+    	return edgeStrategy;
+    }
+    
+    @NonProperty
+    public void setEdgeStrategy(EdgeStrategy edgeStrategy) {
+    	this.edgeStrategy = edgeStrategy;
+    }
+    
     @Mutator
     public void setDirectRecord(SourceTableRecord src) {
     	SourceTableRecord old = origRHS;
@@ -578,9 +634,10 @@ public class PotentialMatchRecord extends AbstractMatchMakerObject{
 	
 	@Override
 	public int hashCode() {
+		// equals() ignores which side each record is on, so the hash must too
 		int result = 17;
-		result = 37*result + (origLHS == null ? 0 : origLHS.hashCode());
-		result = 37*result + (origRHS == null ? 0 : origRHS.hashCode());
+		result = 37*result + (origLHS == null ? 0 : origLHS.hashCode())
+				+ (origRHS == null ? 0 : origRHS.hashCode());
 		return result;
 	}
 
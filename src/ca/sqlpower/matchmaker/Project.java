@@ -145,6 +145,27 @@ public class Project extends AbstractMatchMakerObject {
     /** Folder name for munge processes. */
     public static final String MUNGE_PROCESSES_FOLDER_NAME = "Transformations";
     
+    /** 
+     * Result table column holding the id of the cluster each match belongs
+     * to. The id stays the same across engine runs as long as the cluster
+     * does.
+     */
+    public static final String CLUSTER_ID_COLUMN = "cluster_id";
+    
+    /** 
+     * Result table column holding the position of each match's cluster in
+     * the order the clusters are shown in, from 0 to the cluster count - 1.
+     */
+    public static final String CLUSTER_ORDINAL_COLUMN = "cluster_ordinal";
+    
+    /**
+     * Result table column holding the name of the munge process edge
+     * strategy that created each match, so a group that was only connected
+     * by a star or a chain of matches can be told apart from one that was
+     * fully matched.
+     */
+    public static final String EDGE_STRATEGY_COLUMN = "edge_strategy";
+    
     /**
      * Cached source table 
      */
@@ -344,6 +365,31 @@ public class Project extends AbstractMatchMakerObject {
 				getResultTableName());
 	}
 
+	/**
+	 * Returns true if the result table of this project has the cluster_id and
+	 * cluster_ordinal columns. Result tables created by older versions do not
+	 * have them, so the clusters have to be worked out in memory instead of
+	 * being read a page at a time.
+	 * @throws SQLObjectException If there are problems populating the result table's columns
+	 */
+	public boolean doesResultTableHaveClusterColumns() throws SQLObjectException {
+		SQLTable resultTable = getResultTable();
+		return resultTable != null 
+			&& resultTable.getColumnByName(CLUSTER_ID_COLUMN) != null
+			&& resultTable.getColumnByName(CLUSTER_ORDINAL_COLUMN) != null;
+	}
+
+	/**
+	 * Returns true if the result table of this project has the edge_strategy
+	 * column, which result tables created by older versions do not have.
+	 * @throws SQLObjectException If there are problems populating the result table's columns
+	 */
+	public boolean doesResultTableHaveEdgeStrategyColumn() throws SQLObjectException {
+		SQLTable resultTable = getResultTable();
+		return resultTable != null 
+			&& resultTable.getColumnByName(EDGE_STRATEGY_COLUMN) != null;
+	}
+
 	/**
 	 * Returns true if the source table of this project exists in the session's
 	 * database; false otherwise.
@@ -438,8 +484,25 @@ public class Project extends AbstractMatchMakerObject {
 	 */
 	public SQLTable buildDedupeResultTable(SQLTable resultTable, SQLIndex si) 
 		throws SQLObjectException {
+		return buildDedupeResultTable(resultTable.getParent(), resultTable.getName(), resultTable.getRemarks(), si, true);
+	}
+
+	/**
+	 * This builds a table with the structure of a result table under the
+	 * given parent. The table is not added to the parent.
+	 * 
+	 * @param parent The catalog, schema or database the table belongs in.
+	 * @param name The name of the new table.
+	 * @param remarks The remarks of the new table.
+	 * @param si The unique index upon which the result table should reflect on
+	 * @param withIndexes False to leave out the unique and cluster indexes,
+	 * for a table that is only read once and not worth keeping indexed.
+	 * @throws SQLObjectException
+	 */
+	public SQLTable buildDedupeResultTable(SQLObject parent, String name, String remarks, SQLIndex si,
+			boolean withIndexes) throws SQLObjectException {
 		
-		SQLTable t = new SQLTable(resultTable.getParent(), resultTable.getName(), resultTable.getRemarks(), "TABLE", true);
+		SQLTable t = new SQLTable(parent, name, remarks, "TABLE", true);
 
 		addResultTableColumns(t, si, "dup_candidate_1");
 		addResultTableColumns(t, si, "dup_candidate_2");
@@ -480,12 +543,29 @@ public class Project extends AbstractMatchMakerObject {
 		col = new SQLColumn(t, "dup1_master_ind", getSession().getSQLType(Types.VARCHAR), 1, 0, false);
 		t.addColumn(col);
 
+		col = new SQLColumn(t, CLUSTER_ID_COLUMN, getSession().getSQLType(Types.INTEGER), 0, 0, false);
+		t.addColumn(col);
+
+		SQLColumn clusterOrdinal = new SQLColumn(t, CLUSTER_ORDINAL_COLUMN, getSession().getSQLType(Types.INTEGER), 0, 0, false);
+		t.addColumn(clusterOrdinal);
+
+		col = new SQLColumn(t, EDGE_STRATEGY_COLUMN, getSession().getSQLType(Types.VARCHAR), 15, 0, false);
+		t.addColumn(col);
+		
+		if (!withIndexes) {
+			return t;
+		}
+
 		SQLIndex newidx = new SQLIndex(t.getName()+"_uniq", true, null, null, null);
 		for (int i = 0; i < si.getChildCount() * 2; i++) {
 			newidx.addChild(new Column(t.getColumn(i), AscendDescend.ASCENDING));
 		}
 		t.addIndex(newidx);
 		
+		SQLIndex clusterIdx = new SQLIndex(t.getName()+"_cluster", false, null, null, null);
+		clusterIdx.addChild(new Column(clusterOrdinal, AscendDescend.ASCENDING));
+		t.addIndex(clusterIdx);
+		
 		return t;
 	}
 
@@ -527,7 +607,10 @@ public class Project extends AbstractMatchMakerObject {
 	 * <p>match_status VARCHAR(15),
 	 * <p>match_status_date  TIMESTAMP,
 	 * <p>match_status_user  VARCHAR(35),
-	 * <p>dup1_master_ind  VARCHAR(1)
+	 * <p>dup1_master_ind  VARCHAR(1),
+	 * <p>cluster_id  INTEGER,
+	 * <p>cluster_ordinal  INTEGER,
+	 * <p>edge_strategy  VARCHAR(15)
 	 * <p>
 	 * where xxx is a sequence from 0 to the total number of unique
 	 * index column - 1 of the source table. yyy is the datatype of 
@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.architect.ddl.DDLGenerator;
+import ca.sqlpower.architect.ddl.DDLStatement;
+import ca.sqlpower.architect.ddl.DDLUtils;
+import ca.sqlpower.sqlobject.SQLIndex;
+import ca.sqlpower.sqlobject.SQLObjectException;
+import ca.sqlpower.sqlobject.SQLTable;
+
+/**
+ * Writes large numbers of new potential match records to a project's result
+ * table. The records are first streamed into a staging table with the same
+ * columns as the result table using inserts of many rows each, then moved
+ * into the result table with one set based delete and one INSERT...SELECT.
+ * This saves the round trip and the index maintenance of inserting each
+ * record into the result table on its own. The staging table is only read
+ * once, by those two statements, so it is made without the result table's
+ * indexes.
+ * <p>
+ * Each writer makes a staging table of its own, so two stores to the same
+ * result table at once never share one. It is named after the result table
+ * with {@link #STAGING_TABLE_INFIX} and a random token appended, lives in the
+ * same catalog and schema, and is dropped once the write has been committed
+ * or rolled back.
+ */
+public class ResultTableBulkWriter {
+
+	private static final Logger logger = Logger.getLogger(ResultTableBulkWriter.class);
+
+	/**
+	 * Added to the name of the result table, followed by a random token, to
+	 * name each staging table.
+	 */
+	public static final String STAGING_TABLE_INFIX = "_stg";
+
+	/**
+	 * The number of random characters at the end of a staging table name.
+	 */
+	private static final int TOKEN_LENGTH = 6;
+
+	private static final String TOKEN_CHARACTERS = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+	/**
+	 * Staging table names are kept within the 30 characters Oracle allows, by
+	 * shortening the result table's name if needed.
+	 */
+	private static final int MAX_TABLE_NAME_LENGTH = 30;
+
+	/**
+	 * The number of names tried for a new staging table before giving up.
+	 */
+	private static final int MAX_NAME_ATTEMPTS = 10;
+
+	private static final Random random = new Random();
+
+	/**
+	 * Many databases limit the number of parameters of a single statement (SQL
+	 * Server allows 2100), so each multi-row insert is kept under this many.
+	 */
+	private static final int MAX_PARAMETERS = 2000;
+
+	private final Project project;
+
+	/**
+	 * The number of rows to send to the staging table in each round trip.
+	 */
+	private final int batchSize;
+
+	/**
+	 * The staging table, set once it has been created and back to null when
+	 * it is dropped.
+	 */
+	private SQLTable stagingTable;
+
+	private String lastSQL;
+
+	public ResultTableBulkWriter(Project project, int batchSize) {
+		this.project = project;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Creates a new staging table under a name no other table has. As some
+	 * databases commit the current transaction when a table is created, this
+	 * should be called before anything else is done on the connection. The
+	 * table has to be dropped with {@link #dropStagingTable(Connection)} once
+	 * the write is over.
+	 *
+	 * @param numKeyValues
+	 *            The number of columns in the source table's unique key.
+	 */
+	public void prepareStagingTable(Connection con, int numKeyValues) throws SQLException {
+		if (stagingTable != null) {
+			throw new IllegalStateException("The staging table " + stagingTable.getName() +
+					" has already been prepared");
+		}
+		SQLTable resultTable = project.getResultTable();
+		Statement stmt = null;
+		try {
+			SQLIndex si = project.getSourceTableIndex();
+			if (si.getChildCount() != numKeyValues) {
+				throw new IllegalStateException("The source table index has " + si.getChildCount() +
+						" columns but the match records have " + numKeyValues + " key values.");
+			}
+			String stagingName = newStagingTableName(con, resultTable.getName());
+			SQLTable newTable = project.buildDedupeResultTable(resultTable.getParent(), stagingName, null, si, false);
+			DDLGenerator ddlg = DDLUtils.createDDLGenerator(resultTable.getParentDatabase().getDataSource());
+			if (ddlg == null) {
+				throw new IllegalStateException("Couldn't create DDL Generator for database type " +
+						resultTable.getParentDatabase().getDataSource().getDriverClass());
+			}
+			ddlg.setTargetCatalog(project.getResultTableCatalog());
+			ddlg.setTargetSchema(project.getResultTableSchema());
+			ddlg.addTable(newTable);
+			stmt = con.createStatement();
+			for (DDLStatement ddl : ddlg.getDdlStatements()) {
+				lastSQL = ddl.getSQLText();
+				logger.debug("Creating staging table: " + lastSQL);
+				stmt.executeUpdate(lastSQL);
+			}
+			con.commit();
+			stagingTable = newTable;
+		} catch (SQLException ex) {
+			logger.error("Error in query: " + lastSQL, ex);
+			throw ex;
+		} catch (SQLObjectException ex) {
+			throw new RuntimeException(ex);
+		} catch (InstantiationException ex) {
+			throw new RuntimeException(ex);
+		} catch (IllegalAccessException ex) {
+			throw new RuntimeException(ex);
+		} catch (ClassNotFoundException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			if (stmt != null) try { stmt.close(); } catch (SQLException ex) { logger.error("Couldn't close statement", ex); }
+		}
+	}
+
+	/**
+	 * Drops the staging table made by
+	 * {@link #prepareStagingTable(Connection, int)}, if there is one. As some
+	 * databases commit the current transaction when a table is dropped, this
+	 * should be called after the write has been committed or rolled back. A
+	 * table that can't be dropped is logged and left behind, since the write
+	 * itself is already over.
+	 */
+	public void dropStagingTable(Connection con) {
+		if (stagingTable == null) {
+			return;
+		}
+		Statement stmt = null;
+		try {
+			stmt = con.createStatement();
+			lastSQL = "DROP TABLE " + DDLUtils.toQualifiedName(stagingTable);
+			logger.debug("Dropping staging table: " + lastSQL);
+			stmt.executeUpdate(lastSQL);
+			con.commit();
+		} catch (SQLException ex) {
+			logger.error("Couldn't drop the staging table " + stagingTable.getName() +
+					", it will have to be dropped by hand", ex);
+		} finally {
+			if (stmt != null) try { stmt.close(); } catch (SQLException ex) { logger.error("Couldn't close statement", ex); }
+			stagingTable = null;
+		}
+	}
+
+	/**
+	 * Returns the name of the staging table, or null if it has not been
+	 * prepared or has been dropped.
+	 */
+	public String getStagingTableName() {
+		return stagingTable == null ? null : stagingTable.getName();
+	}
+
+	/**
+	 * Writes the given new records to the result table through the staging
+	 * table. Rows in the result table for the same pairs of records are
+	 * replaced. The connection is not committed, so the caller decides whether
+	 * the changes are kept. {@link #prepareStagingTable(Connection, int)} must
+	 * be called first.
+	 */
+	public void write(Connection con, Collection<PotentialMatchRecord> records,
+			boolean clusterColumns, boolean edgeStrategyColumn, Timestamp now, String appUser) throws SQLException {
+		if (records.isEmpty()) {
+			return;
+		}
+		if (stagingTable == null) {
+			throw new IllegalStateException("The staging table has not been prepared");
+		}
+		int numKeyValues = records.iterator().next().getOrigLHS().getKeyValues().size();
+		try {
+			fillStagingTable(con, records, numKeyValues, clusterColumns, edgeStrategyColumn, now, appUser);
+			applyStagingTable(con, numKeyValues, clusterColumns, edgeStrategyColumn);
+		} catch (SQLException ex) {
+			logger.error("Error in query: " + lastSQL, ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the last statement the writer ran or prepared.
+	 */
+	public String getLastSQL() {
+		return lastSQL;
+	}
+
+	private void fillStagingTable(Connection con, Collection<PotentialMatchRecord> records,
+			int numKeyValues, boolean clusterColumns, boolean edgeStrategyColumn, Timestamp now, String appUser) throws SQLException {
+		int paramsPerRow = getInsertParameterCount(numKeyValues, clusterColumns, edgeStrategyColumn);
+		int rowsPerStatement = 1;
+		if (supportsMultiRowInsert(con)) {
+			rowsPerStatement = Math.max(1, Math.min(batchSize, MAX_PARAMETERS / paramsPerRow));
+		}
+		boolean supportsBatchUpdates = con.getMetaData().supportsBatchUpdates();
+		logger.debug("Writing " + records.size() + " records to the staging table, " +
+				rowsPerStatement + " rows per statement");
+
+		PotentialMatchRecord[] pending = new PotentialMatchRecord[rowsPerStatement];
+		int pendingCount = 0;
+		int rowsInBatch = 0;
+		PreparedStatement ps = null;
+		try {
+			lastSQL = buildStagingInsert(numKeyValues, clusterColumns, edgeStrategyColumn, rowsPerStatement);
+			ps = con.prepareStatement(lastSQL);
+			for (PotentialMatchRecord pmr : records) {
+				pending[pendingCount++] = pmr;
+				if (pendingCount < rowsPerStatement) continue;
+
+				for (int i = 0; i < pendingCount; i++) {
+					bindInsertRow(ps, i * paramsPerRow, pending[i], numKeyValues, clusterColumns, edgeStrategyColumn, now, appUser);
+				}
+				pendingCount = 0;
+				if (supportsBatchUpdates) {
+					ps.addBatch();
+					rowsInBatch += rowsPerStatement;
+					if (rowsInBatch >= batchSize) {
+						ps.executeBatch();
+						rowsInBatch = 0;
+					}
+				} else {
+					ps.executeUpdate();
+				}
+			}
+			if (rowsInBatch > 0) {
+				ps.executeBatch();
+			}
+			ps.close();
+			ps = null;
+
+			if (pendingCount > 0) {
+				lastSQL = buildStagingInsert(numKeyValues, clusterColumns, edgeStrategyColumn, pendingCount);
+				ps = con.prepareStatement(lastSQL);
+				for (int i = 0; i < pendingCount; i++) {
+					bindInsertRow(ps, i * paramsPerRow, pending[i], numKeyValues, clusterColumns, edgeStrategyColumn, now, appUser);
+				}
+				ps.executeUpdate();
+			}
+		} finally {
+			if (ps != null) try { ps.close(); } catch (SQLException ex) { logger.error("Couldn't close prepared statement", ex); }
+		}
+	}
+
+	/**
+	 * Replaces the rows of the result table for the pairs in the staging
+	 * table with the staged rows.
+	 */
+	private void applyStagingTable(Connection con, int numKeyValues, boolean clusterColumns, boolean edgeStrategyColumn) throws SQLException {
+		String resultName = DDLUtils.toQualifiedName(project.getResultTable());
+		String stagingName = DDLUtils.toQualifiedName(stagingTable);
+		Statement stmt = null;
+		try {
+			stmt = con.createStatement();
+
+			StringBuilder sql = new StringBuilder();
+			sql.append("DELETE FROM ").append(resultName);
+			sql.append("\n WHERE EXISTS (SELECT 1 FROM ").append(stagingName).append(" s");
+			sql.append("\n  WHERE ");
+			for (int i = 0; i < numKeyValues; i++) {
+				if (i > 0) sql.append(" AND ");
+				sql.append("s.DUP_CANDIDATE_1").append(i).append("=").append(resultName).append(".DUP_CANDIDATE_1").append(i);
+				sql.append(" AND s.DUP_CANDIDATE_2").append(i).append("=").append(resultName).append(".DUP_CANDIDATE_2").append(i);
+			}
+			sql.append(")");
+			lastSQL = sql.toString();
+			logger.debug("Removing replaced matches: " + lastSQL);
+			int deleted = stmt.executeUpdate(lastSQL);
+			logger.debug("Removed " + deleted + " rows from the result table");
+
+			String columns = getInsertColumns(numKeyValues, clusterColumns, edgeStrategyColumn);
+			lastSQL = "INSERT INTO " + resultName + " " + columns +
+				"\n SELECT " + columns.substring(1, columns.length() - 1) + " FROM " + stagingName;
+			logger.debug("Moving staged matches: " + lastSQL);
+			int inserted = stmt.executeUpdate(lastSQL);
+			logger.debug("Inserted " + inserted + " rows into the result table");
+		} finally {
+			if (stmt != null) try { stmt.close(); } catch (SQLException ex) { logger.error("Couldn't close statement", ex); }
+		}
+	}
+
+	private String buildStagingInsert(int numKeyValues, boolean clusterColumns, boolean edgeStrategyColumn, int rows) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("INSERT INTO ").append(DDLUtils.toQualifiedName(stagingTable)).append(" ");
+		sql.append(getInsertColumns(numKeyValues, clusterColumns, edgeStrategyColumn));
+		sql.append("\n VALUES ");
+		int params = getInsertParameterCount(numKeyValues, clusterColumns, edgeStrategyColumn);
+		for (int row = 0; row < rows; row++) {
+			if (row > 0) sql.append(", ");
+			sql.append("(");
+			for (int i = 0; i < params; i++) {
+				if (i > 0) sql.append(", ");
+				sql.append("?");
+			}
+			sql.append(")");
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * Oracle does not accept more than one row in a VALUES list, so each row
+	 * gets its own statement in the batch there.
+	 */
+	private static boolean supportsMultiRowInsert(Connection con) throws SQLException {
+		String product = con.getMetaData().getDatabaseProductName();
+		return product == null || !product.toLowerCase().contains("oracle");
+	}
+
+	/**
+	 * Picks a name for a new staging table that no table in the result
+	 * table's catalog and schema has yet.
+	 */
+	private String newStagingTableName(Connection con, String resultTableName) throws SQLException {
+		int maxBaseLength = MAX_TABLE_NAME_LENGTH - STAGING_TABLE_INFIX.length() - TOKEN_LENGTH;
+		String base = resultTableName;
+		if (base.length() > maxBaseLength) {
+			base = base.substring(0, maxBaseLength);
+		}
+		for (int attempt = 0; attempt < MAX_NAME_ATTEMPTS; attempt++) {
+			StringBuilder name = new StringBuilder(base).append(STAGING_TABLE_INFIX);
+			for (int i = 0; i < TOKEN_LENGTH; i++) {
+				name.append(TOKEN_CHARACTERS.charAt(random.nextInt(TOKEN_CHARACTERS.length())));
+			}
+			if (!tableExists(con, name.toString())) {
+				return name.toString();
+			}
+		}
+		throw new IllegalStateException("Couldn't find a free name for a staging table for " + resultTableName);
+	}
+
+	/**
+	 * Checks the database for the table under the result table's catalog and
+	 * schema, trying the name as given and in both cases since databases do
+	 * not agree on how unquoted names are stored.
+	 */
+	private boolean tableExists(Connection con, String tableName) throws SQLException {
+		DatabaseMetaData dbmd = con.getMetaData();
+		for (String name : new String[] {tableName, tableName.toUpperCase(), tableName.toLowerCase()}) {
+			ResultSet rs = null;
+			try {
+				rs = dbmd.getTables(project.getResultTableCatalog(), project.getResultTableSchema(), name, null);
+				if (rs.next()) {
+					return true;
+				}
+			} finally {
+				if (rs != null) rs.close();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the parenthesized list of the result table columns written for
+	 * each new potential match record, in the order the parameters are bound
+	 * by {@link #bindInsertRow(PreparedStatement, int, PotentialMatchRecord, int, boolean, boolean, Timestamp, String)}.
+	 * 
+	 * @param clusterColumns
+	 *            True if the cluster id and ordinal columns should be included.
+	 * @param edgeStrategyColumn
+	 *            True if the edge strategy column should be included.
+	 */
+	static String getInsertColumns(int numKeyValues, boolean clusterColumns, boolean edgeStrategyColumn) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("(");
+		for (int i = 0; i < numKeyValues; i++) {
+			sql.append("DUP_CANDIDATE_1").append(i).append(", ");
+			sql.append("DUP_CANDIDATE_2").append(i).append(", ");
+		}
+		sql.append("MATCH_PERCENT");
+		sql.append(", GROUP_ID");
+		sql.append(", MATCH_STATUS");
+		sql.append(", DUP1_MASTER_IND");
+		sql.append(", MATCH_DATE");
+		sql.append(", MATCH_STATUS_DATE");
+		sql.append(", MATCH_STATUS_USER");
+
+		//These fields are only used for the old merge engine and will be removed when
+		//the merging is rewritten in Java
+		for (int i = 0; i < numKeyValues; i++) {
+			sql.append(", DUP_ID").append(i);
+			sql.append(", MASTER_ID").append(i);
+		}
+		if (clusterColumns) {
+			sql.append(", CLUSTER_ID");
+			sql.append(", CLUSTER_ORDINAL");
+		}
+		if (edgeStrategyColumn) {
+			sql.append(", EDGE_STRATEGY");
+		}
+		sql.append(")");
+		return sql.toString();
+	}
+
+	/**
+	 * Returns the number of parameters bound for each new potential match
+	 * record.
+	 */
+	static int getInsertParameterCount(int numKeyValues, boolean clusterColumns, boolean edgeStrategyColumn) {
+		return numKeyValues * 4 + 7 + (clusterColumns ? 2 : 0) + (edgeStrategyColumn ? 1 : 0);
+	}
+
+	/**
+	 * Binds the values of one new potential match record to the parameters of
+	 * the statement following the given offset.
+	 */
+	static void bindInsertRow(PreparedStatement ps, int offset, PotentialMatchRecord pmr,
+			int numKeyValues, boolean clusterColumns, boolean edgeStrategyColumn, Timestamp now, String appUser) throws SQLException {
+		for (int i = 0; i < numKeyValues; i++) {
+			ps.setObject(offset + i * 2 + 1, pmr.getOrigLHS().getKeyValues().get(i));
+			ps.setObject(offset + i * 2 + 2, pmr.getOrigRHS().getKeyValues().get(i));
+		}
+		ps.setObject(offset + numKeyValues * 2 + 1, pmr.getMungeProcess().getMatchPriority());
+		ps.setObject(offset + numKeyValues * 2 + 2, pmr.getMungeProcess().getName());
+		ps.setObject(offset + numKeyValues * 2 + 3, pmr.getMatchStatus().getCode());
+
+		SourceTableRecord duplicate;
+		SourceTableRecord master;
+		if (pmr.isDirectMaster()) {
+			ps.setObject(offset + numKeyValues * 2 + 4, "Y");
+			duplicate = pmr.getOrigRHS();
+			master = pmr.getOrigLHS();
+		} else if (pmr.isReferencedMaster()) {
+			ps.setObject(offset + numKeyValues * 2 + 4, "N");
+			duplicate = pmr.getOrigLHS();
+			master = pmr.getOrigRHS();
+		} else {
+			ps.setObject(offset + numKeyValues * 2 + 4, null);
+			duplicate = null;
+			master = null;
+		}
+		ps.setTimestamp(offset + numKeyValues * 2 + 5, now);
+		ps.setTimestamp(offset + numKeyValues * 2 + 6, now);
+		ps.setString(offset + numKeyValues * 2 + 7, appUser);
+
+		for (int i = 0; i < numKeyValues; i++) {
+			int baseParamIndex = offset + (numKeyValues + i) * 2;
+			ps.setObject(baseParamIndex + 8, duplicate == null ? null : duplicate.getKeyValues().get(i));
+			ps.setObject(baseParamIndex + 9, master == null ? null : master.getKeyValues().get(i));
+		}
+		if (clusterColumns) {
+			ps.setObject(offset + numKeyValues * 4 + 8, pmr.getClusterId());
+			ps.setObject(offset + numKeyValues * 4 + 9, pmr.getClusterOrdinal());
+		}
+		if (edgeStrategyColumn) {
+			int index = offset + numKeyValues * 4 + (clusterColumns ? 10 : 8);
+			if (pmr.getEdgeStrategy() == null) {
+				ps.setNull(index, Types.VARCHAR);
+			} else {
+				ps.setString(index, pmr.getEdgeStrategy().name());
+			}
+		}
+	}
+}
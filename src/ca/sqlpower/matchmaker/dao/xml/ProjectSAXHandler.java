@@ -51,6 +51,7 @@ import ca.sqlpower.matchmaker.Project;
 import ca.sqlpower.matchmaker.TableMergeRules;
 import ca.sqlpower.matchmaker.ColumnMergeRules.MergeActionType;
 import ca.sqlpower.matchmaker.MungeSettings.AutoValidateSetting;
+import ca.sqlpower.matchmaker.MungeSettings.MatchMode;
 import ca.sqlpower.matchmaker.MungeSettings.PoolFilterSetting;
 import ca.sqlpower.matchmaker.TableMergeRules.ChildMergeActionType;
 import ca.sqlpower.matchmaker.munge.AbstractMungeStep;
@@ -65,6 +66,7 @@ import ca.sqlpower.matchmaker.munge.DoubleMetaphoneMungeStep;
 import ca.sqlpower.matchmaker.munge.GoogleAddressLookup;
 import ca.sqlpower.matchmaker.munge.InputDescriptor;
 import ca.sqlpower.matchmaker.munge.MungeProcess;
+import ca.sqlpower.matchmaker.munge.MungeProcess.EdgeStrategy;
 import ca.sqlpower.matchmaker.munge.MungeStepInput;
 import ca.sqlpower.matchmaker.munge.MungeStepOutput;
 import ca.sqlpower.matchmaker.munge.NumberConstantMungeStep;
@@ -385,6 +387,28 @@ public class ProjectSAXHandler extends DefaultHandler {
                     	ms.setPoolFilterSetting(PoolFilterSetting.valueOf(aval));
                     } else if (aname.equals("auto-validate-setting")) {
                     	ms.setAutoValidateSetting(AutoValidateSetting.valueOf(aval));
+                    } else if (aname.equals("match-mode")) {
+                    	ms.setMatchMode(MatchMode.valueOf(aval));
+                    } else if (aname.equals("spill-heap-percentage")) {
+                    	ms.setSpillHeapPercentage(Integer.parseInt(aval));
+                    } else if (aname.equals("use-bulk-write")) {
+                    	ms.setUseBulkWrite(Boolean.valueOf(aval));
+                    } else if (aname.equals("bulk-write-batch-size")) {
+                    	ms.setBulkWriteBatchSize(Integer.parseInt(aval));
+                    } else if (aname.equals("munge-thread-count")) {
+                    	ms.setMungeThreadCount(Integer.parseInt(aval));
+                    } else if (aname.equals("share-source-scan")) {
+                    	ms.setShareSourceScan(Boolean.valueOf(aval));
+                    } else if (aname.equals("process-thread-count")) {
+                    	ms.setProcessThreadCount(Integer.parseInt(aval));
+                    } else if (aname.equals("prefetch-row-count")) {
+                    	ms.setPrefetchRowCount(Integer.parseInt(aval));
+                    } else if (aname.equals("use-off-heap-results")) {
+                    	ms.setUseOffHeapResults(Boolean.valueOf(aval));
+                    } else if (aname.equals("two-pass-munge")) {
+                    	ms.setTwoPassMunge(Boolean.valueOf(aval));
+                    } else if (aname.equals("singleton-filter-size")) {
+                    	ms.setSingletonFilterSize(Integer.parseInt(aval));
                     } else {
                         logger.warn("Unexpected attribute of <munge-settings>: " + aname + "=" + aval + " at " + locationAsString());
                     }
@@ -404,6 +428,10 @@ public class ProjectSAXHandler extends DefaultHandler {
                         ms.setAugmentNull(Boolean.valueOf(aval));
                     } else if (aname.equals("backup")) {
                         ms.setBackUp(Boolean.valueOf(aval));
+                    } else if (aname.equals("batch-size")) {
+                        ms.setBatchSize(Integer.parseInt(aval));
+                    } else if (aname.equals("commit-interval")) {
+                        ms.setCommitInterval(Integer.parseInt(aval));
                     } else {
                         logger.warn("Unexpected attribute of <merge-settings>: " + aname + "=" + aval + " at " + locationAsString());
                     }
@@ -436,6 +464,10 @@ public class ProjectSAXHandler extends DefaultHandler {
                         process.setColour(Color.decode(aval));
                     } else if (aname.equals("priority")) {
                         process.setMatchPriority(Integer.valueOf(aval));
+                    } else if (aname.equals("edge-strategy")) {
+                    	process.setEdgeStrategy(EdgeStrategy.valueOf(aval));
+                    } else if (aname.equals("edge-group-threshold")) {
+                    	process.setEdgeGroupThreshold(Integer.parseInt(aval));
                     } else {
                         logger.warn("Unexpected attribute of <munge-process>: " + aname + "=" + aval + " at " + locationAsString());
                     }
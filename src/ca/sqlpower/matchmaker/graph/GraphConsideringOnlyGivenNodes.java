@@ -22,6 +22,7 @@ package ca.sqlpower.matchmaker.graph;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -80,14 +81,21 @@ public class GraphConsideringOnlyGivenNodes implements
 		return adjacentNodes;
 	}
 
+	/**
+	 * Returns the edges between the given nodes. Only the edges of the given
+	 * nodes are looked at, not every edge in the pool, as the graph is usually
+	 * much smaller than the pool.
+	 */
 	public Collection<PotentialMatchRecord> getEdges() {
-		Collection<PotentialMatchRecord> edges = new ArrayList<PotentialMatchRecord>();
-        for (PotentialMatchRecord pmr : pool.getPotentialMatchRecords()){
-            if (nodes.contains(pmr.getOrigLHS()) && nodes.contains(pmr.getOrigRHS())){
-                edges.add(pmr);
-            }
-        }
-        return edges;
+		Collection<PotentialMatchRecord> edges = new LinkedHashSet<PotentialMatchRecord>();
+		for (SourceTableRecord node : nodes) {
+			for (PotentialMatchRecord pmr : node.getOriginalMatchEdges()) {
+				if (nodes.contains(pmr.getOrigLHS()) && nodes.contains(pmr.getOrigRHS())) {
+					edges.add(pmr);
+				}
+			}
+		}
+		return edges;
 	}
 
 	public Collection<PotentialMatchRecord> getInboundEdges(SourceTableRecord node) {
@@ -64,14 +64,16 @@ public class NonDirectedUserValidatedMatchPoolGraphModel implements
     
     /**
      * Compiles and returns a list of SourceTableRecord where the PotentialMatchRecord
-     * connecting the two nodes has a decided master SourceTableRecord 
+     * connecting the two nodes has a decided master SourceTableRecord. Only the
+     * edges incident to the node are looked at, not every decided edge in the pool.
      */
     public Collection<SourceTableRecord> getAdjacentNodes(SourceTableRecord node) {
     	Collection<SourceTableRecord> adjacentNodes = new ArrayList<SourceTableRecord>();
-    	if (logger.isDebugEnabled()) {
-    	    logger.debug("The number of edges for this node is " + getEdges().size());
-    	}
-    	for (PotentialMatchRecord pmr : getEdges()){
+    	Set<PotentialMatchRecord> decidedEdges = pool.getDecidedRecordsCache();
+    	for (PotentialMatchRecord pmr : node.getOriginalMatchEdges()){
+    		if (!decidedEdges.contains(pmr)) {
+    			continue;
+    		}
     		if (pmr.getMasterRecord() == node){
     			adjacentNodes.add(pmr.getDuplicate());
     		} else if (pmr.getDuplicate() == node){
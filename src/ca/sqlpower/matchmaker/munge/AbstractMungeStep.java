@@ -162,6 +162,71 @@ public abstract class AbstractMungeStep extends AbstractMatchMakerObject impleme
 	 * A method that is called when an step is "run/called". Default is No-op. 
 	 */
 	public Boolean doCall() throws Exception{return Boolean.TRUE;}
+
+	/**
+	 * A method that is called for every row when the step is run as part of
+	 * a compiled {@link MungePlan}, in place of {@link #call()}. The value of
+	 * input <i>i</i> is <code>slots[inputSlots[i]]</code>, or null if
+	 * <code>inputSlots[i]</code> is negative because the input is not
+	 * connected, and the value of output <i>i</i> must be stored in
+	 * <code>slots[outputSlots[i]]</code>.
+	 * <p>
+	 * The default copies the input values into the outputs the inputs are
+	 * connected to, calls {@link #doCall()} and copies the outputs of this step
+	 * back into the slots. Steps that are cheap enough for that copying to
+	 * matter should override this to work on the slots directly.
+	 */
+	@SuppressWarnings("unchecked")
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		for (int i = 0; i < inputSlots.length; i++) {
+			if (inputSlots[i] >= 0) {
+				inputs.get(i).getCurrent().setData(slots[inputSlots[i]]);
+			}
+		}
+		Boolean ret = doCall();
+		for (int i = 0; i < outputSlots.length; i++) {
+			slots[outputSlots[i]] = mungeStepOutputs.get(i).getData();
+		}
+		return ret;
+	}
+
+	/**
+	 * A method that is called once the plan this step is part of has been
+	 * compiled, and before it calls {@link #doCall(Object[], int[], int[])}.
+	 * Steps that need the slot of an output other than their own inputs and
+	 * outputs can look it up here. Default is No-op.
+	 */
+	protected void prepareSlots(MungePlan plan) {}
+
+	/**
+	 * Returns true if {@link #doCall(Object[], int[], int[])} can be called
+	 * for several partitions of a plan on different threads at once. Steps
+	 * that are not partition safe are only called by one partition at a time.
+	 * A step whose call needs a working object that is not thread safe, such
+	 * as a {@link java.util.regex.Matcher}, can still be partition safe by
+	 * giving each partition its own from {@link #openPartition(int, int)}.
+	 * The default is false, as the default call goes through the outputs.
+	 */
+	protected boolean isPartitionSafe() {
+		return false;
+	}
+
+	/**
+	 * A method that is called when a plan this step is part of starts on one
+	 * partition of the source table. The object returned is kept in the state
+	 * slot of this step, given by {@link MungePlan#getStateSlot(MungeStep)},
+	 * in every row of the partition. Default is no state.
+	 */
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		return null;
+	}
+
+	/**
+	 * A method that is called when a plan is done with one partition, with
+	 * the state {@link #openPartition(int, int)} returned for it. The success
+	 * flag is false if the run failed. Default is No-op.
+	 */
+	protected void closePartition(Object state, boolean success) throws Exception {}
 	/**
 	 * A method that is called when a step is attempting to rollback. Default is No-op. 
 	 */
@@ -778,6 +843,22 @@ public abstract class AbstractMungeStep extends AbstractMatchMakerObject impleme
         }
     }
     
+    /**
+     * Escapes the characters that the string munge steps treat as special in
+     * a regular expression, so the given text matches itself when a step is
+     * not in regex mode. This is done once when a step compiles its pattern
+     * rather than for every row.
+     */
+    static String escapeSpecialCharacters(String literal) {
+    	String specialChars = "-+*?()[]{}|^<=";
+    	String escaped = literal.replaceAll("\\\\", "\\\\\\\\");
+    	escaped = escaped.replaceAll("\\$", "\\\\\\$");
+    	for (char letter : specialChars.toCharArray()) {
+    		escaped = escaped.replaceAll("\\" + letter, "\\\\" + letter);
+    	}
+    	return escaped;
+    }
+    
     public List<ValidateResult> checkPreconditions() {
     	return Collections.emptyList();
     }
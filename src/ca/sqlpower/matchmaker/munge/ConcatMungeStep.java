@@ -110,6 +110,40 @@ public class ConcatMungeStep extends AbstractMungeStep {
 		}
 		return true;
 	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String delimiter = getDelimiter();
+		if (delimiter == null) {
+			delimiter = "";
+		}
+		
+		boolean allNulls = true;
+		boolean first = true;
+		StringBuilder data = new StringBuilder();
+		for (int slot : inputSlots) {
+			if (slot < 0) continue;
+			if (!first) {
+				data.append(delimiter);
+			}
+			if (slots[slot] != null) {
+				data.append((String) slots[slot]);
+				allNulls = false;
+			}
+			first = false;
+		}
+		if (allNulls && delimiter.length() == 0) {
+			slots[outputSlots[0]] = null;
+		} else {
+			slots[outputSlots[0]] = data.toString();
+		}
+		return true;
+	}
     
 	@Mutator
     public void setDelimiter(String delimiter) {
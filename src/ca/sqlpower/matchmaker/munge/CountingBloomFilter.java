@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often each sort key of munged data has been seen, in a fixed
+ * amount of memory, well enough to tell the keys that were seen once from the
+ * ones that may have been seen more than once. Each key is hashed to a few
+ * cells holding a two bit count that stops at two, and a key may have been
+ * seen more than once if all of its cells have reached two. Keys that were
+ * seen more than once are always reported as such, while a key that was seen
+ * only once is now and then reported as repeated because other keys share
+ * its cells.
+ * <p>
+ * Keys can be added from several threads at once.
+ */
+class CountingBloomFilter {
+
+	/**
+	 * The number of cells each key is hashed to.
+	 */
+	private static final int HASH_COUNT = 3;
+
+	/**
+	 * The count a cell stops at.
+	 */
+	private static final int REPEATED = 2;
+
+	/**
+	 * The two bit counts, 32 to a long.
+	 */
+	private final AtomicLongArray counts;
+
+	private final long cellCount;
+
+	/**
+	 * Creates a filter with the given number of cells, rounded up to a
+	 * multiple of 32.
+	 */
+	CountingBloomFilter(long cellCount) {
+		if (cellCount < 1) {
+			throw new IllegalArgumentException("A counting filter needs at least one cell, not " + cellCount);
+		}
+		long words = (cellCount + 31) / 32;
+		if (words > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many cells for a counting filter: " + cellCount);
+		}
+		counts = new AtomicLongArray((int) words);
+		this.cellCount = words * 32;
+	}
+
+	/**
+	 * Creates a filter that takes up the given number of megabytes.
+	 */
+	static CountingBloomFilter ofMegabytes(int megabytes) {
+		return new CountingBloomFilter(Math.max(1, megabytes) * 4L * 1024 * 1024);
+	}
+
+	long getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Counts one more occurrence of the given sort key.
+	 */
+	void add(byte[] key) {
+		for (long cell : cellsOf(key)) {
+			raise(cell);
+		}
+	}
+
+	/**
+	 * Returns false if the given sort key was added at most once, or true if
+	 * it may have been added more than once.
+	 */
+	boolean mayBeRepeated(byte[] key) {
+		for (long cell : cellsOf(key)) {
+			if (get(cell) < REPEATED) return false;
+		}
+		return true;
+	}
+
+	private int get(long cell) {
+		return (int) (counts.get((int) (cell >>> 5)) >>> ((cell & 31) << 1)) & 3;
+	}
+
+	/**
+	 * Raises the count of the cell by one unless it has already stopped.
+	 */
+	private void raise(long cell) {
+		int word = (int) (cell >>> 5);
+		int shift = (int) (cell & 31) << 1;
+		while (true) {
+			long old = counts.get(word);
+			if (((old >>> shift) & 3) >= REPEATED) return;
+			if (counts.compareAndSet(word, old, old + (1L << shift))) return;
+		}
+	}
+
+	/**
+	 * Picks the cells of a key from two halves of a 64 bit hash of it.
+	 */
+	private long[] cellsOf(byte[] key) {
+		long hash = hash(key);
+		long h1 = hash & 0xffffffffL;
+		long h2 = (hash >>> 32) | 1;
+		long[] cells = new long[HASH_COUNT];
+		for (int i = 0; i < HASH_COUNT; i++) {
+			cells[i] = ((h1 + i * h2) & Long.MAX_VALUE) % cellCount;
+		}
+		return cells;
+	}
+
+	/**
+	 * An FNV-1a hash of the key with the bits mixed at the end, so keys that
+	 * differ in a single byte do not end up in neighbouring cells.
+	 */
+	static long hash(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -28,7 +28,6 @@ import org.apache.log4j.Logger;
 
 import ca.sqlpower.matchmaker.MatchMakerEngine.EngineMode;
 import ca.sqlpower.matchmaker.Project;
-import ca.sqlpower.matchmaker.SourceTableRecord;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Constructor;
 import ca.sqlpower.object.annotation.NonProperty;
@@ -48,10 +47,25 @@ public class DeDupeResultStep extends AbstractMungeStep implements MungeResultSt
 
 	private static final Logger logger = Logger.getLogger(DeDupeResultStep.class);
 	
+	/**
+	 * The number of results added between checks of the heap usage.
+	 */
+	private static final int SPILL_CHECK_INTERVAL = 1024;
+	
+	/**
+	 * The fewest results written to each run after the first one. The heap
+	 * usage counts garbage that has not been collected yet, so the first run
+	 * can be spilled long before the heap is really full, and runs that small
+	 * would leave far too many files to merge.
+	 */
+	static final int MIN_SPILL_RUN_SIZE = 64 * 1024;
+	
 	/**
 	 * A list of MungeResults that represent the munged data
 	 * coming out of the Munging process. Any process after
-	 * munging can extract this data for it's own use.
+	 * munging can extract this data for it's own use. If the
+	 * results have been spilled to disk this only holds the
+	 * results that have not been written to a run yet.
 	 */
 	private List<MungeResult> results = 
 		new ArrayList<MungeResult>();
@@ -70,6 +84,51 @@ public class DeDupeResultStep extends AbstractMungeStep implements MungeResultSt
 	 * method is called.
 	 */
 	private MungeStepOutput[] indexValues;
+	
+	/**
+	 * The slots of the outputs in {@link #indexValues} in a compiled
+	 * {@link MungePlan}, or -1 where the output is missing. This is set up
+	 * when the plan is compiled.
+	 */
+	private int[] indexSlots;
+	
+	/**
+	 * The slot of the list the results of a partition are added to in a
+	 * compiled {@link MungePlan}.
+	 */
+	private int stateSlot;
+	
+	/**
+	 * The munge results that have been written to sorted runs on disk because
+	 * the heap usage went over the spill threshold in the project's munge
+	 * settings. This is null if the results all fit in memory.
+	 */
+	private SpilledMungeResults spilledResults;
+	
+	/**
+	 * The number of results held in memory when the first run was spilled.
+	 * Every later run is spilled once this many results have collected again.
+	 */
+	private int spillRunSize;
+	
+	/**
+	 * The munge results of the last run when the project keeps them off the
+	 * heap, or null if they are in {@link #results}.
+	 */
+	private MungeResultArena arenaResults;
+	
+	/**
+	 * Counts the sort keys of the munged data in the first run of a two pass
+	 * munge, and picks the rows to keep in the second. This is null unless
+	 * the {@link MungeProcessor} is running a two pass munge.
+	 */
+	private CountingBloomFilter keyFilter;
+	
+	/**
+	 * True while a run of this step only counts the sort keys in
+	 * {@link #keyFilter} and keeps no results.
+	 */
+	private boolean countingKeys;
 
 	@Constructor
 	public DeDupeResultStep() {
@@ -110,6 +169,11 @@ public class DeDupeResultStep extends AbstractMungeStep implements MungeResultSt
 		// results must be emptied out, or otherwise, it will
 		// contain the munge results from the last munge processor run.
 		results.clear();
+		deleteSpilledResults();
+		freeArenaResults();
+		if (getProject().getMungeSettings().isUseOffHeapResults() && !isPreviewMode()) {
+			arenaResults = new MungeResultArena();
+		}
 
         refresh(logger);
 	}
@@ -143,26 +207,248 @@ public class DeDupeResultStep extends AbstractMungeStep implements MungeResultSt
 		
 		Object[] mungedData = mungedDataList.toArray();
 		
-		MungeResult result = new MungeResult();
-		result.setMungedData(mungedData);
+		Object[] keyValues = new Object[indexValues.length];
+		for (int i = 0; i < indexValues.length; i++) {
+			if (indexValues[i] == null) {
+				throw new NullPointerException("Input step is missing unique key values!");
+			}
+			keyValues[i] = indexValues[i].getData();
+		}
 		
-		List<Object> indexValueList = new ArrayList<Object>();
+		addResult(mungedData, keyValues, arenaResults != null ? arenaResults : results);
+		return Boolean.TRUE;
+	}
+	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		indexSlots = new int[indexValues.length];
+		for (int i = 0; i < indexValues.length; i++) {
+			indexSlots[i] = indexValues[i] == null ? -1 : plan.getSlot(indexValues[i]);
+		}
+		stateSlot = plan.getStateSlot(this);
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Each partition of a split run collects its results in a list or an
+	 * off-heap arena of its own. A run that is not split adds them to
+	 * {@link #results} or {@link #arenaResults} directly.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		if (arenaResults != null) {
+			return partitionCount == 1 ? arenaResults : new MungeResultArena();
+		}
+		if (partitionCount == 1) {
+			return results;
+		}
+		return new ArrayList<MungeResult>();
+	}
+	
+	/**
+	 * Adds the results of a partition to the results of this step. The
+	 * partitions are closed in order, so the results are always in the same
+	 * order for the same source table.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void closePartition(Object state, boolean success) throws Exception {
+		if (state instanceof MungeResultArena) {
+			MungeResultArena partitionArena = (MungeResultArena) state;
+			if (partitionArena == arenaResults) return;
+			if (success) {
+				synchronized (this) {
+					arenaResults.addAll(partitionArena);
+				}
+			}
+			partitionArena.free();
+			return;
+		}
+		List<MungeResult> partitionResults = (List<MungeResult>) state;
+		if (!success || partitionResults == results || partitionResults.isEmpty()) return;
+		synchronized (this) {
+			if (spilledResults != null) {
+				spill(partitionResults);
+			} else {
+				results.addAll(partitionResults);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the munged data and the key values of the row straight from the
+	 * slots of a compiled {@link MungePlan}.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		int connected = 0;
+		for (int slot : inputSlots) {
+			if (slot >= 0) connected++;
+		}
+		Object[] mungedData = new Object[connected];
+		int index = 0;
+		for (int slot : inputSlots) {
+			if (slot >= 0) {
+				mungedData[index++] = slots[slot];
+			}
+		}
 		
-		for (MungeStepOutput o: indexValues) {
-			if (o == null) {
+		Object[] keyValues = new Object[indexSlots.length];
+		for (int i = 0; i < indexSlots.length; i++) {
+			if (indexSlots[i] < 0) {
 				throw new NullPointerException("Input step is missing unique key values!");
 			}
-			indexValueList.add(o.getData());
+			keyValues[i] = slots[indexSlots[i]];
 		}
 		
-		SourceTableRecord source = new SourceTableRecord(getProject(), indexValueList);
-		result.setSourceTableRecord(source);
-		
-		logger.debug("Adding MungeResult " + result);
-		results.add(result);
+		addResult(mungedData, keyValues, slots[stateSlot]);
 		return Boolean.TRUE;
 	}
 	
+	/**
+	 * Adds a munge result for one row to the given list, spilling the results
+	 * held in the list to disk if the heap is getting full. Only the key
+	 * values of the row are kept, the match processor creates source table
+	 * records for the rows that match. If the target is an off-heap arena
+	 * only the sort key and the key values are written to it. During a two
+	 * pass munge the row is only counted in the first run, and only kept in
+	 * the second if its munged data may have been seen more than once.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addResult(Object[] mungedData, Object[] keyValues, Object target) throws Exception {
+		// encode the sort key once here so matching only has to compare bytes
+		byte[] sortKey = MungeResultKeyEncoder.encode(mungedData);
+		if (keyFilter != null) {
+			// rows with null munged data can never match, so they are not kept
+			if (MungeResult.hasNullData(mungedData)) return;
+			if (countingKeys) {
+				keyFilter.add(sortKey);
+				return;
+			}
+			if (!keyFilter.mayBeRepeated(sortKey)) return;
+		}
+		if (target instanceof MungeResultArena) {
+			if (!MungeResult.hasNullData(mungedData)) {
+				((MungeResultArena) target).add(sortKey, keyValues);
+			}
+			return;
+		}
+		addResultToList(mungedData, sortKey, keyValues, (List<MungeResult>) target);
+	}
+	
+	private void addResultToList(Object[] mungedData, byte[] sortKey, Object[] keyValues,
+			List<MungeResult> target) throws Exception {
+		MungeResult result = new MungeResult();
+		result.setMungedData(mungedData);
+		result.setSortKey(sortKey);
+		
+		result.setKeyValues(keyValues);
+		
+		if (logger.isDebugEnabled()) {
+			logger.debug("Adding MungeResult " + result);
+		}
+		target.add(result);
+		
+		if (target.size() % SPILL_CHECK_INTERVAL == 0 && shouldSpill(target)) {
+			spill(target);
+		}
+	}
+
+	/**
+	 * Decides if the results held in memory should be written out to a new
+	 * run. The first run is spilled when the used heap goes over the project's
+	 * spill threshold, and the following runs are the same size as the first
+	 * but no smaller than {@link #MIN_SPILL_RUN_SIZE}.
+	 */
+	private synchronized boolean shouldSpill(List<MungeResult> target) {
+		if (isPreviewMode()) return false;
+		if (spilledResults != null) {
+			return target.size() >= spillRunSize;
+		}
+		int threshold = getProject().getMungeSettings().getSpillHeapPercentage();
+		if (threshold >= 100) return false;
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return used * 100 >= runtime.maxMemory() * threshold;
+	}
+	
+	private synchronized void spill(List<MungeResult> target) throws Exception {
+		if (spilledResults == null) {
+			spilledResults = new SpilledMungeResults();
+			spillRunSize = Math.max(target.size(), MIN_SPILL_RUN_SIZE);
+			logger.info("Heap usage is over the spill threshold, writing munge results to disk in runs of " +
+					spillRunSize);
+		}
+		spilledResults.addRun(target.toArray(new MungeResult[target.size()]), target.size());
+		target.clear();
+	}
+	
+	private void deleteSpilledResults() {
+		if (spilledResults != null) {
+			spilledResults.delete();
+			spilledResults = null;
+		}
+	}
+	
+	/**
+	 * Writes any results still held in memory to a last run if the earlier
+	 * results have been spilled, so all of the results are in the runs.
+	 */
+	@Override
+	public void doCommit() throws Exception {
+		if (spilledResults != null && !results.isEmpty()) {
+			spill(results);
+		}
+	}
+	
+	@Override
+	public void doRollback() throws Exception {
+		deleteSpilledResults();
+		freeArenaResults();
+	}
+	
+	private void freeArenaResults() {
+		if (arenaResults != null) {
+			arenaResults.free();
+			arenaResults = null;
+		}
+	}
+	
+	/**
+	 * Sets up the next runs of this step for a two pass munge. While counting,
+	 * the sort key of every row is added to the given filter and no results
+	 * are kept. Otherwise only the rows whose sort key may have been added to
+	 * the filter more than once are kept. A null filter keeps every row again.
+	 */
+	void setKeyFilter(CountingBloomFilter filter, boolean counting) {
+		this.keyFilter = filter;
+		this.countingKeys = filter != null && counting;
+	}
+	
+	/**
+	 * Returns the munge results of the last run of this step if they were
+	 * kept off the heap, or null if they are in {@link #getResults()}.
+	 * Whoever matches them is responsible for freeing them.
+	 */
+	@NonProperty
+	public MungeResultArena getArenaResults() {
+		return arenaResults;
+	}
+	
+	/**
+	 * Returns the munge results that were spilled to disk in the last run of
+	 * this step, or null if all of the results fit in {@link #getResults()}.
+	 * Whoever merges the runs is responsible for deleting them.
+	 */
+	@NonProperty
+	public SpilledMungeResults getSpilledResults() {
+		return spilledResults;
+	}
+	
 	@NonProperty
 	public List<MungeResult> getResults() {
 		return results;
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+
+/**
+ * Encodes values with the commons-codec {@link DoubleMetaphone} encoder. Its
+ * rules are too many to be worth repeating here, so values are always
+ * encoded by it, but the encoder itself is reused and the codes of repeated
+ * values are kept like those of the other encoders.
+ */
+class DoubleMetaphoneEncoder extends PhoneticEncoder {
+
+	private final DoubleMetaphone codec = new DoubleMetaphone();
+
+	/**
+	 * Whether to give the alternate code instead of the primary one.
+	 */
+	private final boolean alternate;
+
+	DoubleMetaphoneEncoder(boolean alternate) {
+		this.alternate = alternate;
+	}
+
+	@Override
+	protected String encodeAscii(String value) {
+		return encodeWithCodec(value);
+	}
+
+	@Override
+	protected String encodeWithCodec(String value) {
+		return codec.doubleMetaphone(value, alternate);
+	}
+}
@@ -24,8 +24,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.codec.language.DoubleMetaphone;
-
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Accessor;
 import ca.sqlpower.object.annotation.Constructor;
@@ -48,6 +46,19 @@ public class DoubleMetaphoneMungeStep extends AbstractMungeStep {
 	 */
 	private boolean useAlternate = false;
 	
+	/**
+	 * Encodes the values of a run with the current alternate setting. Null
+	 * until the first value is encoded, and again once the setting changes
+	 * or the step is closed.
+	 */
+	private DoubleMetaphoneEncoder encoder;
+	
+	/**
+	 * The slot of the encoder a partition uses in a compiled
+	 * {@link MungePlan}, where each partition has one of its own.
+	 */
+	private int stateSlot;
+	
 	@Constructor
 	public DoubleMetaphoneMungeStep() {
 		super("Double Metaphone",false);
@@ -86,17 +97,60 @@ public class DoubleMetaphoneMungeStep extends AbstractMungeStep {
 		MungeStepOutput<String> in = getMSOInputs().get(0);
 		String data = in.getData();
 		if (data != null) {
-			out.setData(new DoubleMetaphone().doubleMetaphone(data, isUseAlternate()));
+			if (encoder == null) {
+				encoder = new DoubleMetaphoneEncoder(isUseAlternate());
+			}
+			out.setData(encoder.encode(data));
 		} else {
 			out.setData(null);
 		}
 		return true;
 	}
+	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		stateSlot = plan.getStateSlot(this);
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Gives the partition an encoder of its own, as encoders are not thread
+	 * safe.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		return new DoubleMetaphoneEncoder(isUseAlternate());
+	}
+	
+	/**
+	 * Encodes the input slot straight into the output slot with the
+	 * partition's encoder.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		if (data == null) {
+			slots[outputSlots[0]] = null;
+		} else {
+			slots[outputSlots[0]] = ((PhoneticEncoder) slots[stateSlot]).encode(data);
+		}
+		return true;
+	}
+	
+	@Override
+	public void doClose() throws Exception {
+		encoder = null;
+	}
 
 	@Mutator
 	public void setUseAlternate(boolean useAlternate) {
 		boolean oldAltVal = this.useAlternate;
 		this.useAlternate = useAlternate;
+		encoder = null;
 		firePropertyChange("useAlternate", oldAltVal, useAlternate);
 	}
 
@@ -72,4 +72,20 @@ public class EmptyStringToNullMungeStep extends AbstractMungeStep {
         }
         return Boolean.TRUE;
     }
+    
+    @Override
+    protected boolean isPartitionSafe() {
+        return true;
+    }
+    
+    @Override
+    public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+        String str = (String) slots[inputSlots[0]];
+        if (str == null || str.length() == 0) {
+            slots[outputSlots[0]] = null;
+        } else {
+            slots[outputSlots[0]] = str;
+        }
+        return Boolean.TRUE;
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+/**
+ * A step with a single string input and a single string output that works on
+ * nothing but the characters of its input, passing nulls through. A chain of
+ * these steps where each output only goes to the next step is run by a
+ * {@link MungePlan} as one {@link FusedStringChain}, which keeps the string
+ * in a character buffer from the first step to the last instead of creating
+ * a new string at every step.
+ */
+interface FusableStringStep extends MungeStep {
+
+	/**
+	 * Does to the characters in the buffer what this step does to its input,
+	 * changing them in place. Null inputs never reach the chain, so the
+	 * buffer always holds a string.
+	 * 
+	 * @param state
+	 *            What this step returned from
+	 *            {@link AbstractMungeStep#openPartition(int, int)} for the
+	 *            calling partition.
+	 */
+	void transform(FusedStringChain.Buffer buffer, Object state) throws Exception;
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A chain of {@link FusableStringStep}s that a {@link MungePlan} runs as if
+ * it were a single step. The input of the first step is copied into a buffer
+ * that every step of the chain changes in turn, and only the output of the
+ * last step is made into a string again.
+ * <p>
+ * Each partition of a run has a buffer of its own, kept in a state slot of
+ * the plan, and each step of the chain is given its own state for the
+ * partition, so a chain can be called by several partitions at once if all
+ * of its steps can.
+ */
+class FusedStringChain {
+
+	/**
+	 * The characters of the string being worked on by a chain. The string is
+	 * the <code>length</code> characters of {@link #chars} starting at
+	 * {@link #start}, which the steps change directly.
+	 */
+	static class Buffer implements CharSequence {
+
+		char[] chars = new char[64];
+
+		int start;
+
+		int length;
+
+		/**
+		 * Replaces the contents of the buffer with the given string.
+		 */
+		void set(String s) {
+			if (s.length() > chars.length) {
+				chars = new char[Math.max(s.length(), chars.length * 2)];
+			}
+			s.getChars(0, s.length(), chars, 0);
+			start = 0;
+			length = s.length();
+		}
+
+		/**
+		 * Upper cases the buffer the same way {@link String#toUpperCase()}
+		 * would. Only strings of ASCII characters in a locale that upper cases
+		 * them the usual way are done in place.
+		 */
+		void toUpperCase() {
+			if (!isAsciiCaseSafe()) {
+				set(toString().toUpperCase());
+				return;
+			}
+			for (int i = start; i < start + length; i++) {
+				char c = chars[i];
+				if (c >= 'a' && c <= 'z') {
+					chars[i] = (char) (c - ('a' - 'A'));
+				}
+			}
+		}
+
+		/**
+		 * Lower cases the buffer the same way {@link String#toLowerCase()}
+		 * would. Only strings of ASCII characters in a locale that lower cases
+		 * them the usual way are done in place.
+		 */
+		void toLowerCase() {
+			if (!isAsciiCaseSafe()) {
+				set(toString().toLowerCase());
+				return;
+			}
+			for (int i = start; i < start + length; i++) {
+				char c = chars[i];
+				if (c >= 'A' && c <= 'Z') {
+					chars[i] = (char) (c + ('a' - 'A'));
+				}
+			}
+		}
+
+		/**
+		 * Returns true if the buffer only holds ASCII characters and the
+		 * default locale does not have its own rules for changing their case,
+		 * as Turkish and Azeri do for the letter i.
+		 */
+		private boolean isAsciiCaseSafe() {
+			String language = Locale.getDefault().getLanguage();
+			if (language.equals("tr") || language.equals("az")) {
+				return false;
+			}
+			for (int i = start; i < start + length; i++) {
+				if (chars[i] >= 0x80) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public char charAt(int index) {
+			return chars[start + index];
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public CharSequence subSequence(int begin, int end) {
+			return new String(chars, start + begin, end - begin);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, start, length);
+		}
+	}
+
+	private final FusableStringStep[] steps;
+
+	/**
+	 * The state slot of each of the {@link #steps}.
+	 */
+	private final int[] stateSlots;
+
+	FusedStringChain(List<FusableStringStep> steps, int[] stateSlots) {
+		this.steps = steps.toArray(new FusableStringStep[steps.size()]);
+		this.stateSlots = stateSlots;
+	}
+
+	/**
+	 * Runs the given value through every step of the chain.
+	 *
+	 * @param buffer
+	 *            The calling partition's buffer.
+	 * @param row
+	 *            The calling partition's row, which holds the state of each
+	 *            step for the partition.
+	 * @return The output of the last step.
+	 */
+	String call(String input, Buffer buffer, Object[] row) throws Exception {
+		if (input == null) {
+			return null;
+		}
+		buffer.set(input);
+		for (int i = 0; i < steps.length; i++) {
+			steps[i].transform(buffer, row[stateSlots[i]]);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Returns the names of the steps, for logging.
+	 */
+	String getName() {
+		StringBuilder name = new StringBuilder();
+		for (FusableStringStep step : steps) {
+			if (name.length() > 0) {
+				name.append(" + ");
+			}
+			name.append(step.getName());
+		}
+		return name.toString();
+	}
+}
@@ -32,7 +32,7 @@ import ca.sqlpower.object.annotation.Constructor;
  * This munge step will convert a alphabetical string input
  * to lower case.
  */
-public class LowerCaseMungeStep extends AbstractMungeStep {
+public class LowerCaseMungeStep extends AbstractMungeStep implements FusableStringStep {
 
 	@SuppressWarnings("unchecked")
 	public static final List<Class<? extends SPObject>> allowedChildTypes = 
@@ -76,4 +76,20 @@ public class LowerCaseMungeStep extends AbstractMungeStep {
 		out.setData(data);
 		return true;
 	}
+	
+	public void transform(FusedStringChain.Buffer buffer, Object state) {
+		buffer.toLowerCase();
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		slots[outputSlots[0]] = data == null ? null : data.toLowerCase();
+		return true;
+	}
 }
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import org.apache.commons.codec.language.Metaphone;
+
+/**
+ * Gives the same codes as the commons-codec {@link Metaphone} encoder, with
+ * its default code length of 4.
+ */
+class MetaphoneEncoder extends PhoneticEncoder {
+
+	private static final int MAX_CODE_LENGTH = 4;
+
+	private final Metaphone codec = new Metaphone();
+
+	/**
+	 * The upper cased value, with the initial letters that are not sounded
+	 * dropped.
+	 */
+	private char[] word = new char[32];
+
+	/**
+	 * The length of the {@link #word}.
+	 */
+	private int length;
+
+	/**
+	 * The code being built. X adds two letters, so it can briefly be two
+	 * longer than the code length.
+	 */
+	private final char[] code = new char[MAX_CODE_LENGTH + 2];
+
+	@Override
+	protected String encodeAscii(String value) {
+		if (value.length() == 0) {
+			return "";
+		}
+		if (value.length() == 1) {
+			return value.toUpperCase();
+		}
+		word = ensureCapacity(word, value.length());
+		int offset = 0;
+		char first = toUpperCase(value.charAt(0));
+		char second = toUpperCase(value.charAt(1));
+		switch (first) {
+		case 'K':
+		case 'G':
+		case 'P':
+			if (second == 'N') offset = 1;
+			break;
+		case 'A':
+			if (second == 'E') offset = 1;
+			break;
+		case 'W':
+			if (second == 'R' || second == 'H') offset = 1;
+			break;
+		}
+		length = 0;
+		for (int i = offset; i < value.length(); i++) {
+			word[length++] = toUpperCase(value.charAt(i));
+		}
+		if (first == 'W' && second == 'H') {
+			word[0] = 'W';
+		} else if (first == 'X') {
+			word[0] = 'S';
+		}
+
+		int codeLength = 0;
+		int n = 0;
+		while (codeLength < MAX_CODE_LENGTH && n < length) {
+			char symb = word[n];
+			if (symb != 'C' && isPreviousChar(n, symb)) {
+				n++;
+			} else {
+				switch (symb) {
+				case 'A':
+				case 'E':
+				case 'I':
+				case 'O':
+				case 'U':
+					if (n == 0) {
+						code[codeLength++] = symb;
+					}
+					break;
+				case 'B':
+					if (!(isPreviousChar(n, 'M') && isLastChar(n))) {
+						code[codeLength++] = symb;
+					}
+					break;
+				case 'C':
+					if (isPreviousChar(n, 'S') && !isLastChar(n) && isFrontVowel(n + 1)) {
+						break;
+					}
+					if (regionMatch(n, "CIA")) {
+						code[codeLength++] = 'X';
+						break;
+					}
+					if (!isLastChar(n) && isFrontVowel(n + 1)) {
+						code[codeLength++] = 'S';
+						break;
+					}
+					if (isPreviousChar(n, 'S') && isNextChar(n, 'H')) {
+						code[codeLength++] = 'K';
+						break;
+					}
+					if (isNextChar(n, 'H')) {
+						if (n == 0 && length >= 3 && isVowel(2)) {
+							code[codeLength++] = 'K';
+						} else {
+							code[codeLength++] = 'X';
+						}
+					} else {
+						code[codeLength++] = 'K';
+					}
+					break;
+				case 'D':
+					if (!isLastChar(n + 1) && isNextChar(n, 'G') && isFrontVowel(n + 2)) {
+						code[codeLength++] = 'J';
+						n += 2;
+					} else {
+						code[codeLength++] = 'T';
+					}
+					break;
+				case 'G':
+					if (isLastChar(n + 1) && isNextChar(n, 'H')) {
+						break;
+					}
+					if (!isLastChar(n + 1) && isNextChar(n, 'H') && !isVowel(n + 2)) {
+						break;
+					}
+					if (n > 0 && (regionMatch(n, "GN") || regionMatch(n, "GNED"))) {
+						break;
+					}
+					boolean hard = isPreviousChar(n, 'G');
+					if (!isLastChar(n) && isFrontVowel(n + 1) && !hard) {
+						code[codeLength++] = 'J';
+					} else {
+						code[codeLength++] = 'K';
+					}
+					break;
+				case 'H':
+					if (isLastChar(n)) {
+						break;
+					}
+					if (n > 0 && "CSPTG".indexOf(word[n - 1]) >= 0) {
+						break;
+					}
+					if (isVowel(n + 1)) {
+						code[codeLength++] = 'H';
+					}
+					break;
+				case 'F':
+				case 'J':
+				case 'L':
+				case 'M':
+				case 'N':
+				case 'R':
+					code[codeLength++] = symb;
+					break;
+				case 'K':
+					if (n == 0 || !isPreviousChar(n, 'C')) {
+						code[codeLength++] = symb;
+					}
+					break;
+				case 'P':
+					if (isNextChar(n, 'H')) {
+						code[codeLength++] = 'F';
+					} else {
+						code[codeLength++] = symb;
+					}
+					break;
+				case 'Q':
+					code[codeLength++] = 'K';
+					break;
+				case 'S':
+					if (regionMatch(n, "SH") || regionMatch(n, "SIO") || regionMatch(n, "SIA")) {
+						code[codeLength++] = 'X';
+					} else {
+						code[codeLength++] = 'S';
+					}
+					break;
+				case 'T':
+					if (regionMatch(n, "TIA") || regionMatch(n, "TIO")) {
+						code[codeLength++] = 'X';
+						break;
+					}
+					if (regionMatch(n, "TCH")) {
+						break;
+					}
+					if (regionMatch(n, "TH")) {
+						code[codeLength++] = '0';
+					} else {
+						code[codeLength++] = 'T';
+					}
+					break;
+				case 'V':
+					code[codeLength++] = 'F';
+					break;
+				case 'W':
+				case 'Y':
+					if (!isLastChar(n) && isVowel(n + 1)) {
+						code[codeLength++] = symb;
+					}
+					break;
+				case 'X':
+					code[codeLength++] = 'K';
+					code[codeLength++] = 'S';
+					break;
+				case 'Z':
+					code[codeLength++] = 'S';
+					break;
+				}
+				n++;
+			}
+			if (codeLength > MAX_CODE_LENGTH) {
+				codeLength = MAX_CODE_LENGTH;
+			}
+		}
+		return new String(code, 0, codeLength);
+	}
+
+	private static char toUpperCase(char c) {
+		if (c >= 'a' && c <= 'z') {
+			return (char) (c - ('a' - 'A'));
+		}
+		return c;
+	}
+
+	private boolean isVowel(int index) {
+		char c = word[index];
+		return c == 'A' || c == 'E' || c == 'I' || c == 'O' || c == 'U';
+	}
+
+	private boolean isFrontVowel(int index) {
+		char c = word[index];
+		return c == 'E' || c == 'I' || c == 'Y';
+	}
+
+	private boolean isPreviousChar(int index, char c) {
+		return index > 0 && index < length && word[index - 1] == c;
+	}
+
+	private boolean isNextChar(int index, char c) {
+		return index >= 0 && index < length - 1 && word[index + 1] == c;
+	}
+
+	private boolean regionMatch(int index, String test) {
+		if (index < 0 || index + test.length() - 1 >= length) {
+			return false;
+		}
+		for (int i = 0; i < test.length(); i++) {
+			if (word[index + i] != test.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isLastChar(int index) {
+		return index + 1 == length;
+	}
+
+	@Override
+	protected String encodeWithCodec(String value) {
+		return codec.metaphone(value);
+	}
+}
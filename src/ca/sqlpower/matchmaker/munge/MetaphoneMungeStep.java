@@ -24,8 +24,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.codec.language.Metaphone;
-
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Constructor;
 
@@ -39,6 +37,18 @@ public class MetaphoneMungeStep extends AbstractMungeStep {
 		Collections.unmodifiableList(new ArrayList<Class<? extends SPObject>>(
 				Arrays.asList(MungeStepOutput.class,MungeStepInput.class)));
 	
+	/**
+	 * Encodes the values of a run, remembering the codes of recent values.
+	 * Null until the first value is encoded.
+	 */
+	private MetaphoneEncoder encoder;
+	
+	/**
+	 * The slot of the encoder a partition uses in a compiled
+	 * {@link MungePlan}, where each partition has one of its own.
+	 */
+	private int stateSlot;
+	
 	@Constructor
 	public MetaphoneMungeStep() {
 		super("Metaphone",false);
@@ -78,10 +88,52 @@ public class MetaphoneMungeStep extends AbstractMungeStep {
 		MungeStepOutput<String> in = getMSOInputs().get(0);
 		String data = in.getData();
 		if (data != null) {
-			out.setData(new Metaphone().metaphone(data));
+			if (encoder == null) {
+				encoder = new MetaphoneEncoder();
+			}
+			out.setData(encoder.encode(data));
 		} else {
 			out.setData(null);
 		}
 		return true;
 	}
+	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		stateSlot = plan.getStateSlot(this);
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Gives the partition an encoder of its own, as encoders are not thread
+	 * safe.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		return new MetaphoneEncoder();
+	}
+	
+	/**
+	 * Encodes the input slot straight into the output slot with the
+	 * partition's encoder.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		if (data == null) {
+			slots[outputSlots[0]] = null;
+		} else {
+			slots[outputSlots[0]] = ((PhoneticEncoder) slots[stateSlot]).encode(data);
+		}
+		return true;
+	}
+	
+	@Override
+	public void doClose() throws Exception {
+		encoder = null;
+	}
 }
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A munge process compiled into a flat list of steps for the engines to run.
+ * Every output of every step is given a fixed index, or slot, in an
+ * <code>Object[]</code> that holds the values of one row, and each step is
+ * given the slot indices of its inputs and outputs. Running a row is then a
+ * single pass over the steps that reads and writes the slot array directly,
+ * without the state checks, input list building and property change events
+ * of {@link MungeStep#call()}.
+ * <p>
+ * A plan never changes once it is compiled. The steps must already be open
+ * when the plan is compiled, as opening a step can change its outputs. The
+ * munge pen preview does not use a plan, since it shows the data of the
+ * {@link MungeStepOutput}s themselves.
+ * <p>
+ * The rows of the source table can be split into partitions that are run on
+ * separate threads through the same plan, each with a row array of its own
+ * from {@link #openPartition(int, int)}. Besides the output slots each row
+ * has a state slot for every step, where steps such as the input step keep
+ * what they need for the partition, such as its own result set. Steps that
+ * are not partition safe are only called by one partition at a time.
+ * <p>
+ * A chain of {@link FusableStringStep}s where each output only goes to the
+ * next step of the chain is compiled into a {@link FusedStringChain}, which
+ * runs in the place of the last step of the chain. The outputs inside the
+ * chain are never set in the row.
+ */
+public class MungePlan {
+
+	/**
+	 * The steps in the order they are called.
+	 */
+	private final MungeStep[] steps;
+
+	/**
+	 * The same steps as {@link #steps}, or null for steps that do not extend
+	 * {@link AbstractMungeStep} and so can only be called through their
+	 * outputs.
+	 */
+	private final AbstractMungeStep[] slotSteps;
+
+	/**
+	 * The slot of each input of each step, or -1 for inputs that are not
+	 * connected.
+	 */
+	private final int[][] inputSlots;
+
+	/**
+	 * The slot of each output of each step.
+	 */
+	private final int[][] outputSlots;
+
+	/**
+	 * True for the steps that can be called by several partitions at once.
+	 */
+	private final boolean[] partitionSafe;
+
+	/**
+	 * The chain that ends with each step, or null for steps that do not end
+	 * a chain.
+	 */
+	private final FusedStringChain[] chains;
+
+	/**
+	 * True for the steps that are run as part of a chain ending with a later
+	 * step, which are skipped.
+	 */
+	private final boolean[] fused;
+
+	/**
+	 * The slot of the input of the first step of each chain, by the index of
+	 * the step it ends with.
+	 */
+	private final int[] chainInputSlots;
+
+	/**
+	 * The slot each chain keeps its buffer for a partition in, by the index of
+	 * the step it ends with.
+	 */
+	private final int[] chainStateSlots;
+
+	/**
+	 * The number of chains in the plan.
+	 */
+	private int chainCount;
+
+	/**
+	 * The slot of each output.
+	 */
+	private final Map<MungeStepOutput, Integer> slots;
+
+	/**
+	 * The lock held while calling a step that is not partition safe.
+	 */
+	private final Object lock = new Object();
+
+	private MungePlan(MungeStep[] steps, int[][] inputSlots, int[][] outputSlots,
+			Map<MungeStepOutput, Integer> slots) {
+		this.steps = steps;
+		this.inputSlots = inputSlots;
+		this.outputSlots = outputSlots;
+		this.slots = slots;
+		slotSteps = new AbstractMungeStep[steps.length];
+		partitionSafe = new boolean[steps.length];
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i] instanceof AbstractMungeStep) {
+				slotSteps[i] = (AbstractMungeStep) steps[i];
+				partitionSafe[i] = slotSteps[i].isPartitionSafe();
+			}
+		}
+		chains = new FusedStringChain[steps.length];
+		fused = new boolean[steps.length];
+		chainInputSlots = new int[steps.length];
+		chainStateSlots = new int[steps.length];
+		fuseStringChains();
+	}
+
+	/**
+	 * Finds the chains of {@link FusableStringStep}s in the plan. A step
+	 * continues the chain of the step its input is connected to if both can
+	 * be fused and it is the only step that output goes to.
+	 */
+	private void fuseStringChains() {
+		int[] consumers = new int[slots.size()];
+		for (int[] stepInputs : inputSlots) {
+			for (int slot : stepInputs) {
+				if (slot >= 0) {
+					consumers[slot]++;
+				}
+			}
+		}
+		int[] producers = new int[slots.size()];
+		boolean[] fusable = new boolean[steps.length];
+		for (int i = 0; i < steps.length; i++) {
+			for (int slot : outputSlots[i]) {
+				producers[slot] = i;
+			}
+			fusable[i] = steps[i] instanceof FusableStringStep && slotSteps[i] != null
+					&& inputSlots[i].length == 1 && inputSlots[i][0] >= 0
+					&& outputSlots[i].length == 1;
+		}
+
+		int[] previous = new int[steps.length];
+		Arrays.fill(previous, -1);
+		for (int i = 0; i < steps.length; i++) {
+			if (!fusable[i]) continue;
+			int input = inputSlots[i][0];
+			if (fusable[producers[input]] && consumers[input] == 1) {
+				previous[i] = producers[input];
+				fused[producers[input]] = true;
+			}
+		}
+
+		for (int i = 0; i < steps.length; i++) {
+			if (fused[i] || previous[i] == -1) continue;
+			List<FusableStringStep> chain = new ArrayList<FusableStringStep>();
+			List<Integer> stateSlots = new ArrayList<Integer>();
+			boolean safe = true;
+			int first = i;
+			for (int step = i; step != -1; step = previous[step]) {
+				chain.add(0, (FusableStringStep) steps[step]);
+				stateSlots.add(0, slots.size() + step);
+				safe &= partitionSafe[step];
+				first = step;
+			}
+			int[] chainStepStateSlots = new int[stateSlots.size()];
+			for (int j = 0; j < chainStepStateSlots.length; j++) {
+				chainStepStateSlots[j] = stateSlots.get(j);
+			}
+			chains[i] = new FusedStringChain(chain, chainStepStateSlots);
+			chainInputSlots[i] = inputSlots[first][0];
+			chainStateSlots[i] = slots.size() + steps.length + chainCount;
+			partitionSafe[i] = safe;
+			chainCount++;
+		}
+	}
+
+	/**
+	 * Compiles the given steps into a plan. The steps must be in an order
+	 * where every step comes after the steps its inputs are connected to, as
+	 * given by {@link MungeProcessor#getProcessOrder()}.
+	 *
+	 * @throws IllegalStateException
+	 *             if an input is connected to the output of a step that is not
+	 *             in the list.
+	 */
+	public static MungePlan compile(List<MungeStep> processOrder) {
+		MungeStep[] steps = processOrder.toArray(new MungeStep[processOrder.size()]);
+		Map<MungeStepOutput, Integer> slots = new IdentityHashMap<MungeStepOutput, Integer>();
+
+		int[][] outputSlots = new int[steps.length][];
+		for (int i = 0; i < steps.length; i++) {
+			List<MungeStepOutput> outputs = steps[i].getMungeStepOutputs();
+			outputSlots[i] = new int[outputs.size()];
+			for (int j = 0; j < outputs.size(); j++) {
+				outputSlots[i][j] = slots.size();
+				slots.put(outputs.get(j), slots.size());
+			}
+		}
+
+		int[][] inputSlots = new int[steps.length][];
+		for (int i = 0; i < steps.length; i++) {
+			List<MungeStepOutput> inputs = steps[i].getMSOInputs();
+			inputSlots[i] = new int[inputs.size()];
+			for (int j = 0; j < inputs.size(); j++) {
+				MungeStepOutput input = inputs.get(j);
+				if (input == null) {
+					inputSlots[i][j] = -1;
+				} else {
+					Integer slot = slots.get(input);
+					if (slot == null) {
+						throw new IllegalStateException("Input " + j + " of step " + steps[i].getName() +
+								" is connected to a step that is not part of the munge process");
+					}
+					inputSlots[i][j] = slot;
+				}
+			}
+		}
+
+		MungePlan plan = new MungePlan(steps, inputSlots, outputSlots, slots);
+		for (AbstractMungeStep step : plan.slotSteps) {
+			if (step != null) {
+				step.prepareSlots(plan);
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Returns the number of slots a row of this plan needs for the step
+	 * outputs. The state slots come after these.
+	 */
+	public int getSlotCount() {
+		return slots.size();
+	}
+
+	/**
+	 * Starts one partition of a run through this plan by creating a new row
+	 * and asking every step for its state for the partition. The same row is
+	 * passed to {@link #call(Object[], Logger)} for every row of the
+	 * partition, since each step overwrites its outputs every time it is
+	 * called, and then to {@link #closePartition(Object[], boolean)}. A run
+	 * that is not split is a single partition 0 of 1.
+	 */
+	public Object[] openPartition(int partition, int partitionCount) throws Exception {
+		Object[] row = new Object[slots.size() + steps.length + chainCount];
+		for (int i = 0; i < steps.length; i++) {
+			if (slotSteps[i] != null) {
+				row[slots.size() + i] = slotSteps[i].openPartition(partition, partitionCount);
+			}
+			if (chains[i] != null) {
+				row[chainStateSlots[i]] = new FusedStringChain.Buffer();
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Ends a partition started by {@link #openPartition(int, int)}, letting
+	 * every step release or hand over its state for the partition.
+	 *
+	 * @param success
+	 *            False if the run failed, in which case the steps should only
+	 *            release their state.
+	 */
+	public void closePartition(Object[] row, boolean success) throws Exception {
+		for (int i = 0; i < steps.length; i++) {
+			if (slotSteps[i] != null) {
+				slotSteps[i].closePartition(row[slots.size() + i], success);
+			}
+		}
+	}
+
+	/**
+	 * Returns the slot the given step's state for a partition is kept in, or
+	 * -1 if the step is not in this plan.
+	 */
+	public int getStateSlot(MungeStep step) {
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i] == step) {
+				return slots.size() + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if the given step, or the fused chain it ends, is called
+	 * by several partitions at once rather than under the plan's lock. It is
+	 * set to default accessibility so that the unit test can call it.
+	 */
+	boolean isPartitionSafe(MungeStep step) {
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i] == step) {
+				return partitionSafe[i];
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the slot the given output's values are kept in, or -1 if the
+	 * output does not belong to a step in this plan.
+	 */
+	public int getSlot(MungeStepOutput output) {
+		Integer slot = slots.get(output);
+		if (slot == null) return -1;
+		return slot;
+	}
+
+	/**
+	 * Stops or resumes the property change events fired when the data of the
+	 * steps' outputs are set by steps that still work through their outputs.
+	 * The events should be stopped while the plan is running and resumed
+	 * once it is done.
+	 */
+	public void setOutputEventsEnabled(boolean enabled) {
+		for (MungeStepOutput output : slots.keySet()) {
+			output.setQuiet(!enabled);
+		}
+	}
+
+	/**
+	 * Calls every step once, in order, for the next row.
+	 *
+	 * @param row
+	 *            The row to work in, from {@link #openPartition(int, int)}.
+	 * @param logger
+	 *            The inputs and outputs of each step are logged to this logger
+	 *            if it has debugging enabled. Can be null.
+	 * @return false if one of the steps has no more rows, in which case the
+	 *         steps after it are not called.
+	 */
+	public boolean call(Object[] row, Logger logger) throws Exception {
+		boolean debug = logger != null && logger.isDebugEnabled();
+		for (int i = 0; i < steps.length; i++) {
+			if (fused[i]) continue;
+			boolean continuing;
+			if (partitionSafe[i]) {
+				continuing = callStep(i, row);
+			} else {
+				synchronized (lock) {
+					continuing = callStep(i, row);
+				}
+			}
+			if (debug) {
+				logger.debug(describe(i, row));
+			}
+			if (!continuing) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean callStep(int stepIndex, Object[] row) throws Exception {
+		if (chains[stepIndex] != null) {
+			row[outputSlots[stepIndex][0]] = chains[stepIndex].call(
+					(String) row[chainInputSlots[stepIndex]],
+					(FusedStringChain.Buffer) row[chainStateSlots[stepIndex]], row);
+			return true;
+		} else if (slotSteps[stepIndex] != null) {
+			return slotSteps[stepIndex].doCall(row, inputSlots[stepIndex], outputSlots[stepIndex]);
+		} else {
+			return callThroughOutputs(stepIndex, row);
+		}
+	}
+
+	/**
+	 * Calls a step that can only be called through its outputs by copying
+	 * the row into the outputs its inputs are connected to, calling the step
+	 * and copying its outputs back into the row.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean callThroughOutputs(int stepIndex, Object[] row) throws Exception {
+		MungeStep step = steps[stepIndex];
+		List<MungeStepOutput> inputs = step.getMSOInputs();
+		for (int i = 0; i < inputSlots[stepIndex].length; i++) {
+			if (inputSlots[stepIndex][i] >= 0) {
+				inputs.get(i).setData(row[inputSlots[stepIndex][i]]);
+			}
+		}
+		boolean continuing = step.call();
+		List<MungeStepOutput> outputs = step.getMungeStepOutputs();
+		for (int i = 0; i < outputSlots[stepIndex].length; i++) {
+			row[outputSlots[stepIndex][i]] = outputs.get(i).getData();
+		}
+		return continuing;
+	}
+
+	private String describe(int stepIndex, Object[] row) {
+		StringBuilder out = new StringBuilder();
+		if (chains[stepIndex] != null) {
+			out.append(chains[stepIndex].getName()).append(" Inputs: ");
+			out.append("[ ").append(row[chainInputSlots[stepIndex]]).append(" ] ");
+		} else {
+			out.append(steps[stepIndex].getName()).append(" Inputs: ");
+			for (int slot : inputSlots[stepIndex]) {
+				out.append("[ ").append(slot < 0 ? null : row[slot]).append(" ] ");
+			}
+		}
+		out.append("Outputs: ");
+		for (int slot : outputSlots[stepIndex]) {
+			out.append("[ ").append(row[slot]).append(" ] ");
+		}
+		return out.toString();
+	}
+}
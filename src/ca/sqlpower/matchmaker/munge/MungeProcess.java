@@ -86,6 +86,53 @@ public class MungeProcess extends AbstractMatchMakerObject {
 	 */
 	public static final Color DEFAULT_COLOR = ColorScheme.BREWER_SET19.get(0);
 	
+	/**
+	 * The ways the match engine can connect a group of records with equal
+	 * munged data once the group is larger than the
+	 * {@link MungeProcess#getEdgeGroupThreshold() edge group threshold}.
+	 * Smaller groups always get a potential match between every pair.
+	 */
+	public enum EdgeStrategy {
+		/**
+		 * Creates a potential match between every pair of records in the
+		 * group, no matter how large it is.
+		 */
+		FULL("Match every pair of records"),
+		/**
+		 * Matches every record of the group to the first record of the group,
+		 * which stands for the whole group.
+		 */
+		STAR("Match each record to a representative record"),
+		/**
+		 * Matches each record of the group to the record before it.
+		 */
+		CHAIN("Match each record to the next one in a chain"),
+		/**
+		 * Creates no potential matches for the group and reports it in the
+		 * engine log instead.
+		 */
+		SKIP("Skip the group and report it");
+		
+		/**
+		 * A longer description of this setting
+		 */
+		private String longDescription;
+		
+		private EdgeStrategy(String longDescription) {
+			this.longDescription = longDescription;
+		}
+		
+		public String getLongDescription() {
+			return longDescription;
+		}
+	}
+	
+	/**
+	 * The default size a group of equal records can reach before the edge
+	 * strategy of a munge process applies.
+	 */
+	public static final int DEFAULT_EDGE_GROUP_THRESHOLD = 100;
+	
 	/**
 	 * Object ID needed by Hibernate 
 	 */
@@ -125,6 +172,20 @@ public class MungeProcess extends AbstractMatchMakerObject {
      */
 	private Color colour = DEFAULT_COLOR;
 	
+	/**
+	 * How the match engine connects the records of a group with equal munged
+	 * data that is larger than {@link #edgeGroupThreshold}.
+	 */
+	private EdgeStrategy edgeStrategy = EdgeStrategy.FULL;
+	
+	/**
+	 * The largest group of records with equal munged data that still gets a
+	 * potential match between every pair of records. A group of n records has
+	 * n(n-1)/2 pairs, so a few large groups can otherwise make up most of the
+	 * potential matches of a run.
+	 */
+	private int edgeGroupThreshold = DEFAULT_EDGE_GROUP_THRESHOLD;
+	
 	/**
      * Constructor that sets up a default Munge process.
 	 */
@@ -236,6 +297,30 @@ public class MungeProcess extends AbstractMatchMakerObject {
         this.colour = mungeProcessColor;
         firePropertyChange("colour", oldValue, mungeProcessColor);
     }
+	
+	@Accessor
+	public EdgeStrategy getEdgeStrategy() {
+		return edgeStrategy;
+	}
+	
+	@Mutator
+	public void setEdgeStrategy(EdgeStrategy edgeStrategy) {
+		EdgeStrategy oldValue = this.edgeStrategy;
+		this.edgeStrategy = edgeStrategy;
+		firePropertyChange("edgeStrategy", oldValue, edgeStrategy);
+	}
+	
+	@Accessor
+	public int getEdgeGroupThreshold() {
+		return edgeGroupThreshold;
+	}
+	
+	@Mutator
+	public void setEdgeGroupThreshold(int edgeGroupThreshold) {
+		int oldValue = this.edgeGroupThreshold;
+		this.edgeGroupThreshold = edgeGroupThreshold;
+		firePropertyChange("edgeGroupThreshold", oldValue, edgeGroupThreshold);
+	}
     
 	/**
 	 * duplicate all the properties of the MungeProcess 
@@ -252,6 +337,8 @@ public class MungeProcess extends AbstractMatchMakerObject {
 		mungeProcess.setFilter(getFilter()==null?null:new String(getFilter()));
         mungeProcess.setColour(getColour() == null ? null : new Color(getColour().getRGB()));
 		mungeProcess.setMatchPriority(getMatchPriority()==null?null:new Integer(getMatchPriority()));
+		mungeProcess.setEdgeStrategy(getEdgeStrategy());
+		mungeProcess.setEdgeGroupThreshold(getEdgeGroupThreshold());
 		mungeProcess.setName(getName()==null?null:new String(getName()));
 		mungeProcess.setVisible(isVisible());
 		
@@ -29,6 +29,7 @@ import org.apache.log4j.Logger;
 import ca.sqlpower.graph.DepthFirstSearch;
 import ca.sqlpower.matchmaker.AbstractProcessor;
 import ca.sqlpower.matchmaker.MatchMakerEngine.EngineMode;
+import ca.sqlpower.matchmaker.MungeSettings;
 import ca.sqlpower.matchmaker.munge.MungeProcessGraphModel.Edge;
 
 public class MungeProcessor extends AbstractProcessor {
@@ -38,6 +39,11 @@ public class MungeProcessor extends AbstractProcessor {
      * graph of munge steps is retrieved fresh every time this processor is
      * invoked, so that a single munge processor can be used for previewing
      * at design time.
+     * <p>
+     * When this processor is called the steps are compiled into a
+     * {@link MungePlan} that passes the values between steps in a slot array.
+     * Subclasses that need the data in the steps' outputs, such as the
+     * {@link MungePreviewer}, call the steps themselves.
      */
     private final MungeProcess mungeProcess;
     
@@ -63,7 +69,8 @@ public class MungeProcessor extends AbstractProcessor {
     }
     
     public Boolean call(EngineMode mode, int rowCount) throws Exception {
-    	if (mungeProcess.getParent().getMungeSettings().getDebug()) {
+    	MungeSettings settings = mungeProcess.getParent().getMungeSettings();
+    	if (settings.getDebug()) {
     		engineLogger.setLevel(Level.DEBUG);
     	}
     	
@@ -74,36 +81,91 @@ public class MungeProcessor extends AbstractProcessor {
     	}
     	
     	determineProcessOrder();
+    	
+    	int partitionCount = getPartitionCount();
+    	
+    	try {
+    		monitorableHelper.setStarted(true);
+    		monitorableHelper.setFinished(false);
+    		monitorableHelper.setJobSize(rowCount);
+    		
+    		if (settings.isTwoPassMunge() && resultStep instanceof DeDupeResultStep
+    				&& !((DeDupeResultStep) resultStep).isPreviewMode()) {
+    			mungeTwice((DeDupeResultStep) resultStep, mode, rowCount, partitionCount);
+    		} else {
+    			munge(mode, rowCount, partitionCount);
+    		}
+    	} finally {
+    		monitorableHelper.setFinished(true);
+    	}
+        
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Runs the process twice for a two pass munge. The first run only counts
+     * the sort keys of the munged data, and the second keeps only the rows
+     * whose munged data may have been seen more than once, so rows that can
+     * not match anything never take up room in the results.
+     */
+    private void mungeTwice(DeDupeResultStep resultStep, EngineMode mode, int rowCount,
+    		int partitionCount) throws Exception {
+    	CountingBloomFilter filter = CountingBloomFilter.ofMegabytes(
+    			mungeProcess.getParent().getMungeSettings().getSingletonFilterSize());
+    	try {
+    		engineLogger.info("Counting the munged data of " + mungeProcess.getName() +
+    				" to leave out the rows that can not match");
+    		resultStep.setKeyFilter(filter, true);
+    		munge(mode, rowCount, partitionCount);
+    		
+    		engineLogger.info("Munging " + mungeProcess.getName() + " again to keep the rows that may match");
+    		resultStep.setKeyFilter(filter, false);
+    		monitorableHelper.setProgress(0);
+    		munge(mode, rowCount, partitionCount);
+    	} finally {
+    		resultStep.setKeyFilter(null, false);
+    	}
+    }
+
+    /**
+     * Opens the steps, runs every row of the source table through them and
+     * commits them, or rolls them back if anything fails. The steps are
+     * always closed at the end, which sets the input steps back to one
+     * partition, so the partition count is set again before every run.
+     */
+    private void munge(EngineMode mode, int rowCount, int partitionCount) throws Exception {
+    	MungePlan plan = null;
+    	
+    	for (MungeStep step : processOrder) {
+    		if (step instanceof SQLInputStep) {
+    			((SQLInputStep) step).setPartitionCount(partitionCount);
+    		}
+    	}
         
     	try {
-			monitorableHelper.setStarted(true);
-			monitorableHelper.setFinished(false);
-			monitorableHelper.setJobSize(rowCount);
-			
 			// open everything
 			for (MungeStep step: processOrder) {
 				step.open(mode, engineLogger);
 			}
 			
-			// call until one step gives up
-			boolean finished = false;
+			// opening the steps can change their outputs, so the plan
+			// can only be compiled once they are all open
+			plan = MungePlan.compile(processOrder);
+			plan.setOutputEventsEnabled(false);
 			
 			//stops the process if nothing is going to happen
 			//this will cause an infinite loop if nothing returns false
 			if (processOrder.size() < 2) {
-				finished = true;
-			}
-			while(!finished && (rowCount == -1 || monitorableHelper.getProgress() < rowCount)) {
-                checkCancelled();
-				for (MungeStep step: processOrder) {
-                    checkCancelled();
-					boolean continuing = step.call();
-					if (!continuing) {
-						finished = true;
-						break;
-					}
+				engineLogger.debug("Nothing to munge in " + mungeProcess.getName());
+			} else {
+				if (partitionCount > 1) {
+					engineLogger.info("Munging " + mungeProcess.getName() + " in " + partitionCount + " partitions");
 				}
-				monitorableHelper.incrementProgress();
+				List<PlanPartition> partitions = new ArrayList<PlanPartition>();
+				for (int i = 0; i < partitionCount; i++) {
+					partitions.add(new PlanPartition(plan, i, partitionCount));
+				}
+				new PartitionRunner(this, monitorableHelper, engineLogger).run(partitions, rowCount);
 			}
             
             // Normal termination! Ask all steps to commit.
@@ -127,6 +189,10 @@ public class MungeProcessor extends AbstractProcessor {
                 throw new Exception(t);
             }
 		} finally {
+			if (plan != null) {
+				plan.setOutputEventsEnabled(true);
+			}
+			
 			// close everything
 			for (MungeStep step: processOrder) {
 				try {
@@ -136,11 +202,50 @@ public class MungeProcessor extends AbstractProcessor {
 							" not to obscure any earlier exceptions.", ex);
 				}
 			}
-			
-			monitorableHelper.setFinished(true);
 		}
-        
-        return Boolean.TRUE;
+    }
+
+    /**
+     * Runs one partition of the source table through a compiled plan.
+     */
+    private class PlanPartition implements PartitionRunner.Partition {
+    	
+    	private final MungePlan plan;
+    	private final int partition;
+    	private final int partitionCount;
+    	private Object[] row;
+    	
+    	PlanPartition(MungePlan plan, int partition, int partitionCount) {
+    		this.plan = plan;
+    		this.partition = partition;
+    		this.partitionCount = partitionCount;
+    	}
+    	
+    	public void open() throws Exception {
+    		row = plan.openPartition(partition, partitionCount);
+    	}
+    	
+    	public boolean munge() throws Exception {
+    		return plan.call(row, engineLogger);
+    	}
+    	
+    	public void close(boolean success) throws Exception {
+    		plan.closePartition(row, success);
+    	}
+    }
+
+    /**
+     * Returns the number of partitions the source table should be split into
+     * for this run, from the project's munge settings. Only processes whose
+     * results are matched are split, as the other result steps work on the
+     * rows of the input step's own result set.
+     */
+    private int getPartitionCount() {
+    	int threads = mungeProcess.getParent().getMungeSettings().getMungeThreadCount();
+    	if (threads < 2 || !(mungeProcess.getResultStep() instanceof DeDupeResultStep)) {
+    		return 1;
+    	}
+    	return threads;
     }
 
     /**
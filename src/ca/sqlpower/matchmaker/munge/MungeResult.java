@@ -20,30 +20,41 @@
 package ca.sqlpower.matchmaker.munge;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.Date;
 
-import org.apache.log4j.Logger;
-
+import ca.sqlpower.matchmaker.Project;
 import ca.sqlpower.matchmaker.SourceTableRecord;
 
 /**
  * A representation of a complete munged data row. It contains the munged
- * data that has gone through a MungeProcessor, and a SourceTableRecord
- * representing the source data record that was being munged.
+ * data that has gone through a MungeProcessor, and the values of the source
+ * table's unique key for the source data record that was being munged.
+ * <p>
+ * Most rows never match anything, so the engine only carries the key values
+ * around as a plain array and creates a {@link SourceTableRecord} with
+ * {@link #createSourceTableRecord(Project)} for the rows that do match.
  */
 public class MungeResult implements Comparable<MungeResult> {
 	
-	private static final Logger logger = Logger.getLogger(MungeResult.class);
-	
 	/**
 	 * The data that went through the MungeProcessor
 	 */
 	private Object[] mungedData;
 	
 	/**
-	 * The SourceTableRecord for the munged row. 
+	 * The values of the source table's unique key for the munged row, in the
+	 * same order as the columns of the project's source table index.
 	 */
-	private SourceTableRecord sourceTableRecord;
+	private Object[] keyValues;
+	
+	/**
+	 * The munged data encoded by {@link MungeResultKeyEncoder}, which sorts in
+	 * the same order as {@link #compareTo(MungeResult)} when compared as bytes.
+	 * This is normally set by the result step when the result is created and
+	 * otherwise encoded the first time it is asked for.
+	 */
+	private byte[] sortKey;
 	
 	public Object[] getMungedData() {
 		return mungedData;
@@ -51,14 +62,40 @@ public class MungeResult implements Comparable<MungeResult> {
 	
 	public void setMungedData(Object[] mungedData) {
 		this.mungedData = mungedData;
+		this.sortKey = null;
 	}
 	
-	public SourceTableRecord getSourceTableRecord() {
-		return sourceTableRecord;
+	/**
+	 * Returns the binary comparable key of this result's munged data. The key
+	 * is not updated if the munged data array is modified in place after it
+	 * has been encoded.
+	 */
+	public byte[] getSortKey() {
+		if (sortKey == null) {
+			sortKey = MungeResultKeyEncoder.encode(mungedData);
+		}
+		return sortKey;
+	}
+	
+	public void setSortKey(byte[] sortKey) {
+		this.sortKey = sortKey;
 	}
 	
-	public void setSourceTableRecord(SourceTableRecord source) {
-		this.sourceTableRecord = source;
+	public Object[] getKeyValues() {
+		return keyValues;
+	}
+	
+	public void setKeyValues(Object[] keyValues) {
+		this.keyValues = keyValues;
+	}
+	
+	/**
+	 * Creates a new source table record in the given project for the row
+	 * this result was munged from. Each call returns a new record, but the
+	 * records are equal as they have the same key values.
+	 */
+	public SourceTableRecord createSourceTableRecord(Project project) {
+		return new SourceTableRecord(project, Arrays.asList(keyValues));
 	}
 
 	public int compareTo(MungeResult o) {
@@ -78,17 +115,13 @@ public class MungeResult implements Comparable<MungeResult> {
 					compareValue = 1;
 				} 
 			} else if (thisData.getClass().equals(String.class)){
-				logger.debug("comparing Strings " + thisData + " and " + otherData);
 				compareValue = ((String)thisData).compareTo((String)otherData);
 			} else if (thisData.getClass().equals(BigDecimal.class)) {
-				logger.debug("comparing BigDecimals " + thisData + " and " + otherData);
 				compareValue = ((BigDecimal) thisData).compareTo((BigDecimal)otherData);
 			} else if (thisData.getClass().equals(Boolean.class)) {
-				logger.debug("comparing Booleans " + thisData + " and " + otherData);
 				compareValue = ((Boolean) thisData).compareTo((Boolean)otherData);
             } else if (thisData instanceof Date) {
 			    // had to use instanceof because MatchMaker uses all java.util.Date subclasses internally
-				logger.debug("comparing Dates " + thisData + " and " + otherData);
 				
 				// but it is still meaningless to compare across types, so we need a check:
 				if (thisData.getClass() != otherData.getClass()) {
@@ -109,23 +142,40 @@ public class MungeResult implements Comparable<MungeResult> {
 				throw new IllegalStateException(
 						"Unexpected data type encountered during comparison: " + detailMessage);
 			}
-			logger.debug("compareValue is " + compareValue);
 			
 			if (compareValue != 0) {
-				logger.debug("MungeResults are NOT equal, so return " + compareValue);
 				return compareValue;
 			}
 		}
-		logger.debug("MungeResults are equal, so return 0");
 		return 0;
 	}
 	
+	/**
+	 * Returns true if any of the munged data values in this result is null.
+	 * Two results whose munged data compare as equal will have their nulls in
+	 * the same columns, and a match on null data is never considered a
+	 * potential match, so a result with null data can never match anything.
+	 */
+	public boolean hasNullData() {
+		return hasNullData(mungedData);
+	}
+	
+	/**
+	 * Returns true if any of the given munged data values is null.
+	 */
+	static boolean hasNullData(Object[] mungedData) {
+		for (Object o : mungedData) {
+			if (o == null) return true;
+		}
+		return false;
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer s = new StringBuffer();
 		
 		s.append("Key Values:");
-		for (Object o: sourceTableRecord.getKeyValues()) {
+		for (Object o: keyValues) {
 			s.append(" ").append(o).append(" ");
 		}
 		
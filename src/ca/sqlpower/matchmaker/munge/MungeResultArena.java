@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.MungeSettings;
+
+/**
+ * Holds the munge results of a run outside of the Java heap, for projects that
+ * turn on {@link MungeSettings#isUseOffHeapResults()}. Each result is written
+ * as its binary sort key followed by its source table key values into large
+ * direct byte buffers, and is addressed by an int holding its byte offset
+ * divided by {@link #ALIGNMENT}, which covers 32GB of results. The addresses
+ * are kept in a direct buffer as well, so the heap used by a run does not grow
+ * with the number of rows. As with {@link SpilledMungeResults} the munged data
+ * itself is not kept since matching only needs the sort key, and results with
+ * null munged data are not added at all since they can never match.
+ * <p>
+ * Strings among the key values take one byte per character when they only
+ * hold Latin-1 characters, and two bytes per character otherwise.
+ * <p>
+ * Once all of the results have been added {@link #sort()} orders the
+ * addresses by sort key, comparing the keys where they lie in the buffers, so
+ * equal munged data ends up in consecutive runs. The memory is given back to
+ * the JVM when the buffers are garbage collected after {@link #free()}, and
+ * is limited by the JVM's maximum direct memory size.
+ */
+public class MungeResultArena {
+
+	private static final Logger logger = Logger.getLogger(MungeResultArena.class);
+
+	/**
+	 * The default size of each of the buffers the results are written into.
+	 */
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 24;
+
+	/**
+	 * Every result starts on a multiple of this many bytes.
+	 */
+	private static final int ALIGNMENT = 8;
+	private static final int ALIGNMENT_SHIFT = 3;
+
+	/**
+	 * The number of addresses there is room for before the address buffer
+	 * first has to grow.
+	 */
+	private static final int INITIAL_ADDRESS_CAPACITY = 1024;
+
+	/**
+	 * Ranges of the address buffer up to this long are sorted by insertion.
+	 */
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	private static final byte NULL_VALUE = 0;
+	private static final byte LATIN1_STRING_VALUE = 1;
+	private static final byte UTF16_STRING_VALUE = 2;
+	private static final byte DECIMAL_VALUE = 3;
+	private static final byte INTEGER_VALUE = 4;
+	private static final byte LONG_VALUE = 5;
+	private static final byte SHORT_VALUE = 6;
+	private static final byte DOUBLE_VALUE = 7;
+	private static final byte FLOAT_VALUE = 8;
+	private static final byte BOOLEAN_VALUE = 9;
+	private static final byte DATE_VALUE = 10;
+	private static final byte SQL_DATE_VALUE = 11;
+	private static final byte TIME_VALUE = 12;
+	private static final byte TIMESTAMP_VALUE = 13;
+	private static final byte BIG_INTEGER_VALUE = 14;
+
+	/**
+	 * The size of each buffer in {@link #chunks}, a power of two.
+	 */
+	private final int chunkSize;
+
+	private final int chunkShift;
+
+	/**
+	 * The buffers holding the results. A result never spans two buffers.
+	 */
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+	/**
+	 * The addresses of the results, in the order they were added until the
+	 * arena is sorted. Only the first {@link #size} are in use.
+	 */
+	private IntBuffer addresses;
+
+	private int size;
+
+	/**
+	 * A heap buffer each result is written to before it is copied into a
+	 * chunk, so its length is known up front. It is only as big as the
+	 * largest result.
+	 */
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+	public MungeResultArena() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates an arena with chunks of the given size, which must be a power
+	 * of two and a multiple of {@link #ALIGNMENT}.
+	 */
+	MungeResultArena(int chunkSize) {
+		if (Integer.bitCount(chunkSize) != 1 || chunkSize < ALIGNMENT) {
+			throw new IllegalArgumentException("The chunk size " + chunkSize + " is not a power of two");
+		}
+		this.chunkSize = chunkSize;
+		this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+	}
+
+	/**
+	 * Adds a result with the given sort key, as encoded by
+	 * {@link MungeResultKeyEncoder}, and source table key values.
+	 */
+	public void add(byte[] sortKey, Object[] keyValues) {
+		scratch.clear();
+		ensureScratch(10 + sortKey.length);
+		scratch.putInt(0);
+		scratch.putInt(sortKey.length);
+		scratch.put(sortKey);
+		scratch.putShort((short) keyValues.length);
+		for (Object value : keyValues) {
+			writeValue(value);
+		}
+		scratch.putInt(0, scratch.position());
+		append(scratch.array(), scratch.position());
+	}
+
+	/**
+	 * Adds all of the results of the other arena after the results of this
+	 * one, in the other arena's current order.
+	 */
+	public void addAll(MungeResultArena other) {
+		for (int i = 0; i < other.size; i++) {
+			int address = other.addresses.get(i);
+			ByteBuffer in = other.chunkOf(address).duplicate();
+			int offset = other.offsetOf(address);
+			int length = in.getInt(offset);
+			scratch.clear();
+			ensureScratch(length);
+			in.position(offset);
+			in.get(scratch.array(), 0, length);
+			append(scratch.array(), length);
+		}
+	}
+
+	/**
+	 * Copies a result into the current chunk, starting a new chunk if it does
+	 * not fit, and records its address.
+	 */
+	private void append(byte[] record, int length) {
+		if (length > chunkSize) {
+			throw new IllegalArgumentException("A munge result of " + length + 
+					" bytes does not fit in a " + chunkSize + " byte arena chunk");
+		}
+		ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if (chunk == null || chunk.remaining() < length) {
+			chunk = ByteBuffer.allocateDirect(chunkSize);
+			chunks.add(chunk);
+		}
+		long byteOffset = ((long) (chunks.size() - 1) << chunkShift) + chunk.position();
+		if ((byteOffset >>> ALIGNMENT_SHIFT) > 0xFFFFFFFFL) {
+			throw new IllegalStateException("The munge result arena is full");
+		}
+		chunk.put(record, 0, length);
+		chunk.position(Math.min(chunkSize, (chunk.position() + ALIGNMENT - 1) & -ALIGNMENT));
+
+		if (addresses == null || size == addresses.capacity()) {
+			int capacity = addresses == null ? INITIAL_ADDRESS_CAPACITY : addresses.capacity() * 2;
+			IntBuffer bigger = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+			for (int i = 0; i < size; i++) {
+				bigger.put(i, addresses.get(i));
+			}
+			addresses = bigger;
+		}
+		addresses.put(size++, (int) (byteOffset >>> ALIGNMENT_SHIFT));
+	}
+
+	/**
+	 * Returns the number of results in the arena.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes of direct memory the arena holds.
+	 */
+	public long getMemoryUsed() {
+		return (long) chunks.size() * chunkSize + (addresses == null ? 0 : addresses.capacity() * 4L);
+	}
+
+	/**
+	 * Compares the sort keys of the results at the given positions.
+	 */
+	public int compareKeys(int index1, int index2) {
+		return compareAddresses(addresses.get(index1), addresses.get(index2));
+	}
+
+	/**
+	 * Returns a copy of the sort key of the result at the given position.
+	 */
+	public byte[] getSortKey(int index) {
+		int address = addresses.get(index);
+		ByteBuffer chunk = chunkOf(address);
+		int offset = offsetOf(address);
+		byte[] key = new byte[chunk.getInt(offset + 4)];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = chunk.get(offset + 8 + i);
+		}
+		return key;
+	}
+
+	/**
+	 * Reads the source table key values of the result at the given position
+	 * into a new list.
+	 */
+	public List<Object> getKeyValues(int index) {
+		int address = addresses.get(index);
+		ByteBuffer in = chunkOf(address).duplicate();
+		int offset = offsetOf(address);
+		in.position(offset + 8 + in.getInt(offset + 4));
+		int count = in.getShort() & 0xffff;
+		List<Object> keyValues = new ArrayList<Object>(count);
+		for (int i = 0; i < count; i++) {
+			keyValues.add(readValue(in));
+		}
+		return keyValues;
+	}
+
+	/**
+	 * Drops all of the results. The arena can be added to again afterwards.
+	 */
+	public void free() {
+		if (!chunks.isEmpty()) {
+			logger.debug("Freeing " + size + " munge results in " + getMemoryUsed() + " bytes");
+		}
+		chunks.clear();
+		addresses = null;
+		size = 0;
+	}
+
+	/**
+	 * Sorts the results by their sort keys, so results with equal munged data
+	 * are next to each other. This is a quicksort that splits each range into
+	 * results below, equal to and above the pivot, as runs of equal keys are
+	 * what matching is looking for, and falls back to a heapsort if the
+	 * ranges are not shrinking.
+	 */
+	public void sort() {
+		int depth = 2 * (32 - Integer.numberOfLeadingZeros(Math.max(size, 1)));
+		sort(0, size, depth);
+	}
+
+	private void sort(int from, int to, int depth) {
+		while (to - from > INSERTION_SORT_THRESHOLD) {
+			if (depth-- == 0) {
+				heapSort(from, to);
+				return;
+			}
+			int pivot = medianOfThree(addresses.get(from), addresses.get(from + (to - from) / 2), addresses.get(to - 1));
+			int lt = from;
+			int i = from;
+			int gt = to - 1;
+			while (i <= gt) {
+				int c = compareAddresses(addresses.get(i), pivot);
+				if (c < 0) {
+					swap(lt++, i++);
+				} else if (c > 0) {
+					swap(i, gt--);
+				} else {
+					i++;
+				}
+			}
+			if (lt - from < to - gt - 1) {
+				sort(from, lt, depth);
+				from = gt + 1;
+			} else {
+				sort(gt + 1, to, depth);
+				to = lt;
+			}
+		}
+		for (int i = from + 1; i < to; i++) {
+			int address = addresses.get(i);
+			int j = i - 1;
+			while (j >= from && compareAddresses(addresses.get(j), address) > 0) {
+				addresses.put(j + 1, addresses.get(j));
+				j--;
+			}
+			addresses.put(j + 1, address);
+		}
+	}
+
+	private int medianOfThree(int a, int b, int c) {
+		if (compareAddresses(a, b) < 0) {
+			if (compareAddresses(b, c) < 0) return b;
+			return compareAddresses(a, c) < 0 ? c : a;
+		} else {
+			if (compareAddresses(a, c) < 0) return a;
+			return compareAddresses(b, c) < 0 ? c : b;
+		}
+	}
+
+	private void heapSort(int from, int to) {
+		int n = to - from;
+		for (int i = n / 2 - 1; i >= 0; i--) {
+			siftDown(from, i, n);
+		}
+		for (int end = n - 1; end > 0; end--) {
+			swap(from, from + end);
+			siftDown(from, 0, end);
+		}
+	}
+
+	private void siftDown(int from, int node, int n) {
+		while (true) {
+			int child = 2 * node + 1;
+			if (child >= n) return;
+			if (child + 1 < n && compareAddresses(addresses.get(from + child), addresses.get(from + child + 1)) < 0) {
+				child++;
+			}
+			if (compareAddresses(addresses.get(from + node), addresses.get(from + child)) >= 0) return;
+			swap(from + node, from + child);
+			node = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int address = addresses.get(i);
+		addresses.put(i, addresses.get(j));
+		addresses.put(j, address);
+	}
+
+	/**
+	 * Compares the sort keys of the results at the given addresses as
+	 * unsigned bytes, the same way as {@link MungeResultKeyEncoder#compare(byte[], byte[])}.
+	 */
+	private int compareAddresses(int address1, int address2) {
+		if (address1 == address2) return 0;
+		ByteBuffer chunk1 = chunkOf(address1);
+		ByteBuffer chunk2 = chunkOf(address2);
+		int offset1 = offsetOf(address1);
+		int offset2 = offsetOf(address2);
+		int length1 = chunk1.getInt(offset1 + 4);
+		int length2 = chunk2.getInt(offset2 + 4);
+		int length = Math.min(length1, length2);
+		for (int i = 0; i < length; i++) {
+			int b1 = chunk1.get(offset1 + 8 + i) & 0xff;
+			int b2 = chunk2.get(offset2 + 8 + i) & 0xff;
+			if (b1 != b2) {
+				return b1 < b2 ? -1 : 1;
+			}
+		}
+		if (length1 == length2) return 0;
+		return length1 < length2 ? -1 : 1;
+	}
+
+	private ByteBuffer chunkOf(int address) {
+		long byteOffset = (address & 0xFFFFFFFFL) << ALIGNMENT_SHIFT;
+		return chunks.get((int) (byteOffset >>> chunkShift));
+	}
+
+	private int offsetOf(int address) {
+		long byteOffset = (address & 0xFFFFFFFFL) << ALIGNMENT_SHIFT;
+		return (int) (byteOffset & (chunkSize - 1));
+	}
+
+	/**
+	 * Makes sure the scratch buffer has room for the given number of bytes
+	 * past its position, keeping what has been written so far.
+	 */
+	private void ensureScratch(int bytes) {
+		if (scratch.remaining() >= bytes) return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + bytes));
+		scratch.flip();
+		bigger.put(scratch);
+		scratch = bigger;
+	}
+
+	private void writeValue(Object value) {
+		ensureScratch(13);
+		if (value == null) {
+			scratch.put(NULL_VALUE);
+		} else if (value instanceof String) {
+			String s = (String) value;
+			boolean latin1 = true;
+			for (int i = 0; i < s.length() && latin1; i++) {
+				latin1 = s.charAt(i) < 0x100;
+			}
+			scratch.put(latin1 ? LATIN1_STRING_VALUE : UTF16_STRING_VALUE);
+			scratch.putInt(s.length());
+			ensureScratch(s.length() * (latin1 ? 1 : 2));
+			for (int i = 0; i < s.length(); i++) {
+				if (latin1) {
+					scratch.put((byte) s.charAt(i));
+				} else {
+					scratch.putChar(s.charAt(i));
+				}
+			}
+		} else if (value instanceof BigDecimal) {
+			BigDecimal bd = (BigDecimal) value;
+			byte[] unscaled = bd.unscaledValue().toByteArray();
+			scratch.put(DECIMAL_VALUE);
+			scratch.putInt(bd.scale());
+			scratch.putInt(unscaled.length);
+			ensureScratch(unscaled.length);
+			scratch.put(unscaled);
+		} else if (value instanceof BigInteger) {
+			byte[] bytes = ((BigInteger) value).toByteArray();
+			scratch.put(BIG_INTEGER_VALUE);
+			scratch.putInt(bytes.length);
+			ensureScratch(bytes.length);
+			scratch.put(bytes);
+		} else if (value instanceof Integer) {
+			scratch.put(INTEGER_VALUE);
+			scratch.putInt((Integer) value);
+		} else if (value instanceof Long) {
+			scratch.put(LONG_VALUE);
+			scratch.putLong((Long) value);
+		} else if (value instanceof Short) {
+			scratch.put(SHORT_VALUE);
+			scratch.putShort((Short) value);
+		} else if (value instanceof Double) {
+			scratch.put(DOUBLE_VALUE);
+			scratch.putDouble((Double) value);
+		} else if (value instanceof Float) {
+			scratch.put(FLOAT_VALUE);
+			scratch.putFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			scratch.put(BOOLEAN_VALUE);
+			scratch.put((byte) (((Boolean) value).booleanValue() ? 1 : 0));
+		} else if (value instanceof Timestamp) {
+			Timestamp ts = (Timestamp) value;
+			scratch.put(TIMESTAMP_VALUE);
+			scratch.putLong(ts.getTime());
+			scratch.putInt(ts.getNanos());
+		} else if (value instanceof java.sql.Date) {
+			scratch.put(SQL_DATE_VALUE);
+			scratch.putLong(((Date) value).getTime());
+		} else if (value instanceof Time) {
+			scratch.put(TIME_VALUE);
+			scratch.putLong(((Date) value).getTime());
+		} else if (value instanceof Date) {
+			scratch.put(DATE_VALUE);
+			scratch.putLong(((Date) value).getTime());
+		} else {
+			throw new IllegalStateException(
+					"Unexpected source table key type encountered while storing munge results: " +
+					value + " (" + value.getClass().getName() + ")");
+		}
+	}
+
+	private static Object readValue(ByteBuffer in) {
+		byte type = in.get();
+		switch (type) {
+		case NULL_VALUE:
+			return null;
+		case LATIN1_STRING_VALUE:
+			char[] chars = new char[in.getInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) (in.get() & 0xff);
+			}
+			return new String(chars);
+		case UTF16_STRING_VALUE:
+			chars = new char[in.getInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = in.getChar();
+			}
+			return new String(chars);
+		case DECIMAL_VALUE:
+			int scale = in.getInt();
+			byte[] unscaled = new byte[in.getInt()];
+			in.get(unscaled);
+			return new BigDecimal(new BigInteger(unscaled), scale);
+		case BIG_INTEGER_VALUE:
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			return new BigInteger(bytes);
+		case INTEGER_VALUE:
+			return Integer.valueOf(in.getInt());
+		case LONG_VALUE:
+			return Long.valueOf(in.getLong());
+		case SHORT_VALUE:
+			return Short.valueOf(in.getShort());
+		case DOUBLE_VALUE:
+			return Double.valueOf(in.getDouble());
+		case FLOAT_VALUE:
+			return Float.valueOf(in.getFloat());
+		case BOOLEAN_VALUE:
+			return Boolean.valueOf(in.get() != 0);
+		case TIMESTAMP_VALUE:
+			Timestamp ts = new Timestamp(in.getLong());
+			ts.setNanos(in.getInt());
+			return ts;
+		case SQL_DATE_VALUE:
+			return new java.sql.Date(in.getLong());
+		case TIME_VALUE:
+			return new Time(in.getLong());
+		case DATE_VALUE:
+			return new Date(in.getLong());
+		default:
+			throw new IllegalStateException("Unknown value type " + type + " in munge result arena");
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Encodes the munged data of a {@link MungeResult} into a single byte array
+ * that sorts, when compared as unsigned bytes, in the same order as
+ * {@link MungeResult#compareTo(MungeResult)}. Two rows of munged data that
+ * compare as equal will always encode to identical byte arrays, so the keys
+ * can also be used for hashing.
+ * <p>
+ * Each column is written as a one byte tag followed by the encoded value:
+ * <ul>
+ * <li>A null value is only the tag, which is lower than every other tag so
+ * nulls sort first.
+ * <li>Booleans are a single byte, false before true.
+ * <li>BigDecimals are a sign tag, then the decimal exponent and the digits of
+ * the value with its trailing zeroes stripped, so values that differ only in
+ * scale encode the same. Negative values have their exponent and digits
+ * inverted so larger magnitudes sort first.
+ * <li>Dates are the milliseconds since the epoch with the sign bit flipped,
+ * followed by the sub-millisecond nanoseconds of a {@link Timestamp}.
+ * <li>Strings are a variable length encoding of each UTF-16 character that
+ * never starts with a zero byte, followed by a zero terminator so a string
+ * sorts before any longer string that it is a prefix of.
+ * </ul>
+ */
+public class MungeResultKeyEncoder {
+
+	private static final int NULL_TAG = 0x00;
+	private static final int BOOLEAN_TAG = 0x10;
+	private static final int DECIMAL_NEGATIVE_TAG = 0x20;
+	private static final int DECIMAL_ZERO_TAG = 0x21;
+	private static final int DECIMAL_POSITIVE_TAG = 0x22;
+	private static final int DATE_TAG = 0x30;
+	private static final int STRING_TAG = 0x40;
+
+	private MungeResultKeyEncoder() {
+		// static utility class
+	}
+
+	/**
+	 * Encodes the given row of munged data into a binary comparable key.
+	 *
+	 * @throws IllegalStateException
+	 *             if one of the values is not of a type that munge results
+	 *             know how to compare.
+	 */
+	public static byte[] encode(Object[] mungedData) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(mungedData.length * 16);
+		for (Object data : mungedData) {
+			if (data == null) {
+				out.write(NULL_TAG);
+			} else if (data instanceof String) {
+				out.write(STRING_TAG);
+				encodeString((String) data, out);
+			} else if (data instanceof BigDecimal) {
+				encodeDecimal((BigDecimal) data, out);
+			} else if (data instanceof Boolean) {
+				out.write(BOOLEAN_TAG);
+				out.write(((Boolean) data).booleanValue() ? 1 : 0);
+			} else if (data instanceof Date) {
+				out.write(DATE_TAG);
+				encodeDate((Date) data, out);
+			} else {
+				throw new IllegalStateException(
+						"Unexpected data type encountered during key encoding: " +
+						String.valueOf(data) + " (" + data.getClass().getName() + ")");
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compares two keys as unsigned bytes. A key that is a prefix of the other
+	 * sorts first.
+	 */
+	public static int compare(byte[] key1, byte[] key2) {
+		int length = Math.min(key1.length, key2.length);
+		for (int i = 0; i < length; i++) {
+			int b1 = key1[i] & 0xff;
+			int b2 = key2[i] & 0xff;
+			if (b1 != b2) {
+				return b1 < b2 ? -1 : 1;
+			}
+		}
+		if (key1.length == key2.length) return 0;
+		return key1.length < key2.length ? -1 : 1;
+	}
+
+	/**
+	 * Characters below 0x7f take one byte, the next 0x4000 characters take two
+	 * bytes and the rest take three. The first byte of each group falls in its
+	 * own increasing range, which keeps the encoding in character order.
+	 */
+	private static void encodeString(String s, ByteArrayOutputStream out) {
+		for (int i = 0; i < s.length(); i++) {
+			int c = s.charAt(i);
+			if (c < 0x7f) {
+				out.write(c + 1);
+			} else if (c < 0x7f + 0x4000) {
+				int v = c - 0x7f;
+				out.write(0x80 | (v >>> 8));
+				out.write(v & 0xff);
+			} else {
+				int v = c - (0x7f + 0x4000);
+				out.write(0xc0);
+				out.write(v >>> 8);
+				out.write(v & 0xff);
+			}
+		}
+		out.write(0);
+	}
+
+	/**
+	 * Writes the value as 0.d1d2d3... x 10^exponent where d1 is not zero.
+	 */
+	private static void encodeDecimal(BigDecimal value, ByteArrayOutputStream out) {
+		int signum = value.signum();
+		if (signum == 0) {
+			out.write(DECIMAL_ZERO_TAG);
+			return;
+		}
+
+		BigDecimal stripped = value.stripTrailingZeros();
+		int exponent = stripped.precision() - stripped.scale();
+		String digits = stripped.unscaledValue().abs().toString();
+		int invert = signum < 0 ? 0xff : 0;
+
+		out.write(signum < 0 ? DECIMAL_NEGATIVE_TAG : DECIMAL_POSITIVE_TAG);
+		int flippedExponent = exponent ^ Integer.MIN_VALUE;
+		out.write(((flippedExponent >>> 24) & 0xff) ^ invert);
+		out.write(((flippedExponent >>> 16) & 0xff) ^ invert);
+		out.write(((flippedExponent >>> 8) & 0xff) ^ invert);
+		out.write((flippedExponent & 0xff) ^ invert);
+		for (int i = 0; i < digits.length(); i++) {
+			out.write((digits.charAt(i) - '0' + 1) ^ invert);
+		}
+		out.write(invert);
+	}
+
+	private static void encodeDate(Date date, ByteArrayOutputStream out) {
+		long time = date.getTime() ^ Long.MIN_VALUE;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			out.write((int) (time >>> shift) & 0xff);
+		}
+		int nanos = 0;
+		if (date instanceof Timestamp) {
+			nanos = ((Timestamp) date).getNanos() % 1000000;
+		}
+		out.write((nanos >>> 16) & 0xff);
+		out.write((nanos >>> 8) & 0xff);
+		out.write(nanos & 0xff);
+	}
+}
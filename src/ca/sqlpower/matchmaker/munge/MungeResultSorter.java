@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts arrays of {@link MungeResult}s by their binary sort keys using all of
+ * the available processors. The array is cut into one slice per thread, each
+ * slice is sorted in place, and the sorted slices are then merged pairwise in
+ * parallel through a single scratch array. No objects are created while
+ * comparing, as the keys are compared as plain byte arrays.
+ */
+public class MungeResultSorter {
+
+	/**
+	 * Arrays shorter than this are sorted on the calling thread as the cost
+	 * of starting the threads would outweigh the gain.
+	 */
+	private static final int PARALLEL_THRESHOLD = 8192;
+
+	/**
+	 * Slices shorter than this are finished off with an insertion sort.
+	 */
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	private MungeResultSorter() {
+		// static utility class
+	}
+
+	/**
+	 * Sorts the given array by sort key using as many threads as there are
+	 * processors available.
+	 */
+	public static void sort(MungeResult[] results) throws InterruptedException {
+		sort(results, Runtime.getRuntime().availableProcessors(), PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Sorts the given array by sort key. The sort is done on the calling
+	 * thread if the array is shorter than the given threshold or only one
+	 * thread is allowed.
+	 */
+	static void sort(final MungeResult[] results, int threads, int parallelThreshold) throws InterruptedException {
+		final byte[][] keys = new byte[results.length][];
+		for (int i = 0; i < results.length; i++) {
+			keys[i] = results[i].getSortKey();
+		}
+
+		int slices = 1;
+		while (slices * 2 <= threads && results.length / (slices * 2) >= parallelThreshold / 2) {
+			slices *= 2;
+		}
+		if (slices == 1 || results.length < parallelThreshold) {
+			quickSort(keys, results, 0, results.length);
+			return;
+		}
+
+		final int[] bounds = new int[slices + 1];
+		for (int i = 0; i <= slices; i++) {
+			bounds[i] = (int) ((long) results.length * i / slices);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(slices);
+		try {
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (int i = 0; i < slices; i++) {
+				final int from = bounds[i];
+				final int to = bounds[i + 1];
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						quickSort(keys, results, from, to);
+						return null;
+					}
+				});
+			}
+			invokeAll(executor, tasks);
+
+			byte[][] srcKeys = keys;
+			MungeResult[] srcResults = results;
+			byte[][] destKeys = new byte[keys.length][];
+			MungeResult[] destResults = new MungeResult[results.length];
+			for (int width = 1; width < slices; width *= 2) {
+				tasks.clear();
+				for (int i = 0; i < slices; i += width * 2) {
+					final int from = bounds[i];
+					final int mid = bounds[i + width];
+					final int to = bounds[i + width * 2];
+					final byte[][] fromKeys = srcKeys;
+					final MungeResult[] fromResults = srcResults;
+					final byte[][] toKeys = destKeys;
+					final MungeResult[] toResults = destResults;
+					tasks.add(new Callable<Object>() {
+						public Object call() {
+							merge(fromKeys, fromResults, toKeys, toResults, from, mid, to);
+							return null;
+						}
+					});
+				}
+				invokeAll(executor, tasks);
+
+				byte[][] tempKeys = srcKeys;
+				srcKeys = destKeys;
+				destKeys = tempKeys;
+				MungeResult[] tempResults = srcResults;
+				srcResults = destResults;
+				destResults = tempResults;
+			}
+			if (srcResults != results) {
+				System.arraycopy(srcResults, 0, results, 0, results.length);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void invokeAll(ExecutorService executor, List<Callable<Object>> tasks) throws InterruptedException {
+		for (Future<Object> future : executor.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Merges the two sorted ranges [from, mid) and [mid, to) of the source
+	 * arrays into the same range of the destination arrays.
+	 */
+	private static void merge(byte[][] srcKeys, MungeResult[] srcResults,
+			byte[][] destKeys, MungeResult[] destResults, int from, int mid, int to) {
+		int left = from;
+		int right = mid;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < mid && MungeResultKeyEncoder.compare(srcKeys[left], srcKeys[right]) <= 0)) {
+				destKeys[i] = srcKeys[left];
+				destResults[i] = srcResults[left];
+				left++;
+			} else {
+				destKeys[i] = srcKeys[right];
+				destResults[i] = srcResults[right];
+				right++;
+			}
+		}
+	}
+
+	/**
+	 * Sorts the range [from, to) in place with a three way partitioning quick
+	 * sort, which keeps long runs of equal keys (the matches) cheap. The
+	 * smaller partition is sorted recursively and the larger one in the loop
+	 * so the stack stays shallow.
+	 */
+	private static void quickSort(byte[][] keys, MungeResult[] results, int from, int to) {
+		while (to - from > INSERTION_SORT_THRESHOLD) {
+			int mid = (from + to) >>> 1;
+			int pivotIndex = medianOfThree(keys, from, mid, to - 1);
+			byte[] pivot = keys[pivotIndex];
+
+			int lt = from;
+			int gt = to - 1;
+			int i = from;
+			while (i <= gt) {
+				int cmp = MungeResultKeyEncoder.compare(keys[i], pivot);
+				if (cmp < 0) {
+					swap(keys, results, lt++, i++);
+				} else if (cmp > 0) {
+					swap(keys, results, i, gt--);
+				} else {
+					i++;
+				}
+			}
+
+			if (lt - from < to - gt - 1) {
+				quickSort(keys, results, from, lt);
+				from = gt + 1;
+			} else {
+				quickSort(keys, results, gt + 1, to);
+				to = lt;
+			}
+		}
+
+		for (int i = from + 1; i < to; i++) {
+			for (int j = i; j > from && MungeResultKeyEncoder.compare(keys[j - 1], keys[j]) > 0; j--) {
+				swap(keys, results, j - 1, j);
+			}
+		}
+	}
+
+	private static int medianOfThree(byte[][] keys, int a, int b, int c) {
+		if (MungeResultKeyEncoder.compare(keys[a], keys[b]) < 0) {
+			if (MungeResultKeyEncoder.compare(keys[b], keys[c]) < 0) return b;
+			return MungeResultKeyEncoder.compare(keys[a], keys[c]) < 0 ? c : a;
+		} else {
+			if (MungeResultKeyEncoder.compare(keys[a], keys[c]) < 0) return a;
+			return MungeResultKeyEncoder.compare(keys[b], keys[c]) < 0 ? c : b;
+		}
+	}
+
+	private static void swap(byte[][] keys, MungeResult[] results, int i, int j) {
+		byte[] tempKey = keys[i];
+		keys[i] = keys[j];
+		keys[j] = tempKey;
+		MungeResult tempResult = results[i];
+		results[i] = results[j];
+		results[j] = tempResult;
+	}
+}
@@ -85,6 +85,15 @@ public class MungeStepOutput<T> extends AbstractMatchMakerObject implements
 	 */
 	private int usage = 0;
 
+	/**
+	 * True while a compiled {@link MungePlan} is running the step that owns
+	 * this output. Steps that have not been converted to read and write the
+	 * plan's slots still go through {@link #setData(Object)}, and no one is
+	 * listening for data changes during an engine run, so no event is fired
+	 * while this is set.
+	 */
+	private boolean quiet;
+
 	/**
 	 * Creates a new MungeStepOutput with the given initial name (can be changed
 	 * later) and type (permanently fixed at the given value).
@@ -126,7 +135,17 @@ public class MungeStepOutput<T> extends AbstractMatchMakerObject implements
 	public void setData(T data) {
 		T oldData = data;
 		this.data = data;
-		firePropertyChange("data", oldData, data);
+		if (!quiet) {
+			firePropertyChange("data", oldData, data);
+		}
+	}
+
+	/**
+	 * Stops or resumes the property change events normally fired when the
+	 * data of this output is set. This is only used by {@link MungePlan}.
+	 */
+	void setQuiet(boolean quiet) {
+		this.quiet = quiet;
 	}
 
 	/**
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.Processor;
+import ca.sqlpower.util.MonitorableImpl;
+
+/**
+ * Runs the partitions of a munge run, on the calling thread if there is only
+ * one partition or on a thread of its own for each partition otherwise. The
+ * row count of the run is shared by all of the partitions. Once every
+ * partition is done they are closed on the calling thread in partition order,
+ * so whatever they hand over comes out in the same order on every run. If one
+ * partition fails the others stop at their next row, and the first failure
+ * is thrown.
+ */
+class PartitionRunner {
+
+	/**
+	 * One partition's share of a munge run.
+	 */
+	interface Partition {
+
+		/**
+		 * Called on the partition's thread before the first row.
+		 */
+		void open() throws Exception;
+
+		/**
+		 * Munges the next row of the partition.
+		 *
+		 * @return false once the partition has no more rows.
+		 */
+		boolean munge() throws Exception;
+
+		/**
+		 * Called on the thread that started the run once every partition is
+		 * done, for every partition that was opened.
+		 *
+		 * @param success
+		 *            False if any of the partitions failed.
+		 */
+		void close(boolean success) throws Exception;
+	}
+
+	/**
+	 * The processor doing the run, checked for cancellation before every row.
+	 */
+	private final Processor processor;
+
+	/**
+	 * Counts the rows munged by all of the partitions.
+	 */
+	private final MonitorableImpl progress;
+
+	private final Logger logger;
+
+	PartitionRunner(Processor processor, MonitorableImpl progress, Logger logger) {
+		this.processor = processor;
+		this.progress = progress;
+		this.logger = logger;
+	}
+
+	/**
+	 * Runs the given partitions until they have no more rows or the row
+	 * count, -1 for no limit, has been reached.
+	 */
+	void run(final List<? extends Partition> partitions, final int rowCount) throws Exception {
+		if (partitions.size() == 1) {
+			Partition partition = partitions.get(0);
+			partition.open();
+			try {
+				mungeAll(partition, rowCount, new AtomicBoolean());
+			} catch (Exception e) {
+				partition.close(false);
+				throw e;
+			}
+			partition.close(true);
+			return;
+		}
+
+		final boolean[] opened = new boolean[partitions.size()];
+		final AtomicBoolean stopped = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int i = 0; i < partitions.size(); i++) {
+				final int index = i;
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						try {
+							partitions.get(index).open();
+							opened[index] = true;
+							mungeAll(partitions.get(index), rowCount, stopped);
+						} catch (Exception e) {
+							stopped.set(true);
+							throw e;
+						}
+						return null;
+					}
+				}));
+			}
+
+			Exception failure = null;
+			for (Future<Object> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						if (e.getCause() instanceof Exception) {
+							failure = (Exception) e.getCause();
+						} else {
+							failure = new Exception(e.getCause());
+						}
+					}
+				}
+			}
+
+			for (int i = 0; i < partitions.size(); i++) {
+				if (!opened[i]) continue;
+				try {
+					partitions.get(i).close(failure == null);
+				} catch (Exception e) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						logger.error("Closing partition " + i + " failed after an earlier failure", e);
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void mungeAll(Partition partition, int rowCount, AtomicBoolean stopped) throws Exception {
+		while (!stopped.get() && nextRow(rowCount)) {
+			if (processor.isCancelled()) {
+				throw new CancellationException("User-requested abort");
+			}
+			if (!partition.munge()) break;
+		}
+	}
+
+	/**
+	 * Counts one more row towards the progress of the run.
+	 *
+	 * @return false if the row count has already been reached.
+	 */
+	private boolean nextRow(int rowCount) {
+		synchronized (progress) {
+			if (rowCount != -1 && progress.getProgress() >= rowCount) {
+				return false;
+			}
+			progress.incrementProgress();
+			return true;
+		}
+	}
+}
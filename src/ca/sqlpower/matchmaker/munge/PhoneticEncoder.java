@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.Locale;
+
+/**
+ * The base of the phonetic encoders used by the Soundex, Refined Soundex,
+ * Metaphone and Double Metaphone munge steps. Each step has an encoder of its
+ * own for every partition it is run on, which keeps the codes of the last few
+ * values it encoded so the many repeated values in a source table are only
+ * encoded once.
+ * <p>
+ * The encoders give the same codes as the commons-codec encoders the steps
+ * used to call. Values made up of ASCII characters, which is nearly all of
+ * them, are encoded by the subclass in reusable buffers, and anything else
+ * is handed to the commons-codec encoder, since it upper cases the value
+ * by the rules of the default locale first.
+ * <p>
+ * Encoders are not thread safe.
+ */
+abstract class PhoneticEncoder {
+
+	/**
+	 * The number of codes kept. Must be a power of 2.
+	 */
+	private static final int CACHE_SIZE = 1024;
+
+	/**
+	 * The values whose codes are kept, at the index given by their hash.
+	 */
+	private final String[] cachedValues = new String[CACHE_SIZE];
+
+	/**
+	 * The code of each of the {@link #cachedValues}.
+	 */
+	private final String[] cachedCodes = new String[CACHE_SIZE];
+
+	/**
+	 * Returns the code of the given value, which must not be null.
+	 */
+	String encode(String value) {
+		int hash = value.hashCode();
+		int index = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+		if (value.equals(cachedValues[index])) {
+			return cachedCodes[index];
+		}
+		String code;
+		if (isAscii(value)) {
+			code = encodeAscii(value);
+		} else {
+			code = encodeWithCodec(value);
+		}
+		cachedValues[index] = value;
+		cachedCodes[index] = code;
+		return code;
+	}
+
+	/**
+	 * Returns true if the value only has ASCII characters and the default
+	 * locale upper cases them the usual way, which Turkish and Azeri do not
+	 * for the letter i.
+	 */
+	private static boolean isAscii(String value) {
+		String language = Locale.getDefault().getLanguage();
+		if (language.equals("tr") || language.equals("az")) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a buffer of at least the given length, which is the given
+	 * buffer if it is long enough.
+	 */
+	static char[] ensureCapacity(char[] buffer, int length) {
+		if (buffer.length >= length) {
+			return buffer;
+		}
+		return new char[Math.max(length, buffer.length * 2)];
+	}
+
+	/**
+	 * Encodes a value made up of only ASCII characters.
+	 */
+	protected abstract String encodeAscii(String value);
+
+	/**
+	 * Encodes any value with the commons-codec encoder.
+	 */
+	protected abstract String encodeWithCodec(String value);
+}
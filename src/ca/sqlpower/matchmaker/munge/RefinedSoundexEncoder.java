@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import org.apache.commons.codec.language.RefinedSoundex;
+
+/**
+ * Gives the same codes as the commons-codec {@link RefinedSoundex} encoder.
+ */
+class RefinedSoundexEncoder extends PhoneticEncoder {
+
+	/**
+	 * The code of each letter, from A to Z.
+	 */
+	private static final char[] MAPPING = RefinedSoundex.US_ENGLISH_MAPPING.clone();
+
+	private final RefinedSoundex codec = new RefinedSoundex();
+
+	/**
+	 * The code being built. It is at most one longer than the value.
+	 */
+	private char[] code = new char[32];
+
+	@Override
+	protected String encodeAscii(String value) {
+		code = ensureCapacity(code, value.length() + 1);
+		int length = 0;
+		char last = '*';
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c >= 'a' && c <= 'z') {
+				c = (char) (c - ('a' - 'A'));
+			} else if (c < 'A' || c > 'Z') {
+				continue;
+			}
+			if (length == 0) {
+				code[length++] = c;
+			}
+			char current = MAPPING[c - 'A'];
+			if (current == last) {
+				continue;
+			}
+			code[length++] = current;
+			last = current;
+		}
+		return new String(code, 0, length);
+	}
+
+	@Override
+	protected String encodeWithCodec(String value) {
+		return codec.soundex(value);
+	}
+}
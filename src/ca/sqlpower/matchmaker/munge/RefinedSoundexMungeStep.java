@@ -24,8 +24,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.codec.language.RefinedSoundex;
-
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Constructor;
 
@@ -39,6 +37,18 @@ public class RefinedSoundexMungeStep extends AbstractMungeStep {
 		Collections.unmodifiableList(new ArrayList<Class<? extends SPObject>>(
 				Arrays.asList(MungeStepOutput.class,MungeStepInput.class)));
 	
+	/**
+	 * The encoder for the current run, which keeps the codes of values it has
+	 * already seen. Created on the first value and dropped on close.
+	 */
+	private RefinedSoundexEncoder encoder;
+	
+	/**
+	 * The slot of the encoder a partition uses in a compiled
+	 * {@link MungePlan}, where each partition has one of its own.
+	 */
+	private int stateSlot;
+	
 	@Constructor
 	public RefinedSoundexMungeStep() {
 		super("Refined Soundex",false);
@@ -78,10 +88,52 @@ public class RefinedSoundexMungeStep extends AbstractMungeStep {
 		MungeStepOutput<String> in = getMSOInputs().get(0);
 		String data = in.getData();
 		if (data != null) {
-			out.setData(new RefinedSoundex().soundex(data));
+			if (encoder == null) {
+				encoder = new RefinedSoundexEncoder();
+			}
+			out.setData(encoder.encode(data));
 		} else {
 			out.setData(null);
 		}
 		return true;
 	}
+	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		stateSlot = plan.getStateSlot(this);
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Gives the partition an encoder of its own, as encoders are not thread
+	 * safe.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		return new RefinedSoundexEncoder();
+	}
+	
+	/**
+	 * Encodes the input slot straight into the output slot with the
+	 * partition's encoder.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		if (data == null) {
+			slots[outputSlots[0]] = null;
+		} else {
+			slots[outputSlots[0]] = ((PhoneticEncoder) slots[stateSlot]).encode(data);
+		}
+		return true;
+	}
+	
+	@Override
+	public void doClose() throws Exception {
+		encoder = null;
+	}
 }
@@ -26,6 +26,9 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.MatchMakerEngine.EngineMode;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Accessor;
 import ca.sqlpower.object.annotation.Constructor;
@@ -36,7 +39,7 @@ import ca.sqlpower.object.annotation.Mutator;
 /**
  * This munge step will only retain the given characters in the input string.
  */
-public class RetainCharactersMungeStep extends AbstractMungeStep {
+public class RetainCharactersMungeStep extends AbstractMungeStep implements FusableStringStep {
 
 	@SuppressWarnings("unchecked")
 	public static final List<Class<? extends SPObject>> allowedChildTypes = 
@@ -61,6 +64,20 @@ public class RetainCharactersMungeStep extends AbstractMungeStep {
 	 * the option is set to true.
 	 */
 	private String retainChars;
+	
+	/**
+	 * The matcher for {@link #retainChars} with the current options,
+	 * compiled when the step is opened and again after any of them change.
+	 * It is null until then. In a compiled plan each partition has a matcher
+	 * of its own for the same pattern, kept in the state slot.
+	 */
+	private Matcher matcher;
+	
+	/**
+	 * The slot of this step's matcher for a partition in a compiled
+	 * {@link MungePlan}.
+	 */
+	private int stateSlot;
 
 	/**
 	 * Case sensitive is set to true and use regex is set to false for this
@@ -102,46 +119,116 @@ public class RetainCharactersMungeStep extends AbstractMungeStep {
 		}
 	}
 	
-	public Boolean doCall() throws Exception {
+	@Override
+	public void doOpen(EngineMode mode, Logger logger) throws Exception {
+		compileMatcher();
+	}
 	
+	/**
+	 * Compiles the pattern for the current options, turning the characters
+	 * to retain into a character class if they are not a regular expression.
+	 */
+	private void compileMatcher() {
+		String chars = retainChars;
+		if (!useRegex) {
+			chars = "[" + escapeSpecialCharacters(chars) + "]+";
+		}
+		Pattern p;
+		if (!caseSensitive) {
+			p = Pattern.compile(chars, Pattern.CASE_INSENSITIVE);
+		} else {
+			p = Pattern.compile(chars);
+		}
+		matcher = p.matcher("");
+	}
+
+	public Boolean doCall() throws Exception {
 		MungeStepOutput<String> out = getOut();
 		MungeStepOutput<String> in = getMSOInputs().get(0);
 		String data = in.getData();
-		StringBuilder result = new StringBuilder();
-		
-		if (in.getData() != null) {
-			Pattern p;
-			if (!useRegex) {
-				// This block of code adds escape characters to each of
-				// the regex special characters to be taken as literals
-				String specialChars = "-+*?()[]{}|^<=";
-				retainChars = retainChars.replaceAll("\\\\", "\\\\\\\\");
-				retainChars = retainChars.replaceAll("\\$", "\\\\\\$");
-				for (char letter : specialChars.toCharArray()) {
-					retainChars = retainChars.replaceAll("\\" + letter, "\\\\" + letter);
-				}
-				
-				retainChars = "[" + retainChars + "]+";
+		if (data != null) {
+			if (matcher == null) {
+				compileMatcher();
 			}
-			if (!caseSensitive) {
-				p = Pattern.compile(retainChars, Pattern.CASE_INSENSITIVE);
-			} else {
-				p = Pattern.compile(retainChars);
-			}
-			
-			for (Character letter: data.toCharArray()) {
-				Matcher m = p.matcher(letter.toString());
-				if (m.matches()) {
-					result.append(letter);
-				}
-			}
-			out.setData(result.toString());
+			out.setData(retain(data, matcher));
 		} else {
 			out.setData(null);
 		}
 		return true;
 	}
-
+	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		stateSlot = plan.getStateSlot(this);
+		if (matcher == null) {
+			compileMatcher();
+		}
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Gives the partition a matcher of its own, as matchers can not be shared
+	 * between threads.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		return matcher.pattern().matcher("");
+	}
+	
+	/**
+	 * Retains the characters of the input slot straight into the output slot.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		if (data != null) {
+			slots[outputSlots[0]] = retain(data, (Matcher) slots[stateSlot]);
+		} else {
+			slots[outputSlots[0]] = null;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the characters of the given string the matcher matches.
+	 */
+	private static String retain(String data, Matcher matcher) {
+		StringBuilder result = new StringBuilder(data.length());
+		matcher.reset(data);
+		// each character is matched on its own, as if it were the
+		// whole input
+		for (int i = 0; i < data.length(); i++) {
+			matcher.region(i, i + 1);
+			if (matcher.matches()) {
+				result.append(data.charAt(i));
+			}
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * Moves the characters to keep to the front of the buffer, using the
+	 * partition's matcher. The matcher only looks at the character in its
+	 * region, so the characters behind it can be overwritten as it goes.
+	 */
+	public void transform(FusedStringChain.Buffer buffer, Object state) {
+		Matcher partitionMatcher = (Matcher) state;
+		partitionMatcher.reset(buffer);
+		int kept = 0;
+		for (int i = 0; i < buffer.length; i++) {
+			partitionMatcher.region(i, i + 1);
+			if (partitionMatcher.matches()) {
+				buffer.chars[buffer.start + kept] = buffer.chars[buffer.start + i];
+				kept++;
+			}
+		}
+		buffer.length = kept;
+	}
+	
 	@Accessor
 	public boolean isCaseSensitive() {
 		return caseSensitive;
@@ -151,6 +238,7 @@ public class RetainCharactersMungeStep extends AbstractMungeStep {
 	public void setCaseSensitive(boolean caseSensitive) {
 		boolean oldVal = this.caseSensitive;
 		this.caseSensitive = caseSensitive;
+		matcher = null;
 		firePropertyChange("caseSensitive", oldVal, caseSensitive);
 	}
 
@@ -163,6 +251,7 @@ public class RetainCharactersMungeStep extends AbstractMungeStep {
 	public void setUseRegex(boolean useRegex) {
 		boolean oldVal = this.useRegex;
 		this.useRegex = useRegex;
+		matcher = null;
 		firePropertyChange("useRegex", oldVal, useRegex);
 	}
 
@@ -175,6 +264,7 @@ public class RetainCharactersMungeStep extends AbstractMungeStep {
 	public void setRetainChars(String retainChars) {
 		String oldChars = this.retainChars;
 		this.retainChars = retainChars;
+		matcher = null;
 		firePropertyChange("retainChars", oldChars, retainChars);
 	}
 	
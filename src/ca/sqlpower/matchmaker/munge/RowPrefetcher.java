@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the rows of an input step's result set on a thread of its own, so the
+ * round trips to the database overlap with munging the rows already read. The
+ * rows are decoded into a fixed ring of reusable value arrays, which the
+ * munging thread takes one at a time with {@link #next()}. The reading thread
+ * waits when the ring is full, and the munging thread waits when it is empty.
+ * <p>
+ * Whenever the munging thread has had to wait for rows since the reading
+ * thread last checked, the fetch size of the result set is doubled, up to
+ * {@link #MAX_FETCH_SIZE}, so that fewer round trips are needed.
+ */
+class RowPrefetcher {
+
+	private static final Logger logger = Logger.getLogger(RowPrefetcher.class);
+
+	/**
+	 * The largest fetch size the prefetcher will grow the result set's fetch
+	 * size to.
+	 */
+	static final int MAX_FETCH_SIZE = 10000;
+
+	private final SQLInputStep step;
+
+	private final ResultSet rs;
+
+	/**
+	 * The ring of value arrays. The rows that have been read and not yet
+	 * released by the munging thread are the {@link #count} arrays starting
+	 * at {@link #head}.
+	 */
+	private final Object[][] ring;
+
+	private int head;
+
+	private int count;
+
+	/**
+	 * True while the munging thread holds the array at {@link #head}, which
+	 * is released by the next call to {@link #next()}.
+	 */
+	private boolean holding;
+
+	/**
+	 * True once the reading thread has read the last row.
+	 */
+	private boolean done;
+
+	/**
+	 * The exception or error that stopped the reading thread, thrown to the
+	 * munging thread once it has taken the rows read before it. Errors are
+	 * kept as well, so running out of memory while reading is not mistaken
+	 * for the end of the rows.
+	 */
+	private Throwable failure;
+
+	private boolean closed;
+
+	/**
+	 * The number of times the munging thread has waited for a row.
+	 */
+	private int waits;
+
+	private int fetchSize;
+
+	private final Thread reader;
+
+	/**
+	 * Creates a prefetcher for the given result set of the given step. The
+	 * reading thread is not started until {@link #start()} is called.
+	 *
+	 * @param capacity
+	 *            The number of rows the ring holds.
+	 * @param fetchSize
+	 *            The fetch size to start with.
+	 */
+	RowPrefetcher(SQLInputStep step, ResultSet rs, int capacity, int fetchSize) {
+		this.step = step;
+		this.rs = rs;
+		this.fetchSize = fetchSize;
+		int columnCount = step.getMungeStepOutputs().size();
+		ring = new Object[Math.max(2, capacity)][];
+		for (int i = 0; i < ring.length; i++) {
+			ring[i] = new Object[columnCount];
+		}
+		reader = new Thread("Prefetch " + step.getName()) {
+			@Override
+			public void run() {
+				readRows();
+			}
+		};
+		reader.setDaemon(true);
+	}
+
+	void start() {
+		reader.start();
+	}
+
+	ResultSet getResultSet() {
+		return rs;
+	}
+
+	/**
+	 * Releases the row returned by the last call and returns the values of
+	 * the next row, waiting for it to be read if necessary. The returned
+	 * array is reused once this is called again.
+	 *
+	 * @return The values of the next row, or null if there are no more rows.
+	 * @throws Exception
+	 *             The exception that stopped the reading thread, once every
+	 *             row read before it has been returned. An error that stopped
+	 *             it is thrown wrapped in an exception.
+	 */
+	synchronized Object[] next() throws Exception {
+		if (holding) {
+			head = (head + 1) % ring.length;
+			count--;
+			holding = false;
+			notifyAll();
+		}
+		if (count == 0 && !done) {
+			waits++;
+			while (count == 0 && !done) {
+				wait();
+			}
+		}
+		if (count == 0) {
+			if (failure instanceof Exception) {
+				throw (Exception) failure;
+			} else if (failure != null) {
+				throw new Exception("Reading the rows of " + step.getName() + " failed", failure);
+			}
+			return null;
+		}
+		holding = true;
+		return ring[head];
+	}
+
+	/**
+	 * Stops the reading thread and waits for it to finish. The result set is
+	 * left open.
+	 */
+	void close() throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		if (reader.isAlive()) {
+			reader.join();
+		}
+	}
+
+	private void readRows() {
+		int lastWaits = 0;
+		int rowsSinceCheck = 0;
+		try {
+			while (true) {
+				Object[] values;
+				synchronized (this) {
+					while (count == ring.length && !closed) {
+						wait();
+					}
+					if (closed) return;
+					values = ring[(head + count) % ring.length];
+				}
+
+				if (!rs.next()) break;
+				step.readValues(rs, values);
+
+				synchronized (this) {
+					count++;
+					notifyAll();
+				}
+
+				rowsSinceCheck++;
+				if (rowsSinceCheck >= fetchSize) {
+					rowsSinceCheck = 0;
+					int currentWaits;
+					synchronized (this) {
+						currentWaits = waits;
+					}
+					if (currentWaits > lastWaits && fetchSize < MAX_FETCH_SIZE) {
+						growFetchSize();
+					}
+					lastWaits = currentWaits;
+				}
+			}
+		} catch (Throwable t) {
+			synchronized (this) {
+				failure = t;
+			}
+		} finally {
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void growFetchSize() {
+		fetchSize = Math.min(fetchSize * 2, MAX_FETCH_SIZE);
+		try {
+			rs.setFetchSize(fetchSize);
+			logger.debug("Raised the fetch size of " + step.getName() + " to " + fetchSize);
+		} catch (SQLException e) {
+			// only a hint, some drivers do not allow it once rows have been read
+			logger.debug("Could not change the fetch size of " + step.getName(), e);
+		}
+	}
+}
@@ -20,8 +20,10 @@
 package ca.sqlpower.matchmaker.munge;
 
 import java.math.BigDecimal;
+import java.math.MathContext;
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -44,6 +46,7 @@ import ca.sqlpower.object.annotation.NonProperty;
 import ca.sqlpower.sql.CachedRowSet;
 import ca.sqlpower.sqlobject.SQLColumn;
 import ca.sqlpower.sqlobject.SQLDatabase;
+import ca.sqlpower.sqlobject.SQLIndex;
 import ca.sqlpower.sqlobject.SQLObjectException;
 import ca.sqlpower.sqlobject.SQLTable;
 
@@ -62,7 +65,7 @@ public class SQLInputStep extends AbstractMungeStep {
 				Arrays.asList(MungeStepOutput.class,MungeStepInput.class)));
 	
 	/**
-	 * Default value to input when setting the ResultSet fetch size using
+	 * Smallest value to input when setting the ResultSet fetch size using
 	 * {@link ResultSet#setFetchSize(int)}. This is to help with a production bug running
 	 * the Match Engine on Oracle, which sets a default fetch size of 10. The result is a
 	 * lot of network traffic when trying to read thousands of rows from a ResultSet, 
@@ -70,6 +73,18 @@ public class SQLInputStep extends AbstractMungeStep {
 	 */
 	private static final int DEFAULT_FETCH_SIZE = 1000;
 	
+	/**
+	 * The rough number of bytes the fetch size is chosen to bring back in
+	 * each round trip, based on the declared widths of the selected columns.
+	 */
+	private static final int TARGET_FETCH_BYTES = 4 * 1024 * 1024;
+	
+	/**
+	 * The width assumed for columns without a useful declared width, such as
+	 * LOBs.
+	 */
+	private static final int WIDE_COLUMN_BYTES = 4000;
+	
     /**
      * The result set that provides input to this step.  The result set cursor will
      * be advanced on every call to {@link #call()}.  The result set is opened by
@@ -102,6 +117,54 @@ public class SQLInputStep extends AbstractMungeStep {
      */
     private CachedRowSet previewRS = null;
     
+    /**
+     * The data type of each output, in column order, for reading the rows
+     * into the slots of a compiled {@link MungePlan}. This is set up when
+     * the plan is compiled.
+     */
+    private Class<?>[] outputTypes;
+    
+    /**
+     * The slot of the result set a partition reads from in a compiled
+     * {@link MungePlan}.
+     */
+    private int stateSlot;
+    
+    /**
+     * The number of partitions the source table is split into when this step
+     * is opened. Each partition is read over a connection of its own.
+     */
+    private int partitionCount = 1;
+    
+    /**
+     * The WHERE clause condition that selects the rows of each partition, or
+     * null if the source table could not be split and the first partition
+     * reads every row.
+     */
+    private String[] partitionConditions;
+    
+    /**
+     * The scan of the source table this step shares with the input steps of
+     * other munge processes, or null if this step reads the table itself.
+     * Only the leader of the scan runs a query; the other steps take their
+     * rows from the scan.
+     */
+    private SharedSourceScan sharedScan;
+    
+    /**
+     * The column of this step's query each output is read from, starting at
+     * 1, or 0 for outputs whose column is not selected. Those outputs are
+     * always null. This is null when every column is selected, which is
+     * always the case outside of the engine.
+     */
+    private int[] columnIndexes;
+    
+    /**
+     * The fetch size this step's queries start with, chosen from the widths
+     * of the columns they select when the step is opened.
+     */
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    
     public SQLInputStep() {
     	super("Input Step", false);
     }
@@ -119,28 +182,244 @@ public class SQLInputStep extends AbstractMungeStep {
         
         for (int i = 0; i < table.getColumns().size(); i++) {
             MungeStepOutput<?> o = getChildren(MungeStepOutput.class).get(i);
-            if (o.getType() == String.class) {
+            int column = columnIndexes == null ? i + 1 : columnIndexes[i];
+            if (column == 0) {
+                o.setData(null);
+            } else if (o.getType() == String.class) {
                 MungeStepOutput<String> oo = (MungeStepOutput<String>) o;
-                oo.setData(rs.getString(i + 1));
+                oo.setData(rs.getString(column));
             } else if (o.getType() == BigDecimal.class) {
                 MungeStepOutput<BigDecimal> oo = (MungeStepOutput<BigDecimal>) o;
-                oo.setData(rs.getBigDecimal(i + 1));
+                oo.setData(rs.getBigDecimal(column));
             } else if (o.getType() == Date.class) {
                 MungeStepOutput<Date> oo = (MungeStepOutput<Date>) o;
-                oo.setData(rs.getTimestamp(i + 1));
+                oo.setData(rs.getTimestamp(column));
             } else if (o.getType() == Boolean.class) {
                 MungeStepOutput<Boolean> oo = (MungeStepOutput<Boolean>) o;
-                oo.setData(rs.getBoolean(i + 1));
+                oo.setData(rs.getBoolean(column));
             } else {
                 logger.warn("Column \""+o.getName()+"\" type "+o.getType()+" is not known. Treating as a String.");
                 MungeStepOutput<String> oo = (MungeStepOutput<String>) o;
-                oo.setData(rs.getString(i + 1));
+                oo.setData(rs.getString(column));
             }
         }
         
         return true;
     }
     
+    @Override
+    protected void prepareSlots(MungePlan plan) {
+    	stateSlot = plan.getStateSlot(this);
+    	if (outputTypes == null) {
+    		setupOutputTypes();
+    	}
+    }
+    
+    private void setupOutputTypes() {
+    	List<MungeStepOutput> outputs = getMungeStepOutputs();
+    	outputTypes = new Class<?>[table.getColumns().size()];
+    	for (int i = 0; i < outputTypes.length; i++) {
+    		MungeStepOutput<?> o = outputs.get(i);
+    		outputTypes[i] = o.getType();
+    		if (o.getType() != String.class && o.getType() != BigDecimal.class &&
+    				o.getType() != Date.class && o.getType() != Boolean.class) {
+    			logger.warn("Column \""+o.getName()+"\" type "+o.getType()+" is not known. Treating as a String.");
+    		}
+    	}
+    }
+    
+    /**
+     * Reads the next row of the result set straight into the slots of the
+     * step's outputs.
+     */
+    @Override
+    public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+    	if (sharedScan != null) {
+    		Object[] values = ((SharedSourceScan.Reader) slots[stateSlot]).getValues();
+    		for (int i = 0; i < outputTypes.length; i++) {
+    			slots[outputSlots[i]] = values == null ? null : values[i];
+    		}
+    		return values != null;
+    	}
+    	
+    	Object state = slots[stateSlot];
+    	if (state instanceof RowPrefetcher) {
+    		Object[] values = ((RowPrefetcher) state).next();
+    		for (int i = 0; i < outputTypes.length; i++) {
+    			slots[outputSlots[i]] = values == null ? null : values[i];
+    		}
+    		return values != null;
+    	}
+    	
+    	ResultSet rs = (ResultSet) state;
+    	if (rs == null || !rs.next()) {
+    		for (int i = 0; i < outputTypes.length; i++) {
+    			slots[outputSlots[i]] = null;
+    		}
+    		return false;
+    	}
+    	
+    	for (int i = 0; i < outputTypes.length; i++) {
+    		slots[outputSlots[i]] = readValue(rs, i);
+    	}
+    	return true;
+    }
+    
+    /**
+     * Reads the current row of a result set from this step's query into the
+     * given array, one value per output.
+     */
+    void readValues(ResultSet rs, Object[] values) throws SQLException {
+    	if (outputTypes == null) {
+    		setupOutputTypes();
+    	}
+    	for (int i = 0; i < outputTypes.length; i++) {
+    		values[i] = readValue(rs, i);
+    	}
+    }
+    
+    private Object readValue(ResultSet rs, int output) throws SQLException {
+    	int column = columnIndexes == null ? output + 1 : columnIndexes[output];
+    	Class<?> type = outputTypes[output];
+    	if (column == 0) {
+    		return null;
+    	} else if (type == BigDecimal.class) {
+    		return rs.getBigDecimal(column);
+    	} else if (type == Date.class) {
+    		return rs.getTimestamp(column);
+    	} else if (type == Boolean.class) {
+    		return rs.getBoolean(column);
+    	} else {
+    		return rs.getString(column);
+    	}
+    }
+    
+    @Override
+    protected boolean isPartitionSafe() {
+    	return true;
+    }
+    
+    /**
+     * The first partition reads from the result set opened with this step.
+     * Every other partition runs its own query over a new connection, or has
+     * no rows at all if the source table could not be split. A step sharing
+     * a scan reads from the scan's reader for the partition instead.
+     */
+    @Override
+    protected Object openPartition(int partition, int partitionCount) throws Exception {
+    	if (sharedScan != null) {
+    		return sharedScan.getReader(partition);
+    	}
+    	ResultSet partitionRs = openResultSet(partition);
+    	RowPrefetcher prefetcher = startPrefetch(partitionRs);
+    	if (prefetcher != null) {
+    		return prefetcher;
+    	}
+    	return partitionRs;
+    }
+    
+    /**
+     * Starts reading the given result set of this step's query ahead of the
+     * munging on a thread of its own, if the project's munge settings ask
+     * for it.
+     * <p>
+     * Only the rows of a process with a {@link DeDupeResultStep} are read
+     * ahead. Any other result step, such as a {@link CleanseResultStep},
+     * updates or reads the current row of this step's result set, so the
+     * cursor has to stay on the row being munged.
+     * 
+     * @return The prefetcher reading the result set, or null if the rows
+     *         should be read on the munging thread.
+     */
+    RowPrefetcher startPrefetch(ResultSet partitionRs) {
+    	int prefetchRowCount = getProject().getMungeSettings().getPrefetchRowCount();
+    	if (partitionRs == null || prefetchRowCount <= 0
+    			|| !(getParent().getResultStep() instanceof DeDupeResultStep)) {
+    		return null;
+    	}
+    	if (outputTypes == null) {
+    		setupOutputTypes();
+    	}
+    	RowPrefetcher prefetcher = new RowPrefetcher(this, partitionRs, prefetchRowCount, fetchSize);
+    	prefetcher.start();
+    	return prefetcher;
+    }
+    
+    /**
+     * Returns the result set of the given partition of this step's query,
+     * running the partition's query if it is not the first partition.
+     */
+    ResultSet openResultSet(int partition) throws Exception {
+    	if (partition == 0) {
+    		return rs;
+    	} else if (partitionConditions == null) {
+    		return null;
+    	}
+    	
+    	Connection partitionCon = table.getParentDatabase().getConnection();
+    	Statement stmt = null;
+    	try {
+    		partitionCon.setAutoCommit(false);
+    		stmt = partitionCon.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    		stmt.setFetchSize(fetchSize);
+    		String sql = buildQuery(partitionConditions[partition]);
+    		logger.debug("Attempting to execute input query for partition " + partition + ": " + sql);
+    		return stmt.executeQuery(sql);
+    	} catch (Exception e) {
+    		if (stmt != null) stmt.close();
+    		partitionCon.close();
+    		throw e;
+    	}
+    }
+    
+    @Override
+    protected void closePartition(Object state, boolean success) throws Exception {
+    	if (sharedScan != null) {
+    		return;
+    	} else if (state instanceof RowPrefetcher) {
+    		RowPrefetcher prefetcher = (RowPrefetcher) state;
+    		prefetcher.close();
+    		closeResultSet(prefetcher.getResultSet());
+    	} else {
+    		closeResultSet((ResultSet) state);
+    	}
+    }
+    
+    /**
+     * Closes a result set from {@link #openResultSet(int)} along with its
+     * connection, unless it is the result set of the first partition which
+     * is closed with the step.
+     */
+    void closeResultSet(ResultSet partitionRs) throws Exception {
+    	if (partitionRs == null || partitionRs == rs) return;
+    	Statement stmt = partitionRs.getStatement();
+    	Connection partitionCon = stmt.getConnection();
+    	partitionRs.close();
+    	stmt.close();
+    	partitionCon.close();
+    }
+    
+    /**
+     * Sets the number of partitions the source table will be split into the
+     * next time this step is opened. This goes back to 1 when the step is
+     * closed.
+     */
+    @NonProperty
+    public void setPartitionCount(int partitionCount) {
+    	this.partitionCount = partitionCount;
+    }
+    
+    /**
+     * Makes this step read its rows from the given scan of the source table
+     * the next time it is opened, instead of running a query of its own. If
+     * this step is the leader of the scan it runs the query the scan reads.
+     * This is cleared when the step is closed.
+     */
+    @NonProperty
+    public void setSharedScan(SharedSourceScan sharedScan) {
+    	this.sharedScan = sharedScan;
+    }
+    
     @Override
     public void doOpen(EngineMode mode, Logger logger) throws Exception {
     	if ((!isPreviewMode() || previewRS == null) && rs != null) {
@@ -177,6 +456,11 @@ public class SQLInputStep extends AbstractMungeStep {
     		}
 
     		setupOutputs();
+    		
+    		if (!isPreviewMode() && sharedScan != null && sharedScan.getLeader() != this) {
+    			// the rows come from the leader of the shared scan
+    			return;
+    		}
 
     		SQLDatabase db = table.getParentDatabase();
     		if (db == null) {
@@ -195,30 +479,31 @@ public class SQLInputStep extends AbstractMungeStep {
     			stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
 
     			// Some platforms (definitely PostgreSQL) require a non-zero fetch size to enable streaming
-    			stmt.setFetchSize(100);
+    			stmt.setFetchSize(fetchSize);
 
-    			StringBuilder sql = new StringBuilder();
-    			sql.append("SELECT");
-    			boolean first = true;
-    			for (SQLColumn c : table.getColumns()) {
-    				if (!first) sql.append(",");
-    				sql.append("\n ").append("\"").append(c.getName()).append("\"");
-    				first = false;
+    			if (!isPreviewMode() && !nullOutRS) {
+    				columnIndexes = findColumnIndexes();
+    				fetchSize = chooseFetchSize();
     			}
-    			sql.append("\nFROM ").append(DDLUtils.toQualifiedName(table));
-    			if (getProject().getFilter() != null && getProject().getFilter().trim().length() > 0) {
-    				sql.append("\nWHERE " + getProject().getFilter());
+    			
+    			String condition = null;
+    			if (!isPreviewMode() && !nullOutRS && partitionCount > 1) {
+    				partitionConditions = findPartitionConditions(con);
+    				if (partitionConditions != null) {
+    					condition = partitionConditions[0];
+    				}
     			}
+    			String sql = buildQuery(condition);
 
     			if (isPreviewMode()) {
     				stmt.setMaxRows(MungePreviewer.MAX_ROWS_PREVIEWED);
     			}
     			logger.debug("Attempting to execute input query: " + sql);
-    			tempRs = stmt.executeQuery(sql.toString());
+    			tempRs = stmt.executeQuery(sql);
 
     			logger.debug("ResultSet fetch size is: " + tempRs.getFetchSize());
-    			if (tempRs.getFetchSize() < DEFAULT_FETCH_SIZE) {
-    				tempRs.setFetchSize(DEFAULT_FETCH_SIZE);
+    			if (tempRs.getFetchSize() < fetchSize) {
+    				tempRs.setFetchSize(fetchSize);
     			}
 
     			if (isPreviewMode()) {
@@ -252,6 +537,192 @@ public class SQLInputStep extends AbstractMungeStep {
     	}
     }
 
+    /**
+     * Returns the query that selects the columns this step reads from the
+     * source table, from the rows that pass the project's filter and the
+     * given condition. It is set to default accessibility so that the unit
+     * test can call it.
+     * 
+     * @param condition
+     *            An extra WHERE clause condition, or null for none.
+     */
+    String buildQuery(String condition) {
+    	StringBuilder sql = new StringBuilder();
+    	sql.append("SELECT");
+    	boolean first = true;
+    	List<SQLColumn> columns = table.getColumns();
+    	for (int i = 0; i < columns.size(); i++) {
+    		if (columnIndexes != null && columnIndexes[i] == 0) continue;
+    		if (!first) sql.append(",");
+    		sql.append("\n ").append("\"").append(columns.get(i).getName()).append("\"");
+    		first = false;
+    	}
+    	sql.append("\nFROM ").append(DDLUtils.toQualifiedName(table));
+    	String filter = getProject().getFilter();
+    	boolean hasFilter = filter != null && filter.trim().length() > 0;
+    	if (hasFilter && condition != null) {
+    		sql.append("\nWHERE (" + filter + ")\nAND " + condition);
+    	} else if (hasFilter) {
+    		sql.append("\nWHERE " + filter);
+    	} else if (condition != null) {
+    		sql.append("\nWHERE " + condition);
+    	}
+    	return sql.toString();
+    }
+    
+    /**
+     * Chooses a fetch size that brings back roughly {@link #TARGET_FETCH_BYTES}
+     * per round trip, from the declared widths of the selected columns. Wide
+     * tables get smaller fetches so the driver's buffers stay bounded, and
+     * narrow ones get larger fetches so fewer round trips are needed.
+     */
+    private int chooseFetchSize() {
+    	List<SQLColumn> columns = table.getColumns();
+    	long rowBytes = 0;
+    	for (int i = 0; i < columns.size(); i++) {
+    		if (columnIndexes != null && columnIndexes[i] == 0) continue;
+    		int width = columns.get(i).getPrecision();
+    		if (width <= 0 || width > WIDE_COLUMN_BYTES) {
+    			width = WIDE_COLUMN_BYTES;
+    		}
+    		rowBytes += width;
+    	}
+    	long size = TARGET_FETCH_BYTES / Math.max(1, rowBytes);
+    	return (int) Math.max(DEFAULT_FETCH_SIZE, Math.min(size, RowPrefetcher.MAX_FETCH_SIZE));
+    }
+    
+    /**
+     * Works out which columns of the source table have to be read for the
+     * munge process to produce its results: the columns whose outputs are
+     * connected, directly or through other steps, to the result step, and
+     * the columns of the unique index. For a shared scan these are the
+     * columns any of the processes sharing the scan need.
+     * <p>
+     * The other outputs are left null, which is only safe when the result
+     * step does nothing with the source table rows but read their keys, so
+     * every column is read for any other kind of result step.
+     * 
+     * @return The column index in the query of each output, as for
+     *         {@link #columnIndexes}, or null to read every column.
+     */
+    private int[] findColumnIndexes() throws SQLObjectException {
+    	SQLIndex uniqueIndex = getProject().getSourceTableIndex();
+    	if (uniqueIndex == null) {
+    		return null;
+    	}
+    	
+    	Set<String> usedColumns = new HashSet<String>();
+    	for (SQLIndex.Column c : uniqueIndex.getChildren(SQLIndex.Column.class)) {
+    		usedColumns.add(c.getName());
+    	}
+    	
+    	List<SQLInputStep> steps;
+    	if (sharedScan == null) {
+    		steps = Collections.singletonList(this);
+    	} else {
+    		steps = sharedScan.getSteps();
+    	}
+    	for (SQLInputStep step : steps) {
+    		MungeResultStep resultStep = step.getParent().getResultStep();
+    		if (!(resultStep instanceof DeDupeResultStep)) {
+    			return null;
+    		}
+    		
+    		// walk back from the result step through every connected input
+    		Set<MungeStep> visited = new HashSet<MungeStep>();
+    		List<MungeStep> toVisit = new ArrayList<MungeStep>();
+    		toVisit.add(resultStep);
+    		while (!toVisit.isEmpty()) {
+    			MungeStep s = toVisit.remove(toVisit.size() - 1);
+    			if (!visited.add(s)) continue;
+    			for (MungeStepOutput<?> input : s.getMSOInputs()) {
+    				if (input == null) continue;
+    				if (input.getParent() instanceof SQLInputStep) {
+    					usedColumns.add(input.getName());
+    				} else {
+    					toVisit.add(input.getParent());
+    				}
+    			}
+    		}
+    	}
+    	
+    	List<SQLColumn> columns = table.getColumns();
+    	int[] indexes = new int[columns.size()];
+    	int selected = 0;
+    	for (int i = 0; i < columns.size(); i++) {
+    		if (usedColumns.contains(columns.get(i).getName())) {
+    			selected++;
+    			indexes[i] = selected;
+    		}
+    	}
+    	if (selected == columns.size()) {
+    		return null;
+    	}
+    	logger.debug("Reading " + selected + " of the " + columns.size() + " columns of the source table");
+    	return indexes;
+    }
+
+    /**
+     * Splits the source table into {@link #partitionCount} ranges of the
+     * first column of its unique key, evenly spaced between the lowest and
+     * highest key. Only numeric keys can be split this way, for any other key
+     * this returns null and the table is read in one piece.
+     * 
+     * @return The WHERE clause condition of each partition, or null.
+     */
+    private String[] findPartitionConditions(Connection con) throws SQLException, SQLObjectException {
+    	SQLIndex index = getProject().getSourceTableIndex();
+    	if (index == null || index.getChildCount() == 0) {
+    		logger.info("The source table has no unique key, it will be read on one thread");
+    		return null;
+    	}
+    	String keyName = index.getChild(0).getName();
+    	SQLColumn keyColumn = table.getColumnByName(keyName);
+    	if (keyColumn == null || TypeMap.typeClass(keyColumn.getType()) != BigDecimal.class) {
+    		logger.info("The source table key " + keyName + " is not numeric, it will be read on one thread");
+    		return null;
+    	}
+    	
+    	String key = "\"" + keyName + "\"";
+    	String sql = "SELECT MIN(" + key + "), MAX(" + key + ")\nFROM " + DDLUtils.toQualifiedName(table);
+    	String filter = getProject().getFilter();
+    	if (filter != null && filter.trim().length() > 0) {
+    		sql += "\nWHERE " + filter;
+    	}
+    	BigDecimal min;
+    	BigDecimal max;
+    	Statement stmt = null;
+    	try {
+    		stmt = con.createStatement();
+    		ResultSet keyRange = stmt.executeQuery(sql);
+    		keyRange.next();
+    		min = keyRange.getBigDecimal(1);
+    		max = keyRange.getBigDecimal(2);
+    		keyRange.close();
+    	} finally {
+    		if (stmt != null) stmt.close();
+    	}
+    	if (min == null || max == null) {
+    		return null;
+    	}
+    	
+    	BigDecimal width = max.subtract(min).divide(BigDecimal.valueOf(partitionCount), MathContext.DECIMAL64);
+    	String[] conditions = new String[partitionCount];
+    	for (int i = 0; i < partitionCount; i++) {
+    		String lower = key + " >= " + min.add(width.multiply(BigDecimal.valueOf(i))).toPlainString();
+    		String upper = key + " < " + min.add(width.multiply(BigDecimal.valueOf(i + 1))).toPlainString();
+    		if (i == 0) {
+    			conditions[i] = "(" + upper + " OR " + key + " IS NULL)";
+    		} else if (i == partitionCount - 1) {
+    			conditions[i] = lower;
+    		} else {
+    			conditions[i] = lower + " AND " + upper;
+    		}
+    	}
+    	logger.debug("Partitions of the source table: " + Arrays.toString(conditions));
+    	return conditions;
+    }
+
     /**
      * Populates or refreshes the outputs of this step based on the current
      * columns of {@link #table}.  This method will both add missing outputs
@@ -329,26 +800,35 @@ public class SQLInputStep extends AbstractMungeStep {
     @Override
     public void doCommit() throws Exception {
         logger.debug("Committing " + getName());
-        con.commit();
+        if (con != null) {
+        	con.commit();
+        }
     }
     
     @Override
     public void doRollback() throws Exception {
         logger.debug("Rolling back " + getName());
-        if (!isPreviewMode()) {
+        if (!isPreviewMode() && con != null) {
         	con.rollback();
         }
     }
 
     @Override
     public void doClose() throws Exception { 	
-    	if (!isPreviewMode()) {
+    	if (!isPreviewMode() && rs != null) {
     		Statement stmt = rs.getStatement();
     		rs.close();
     		stmt.close();
     		con.close();
+    		con = null;
     	}
     	rs = null;
+    	outputTypes = null;
+    	columnIndexes = null;
+    	fetchSize = DEFAULT_FETCH_SIZE;
+    	partitionCount = 1;
+    	partitionConditions = null;
+    	sharedScan = null;
     }
 
     /**
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.AbstractProcessor;
+import ca.sqlpower.matchmaker.MungeSettings;
+
+/**
+ * Runs several munge processes of the same project with a single scan of the
+ * source table. Each row read by the scan is passed through the compiled
+ * {@link MungePlan} of every process, so every process ends up with its own
+ * munge results as if it had been run on its own by a {@link MungeProcessor},
+ * but the table is only read once.
+ * <p>
+ * Only processes that can be fed from one scan are run this way; see
+ * {@link #canShareScan(List)}.
+ */
+public class SharedScanMungeProcessor extends AbstractProcessor {
+
+	/**
+	 * The processes run by this processor, all in the same project.
+	 */
+	private final List<MungeProcess> mungeProcesses;
+
+	private final Logger engineLogger;
+
+	public SharedScanMungeProcessor(List<MungeProcess> mungeProcesses, Logger logger) {
+		this.mungeProcesses = mungeProcesses;
+		this.engineLogger = logger;
+	}
+
+	/**
+	 * Returns true if the given munge processes can be run with one scan of
+	 * the source table. There must be more than one process, each with a
+	 * single input step and with results that will be matched, and the
+	 * project must not be set up for a two pass munge.
+	 */
+	public static boolean canShareScan(List<MungeProcess> mungeProcesses) {
+		if (mungeProcesses.size() < 2) {
+			return false;
+		}
+		if (mungeProcesses.get(0).getParent().getMungeSettings().isTwoPassMunge()) {
+			return false;
+		}
+		for (MungeProcess mp : mungeProcesses) {
+			if (mp.getInputSteps().size() != 1 || !(mp.getResultStep() instanceof DeDupeResultStep)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public Boolean call() throws Exception {
+		return call(-1);
+	}
+
+	public Boolean call(int rowCount) throws Exception {
+		MungeSettings settings = mungeProcesses.get(0).getParent().getMungeSettings();
+		if (settings.getDebug()) {
+			engineLogger.setLevel(Level.DEBUG);
+		}
+
+		List<List<MungeStep>> processOrders = new ArrayList<List<MungeStep>>();
+		List<MungeStep> allSteps = new ArrayList<MungeStep>();
+		for (MungeProcess mp : mungeProcesses) {
+			if (!mp.getResultStep().hasConnectedInputs()) {
+				throw new IllegalStateException("Munge Process '" + mp.getName() +
+						"' has a result step with no inputs connected!");
+			}
+			MungeProcessor processor = new MungeProcessor(mp, engineLogger);
+			processor.determineProcessOrder();
+			processOrders.add(processor.getProcessOrder());
+			allSteps.addAll(processor.getProcessOrder());
+		}
+
+		int partitionCount = Math.max(1, settings.getMungeThreadCount());
+		List<SQLInputStep> inputSteps = new ArrayList<SQLInputStep>();
+		for (MungeProcess mp : mungeProcesses) {
+			inputSteps.add(mp.getInputSteps().get(0));
+		}
+		SharedSourceScan scan = new SharedSourceScan(inputSteps, partitionCount);
+		scan.getLeader().setPartitionCount(partitionCount);
+		for (SQLInputStep step : inputSteps) {
+			step.setSharedScan(scan);
+		}
+
+		List<MungePlan> plans = new ArrayList<MungePlan>();
+		try {
+			monitorableHelper.setStarted(true);
+			monitorableHelper.setFinished(false);
+			monitorableHelper.setJobSize(rowCount);
+
+			for (MungeStep step : allSteps) {
+				step.open(null, engineLogger);
+			}
+
+			// opening the steps can change their outputs, so the plans
+			// can only be compiled once they are all open
+			for (List<MungeStep> processOrder : processOrders) {
+				MungePlan plan = MungePlan.compile(processOrder);
+				plan.setOutputEventsEnabled(false);
+				plans.add(plan);
+			}
+
+			engineLogger.info("Munging " + mungeProcesses.size() + " transformations with one scan of the source table" +
+					(partitionCount > 1 ? " in " + partitionCount + " partitions" : ""));
+			List<ScanPartition> partitions = new ArrayList<ScanPartition>();
+			for (int i = 0; i < partitionCount; i++) {
+				partitions.add(new ScanPartition(scan, plans, i, partitionCount));
+			}
+			new PartitionRunner(this, monitorableHelper, engineLogger).run(partitions, rowCount);
+
+			for (MungeStep step : allSteps) {
+				step.mungeCommit();
+			}
+		} catch (Exception e) {
+			for (MungeStep step : allSteps) {
+				try {
+					step.mungeRollback();
+				} catch (Throwable tt) {
+					engineLogger.warn(
+							"Failed to rollback a step. Proceeding with rollback," +
+							" and ignoring the following exception:", tt);
+				}
+			}
+			throw e;
+		} finally {
+			for (MungePlan plan : plans) {
+				plan.setOutputEventsEnabled(true);
+			}
+
+			for (MungeStep step : allSteps) {
+				try {
+					step.mungeClose();
+				} catch (Exception ex) {
+					engineLogger.error("Close failed; squishing exception in order" +
+							" not to obscure any earlier exceptions.", ex);
+				}
+			}
+
+			monitorableHelper.setFinished(true);
+		}
+
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Reads one partition of the shared scan and passes each row through
+	 * every plan. A plan that has had enough rows, for example because its
+	 * result step has stopped, is not called again.
+	 */
+	private class ScanPartition implements PartitionRunner.Partition {
+
+		private final SharedSourceScan scan;
+		private final List<MungePlan> plans;
+		private final int partition;
+		private final int partitionCount;
+		private SharedSourceScan.Reader reader;
+		private Object[][] rows;
+		private boolean[] finished;
+
+		ScanPartition(SharedSourceScan scan, List<MungePlan> plans, int partition, int partitionCount) {
+			this.scan = scan;
+			this.plans = plans;
+			this.partition = partition;
+			this.partitionCount = partitionCount;
+		}
+
+		public void open() throws Exception {
+			reader = scan.openReader(partition);
+			rows = new Object[plans.size()][];
+			finished = new boolean[plans.size()];
+			try {
+				for (int i = 0; i < plans.size(); i++) {
+					rows[i] = plans.get(i).openPartition(partition, partitionCount);
+				}
+			} catch (Exception e) {
+				close(false);
+				throw e;
+			}
+		}
+
+		public boolean munge() throws Exception {
+			if (!reader.next()) {
+				return false;
+			}
+			boolean running = false;
+			for (int i = 0; i < plans.size(); i++) {
+				if (finished[i]) continue;
+				if (plans.get(i).call(rows[i], engineLogger)) {
+					running = true;
+				} else {
+					finished[i] = true;
+				}
+			}
+			return running;
+		}
+
+		public void close(boolean success) throws Exception {
+			try {
+				for (int i = 0; i < plans.size(); i++) {
+					if (rows[i] != null) {
+						plans.get(i).closePartition(rows[i], success);
+						rows[i] = null;
+					}
+				}
+			} finally {
+				scan.closeReader(partition);
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One scan of the source table shared by the input steps of several munge
+ * processes. The leader of the scan is one of those input steps, and it runs
+ * the query (one per partition) as it would on its own. Each partition of the
+ * scan has a {@link Reader} that reads the rows of the partition once, and
+ * every input step sharing the scan copies the reader's current row into its
+ * outputs, so each munge process sees every row without the table being read
+ * again.
+ * <p>
+ * The input steps sharing the scan all have the same outputs, since they
+ * depend only on the project's source table. The leader's query selects every
+ * column that any of the steps needs.
+ */
+public class SharedSourceScan {
+
+	/**
+	 * The input steps sharing the scan, with the leader first.
+	 */
+	private final List<SQLInputStep> steps;
+
+	/**
+	 * The input step whose query is read.
+	 */
+	private final SQLInputStep leader;
+
+	/**
+	 * The reader of each partition, set when the partition is opened.
+	 */
+	private final Reader[] readers;
+
+	/**
+	 * Creates a scan shared by the given input steps, led by the first one.
+	 */
+	public SharedSourceScan(List<SQLInputStep> steps, int partitionCount) {
+		this.steps = Collections.unmodifiableList(new ArrayList<SQLInputStep>(steps));
+		this.leader = steps.get(0);
+		readers = new Reader[partitionCount];
+	}
+
+	public SQLInputStep getLeader() {
+		return leader;
+	}
+
+	/**
+	 * Returns the input steps sharing the scan, with the leader first.
+	 */
+	public List<SQLInputStep> getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Opens the given partition of the leader's query. This must be done
+	 * before the input steps sharing the scan open the partition.
+	 */
+	public Reader openReader(int partition) throws Exception {
+		ResultSet rs = leader.openResultSet(partition);
+		Reader reader = new Reader(rs, leader.startPrefetch(rs), leader.getMungeStepOutputs().size());
+		synchronized (readers) {
+			readers[partition] = reader;
+		}
+		return reader;
+	}
+
+	/**
+	 * Returns the reader of the given partition, or null if it is not open.
+	 */
+	Reader getReader(int partition) {
+		synchronized (readers) {
+			return readers[partition];
+		}
+	}
+
+	/**
+	 * Closes the given partition of the leader's query.
+	 */
+	public void closeReader(int partition) throws Exception {
+		Reader reader;
+		synchronized (readers) {
+			reader = readers[partition];
+			readers[partition] = null;
+		}
+		if (reader != null) {
+			if (reader.prefetcher != null) {
+				reader.prefetcher.close();
+			}
+			leader.closeResultSet(reader.rs);
+		}
+	}
+
+	/**
+	 * Reads the rows of one partition of the scan.
+	 */
+	public class Reader {
+
+		/**
+		 * The partition's result set, or null if the partition has no rows.
+		 */
+		private final ResultSet rs;
+
+		/**
+		 * Reads the result set ahead on a thread of its own, or null if the
+		 * rows are read by {@link #next()}.
+		 */
+		private final RowPrefetcher prefetcher;
+
+		/**
+		 * The values of the current row, reused for every row.
+		 */
+		private Object[] values;
+
+		private boolean hasRow;
+
+		private Reader(ResultSet rs, RowPrefetcher prefetcher, int columnCount) {
+			this.rs = rs;
+			this.prefetcher = prefetcher;
+			values = new Object[columnCount];
+		}
+
+		/**
+		 * Moves to the next row of the partition.
+		 *
+		 * @return false if the partition has no more rows.
+		 */
+		public boolean next() throws Exception {
+			if (prefetcher != null) {
+				Object[] row = prefetcher.next();
+				hasRow = row != null;
+				if (hasRow) {
+					values = row;
+				}
+				return hasRow;
+			}
+			hasRow = rs != null && rs.next();
+			if (hasRow) {
+				leader.readValues(rs, values);
+			}
+			return hasRow;
+		}
+
+		/**
+		 * Returns the values of the current row, or null if there is no
+		 * current row.
+		 */
+		Object[] getValues() {
+			return hasRow ? values : null;
+		}
+	}
+}
@@ -25,6 +25,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.MatchMakerEngine.EngineMode;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Accessor;
 import ca.sqlpower.object.annotation.Constructor;
@@ -59,6 +62,13 @@ public class SortWordsMungeStep extends AbstractMungeStep {
      * output.
      */
     private String resultDelim;
+    
+    /**
+     * The pattern that splits the input into words with the current
+     * delimiter options, compiled when the step is opened and again after
+     * any of them change. It is null until then.
+     */
+    private Pattern delimiterPattern;
 
     @Accessor
     public boolean isRegex() {
@@ -69,6 +79,7 @@ public class SortWordsMungeStep extends AbstractMungeStep {
 	public void setRegex(boolean regex) {
     	boolean old = this.regex;
 		this.regex = regex;
+		delimiterPattern = null;
 		firePropertyChange("regex", old, regex);
 	}
 
@@ -81,6 +92,7 @@ public class SortWordsMungeStep extends AbstractMungeStep {
 	public void setCaseSensitive(boolean caseSensitive) {
     	boolean old = this.caseSensitive;
 		this.caseSensitive = caseSensitive;
+		delimiterPattern = null;
 		firePropertyChange("caseSensitive", old, caseSensitive);
 	}
 
@@ -105,6 +117,7 @@ public class SortWordsMungeStep extends AbstractMungeStep {
 	public void setDelimiter(String delimiter) {
     	String old = this.delimiter;
 		this.delimiter = delimiter;
+		delimiterPattern = null;
 		firePropertyChange("delimiter", old, delimiter);
 	}
 
@@ -135,46 +148,86 @@ public class SortWordsMungeStep extends AbstractMungeStep {
         throw new UnsupportedOperationException("Sort words munge step does not support removeInput()");
     }
     
+    @Override
+    public void doOpen(EngineMode mode, Logger logger) throws Exception {
+    	compileDelimiter();
+    }
+    
+    /**
+     * Compiles the delimiter pattern for the current options.
+     */
+    private void compileDelimiter() {
+        int regexPatternFlags = 0;
+        if (!isRegex()) {
+            regexPatternFlags |= Pattern.LITERAL;
+        }
+        if (!isCaseSensitive()) {
+            regexPatternFlags |= Pattern.CASE_INSENSITIVE;
+        }
+        delimiterPattern = Pattern.compile(getDelimiter(), regexPatternFlags);
+    }
+
     public Boolean doCall() throws Exception {
-        String delimiter = getDelimiter();
-        boolean delimIsRegex = isRegex();
-        boolean delimCaseSensitive = isCaseSensitive();
-        String resultDelim = getResultDelim();
-        
         MungeStepOutput<String> out = getOut();
         MungeStepOutput<String> in = getMSOInputs().get(0);
         String data = in.getData();
         if (data != null) {
-            int regexPatternFlags = 0;
-            if (!delimIsRegex) {
-                regexPatternFlags |= Pattern.LITERAL;
-            }
-            if (!delimCaseSensitive) {
-                regexPatternFlags |= Pattern.CASE_INSENSITIVE;
-            }
-            Pattern p = Pattern.compile(delimiter, regexPatternFlags);
-            String[] words = p.split(data);
-            Arrays.sort(words);
-
-            StringBuilder results = new StringBuilder();
-            boolean firstWord = true;
-            for (String word : words) {
-                if (word.equals("")) {
-                    continue;
-                }
-                if (!firstWord) {
-                    results.append(resultDelim);
-                }
-                results.append(word);
-                firstWord = false;
-            }
-            out.setData(results.toString());
+            out.setData(sortWords(data));
         } else {
             out.setData(null);
         }
         
         return true;
     }
+    
+    /**
+     * Compiles the delimiter pattern before the partitions start, as they all
+     * split with the same pattern.
+     */
+    @Override
+    protected void prepareSlots(MungePlan plan) {
+        if (delimiterPattern == null) {
+            compileDelimiter();
+        }
+    }
+    
+    @Override
+    protected boolean isPartitionSafe() {
+        return true;
+    }
+    
+    /**
+     * Sorts the words of the input slot straight into the output slot.
+     */
+    @Override
+    public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+        String data = (String) slots[inputSlots[0]];
+        slots[outputSlots[0]] = data == null ? null : sortWords(data);
+        return true;
+    }
+    
+    private String sortWords(String data) {
+        String resultDelim = getResultDelim();
+        if (delimiterPattern == null) {
+            compileDelimiter();
+        }
+        String[] words = delimiterPattern.split(data);
+        Arrays.sort(words);
+
+        StringBuilder results = new StringBuilder();
+        boolean firstWord = true;
+        for (String word : words) {
+            if (word.equals("")) {
+                continue;
+            }
+            if (!firstWord) {
+                results.append(resultDelim);
+            }
+            results.append(word);
+            firstWord = false;
+        }
+        return results.toString();
+    }
 
     @Override
     protected void copyPropertiesForDuplicate(MungeStep copy) {
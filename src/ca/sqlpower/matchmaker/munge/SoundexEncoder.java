@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import org.apache.commons.codec.language.Soundex;
+
+/**
+ * Gives the same codes as the commons-codec {@link Soundex} encoder.
+ */
+class SoundexEncoder extends PhoneticEncoder {
+
+	/**
+	 * The code of each letter, from A to Z.
+	 */
+	private static final char[] MAPPING = Soundex.US_ENGLISH_MAPPING_STRING.toCharArray();
+
+	private final Soundex codec = new Soundex();
+
+	/**
+	 * The upper cased letters of the value being encoded.
+	 */
+	private char[] letters = new char[32];
+
+	private final char[] code = new char[4];
+
+	@Override
+	protected String encodeAscii(String value) {
+		int length = 0;
+		letters = ensureCapacity(letters, value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c >= 'a' && c <= 'z') {
+				letters[length++] = (char) (c - ('a' - 'A'));
+			} else if (c >= 'A' && c <= 'Z') {
+				letters[length++] = c;
+			}
+		}
+		if (length == 0) {
+			return "";
+		}
+
+		code[0] = letters[0];
+		code[1] = '0';
+		code[2] = '0';
+		code[3] = '0';
+		char last = mappingCode(0);
+		int count = 1;
+		for (int i = 1; i < length && count < code.length; i++) {
+			char mapped = mappingCode(i);
+			if (mapped != 0) {
+				if (mapped != '0' && mapped != last) {
+					code[count++] = mapped;
+				}
+				last = mapped;
+			}
+		}
+		return new String(code);
+	}
+
+	/**
+	 * Returns the code of the letter at the given index, or 0 if it is
+	 * coded the same as the letter on the other side of an H or W before it.
+	 */
+	private char mappingCode(int index) {
+		char mapped = MAPPING[letters[index] - 'A'];
+		if (index > 1 && mapped != '0') {
+			char hw = letters[index - 1];
+			if (hw == 'H' || hw == 'W') {
+				char preHW = letters[index - 2];
+				if (MAPPING[preHW - 'A'] == mapped || preHW == 'H' || preHW == 'W') {
+					return 0;
+				}
+			}
+		}
+		return mapped;
+	}
+
+	@Override
+	protected String encodeWithCodec(String value) {
+		return codec.soundex(value);
+	}
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds munge results that did not fit in memory as sorted runs in temporary
+ * files on the local disk. Each run is a block of munge results sorted by
+ * their binary sort key, written as the key followed by the source table key
+ * values. The munged data itself is not kept, as matching only needs the
+ * sort key. Results with null munged data are dropped on the way out since
+ * they can never match.
+ * <p>
+ * Once all of the runs have been written, {@link #openMerger()} returns a
+ * {@link RunMerger} that reads every run back at once and returns the results
+ * in sort key order, so equal munged data comes out in consecutive groups.
+ * If there are more than {@link #MAX_MERGE_RUNS} runs they are first merged
+ * into fewer, longer runs, so the number of open files and buffers stays
+ * bounded however many runs were written.
+ */
+public class SpilledMungeResults {
+
+	private static final Logger logger = Logger.getLogger(SpilledMungeResults.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The largest number of runs that are read at the same time.
+	 */
+	static final int MAX_MERGE_RUNS = 64;
+
+	private static final byte NULL_VALUE = 0;
+	private static final byte STRING_VALUE = 1;
+	private static final byte DECIMAL_VALUE = 2;
+	private static final byte INTEGER_VALUE = 3;
+	private static final byte LONG_VALUE = 4;
+	private static final byte SHORT_VALUE = 5;
+	private static final byte DOUBLE_VALUE = 6;
+	private static final byte FLOAT_VALUE = 7;
+	private static final byte BOOLEAN_VALUE = 8;
+	private static final byte DATE_VALUE = 9;
+	private static final byte SQL_DATE_VALUE = 10;
+	private static final byte TIME_VALUE = 11;
+	private static final byte TIMESTAMP_VALUE = 12;
+	private static final byte BIG_INTEGER_VALUE = 13;
+
+	/**
+	 * The files holding the sorted runs, in the order they were written.
+	 */
+	private final List<File> runFiles = new ArrayList<File>();
+
+	/**
+	 * The number of results in each of the runs in {@link #runFiles}.
+	 */
+	private final List<Integer> runSizes = new ArrayList<Integer>();
+
+	/**
+	 * The total number of results written to all of the runs.
+	 */
+	private int rowCount;
+
+	/**
+	 * Sorts the first <code>length</code> results of the given array by their
+	 * sort keys and writes them to a new run file.
+	 */
+	public void addRun(MungeResult[] results, int length) throws IOException, InterruptedException {
+		MungeResult[] run = results;
+		if (length != results.length) {
+			run = new MungeResult[length];
+			System.arraycopy(results, 0, run, 0, length);
+		}
+		MungeResultSorter.sort(run);
+
+		File file = File.createTempFile("dqguru-run", ".bin");
+		runFiles.add(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), BUFFER_SIZE));
+		int written = 0;
+		try {
+			for (MungeResult result : run) {
+				if (result.hasNullData()) continue;
+				writeResult(out, result.getSortKey(), result.getKeyValues());
+				written++;
+			}
+		} finally {
+			out.close();
+		}
+		runSizes.add(written);
+		rowCount += written;
+		logger.debug("Spilled a run of " + written + " munge results to " + file);
+	}
+
+	/**
+	 * Returns the number of results that were written to all of the runs.
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Returns the number of runs that have been written.
+	 */
+	public int getRunCount() {
+		return runFiles.size();
+	}
+
+	private static void writeResult(DataOutputStream out, byte[] key, Object[] keyValues) throws IOException {
+		out.writeInt(key.length);
+		out.write(key);
+		out.writeShort(keyValues.length);
+		for (Object value : keyValues) {
+			writeValue(out, value);
+		}
+	}
+
+	/**
+	 * Opens all of the runs for a k-way merge. The runs must not be added to
+	 * while they are being merged.
+	 */
+	public RunMerger openMerger() throws IOException {
+		return openMerger(MAX_MERGE_RUNS);
+	}
+
+	/**
+	 * Opens the runs for a k-way merge after merging them in passes of at
+	 * most the given number of runs until no more than that many are left.
+	 */
+	RunMerger openMerger(int maxRuns) throws IOException {
+		if (maxRuns < 2) {
+			throw new IllegalArgumentException("At least two runs have to be merged at a time, not " + maxRuns);
+		}
+		while (runFiles.size() > maxRuns) {
+			mergePass(maxRuns);
+		}
+		return new RunMerger(runFiles, runSizes);
+	}
+
+	/**
+	 * Merges each group of the given number of consecutive runs into one new
+	 * run. The old runs are only deleted once all of the new ones have been
+	 * written.
+	 */
+	private void mergePass(int maxRuns) throws IOException {
+		List<File> mergedFiles = new ArrayList<File>();
+		List<Integer> mergedSizes = new ArrayList<Integer>();
+		List<File> newFiles = new ArrayList<File>();
+		boolean success = false;
+		try {
+			for (int start = 0; start < runFiles.size(); start += maxRuns) {
+				int end = Math.min(start + maxRuns, runFiles.size());
+				if (end - start == 1) {
+					mergedFiles.add(runFiles.get(start));
+					mergedSizes.add(runSizes.get(start));
+					continue;
+				}
+				File file = File.createTempFile("dqguru-run", ".bin");
+				newFiles.add(file);
+				mergedFiles.add(file);
+				mergedSizes.add(mergeRuns(runFiles.subList(start, end), runSizes.subList(start, end), file));
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				for (File file : newFiles) {
+					file.delete();
+				}
+			}
+		}
+		for (File file : runFiles) {
+			if (!mergedFiles.contains(file) && !file.delete()) {
+				logger.warn("Could not delete the munge result run " + file);
+			}
+		}
+		logger.debug("Merged " + runFiles.size() + " munge result runs into " + mergedFiles.size());
+		runFiles.clear();
+		runFiles.addAll(mergedFiles);
+		runSizes.clear();
+		runSizes.addAll(mergedSizes);
+	}
+
+	/**
+	 * Writes the results of the given runs to the given file in sort key
+	 * order.
+	 *
+	 * @return The number of results written.
+	 */
+	private int mergeRuns(List<File> files, List<Integer> sizes, File target) throws IOException {
+		RunMerger merger = new RunMerger(files, sizes);
+		DataOutputStream out = null;
+		int written = 0;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE));
+			while (merger.next()) {
+				writeResult(out, merger.getSortKey(), merger.getKeyValues().toArray());
+				written++;
+			}
+		} finally {
+			merger.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Deletes all of the run files. The results can not be read again after
+	 * this is called.
+	 */
+	public void delete() {
+		for (File file : runFiles) {
+			if (!file.delete()) {
+				logger.warn("Could not delete the munge result run " + file);
+			}
+		}
+		runFiles.clear();
+		runSizes.clear();
+		rowCount = 0;
+	}
+
+	/**
+	 * Reads the results of a set of runs back in sort key order by keeping
+	 * the current result of each run in a priority queue.
+	 */
+	public class RunMerger {
+
+		private final PriorityQueue<RunReader> queue;
+
+		private final List<RunReader> readers = new ArrayList<RunReader>();
+
+		private RunReader current;
+
+		private RunMerger(List<File> files, List<Integer> sizes) throws IOException {
+			queue = new PriorityQueue<RunReader>(Math.max(1, files.size()), new Comparator<RunReader>() {
+				public int compare(RunReader r1, RunReader r2) {
+					return MungeResultKeyEncoder.compare(r1.key, r2.key);
+				}
+			});
+			try {
+				for (int i = 0; i < files.size(); i++) {
+					RunReader reader = new RunReader(files.get(i), sizes.get(i));
+					readers.add(reader);
+					if (reader.advance()) {
+						queue.add(reader);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Moves to the result with the next lowest sort key.
+		 *
+		 * @return false if all of the runs have been read.
+		 */
+		public boolean next() throws IOException {
+			if (current != null && current.advance()) {
+				queue.add(current);
+			}
+			current = queue.poll();
+			return current != null;
+		}
+
+		/**
+		 * The sort key of the current result.
+		 */
+		public byte[] getSortKey() {
+			return current.key;
+		}
+
+		/**
+		 * The source table key values of the current result. A new list is
+		 * read for every result, so it can be kept after moving on.
+		 */
+		public List<Object> getKeyValues() {
+			return current.keyValues;
+		}
+
+		public void close() {
+			for (RunReader reader : readers) {
+				try {
+					reader.in.close();
+				} catch (IOException e) {
+					logger.warn("Could not close a munge result run", e);
+				}
+			}
+			readers.clear();
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Reads the results of a single run one at a time.
+	 */
+	private static class RunReader {
+
+		private final DataInputStream in;
+
+		private int remaining;
+
+		private byte[] key;
+
+		private List<Object> keyValues;
+
+		RunReader(File file, int size) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			remaining = size;
+		}
+
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			key = new byte[in.readInt()];
+			in.readFully(key);
+			int count = in.readUnsignedShort();
+			keyValues = new ArrayList<Object>(count);
+			for (int i = 0; i < count; i++) {
+				keyValues.add(readValue(in));
+			}
+			return true;
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL_VALUE);
+		} else if (value instanceof String) {
+			String s = (String) value;
+			out.writeByte(STRING_VALUE);
+			out.writeInt(s.length());
+			out.writeChars(s);
+		} else if (value instanceof BigDecimal) {
+			BigDecimal bd = (BigDecimal) value;
+			out.writeByte(DECIMAL_VALUE);
+			out.writeInt(bd.scale());
+			byte[] unscaled = bd.unscaledValue().toByteArray();
+			out.writeInt(unscaled.length);
+			out.write(unscaled);
+		} else if (value instanceof BigInteger) {
+			byte[] bytes = ((BigInteger) value).toByteArray();
+			out.writeByte(BIG_INTEGER_VALUE);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER_VALUE);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG_VALUE);
+			out.writeLong((Long) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT_VALUE);
+			out.writeShort((Short) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE_VALUE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT_VALUE);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN_VALUE);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Timestamp) {
+			Timestamp ts = (Timestamp) value;
+			out.writeByte(TIMESTAMP_VALUE);
+			out.writeLong(ts.getTime());
+			out.writeInt(ts.getNanos());
+		} else if (value instanceof java.sql.Date) {
+			out.writeByte(SQL_DATE_VALUE);
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof Time) {
+			out.writeByte(TIME_VALUE);
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof Date) {
+			out.writeByte(DATE_VALUE);
+			out.writeLong(((Date) value).getTime());
+		} else {
+			throw new IllegalStateException(
+					"Unexpected source table key type encountered while spilling munge results: " +
+					value + " (" + value.getClass().getName() + ")");
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL_VALUE:
+			return null;
+		case STRING_VALUE:
+			char[] chars = new char[in.readInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = in.readChar();
+			}
+			return new String(chars);
+		case DECIMAL_VALUE:
+			int scale = in.readInt();
+			byte[] unscaled = new byte[in.readInt()];
+			in.readFully(unscaled);
+			return new BigDecimal(new BigInteger(unscaled), scale);
+		case BIG_INTEGER_VALUE:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new BigInteger(bytes);
+		case INTEGER_VALUE:
+			return Integer.valueOf(in.readInt());
+		case LONG_VALUE:
+			return Long.valueOf(in.readLong());
+		case SHORT_VALUE:
+			return Short.valueOf(in.readShort());
+		case DOUBLE_VALUE:
+			return Double.valueOf(in.readDouble());
+		case FLOAT_VALUE:
+			return Float.valueOf(in.readFloat());
+		case BOOLEAN_VALUE:
+			return Boolean.valueOf(in.readBoolean());
+		case TIMESTAMP_VALUE:
+			Timestamp ts = new Timestamp(in.readLong());
+			ts.setNanos(in.readInt());
+			return ts;
+		case SQL_DATE_VALUE:
+			return new java.sql.Date(in.readLong());
+		case TIME_VALUE:
+			return new Time(in.readLong());
+		case DATE_VALUE:
+			return new Date(in.readLong());
+		default:
+			throw new IOException("Unknown value type " + type + " in munge result run");
+		}
+	}
+}
@@ -26,6 +26,9 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.MatchMakerEngine.EngineMode;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Accessor;
 import ca.sqlpower.object.annotation.Constructor;
@@ -66,6 +69,20 @@ public class StringSubstitutionMungeStep extends AbstractMungeStep {
 	 */
 	private boolean caseSensitive;
 	
+	/**
+	 * The matcher for {@link #from} with the current options, compiled when
+	 * the step is opened and again after any of them change. It is null
+	 * until then. In a compiled plan each partition has a matcher of its own
+	 * for the same pattern, kept in the state slot.
+	 */
+	private Matcher matcher;
+	
+	/**
+	 * The slot of this step's matcher for a partition in a compiled
+	 * {@link MungePlan}.
+	 */
+	private int stateSlot;
+	
 	@Accessor
 	public String getFrom() {
 		return from;
@@ -75,6 +92,7 @@ public class StringSubstitutionMungeStep extends AbstractMungeStep {
 	public void setFrom(String from) {
 		String old = this.from;
 		this.from = from;
+		matcher = null;
 		firePropertyChange("from", old, from);
 	}
 
@@ -87,6 +105,7 @@ public class StringSubstitutionMungeStep extends AbstractMungeStep {
 	public void setTo(String to) {
 		String old = this.to;
 		this.to = to;
+		matcher = null;
 		firePropertyChange("to", old, to);
 	}
 
@@ -99,6 +118,7 @@ public class StringSubstitutionMungeStep extends AbstractMungeStep {
 	public void setRegex(boolean regex) {
 		boolean old = this.regex;
 		this.regex = regex;
+		matcher = null;
 		firePropertyChange("regex", old, regex);
 	}
 
@@ -111,6 +131,7 @@ public class StringSubstitutionMungeStep extends AbstractMungeStep {
 	public void setCaseSensitive(boolean caseSensitive) {
 		boolean old = this.caseSensitive;
 		this.caseSensitive = caseSensitive;
+		matcher = null;
 		firePropertyChange("caseSensitive", old, caseSensitive);
 	}
 
@@ -149,40 +170,84 @@ public class StringSubstitutionMungeStep extends AbstractMungeStep {
 		}
 	}
 	
-	public Boolean doCall() throws Exception {
-
+	@Override
+	public void doOpen(EngineMode mode, Logger logger) throws Exception {
+		compileMatcher();
+	}
+	
+	/**
+	 * Compiles the pattern for the current options, escaping the special
+	 * characters of the target string if it is not a regular expression.
+	 */
+	private void compileMatcher() {
 		String from = getFrom();
-		String to = getTo();
-		boolean useRegex = isRegex();
-		boolean caseSensitive = isCaseSensitive();
+		if (from == null || getTo() == null) {
+			matcher = null;
+			return;
+		}
+		if (!isRegex()) {
+			from = "(" + escapeSpecialCharacters(from) + "){1}";
+		}
+		Pattern p;
+		if (!isCaseSensitive()) {
+			p = Pattern.compile(from, Pattern.CASE_INSENSITIVE);
+		} else {
+			p = Pattern.compile(from);
+		}
+		matcher = p.matcher("");
+	}
+
+	public Boolean doCall() throws Exception {
 		MungeStepOutput<String> out = getOut();
 		MungeStepOutput<String> in = getMSOInputs().get(0);
 		String data = in.getData();
-		if (in.getData() == null) {
+		if (data == null) {
 			out.setData(null);
-		} else if (from != null && to != null) {
-			if (!useRegex) {
-				// This block of code adds escape characters to each of
-				// the regex special characters to be taken as literals
-				String specialChars = "-+*?()[]{}|^<=";
-				from = from.replaceAll("\\\\", "\\\\\\\\");
-				from = from.replaceAll("\\$", "\\\\\\$");
-				for (char letter : specialChars.toCharArray()) {
-					from = from.replaceAll("\\" + letter, "\\\\" + letter); 
-				}
-				from = "(" + from + "){1}";
-			}
-			Pattern p;
-			if (!caseSensitive) {
-				p = Pattern.compile(from, Pattern.CASE_INSENSITIVE);
-			} else {
-				p = Pattern.compile(from);
+		} else if (getFrom() != null && getTo() != null) {
+			if (matcher == null) {
+				compileMatcher();
 			}
-			Matcher m = p.matcher(data);
-			data = m.replaceAll(to);
-			out.setData(data);
+			out.setData(matcher.reset(data).replaceAll(getTo()));
+		}
+		return true;
+	}
+	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		stateSlot = plan.getStateSlot(this);
+		if (matcher == null) {
+			compileMatcher();
+		}
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Gives the partition a matcher of its own, as matchers can not be shared
+	 * between threads. There is no matcher if there is nothing to substitute.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		return matcher == null ? null : matcher.pattern().matcher("");
+	}
+	
+	/**
+	 * Substitutes the input slot straight into the output slot. As with
+	 * {@link #doCall()}, the output is left as it was if there is nothing to
+	 * substitute.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		Matcher partitionMatcher = (Matcher) slots[stateSlot];
+		if (data == null) {
+			slots[outputSlots[0]] = null;
+		} else if (partitionMatcher != null) {
+			slots[outputSlots[0]] = partitionMatcher.reset(data).replaceAll(getTo());
 		}
-
 		return true;
 	}
 	
@@ -23,8 +23,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.MatchMakerEngine.EngineMode;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Accessor;
 import ca.sqlpower.object.annotation.Constructor;
@@ -81,6 +85,20 @@ public class StringToBooleanMungeStep extends AbstractMungeStep {
 	 * "true", "false", "null" 
 	 */
 	private Boolean neither;
+	
+	/**
+	 * The matchers for {@link #trueList} and {@link #falseList} with the
+	 * current options, compiled when the step is opened and again after any
+	 * of them change. They are null until then.
+	 */
+	private Matcher trueMatcher;
+	private Matcher falseMatcher;
+	
+	/**
+	 * The slot of the true and false matchers a partition uses in a compiled
+	 * {@link MungePlan}, where each partition has matchers of its own.
+	 */
+	private int stateSlot;
 
 	/**
 	 * Case sensitive is set to true and use regex is set to false for this
@@ -114,6 +132,7 @@ public class StringToBooleanMungeStep extends AbstractMungeStep {
 	public void setCaseSensitive(boolean caseSensitive) {
 		boolean old = this.caseSensitive;
 		this.caseSensitive = caseSensitive;
+		trueMatcher = null;
 		firePropertyChange("caseSensitive", old, caseSensitive);
 	}
 
@@ -126,6 +145,7 @@ public class StringToBooleanMungeStep extends AbstractMungeStep {
 	public void setUseRegex(boolean useRegex) {
 		boolean old = this.useRegex;
 		this.useRegex = useRegex;
+		trueMatcher = null;
 		firePropertyChange("useRegex", old, useRegex);
 	}
 
@@ -138,6 +158,7 @@ public class StringToBooleanMungeStep extends AbstractMungeStep {
 	public void setTrueList(String trueList) {
 		String old = this.trueList;
 		this.trueList = trueList;
+		trueMatcher = null;
 		firePropertyChange("trueList", old, trueList);
 	}
 
@@ -150,6 +171,7 @@ public class StringToBooleanMungeStep extends AbstractMungeStep {
 	public void setFalseList(String falseList) {
 		String old = this.falseList;
 		this.falseList = falseList;
+		trueMatcher = null;
 		firePropertyChange("falseList", old, falseList);
 	}
 
@@ -168,31 +190,83 @@ public class StringToBooleanMungeStep extends AbstractMungeStep {
 	public Boolean doCall() throws Exception {
 		MungeStepOutput<Boolean> out = getOut();
 		MungeStepOutput<String> in = getMSOInputs().get(0);
-		boolean caseSensitive = isCaseSensitive();
-		boolean useRegex = isUseRegex();
-		String trueList = getTrueList();
-		String falseList = getFalseList();
 		Boolean neither = getNeither();
 
 		if (in.getData() != null) {
 			String data = in.getData();
-			Pattern t = getPattern(useRegex, caseSensitive, trueList);
-			Pattern f = getPattern(useRegex, caseSensitive, falseList);
-
-			if (t.matcher(data).matches()) {				
-				out.setData(true);
-			} else if (f.matcher(data).matches()) {
-				out.setData(false);
-			} else {
-				out.setData(neither);
+			if (trueMatcher == null) {
+				compileMatchers();
 			}
+			out.setData(toBoolean(data, trueMatcher, falseMatcher, neither));
 		} else {
 			out.setData(null);
 		}
 		return true;
 
 	}
+	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		stateSlot = plan.getStateSlot(this);
+		if (trueMatcher == null) {
+			compileMatchers();
+		}
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Gives the partition a true and a false matcher of its own, as matchers
+	 * can not be shared between threads.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		return new Matcher[] {trueMatcher.pattern().matcher(""), falseMatcher.pattern().matcher("")};
+	}
+	
+	/**
+	 * Converts the input slot straight into the output slot with the
+	 * partition's matchers.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		if (data != null) {
+			Matcher[] matchers = (Matcher[]) slots[stateSlot];
+			slots[outputSlots[0]] = toBoolean(data, matchers[0], matchers[1], getNeither());
+		} else {
+			slots[outputSlots[0]] = null;
+		}
+		return true;
+	}
+	
+	private static Boolean toBoolean(String data, Matcher trueMatcher, Matcher falseMatcher, Boolean neither) {
+		if (trueMatcher.reset(data).matches()) {
+			return true;
+		} else if (falseMatcher.reset(data).matches()) {
+			return false;
+		} else {
+			return neither;
+		}
+	}
 
+	@Override
+	public void doOpen(EngineMode mode, Logger logger) throws Exception {
+		compileMatchers();
+	}
+	
+	/**
+	 * Compiles the patterns of the true and false lists for the current
+	 * options.
+	 */
+	private void compileMatchers() {
+		falseMatcher = getPattern(isUseRegex(), isCaseSensitive(), getFalseList()).matcher("");
+		trueMatcher = getPattern(isUseRegex(), isCaseSensitive(), getTrueList()).matcher("");
+	}
+	
 	private Pattern getPattern(boolean useRegex, boolean caseSensitive, String input) {
 		Pattern p;
 		String regex = input;
@@ -217,14 +291,7 @@ public class StringToBooleanMungeStep extends AbstractMungeStep {
 					pos++;
 				}
 
-				// This block of code adds escape characters to each of
-				// the regex special characters to be taken as literals
-				String specialChars = "-+*?()[]{}|^<=";
-				tmp = tmp.replaceAll("\\\\", "\\\\\\\\");
-				tmp = tmp.replaceAll("\\$", "\\\\\\$");
-				for (char letter : specialChars.toCharArray()) {
-					tmp = tmp.replaceAll("\\" + letter, "\\\\" + letter);
-				}
+				tmp = escapeSpecialCharacters(tmp);
 
 				if (regex.length() > 0) {
 					regex += "|";
@@ -25,6 +25,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
+import ca.sqlpower.matchmaker.MatchMakerEngine.EngineMode;
 import ca.sqlpower.object.SPObject;
 import ca.sqlpower.object.annotation.Accessor;
 import ca.sqlpower.object.annotation.Constructor;
@@ -78,6 +81,13 @@ public class SubstringByWordMungeStep extends AbstractMungeStep {
 	 */
 	private boolean caseSensitive;
 	
+	/**
+	 * The pattern that splits the input into words with the current
+	 * delimiter options, compiled when the step is opened and again after
+	 * any of them change. It is null until then.
+	 */
+	private Pattern delimiterPattern;
+	
 	@Constructor
 	public SubstringByWordMungeStep() {
 		super("Substring by Word",false);
@@ -121,69 +131,104 @@ public class SubstringByWordMungeStep extends AbstractMungeStep {
 	 * This call() throws an {@link IndexOutOfBoundsException} if the given
 	 * indices were not in the range of the input
 	 */
+	@Override
+	public void doOpen(EngineMode mode, Logger logger) throws Exception {
+		compileDelimiter();
+	}
+	
+	/**
+	 * Compiles the delimiter pattern for the current options, turning the
+	 * delimiters into a character class if they are not a regular expression.
+	 */
+	private void compileDelimiter() {
+		String delimiter = getDelimiter();
+		if (!isRegex()) {
+			delimiter = "[" + escapeSpecialCharacters(delimiter) + "]+";
+		}
+		if (!isCaseSensitive()) {
+			delimiterPattern = Pattern.compile(delimiter, Pattern.CASE_INSENSITIVE);
+		} else {
+			delimiterPattern = Pattern.compile(delimiter);
+		}
+	}
+
 	public Boolean doCall() throws Exception {
+		MungeStepOutput<String> out = getOut();
+		MungeStepOutput<String> in = getMSOInputs().get(0);
+		String data = in.getData();
+		if (data != null) {
+			out.setData(substringWords(data));
+		} else {
+			out.setData(null);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Compiles the delimiter pattern before the partitions start, as they all
+	 * split with the same pattern.
+	 */
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		if (delimiterPattern == null) {
+			compileDelimiter();
+		}
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Takes the substrings of the words of the input slot straight into the
+	 * output slot.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		slots[outputSlots[0]] = data == null ? null : substringWords(data);
+		return true;
+	}
+	
+	private String substringWords(String data) {
 		int beginIndex = getBegIndex();
 		int endIndex = getEndIndex();
 		
-		String delimiter = getDelimiter();
-		boolean useRegex = isRegex();
-		boolean caseSensitive = isCaseSensitive();
 		String resultDelim = getResultDelim();
 		
-		MungeStepOutput<String> out = getOut();
-		MungeStepOutput<String> in = getMSOInputs().get(0);
-		String data = in.getData();
 		StringBuilder results = new StringBuilder("");
-		if (data != null) {
-			if (beginIndex < 0) {
-				throw new IndexOutOfBoundsException(
-					"The begin index can not be less than 0.");
-			}
-			
-			if (!useRegex) {
-				// This block of code adds escape characters to each of
-				// the regex special characters to be taken as literals
-				String specialChars = "-+*?()[]{}|^<=";
-				delimiter = delimiter.replaceAll("\\\\", "\\\\\\\\");
-				delimiter = delimiter.replaceAll("\\$", "\\\\\\$");
-				for (char letter : specialChars.toCharArray()) {
-					delimiter = delimiter.replaceAll("\\" + letter, "\\\\" + letter);
+		if (beginIndex < 0) {
+			throw new IndexOutOfBoundsException(
+				"The begin index can not be less than 0.");
+		}
+		
+		if (delimiterPattern == null) {
+			compileDelimiter();
+		}
+		Pattern p = delimiterPattern;
+		// This separates the input into an array of "words"
+		// according to the specified delimiters.
+		String [] words = p.split(data);
+		
+		// This for loop performs the substring on each word
+		for (String word : words) {
+			if (beginIndex >= word.length()) {
+				results.append("");
+			} else {
+				if (endIndex > word.length()) {
+					endIndex = word.length();
 				}
+				results.append(word.substring(beginIndex, endIndex));
 				
-				delimiter = "[" + delimiter + "]+";
-			} 
-			Pattern p;
-			if (!caseSensitive) {
-				p = Pattern.compile(delimiter, Pattern.CASE_INSENSITIVE);
-			} else {
-				p = Pattern.compile(delimiter);
-			}
-			// This separates the input into an array of "words"
-			// according to the specified delimiters.
-			String [] words = p.split(data);
-			
-			// This for loop performs the substring on each word
-			for (String word : words) {
-				if (beginIndex >= word.length()) {
-					results.append("");
-				} else {
-					if (endIndex > word.length()) {
-						endIndex = word.length();
-					}
-					results.append(word.substring(beginIndex, endIndex));
-					
-					// This prevents adding a separator to the end of the output.
-					if (data.lastIndexOf(word)!= data.length()-word.length()){
-						results.append(resultDelim);
-					}
+				// This prevents adding a separator to the end of the output.
+				if (data.lastIndexOf(word)!= data.length()-word.length()){
+					results.append(resultDelim);
 				}
 			}
-			out.setData(results.toString());
-		} else {
-			out.setData(null);
 		}
-		
-		return true;
+		return results.toString();
 	}
 
 	@Mutator
@@ -214,6 +259,7 @@ public class SubstringByWordMungeStep extends AbstractMungeStep {
 	public void setRegex(boolean useRegex) {
 			boolean old = this.regex;
 			this.regex = useRegex;
+			delimiterPattern = null;
 			firePropertyChange("regex", old, regex);
 	}
 
@@ -226,6 +272,7 @@ public class SubstringByWordMungeStep extends AbstractMungeStep {
 	public void setDelimiter(String delim) {
 			String old = delimiter;
 			delimiter = delim;
+			delimiterPattern = null;
 			firePropertyChange("delimiter", old, delim);
 	}
 
@@ -250,6 +297,7 @@ public class SubstringByWordMungeStep extends AbstractMungeStep {
 	public void setCaseSensitive(boolean caseSensitive) {
 			boolean old = this.caseSensitive;
 			this.caseSensitive = caseSensitive;
+			delimiterPattern = null;
 			firePropertyChange("caseSensitive", old, caseSensitive);
 	}
 
@@ -36,7 +36,7 @@ import ca.sqlpower.object.annotation.Mutator;
  * This munge step will return a substring that begins at the specified beginIndex
  * and extends to the character at index endIndex - 1.
  */
-public class SubstringMungeStep extends AbstractMungeStep {
+public class SubstringMungeStep extends AbstractMungeStep implements FusableStringStep {
 
 	@SuppressWarnings("unchecked")
 	public static final List<Class<? extends SPObject>> allowedChildTypes = 
@@ -93,31 +93,73 @@ public class SubstringMungeStep extends AbstractMungeStep {
 	 * indices were not in the range of the input
 	 */
 	public Boolean doCall() throws Exception {
-
-		int beginIndex = getBegIndex();
-		int endIndex = getEndIndex();
 		MungeStepOutput<String> out = getOut();
 		MungeStepOutput<String> in = getMSOInputs().get(0);
 		String data = in.getData();
 		if (data != null) {
-			if (beginIndex < 0) {
-				throw new IndexOutOfBoundsException(
-					"The begin index can not be less than 0.");
-			}
-			if (beginIndex >= data.length()) {
-				out.setData("");
-			} else {
-				if (endIndex > data.length()) {
-					endIndex = data.length();
-				}
-				out.setData(data.substring(beginIndex, endIndex));
-			}
+			out.setData(substring(data));
 		} else {
 			out.setData(null);
 		}
 		
 		return true;
 	}
+	
+	/**
+	 * Takes the substring of the input slot straight into the output slot.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		slots[outputSlots[0]] = data == null ? null : substring(data);
+		return true;
+	}
+	
+	private String substring(String data) {
+		int beginIndex = getBegIndex();
+		int endIndex = getEndIndex();
+		if (beginIndex < 0) {
+			throw new IndexOutOfBoundsException(
+				"The begin index can not be less than 0.");
+		}
+		if (beginIndex >= data.length()) {
+			return "";
+		}
+		if (endIndex > data.length()) {
+			endIndex = data.length();
+		}
+		return data.substring(beginIndex, endIndex);
+	}
+	
+	public void transform(FusedStringChain.Buffer buffer, Object state) {
+		int beginIndex = getBegIndex();
+		int endIndex = getEndIndex();
+		if (beginIndex < 0) {
+			throw new IndexOutOfBoundsException(
+				"The begin index can not be less than 0.");
+		}
+		if (beginIndex >= buffer.length) {
+			buffer.length = 0;
+		} else {
+			if (endIndex > buffer.length) {
+				endIndex = buffer.length;
+			}
+			if (endIndex < beginIndex) {
+				throw new StringIndexOutOfBoundsException(endIndex - beginIndex);
+			}
+			buffer.start += beginIndex;
+			buffer.length = endIndex - beginIndex;
+		}
+	}
+
+	/**
+	 * This step only reads its indices, so any number of partitions can call
+	 * it at once.
+	 */
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
 
 	@Mutator
 	public void setBegIndex(int begIndex) {
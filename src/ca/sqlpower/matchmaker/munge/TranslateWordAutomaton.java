@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2008, SQL Power Group Inc.
+ *
+ * This file is part of DQguru
+ *
+ * DQguru is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DQguru is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.sqlpower.matchmaker.munge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ca.sqlpower.matchmaker.MatchMakerTranslateGroup;
+
+/**
+ * An Aho-Corasick automaton over the "from" strings of the words of a
+ * translate group that is not used as regular expressions. A single pass over
+ * a string finds every word that occurs in it, so the translate word step
+ * only has to run the replacements of the few words that do occur instead of
+ * running every word of a large group over every row.
+ * <p>
+ * The words are numbered in the order they are given, which is the order of
+ * the translate step's replacements. Words the automaton can not look for as
+ * plain text, such as empty strings and strings with a '.', which matches any
+ * character since it is not escaped, are reported as found in every string.
+ * When the words are not case sensitive only the ASCII letters are folded,
+ * the same as {@link java.util.regex.Pattern#CASE_INSENSITIVE}.
+ * <p>
+ * An automaton never changes once it is built, so one automaton is shared by
+ * every step that uses the same translate group, see
+ * {@link #forGroup(MatchMakerTranslateGroup, List, boolean)}.
+ */
+class TranslateWordAutomaton {
+
+	/**
+	 * The automata that have been built for each translate group. A group
+	 * that is no longer used is dropped with its automata.
+	 */
+	private static final Map<MatchMakerTranslateGroup, List<TranslateWordAutomaton>> cache =
+		new WeakHashMap<MatchMakerTranslateGroup, List<TranslateWordAutomaton>>();
+
+	/**
+	 * The words the automaton was built from.
+	 */
+	private final String[] words;
+
+	private final boolean caseSensitive;
+
+	/**
+	 * The characters leading out of each state, sorted.
+	 */
+	private final char[][] labels;
+
+	/**
+	 * The state each of the {@link #labels} leads to.
+	 */
+	private final int[][] targets;
+
+	/**
+	 * The state for the longest proper suffix of each state's string that is
+	 * also the start of a word.
+	 */
+	private final int[] fail;
+
+	/**
+	 * The first word that ends in each state, or -1 if none do.
+	 */
+	private final int[] firstWord;
+
+	/**
+	 * The next word ending in the same state as each word, or -1.
+	 */
+	private final int[] nextWord;
+
+	/**
+	 * The closest state down the {@link #fail} links of each state that has
+	 * a word ending in it, or -1.
+	 */
+	private final int[] outputLink;
+
+	/**
+	 * The words that are found in every string.
+	 */
+	private final int[] alwaysFound;
+
+	/**
+	 * Returns the automaton for the given words of the given translate group,
+	 * building it if the group has changed since it was last built.
+	 *
+	 * @param words
+	 *            The "from" strings of the words of the group that have a
+	 *            replacement, in order.
+	 */
+	static TranslateWordAutomaton forGroup(MatchMakerTranslateGroup group,
+			List<String> words, boolean caseSensitive) {
+		String[] wordArray = words.toArray(new String[words.size()]);
+		synchronized (cache) {
+			List<TranslateWordAutomaton> automata = cache.get(group);
+			if (automata == null) {
+				automata = new ArrayList<TranslateWordAutomaton>(2);
+				cache.put(group, automata);
+			}
+			for (int i = 0; i < automata.size(); i++) {
+				TranslateWordAutomaton automaton = automata.get(i);
+				if (automaton.caseSensitive == caseSensitive) {
+					if (Arrays.equals(automaton.words, wordArray)) {
+						return automaton;
+					}
+					automata.remove(i);
+					break;
+				}
+			}
+			TranslateWordAutomaton automaton = new TranslateWordAutomaton(wordArray, caseSensitive);
+			automata.add(automaton);
+			return automaton;
+		}
+	}
+
+	TranslateWordAutomaton(String[] words, boolean caseSensitive) {
+		this.words = words;
+		this.caseSensitive = caseSensitive;
+
+		List<char[]> labelList = new ArrayList<char[]>();
+		List<int[]> targetList = new ArrayList<int[]>();
+		List<Integer> firstWordList = new ArrayList<Integer>();
+		labelList.add(new char[0]);
+		targetList.add(new int[0]);
+		firstWordList.add(-1);
+		nextWord = new int[words.length];
+		List<Integer> always = new ArrayList<Integer>();
+
+		for (int i = 0; i < words.length; i++) {
+			String word = words[i];
+			if (word.length() == 0 || word.indexOf('.') >= 0) {
+				always.add(i);
+				nextWord[i] = -1;
+				continue;
+			}
+			int state = 0;
+			for (int j = 0; j < word.length(); j++) {
+				char c = fold(word.charAt(j));
+				int next = step(labelList.get(state), targetList.get(state), c);
+				if (next == -1) {
+					next = labelList.size();
+					labelList.add(new char[0]);
+					targetList.add(new int[0]);
+					firstWordList.add(-1);
+					addTransition(labelList, targetList, state, c, next);
+				}
+				state = next;
+			}
+			nextWord[i] = firstWordList.get(state);
+			firstWordList.set(state, i);
+		}
+
+		int stateCount = labelList.size();
+		labels = labelList.toArray(new char[stateCount][]);
+		targets = targetList.toArray(new int[stateCount][]);
+		firstWord = new int[stateCount];
+		for (int i = 0; i < stateCount; i++) {
+			firstWord[i] = firstWordList.get(i);
+		}
+		alwaysFound = new int[always.size()];
+		for (int i = 0; i < alwaysFound.length; i++) {
+			alwaysFound[i] = always.get(i);
+		}
+
+		// the failure links, breadth first so a state's links are set before its children's
+		fail = new int[stateCount];
+		outputLink = new int[stateCount];
+		outputLink[0] = -1;
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int child : targets[0]) {
+			fail[child] = 0;
+			outputLink[child] = -1;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst();
+			for (int i = 0; i < labels[state].length; i++) {
+				char c = labels[state][i];
+				int child = targets[state][i];
+				int f = fail[state];
+				int next;
+				while ((next = step(labels[f], targets[f], c)) == -1 && f != 0) {
+					f = fail[f];
+				}
+				fail[child] = next == -1 ? 0 : next;
+				outputLink[child] = firstWord[fail[child]] != -1 ? fail[child] : outputLink[fail[child]];
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Finds the words with an index of at least <code>minWord</code> that
+	 * occur in the given string.
+	 *
+	 * @param found
+	 *            Set to true for each word found. It must be all false for the
+	 *            words from <code>minWord</code> on when this is called.
+	 * @param hits
+	 *            The indices of the words found are written to this array in
+	 *            ascending order. It must be as long as the number of words.
+	 * @return The number of words found.
+	 */
+	int findWords(String s, int minWord, boolean[] found, int[] hits) {
+		int count = 0;
+		for (int word : alwaysFound) {
+			if (word >= minWord) {
+				found[word] = true;
+				hits[count++] = word;
+			}
+		}
+		int state = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = fold(s.charAt(i));
+			int next;
+			while ((next = step(labels[state], targets[state], c)) == -1 && state != 0) {
+				state = fail[state];
+			}
+			state = next == -1 ? 0 : next;
+			for (int out = firstWord[state] != -1 ? state : outputLink[state]; out != -1; out = outputLink[out]) {
+				for (int word = firstWord[out]; word != -1; word = nextWord[word]) {
+					if (word >= minWord && !found[word]) {
+						found[word] = true;
+						hits[count++] = word;
+					}
+				}
+			}
+		}
+		Arrays.sort(hits, 0, count);
+		return count;
+	}
+
+	/**
+	 * Returns the number of words the automaton was built from.
+	 */
+	int getWordCount() {
+		return words.length;
+	}
+
+	private char fold(char c) {
+		if (!caseSensitive && c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the state the given character leads to, or -1 if there is no
+	 * transition for it.
+	 */
+	private static int step(char[] stateLabels, int[] stateTargets, char c) {
+		int i = Arrays.binarySearch(stateLabels, c);
+		return i < 0 ? -1 : stateTargets[i];
+	}
+
+	private static void addTransition(List<char[]> labelList, List<int[]> targetList,
+			int state, char c, int target) {
+		char[] oldLabels = labelList.get(state);
+		int[] oldTargets = targetList.get(state);
+		int pos = -(Arrays.binarySearch(oldLabels, c) + 1);
+		char[] newLabels = new char[oldLabels.length + 1];
+		int[] newTargets = new int[oldTargets.length + 1];
+		System.arraycopy(oldLabels, 0, newLabels, 0, pos);
+		System.arraycopy(oldTargets, 0, newTargets, 0, pos);
+		newLabels[pos] = c;
+		newTargets[pos] = target;
+		System.arraycopy(oldLabels, pos, newLabels, pos + 1, oldLabels.length - pos);
+		System.arraycopy(oldTargets, pos, newTargets, pos + 1, oldTargets.length - pos);
+		labelList.set(state, newLabels);
+		targetList.set(state, newTargets);
+	}
+}
@@ -63,6 +63,58 @@ public class TranslateWordMungeStep extends AbstractMungeStep {
 	 */
 	private boolean caseSensitive;
 	
+	/**
+	 * A matcher for the "from" string of each word in the translate group
+	 * with the current options, compiled when the step is opened and again
+	 * after any of them change. It is null until then.
+	 */
+	private Matcher[] matchers;
+	
+	/**
+	 * The replacement for each of the {@link #matchers}.
+	 */
+	private String[] replacements;
+	
+	/**
+	 * The automaton that finds which of the words occur in a string, shared
+	 * with every other step using the same translate group. It is null when
+	 * the words are regular expressions.
+	 */
+	private TranslateWordAutomaton automaton;
+	
+	/**
+	 * Which words {@link #automaton} found in the current string.
+	 */
+	private boolean[] found;
+	
+	/**
+	 * The indices of the words {@link #automaton} found in the current
+	 * string, in order.
+	 */
+	private int[] hits;
+	
+	/**
+	 * The slot of this step's {@link Partition} in a compiled
+	 * {@link MungePlan}.
+	 */
+	private int stateSlot;
+	
+	/**
+	 * The matchers and the automaton's working arrays of one partition of a
+	 * compiled {@link MungePlan}. The patterns, replacements and automaton
+	 * do not change while the plan runs and are shared by every partition.
+	 */
+	private static class Partition {
+		private final Matcher[] matchers;
+		private final boolean[] found;
+		private final int[] hits;
+		
+		private Partition(Matcher[] matchers, boolean[] found, int[] hits) {
+			this.matchers = matchers;
+			this.found = found;
+			this.hits = hits;
+		}
+	}
 	
 	public TranslateWordMungeStep() {
 		super("Translate Words",false);
@@ -103,50 +155,137 @@ public class TranslateWordMungeStep extends AbstractMungeStep {
 	 * translate group has not been set.
 	 */
 	public Boolean doCall() throws Exception {
-
-		String from;
-		String to;
-		boolean useRegex = isRegex();
-		boolean caseSensitive = isCaseSensitive();
 		MungeStepOutput<String> out = getOut();
 		MungeStepOutput<String> in = getMSOInputs().get(0);
 		String data = in.getData();
-		
 		if (data != null) {
-			for (MatchMakerTranslateWord translateWord : translateGroup.getChildren()) {
-				from = translateWord.getFrom();
-				to = translateWord.getTo();
-				
-				if (from != null && to != null) {
-					// This block of code adds escape characters to each of
-					// the regex special characters to be taken as literals
-					if (!useRegex) {
-						String specialChars = "-+*?()[]{}|^<=";
-						from = from.replaceAll("\\\\", "\\\\\\\\");
-						from = from.replaceAll("\\$", "\\\\\\$");
-						for (char letter : specialChars.toCharArray()) {
-							from = from.replaceAll("\\" + letter, "\\\\" + letter);
-						}
-						
-						from = "(" + from + "){1}";
-					} 
-					Pattern p;
-					if (!caseSensitive) {
-						p = Pattern.compile(from, Pattern.CASE_INSENSITIVE);
-					} else {
-						p = Pattern.compile(from);
-					}
-					Matcher m = p.matcher(data);
-					data = m.replaceAll(to);
-				}
+			if (matchers == null) {
+				compileMatchers();
 			}
+			data = translate(data, matchers, found, hits);
 		}
-		
 		out.setData(data);
 		return true;
 	}
-
 	
+	@Override
+	protected void prepareSlots(MungePlan plan) {
+		stateSlot = plan.getStateSlot(this);
+		if (matchers == null) {
+			compileMatchers();
+		}
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	/**
+	 * Gives the partition matchers for the same patterns and working arrays
+	 * for the automaton of its own.
+	 */
+	@Override
+	protected Object openPartition(int partition, int partitionCount) throws Exception {
+		Matcher[] partitionMatchers = new Matcher[matchers.length];
+		for (int i = 0; i < matchers.length; i++) {
+			partitionMatchers[i] = matchers[i].pattern().matcher("");
+		}
+		if (automaton == null) {
+			return new Partition(partitionMatchers, null, null);
+		}
+		return new Partition(partitionMatchers, new boolean[found.length], new int[hits.length]);
+	}
+	
+	/**
+	 * Translates the input slot straight into the output slot with the
+	 * partition's matchers.
+	 */
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		if (data != null) {
+			Partition p = (Partition) slots[stateSlot];
+			data = translate(data, p.matchers, p.found, p.hits);
+		}
+		slots[outputSlots[0]] = data;
+		return true;
+	}
+	
+	/**
+	 * Replaces every word of the translate group in the given string, one
+	 * word after another in the order of the group. When the words are not
+	 * regular expressions, only the words the automaton finds in the string
+	 * are replaced. Since a replacement can make a later word appear, the
+	 * string is searched again for the later words whenever one changes it.
+	 * The given matchers and arrays are the caller's own, so partitions of a
+	 * compiled plan can translate at the same time.
+	 */
+	private String translate(String data, Matcher[] matchers, boolean[] found, int[] hits) {
+		if (automaton == null) {
+			for (int i = 0; i < matchers.length; i++) {
+				data = matchers[i].reset(data).replaceAll(replacements[i]);
+			}
+			return data;
+		}
+		int count = automaton.findWords(data, 0, found, hits);
+		int next = 0;
+		while (next < count) {
+			int word = hits[next++];
+			String replaced = matchers[word].reset(data).replaceAll(replacements[word]);
+			if (!replaced.equals(data)) {
+				data = replaced;
+				for (int i = 0; i < count; i++) {
+					found[hits[i]] = false;
+				}
+				count = automaton.findWords(data, word + 1, found, hits);
+				next = 0;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			found[hits[i]] = false;
+		}
+		return data;
+	}
+	
+	/**
+	 * Compiles a pattern for each word of the translate group that has both
+	 * a "from" and a "to" string, escaping the special characters of the
+	 * "from" strings if they are not regular expressions.
+	 */
+	private void compileMatchers() {
+		List<Matcher> newMatchers = new ArrayList<Matcher>();
+		List<String> newReplacements = new ArrayList<String>();
+		List<String> froms = new ArrayList<String>();
+		for (MatchMakerTranslateWord translateWord : translateGroup.getChildren()) {
+			String from = translateWord.getFrom();
+			String to = translateWord.getTo();
+			if (from != null && to != null) {
+				froms.add(from);
+				if (!isRegex()) {
+					from = "(" + escapeSpecialCharacters(from) + "){1}";
+				}
+				Pattern p;
+				if (!isCaseSensitive()) {
+					p = Pattern.compile(from, Pattern.CASE_INSENSITIVE);
+				} else {
+					p = Pattern.compile(from);
+				}
+				newMatchers.add(p.matcher(""));
+				newReplacements.add(to);
+			}
+		}
+		replacements = newReplacements.toArray(new String[newReplacements.size()]);
+		if (isRegex()) {
+			automaton = null;
+		} else {
+			automaton = TranslateWordAutomaton.forGroup(translateGroup, froms, isCaseSensitive());
+			found = new boolean[froms.size()];
+			hits = new int[froms.size()];
+		}
+		matchers = newMatchers.toArray(new Matcher[newMatchers.size()]);
+	}
+
 	/**
 	 * This munge step overrides the open() method to set its translate group from
 	 * the parameter.
@@ -159,6 +298,7 @@ public class TranslateWordMungeStep extends AbstractMungeStep {
 					"without a translate group selected. Check your Translate Word " +
 					"transformer settings");
 		}
+		compileMatchers();
 	}
 	
 	@Override
@@ -172,6 +312,7 @@ public class TranslateWordMungeStep extends AbstractMungeStep {
 	public void setRegex(boolean useRegex) {
 			boolean old = this.regex;
 			this.regex = useRegex;
+			matchers = null;
 			firePropertyChange("regex", old, regex);
 	}
 
@@ -184,6 +325,7 @@ public class TranslateWordMungeStep extends AbstractMungeStep {
 	public void setTranslateGroup(MatchMakerTranslateGroup mmtg) {
 			MatchMakerTranslateGroup old = this.translateGroup;
 			this.translateGroup = mmtg;
+			matchers = null;
 			firePropertyChange("translateGroup", old, translateGroup);
 	}
 
@@ -196,6 +338,7 @@ public class TranslateWordMungeStep extends AbstractMungeStep {
 	public void setCaseSensitive(boolean caseSensitive) {
 			boolean old = this.caseSensitive;
 			this.caseSensitive = caseSensitive;
+			matchers = null;
 			firePropertyChange("caseSensitive", old, caseSensitive);
 	}
 	
@@ -31,7 +31,7 @@ import ca.sqlpower.object.annotation.Constructor;
 /**
  * This munge step will trim white space from the start and end of strings. 
  */
-public class TrimSpacesMungeStep extends AbstractMungeStep {
+public class TrimSpacesMungeStep extends AbstractMungeStep implements FusableStringStep {
 	
 	@SuppressWarnings("unchecked")
 	public static final List<Class<? extends SPObject>> allowedChildTypes = 
@@ -63,6 +63,31 @@ public class TrimSpacesMungeStep extends AbstractMungeStep {
 		out.setData(data);
 		return true;
 	}
+	
+	/**
+	 * Trims the buffer the same way {@link String#trim()} would.
+	 */
+	public void transform(FusedStringChain.Buffer buffer, Object state) {
+		while (buffer.length > 0 && buffer.chars[buffer.start] <= ' ') {
+			buffer.start++;
+			buffer.length--;
+		}
+		while (buffer.length > 0 && buffer.chars[buffer.start + buffer.length - 1] <= ' ') {
+			buffer.length--;
+		}
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		slots[outputSlots[0]] = data == null ? null : data.trim();
+		return true;
+	}
 }
 
 
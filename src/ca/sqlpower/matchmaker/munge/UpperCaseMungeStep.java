@@ -34,7 +34,7 @@ import ca.sqlpower.object.annotation.Constructor;
  * This munge step will convert a alphabetical string input
  * to upper case.
  */
-public class UpperCaseMungeStep extends AbstractMungeStep {
+public class UpperCaseMungeStep extends AbstractMungeStep implements FusableStringStep {
 	
 	@SuppressWarnings("unchecked")
 	public static final List<Class<? extends SPObject>> allowedChildTypes = 
@@ -85,4 +85,20 @@ public class UpperCaseMungeStep extends AbstractMungeStep {
 		out.setData(data);
 		return true;
 	}
+	
+	public void transform(FusedStringChain.Buffer buffer, Object state) {
+		buffer.toUpperCase();
+	}
+	
+	@Override
+	protected boolean isPartitionSafe() {
+		return true;
+	}
+	
+	@Override
+	public Boolean doCall(Object[] slots, int[] inputSlots, int[] outputSlots) throws Exception {
+		String data = (String) slots[inputSlots[0]];
+		slots[outputSlots[0]] = data == null ? null : data.toUpperCase();
+		return true;
+	}
 }